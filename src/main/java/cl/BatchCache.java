@@ -0,0 +1,41 @@
+/*
+ * author: Santiago Ontañón Villar (Brain Games)
+ */
+package cl;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+
+import code.CPUOpSpec;
+import parser.CPUOpSpecParser;
+import util.CachingSourceProvider;
+import util.FileSystemSourceProvider;
+
+/**
+ * Data shared by all the entries of a batch run (see BatchRunner): the contents of
+ * every file read (source files, includes, pattern files, etc.) and the parsed
+ * instruction sets. Everything stored here is only read after being created, so it
+ * can be used by several entries at the same time.
+ *
+ * @author santi
+ */
+public class BatchCache {
+    // every file read is only read once from disk:
+    public CachingSourceProvider sources = new CachingSourceProvider(new FileSystemSourceProvider());
+    HashMap<String, List<CPUOpSpec>> instructionSets = new HashMap<>();
+    public int instructionSetParses = 0;
+
+
+    public synchronized List<CPUOpSpec> getInstructionSet(String fileName, CPUOpSpecParser parser) throws IOException
+    {
+        List<CPUOpSpec> specs = instructionSets.get(fileName);
+        if (specs == null) {
+            specs = parser.parseSpecsInternal();
+            if (specs == null) return null;
+            instructionSetParses++;
+            instructionSets.put(fileName, specs);
+        }
+        return specs;
+    }
+}
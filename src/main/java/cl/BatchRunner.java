@@ -0,0 +1,247 @@
+/*
+ * author: Santiago Ontañón Villar (Brain Games)
+ */
+package cl;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import util.CachingSourceProvider;
+import util.SourceProvider;
+
+/**
+ * Runs MDL over all the entries of a manifest file in a single JVM. Each line of
+ * the manifest contains the command line arguments of one entry (input file,
+ * dialect, cpu, flags, etc.), and lines starting with '#' are ignored. Entries get
+ * their own configuration and log, but share a BatchCache, so instruction sets are
+ * only parsed once and files used by several entries are only read once. The
+ * manifest and the summary are read/written through the same source provider as
+ * the entries.
+ *
+ * @author santi
+ */
+public class BatchRunner {
+    public static final String BATCH_FLAG = "-batch";
+
+    public static class Entry {
+        public int index;
+        public String args[];
+        public int exitCode = -1;
+        public long nanos = 0;
+        public String log = "";
+
+        public Entry(int a_index, String a_args[])
+        {
+            index = a_index;
+            args = a_args;
+        }
+
+        public String name()
+        {
+            return args.length > 0 ? args[0]:"";
+        }
+    }
+
+    public static final String docString =
+              "arguments: -batch <manifest file> [options]\n"
+            + "  -j <threads>: number of entries to process at the same time (default: 1).\n"
+            + "  -summary <file>: saves a tsv with the exit code and time of each entry.\n";
+
+    MDLLogger logger;
+    String manifestFileName = null;
+    String summaryFileName = null;
+    int threads = 1;
+    BatchCache cache = new BatchCache();
+    List<Entry> entries = new ArrayList<>();
+
+
+    public BatchRunner(MDLLogger a_logger)
+    {
+        logger = a_logger;
+    }
+
+
+    /*
+    All the files (the manifest, the files of the entries, and the output files) are
+    read from/written to "a_sources" instead of the file system:
+    */
+    public BatchRunner(MDLLogger a_logger, SourceProvider a_sources)
+    {
+        logger = a_logger;
+        cache.sources = new CachingSourceProvider(a_sources);
+    }
+
+
+    public boolean parseArgs(String ... args)
+    {
+        List<String> l = new ArrayList<>();
+        for(String arg:args) l.add(arg);
+        if (!l.isEmpty() && l.get(0).equals(BATCH_FLAG)) l.remove(0);
+        while(!l.isEmpty()) {
+            String arg = l.remove(0);
+            if (arg.equals("-j") && !l.isEmpty()) {
+                try {
+                    threads = Integer.parseInt(l.remove(0));
+                } catch (NumberFormatException e) {
+                    threads = 0;
+                }
+                if (threads < 1) {
+                    logger.log(MDLLogger.ERROR, "Invalid number of threads after -j");
+                    return false;
+                }
+            } else if (arg.equals("-summary") && !l.isEmpty()) {
+                summaryFileName = l.remove(0);
+            } else if (!arg.startsWith("-") && manifestFileName == null) {
+                manifestFileName = arg;
+            } else {
+                logger.log(MDLLogger.ERROR, "Unrecognized batch argument " + arg + "\n" + docString);
+                return false;
+            }
+        }
+        if (manifestFileName == null) {
+            logger.log(MDLLogger.ERROR, "Missing manifest file\n" + docString);
+            return false;
+        }
+        return loadManifest(manifestFileName);
+    }
+
+
+    public boolean loadManifest(String fileName)
+    {
+        try (BufferedReader br = cache.sources.asReader(fileName)) {
+            while(true) {
+                String line = br.readLine();
+                if (line == null) break;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                entries.add(new Entry(entries.size(), splitArgs(line)));
+            }
+        } catch (IOException e) {
+            logger.log(MDLLogger.ERROR, "Cannot read manifest file " + fileName);
+            return false;
+        }
+        return true;
+    }
+
+
+    /*
+    Splits a manifest line into arguments by white space (arguments with spaces can
+    be surrounded by double quotes):
+    */
+    static String[] splitArgs(String line)
+    {
+        List<String> args = new ArrayList<>();
+        StringBuilder current = null;
+        boolean quoted = false;
+        for(int i = 0;i<line.length();i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+                if (current == null) current = new StringBuilder();
+            } else if (Character.isWhitespace(c) && !quoted) {
+                if (current != null) args.add(current.toString());
+                current = null;
+            } else {
+                if (current == null) current = new StringBuilder();
+                current.append(c);
+            }
+        }
+        if (current != null) args.add(current.toString());
+        return args.toArray(new String[0]);
+    }
+
+
+    public List<Entry> getEntries()
+    {
+        return entries;
+    }
+
+
+    public BatchCache getCache()
+    {
+        return cache;
+    }
+
+
+    /*
+    Runs all the entries, and returns the highest exit code among them:
+    */
+    public int run() throws Exception
+    {
+        long start = System.nanoTime();
+        if (threads == 1) {
+            for(Entry e:entries) runEntry(e);
+        } else {
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                List<Future<?>> futures = new ArrayList<>();
+                for(Entry e:entries) futures.add(executor.submit(() -> runEntry(e)));
+                for(Future<?> f:futures) f.get();
+            } finally {
+                executor.shutdown();
+            }
+        }
+        long nanos = System.nanoTime() - start;
+
+        int exitCode = 0;
+        for(Entry e:entries) {
+            logger.log(MDLLogger.INFO, "Batch entry " + (e.index+1) + ": " + String.join(" ", e.args));
+            if (!e.log.isEmpty()) logger.print(e.log);
+            exitCode = Math.max(exitCode, e.exitCode);
+        }
+        logger.log(MDLLogger.INFO, "Batch summary (" + entries.size() + " entries, " + nanos/1000000 + " ms, " +
+                cache.sources.reads + " files read, " + cache.instructionSetParses + " instruction sets parsed):\n" +
+                summaryString());
+
+        if (summaryFileName != null) {
+            try (Writer w = cache.sources.asWriter(summaryFileName)) {
+                w.write(summaryString());
+            } catch (IOException e) {
+                logger.log(MDLLogger.ERROR, "Cannot write to file " + summaryFileName);
+                exitCode = Math.max(exitCode, 1);
+            }
+        }
+        return exitCode;
+    }
+
+
+    void runEntry(Entry e)
+    {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(buffer, true);
+        MDLConfig config = new MDLConfig(new MDLLogger(MDLLogger.INFO, out, out));
+        config.batchCache = cache;
+        config.sourceProvider = cache.sources;
+        long start = System.nanoTime();
+        try {
+            e.exitCode = Main.run(config, e.args);
+        } catch (Throwable ex) {
+            // errors such as a StackOverflowError caused by the input of one entry
+            // should not stop the rest of the batch:
+            config.error("Problem processing batch entry: " + ex);
+            e.exitCode = 4;
+        }
+        e.nanos = System.nanoTime() - start;
+        out.flush();
+        e.log = buffer.toString();
+    }
+
+
+    public String summaryString()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("entry\texit code\ttime (ms)\n");
+        for(Entry e:entries) {
+            sb.append(e.name()).append("\t").append(e.exitCode).append("\t").append(e.nanos/1000000).append("\n");
+        }
+        return sb.toString();
+    }
+}
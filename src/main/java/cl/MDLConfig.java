@@ -15,12 +15,21 @@ import parser.CPUOpParser;
 import parser.CPUOpSpecParser;
 import parser.CodeBaseParser;
 import parser.ExpressionParser;
+import parser.LexerConfig;
 import parser.LineParser;
 import parser.PreProcessor;
 import parser.dialects.Dialect;
 import parser.dialects.Dialects;
+import util.FileSystemSourceProvider;
+import util.SourceProvider;
 import workers.MDLWorker;
 
+/**
+ * All the settings and parsers used to process a code base. Different MDLConfig
+ * (and CodeBase) instances do not share any mutable state, so they can be used in
+ * parallel threads (but a single instance cannot be used by more than one thread
+ * at a time).
+ */
 public class MDLConfig {
     // constants:
     public static final int HEX_STYLE_HASH = 0;
@@ -44,6 +53,7 @@ public class MDLConfig {
     public String dialect = Dialects.defaultDialect();
     public Dialect dialectParser = null;
     public List<File> includeDirectories = new ArrayList<>();
+    public List<String> symbolPacks = new ArrayList<>();
 
     public boolean eagerMacroEvaluation = true;
     public boolean includeBinariesInAnalysis = false;
@@ -80,6 +90,11 @@ public class MDLConfig {
     public CodeBaseParser codeBaseParser;
     public CPUOpSpecParser opSpecParser;
     public CPUOpParser opParser;
+    public LexerConfig lexer = new LexerConfig();
+    // where to read input files from, and write output files to:
+    public SourceProvider sourceProvider = new FileSystemSourceProvider();
+    // data shared with other entries when running in batch mode (see BatchRunner):
+    public BatchCache batchCache = null;
 
     List<MDLWorker> workers = new ArrayList<>();
 
@@ -92,6 +107,7 @@ public class MDLConfig {
                     + "(default: mdl, which supports some basic code idioms common to various assemblers).\n"
             + "                   Note that even when selecting a dialect, not all syntax of a given assembler might be supported.\n"
             + "  -I <folder>: adds a folder to the include search path.\n"
+            + "  -symbol-pack <pack>: predefines the symbols of a symbol pack (a built-in one, like 'msx-bios', or a file of 'name: equ value' lines) before parsing. Can be used more than once.\n"
             + "  -quiet: turns off info messages; only outputs warnings and errors.\n"
             + "  -debug: turns on debug messages.\n"
             + "  -trace: turns on trace messages.\n"
@@ -126,6 +142,11 @@ public class MDLConfig {
     }
 
 
+    public MDLConfig(MDLLogger a_logger) {
+        logger = a_logger;
+    }
+
+
     public void registerWorker(MDLWorker r) {
         workers.add(r);
         docString += r.docString();
@@ -219,6 +240,16 @@ public class MDLConfig {
                         }
                         break;
 
+                    case "-symbol-pack":
+                        if (args.size()>=2) {
+                            args.remove(0);
+                            symbolPacks.add(args.remove(0));
+                        } else {
+                            error("Missing symbol pack after " + arg);
+                            return false;
+                        }
+                        break;
+
                     case "-quiet":
                         logger.minLevelToLog = MDLLogger.WARNING;
                         args.remove(0);
@@ -56,6 +56,14 @@ public class MDLLogger {
     }
 
     
+    // Prints text that has already been formatted by another logger (e.g., the log of
+    // a batch entry), unless this logger is silenced:
+    public void print(String text) {
+        if (minLevelToLog >= SILENT) return;
+        out.print(text);
+    }
+
+
     public void log(int level, String msg) {
         if (level < minLevelToLog) {
             return;
@@ -6,7 +6,18 @@ package cl;
 import workers.DotGenerator;
 import code.CodeBase;
 import workers.AnnotatedSourceCodeGenerator;
+import workers.CycleProfiler;
+import workers.MegaROMLayoutOptimizer;
+import workers.pattopt.DeadCodeEliminator;
+import workers.pattopt.JumpRelaxer;
+import workers.pattopt.LoopOptimizer;
+import workers.pattopt.OptimizedFileGenerator;
 import workers.pattopt.PatternBasedOptimizer;
+import workers.pattopt.RegisterAllocator;
+import workers.pattopt.TailCallOptimizer;
+import workers.superopt.PatternMiner;
+import workers.superopt.SuperOptimizer;
+import workers.BinaryGenerator;
 import workers.SourceCodeGenerator;
 import workers.SourceCodeTableGenerator;
 import workers.SymbolTableGenerator;
@@ -16,28 +27,59 @@ public class Main {
     public static String VERSION_STRING = "v1.2";
 
     public static void main(String args[]) throws Exception {
-        // Set up the MDL configuration:
-        MDLConfig config = new MDLConfig();
+        if (args.length >= 1 && args[0].equals(BatchRunner.BATCH_FLAG)) {
+            // Process all the entries of a manifest in this JVM:
+            BatchRunner batch = new BatchRunner(new MDLLogger(MDLLogger.INFO));
+            if (!batch.parseArgs(args)) System.exit(1);
+            int exitCode = batch.run();
+            if (exitCode != 0) System.exit(exitCode);
+            return;
+        }
+        int exitCode = run(new MDLConfig(), args);
+        if (exitCode != 0) System.exit(exitCode);
+    }
+
 
+    /*
+    Runs MDL with the given arguments, returning the exit code:
+    - 0: success
+    - 1: problem parsing the command line arguments
+    - 2: problem parsing the code base
+    - 3: problem executing the workers
+    */
+    public static int run(MDLConfig config, String args[]) throws Exception {
         // Add the workers in the order in which they should be executed:
-        config.registerWorker(new PatternBasedOptimizer(config));
+        PatternBasedOptimizer pbo = new PatternBasedOptimizer(config);
+        config.registerWorker(new DeadCodeEliminator(config, pbo));
+        config.registerWorker(new TailCallOptimizer(config, pbo));
+        config.registerWorker(new RegisterAllocator(config, pbo));
+        config.registerWorker(new LoopOptimizer(config, pbo));
+        config.registerWorker(pbo);
+        config.registerWorker(new SuperOptimizer(config, pbo));
+        config.registerWorker(new PatternMiner(config));
+        config.registerWorker(new JumpRelaxer(config, pbo));
+        config.registerWorker(new OptimizedFileGenerator(config, pbo));
         config.registerWorker(new DotGenerator(config));
         config.registerWorker(new SymbolTableGenerator(config));
         config.registerWorker(new SourceCodeTableGenerator(config));
+        config.registerWorker(new CycleProfiler(config));
+        config.registerWorker(new MegaROMLayoutOptimizer(config));
+        config.registerWorker(new BinaryGenerator(config));
         config.registerWorker(new SourceCodeGenerator(config));
         config.registerWorker(new AnnotatedSourceCodeGenerator(config));
 
         // Parse command line arguments:
-        if (!config.parseArgs(args)) System.exit(1);
+        if (!config.parseArgs(args)) return 1;
         
         // If there is nothing to do, just terminate:
-        if (!config.somethingToDo()) return;
+        if (!config.somethingToDo()) return 0;
 
         // Parse the code base:
         CodeBase code = new CodeBase(config);
-        if (!config.codeBaseParser.parseMainSourceFile(config.inputFile, code)) System.exit(2);
+        if (!config.codeBaseParser.parseMainSourceFile(config.inputFile, code)) return 2;
         
         // Execute all the requested workers according to the command-line arguments:
-        if (!config.executeWorkers(code)) System.exit(3);
+        if (!config.executeWorkers(code)) return 3;
+        return 0;
     }
 }
@@ -0,0 +1,61 @@
+/*
+ * author: Santiago Ontañón Villar (Brain Games)
+ */
+package code;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ * @author santi
+ */
+public class BasicBlock {
+    public int ID;
+    public List<SourceStatement> statements = new ArrayList<>();
+
+    // Successors within the same routine: fall through, jump targets, and for blocks
+    // ending in a "call", the statement right after the call (the return site):
+    public List<BasicBlock> successors = new ArrayList<>();
+    public List<BasicBlock> predecessors = new ArrayList<>();
+
+    // Set if the block ends in a "call" to a known label:
+    public BasicBlock callTarget = null;
+    public List<BasicBlock> callers = new ArrayList<>();
+
+    public boolean endsInCall = false;
+    public boolean endsInRet = false;
+    // e.g., "jp (hl)", "rst", or jumps/calls to constants that are not labels:
+    public boolean hasUnknownSuccessors = false;
+
+
+    public BasicBlock(int a_ID)
+    {
+        ID = a_ID;
+    }
+
+
+    public SourceStatement getFirst()
+    {
+        return statements.get(0);
+    }
+
+
+    public SourceStatement getLast()
+    {
+        return statements.get(statements.size()-1);
+    }
+
+
+    public boolean isSubroutineEntry()
+    {
+        return !callers.isEmpty();
+    }
+
+
+    @Override
+    public String toString()
+    {
+        return "BB" + ID + "(" + getFirst().fileNameLineString() + ")";
+    }
+}
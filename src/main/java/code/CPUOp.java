@@ -5,6 +5,7 @@ package code;
 
 import cl.MDLConfig;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 
 public class CPUOp {
@@ -14,6 +15,8 @@ public class CPUOp {
 
     List<CPUOpDependency> inputDeps = null;
     List<CPUOpDependency> outputDeps = null;
+    int inputRegsAndFlags = -1;  // -1 means "not yet computed"
+    int outputRegsAndFlags = -1;
 
 
     public CPUOp(CPUOpSpec a_spec, List<Expression> a_args, MDLConfig a_config)
@@ -86,14 +89,9 @@ public class CPUOp {
 
     public boolean checkInputDependency(CPUOpDependency dep)
     {
-        getInputDependencies();
-
-        for(CPUOpDependency inDep:inputDeps) {
-            if (dep.match(inDep)) {
-                return true;
-            }
-        }
-
+        if ((dep.regsAndFlags & getInputRegsAndFlags()) != 0) return true;
+        if (dep.port != null && dep.port.equals(spec.inputPort)) return true;
+        if (dep.memoryStart != null && spec.inputMemoryStart != null) return true;
         return false;
     }
 
@@ -105,17 +103,36 @@ public class CPUOp {
     */
     public CPUOpDependency checkOutputDependency(CPUOpDependency dep)
     {
-        getOutputDependencies();
-        
-        // remove from "dep" all the dependencies that are overwritten:
-        CPUOpDependency dep2 = new CPUOpDependency(dep);
-        for(CPUOpDependency outDep:outputDeps) {
-            dep2.remove(outDep);
+        int regsAndFlags = dep.regsAndFlags & ~getOutputRegsAndFlags();
+        String port = dep.port;
+        String memoryStart = dep.memoryStart;
+        String memoryEnd = dep.memoryEnd;
+        if (port != null && port.equals(spec.outputPort)) port = null;
+        if (memoryStart != null && spec.outputMemoryStart != null) {
+            // for now always match memory dependencies:
+            memoryStart = null;
+            memoryEnd = null;
         }
-        
-        if (dep2.isEmpty()) return null;
+        if (regsAndFlags == 0 && port == null && memoryStart == null && memoryEnd == null) return null;
+        if (regsAndFlags == dep.regsAndFlags && port == dep.port && memoryStart == dep.memoryStart) {
+            // nothing was overwritten:
+            return dep;
+        }
+        return new CPUOpDependency(regsAndFlags, port, memoryStart, memoryEnd);
+    }
+    
+    
+    public int getInputRegsAndFlags()
+    {
+        if (inputRegsAndFlags == -1) inputRegsAndFlags = spec.getInputRegsAndFlags(args);
+        return inputRegsAndFlags;
+    }
+
 
-        return dep2;
+    public int getOutputRegsAndFlags()
+    {
+        if (outputRegsAndFlags == -1) outputRegsAndFlags = spec.getOutputRegsAndFlags(args);
+        return outputRegsAndFlags;
     }
 
 
@@ -253,5 +270,154 @@ public class CPUOp {
             }
         }
         return true;
-    }    
+    }
+
+
+    /*
+    Encodes this op as machine code, following the byte representation of its spec
+    (e.g., "DD CB o 46+8*b"), where "n"/"nn" are the byte/word constants, "o" is an
+    (IX+o)/(IY+o) offset or a relative jump offset, and "r", "p", "q" and "b" are the
+    codes of the register/bit arguments. Returns null (after reporting an error) if
+    the op cannot be encoded:
+    */
+    public List<Integer> assemble(SourceStatement s, CodeBase code)
+    {
+        HashMap<String, Integer> variables = new HashMap<>();
+        for(int i = 0;i<spec.args.size() && i<args.size();i++) {
+            CPUOpSpecArg argSpec = spec.args.get(i);
+            Expression arg = args.get(i);
+            Integer value = null;
+            String variable = null;
+            if (argSpec.reg != null && arg.type == Expression.EXPRESSION_REGISTER_OR_FLAG) {
+                if (argSpec.reg.equals("r") || argSpec.reg.equals("p") || argSpec.reg.equals("q")) {
+                    variable = argSpec.reg;
+                } else if (argSpec.reg.equals("IXp")) {
+                    variable = "p";
+                } else if (argSpec.reg.equals("IYq")) {
+                    variable = "q";
+                } else {
+                    continue;
+                }
+                value = registerCode(arg.registerOrFlagName);
+            } else if (argSpec.regOffsetIndirection != null && arg.type == Expression.EXPRESSION_PARENTHESIS) {
+                Expression exp = arg.args.get(0);
+                variable = "o";
+                if (exp.type == Expression.EXPRESSION_SUM) {
+                    value = exp.args.get(1).evaluateToInteger(s, code, true);
+                } else if (exp.type == Expression.EXPRESSION_SUB) {
+                    value = exp.args.get(1).evaluateToInteger(s, code, true);
+                    if (value != null) value = -value;
+                } else {
+                    value = 0;
+                }
+            } else if (argSpec.byteConstantIndirectionAllowed && arg.type == Expression.EXPRESSION_PARENTHESIS) {
+                variable = "n";
+                value = arg.args.get(0).evaluateToInteger(s, code, true);
+            } else if (argSpec.wordConstantIndirectionAllowed && arg.type == Expression.EXPRESSION_PARENTHESIS) {
+                variable = "nn";
+                value = arg.args.get(0).evaluateToInteger(s, code, true);
+            } else if (argSpec.byteConstantAllowed) {
+                // constants with a range (e.g., "b" in "bit b,r") are part of the opcode:
+                variable = argSpec.min == null ? "n":"b";
+                value = arg.evaluateToInteger(s, code, true);
+            } else if (argSpec.wordConstantAllowed) {
+                variable = "nn";
+                value = arg.evaluateToInteger(s, code, true);
+            } else if (argSpec.relativeLabelAllowed) {
+                variable = "o";
+                value = arg.evaluateToInteger(s, code, true);
+                Integer address = s.getAddress(code);
+                if (value != null && address != null) {
+                    value -= address + spec.sizeInBytes;
+                } else {
+                    value = null;
+                }
+            } else {
+                continue;
+            }
+            if (value == null) {
+                config.error("Cannot evaluate argument " + arg + " in " + s.sl);
+                return null;
+            }
+            variables.put(variable, value);
+        }
+
+        if (!checkRange(variables, "n", -128, 255, s) ||
+            !checkRange(variables, "nn", -32768, 65535, s) ||
+            !checkRange(variables, "o", -128, 127, s)) return null;
+
+        List<Integer> bytes = new ArrayList<>();
+        boolean lowByte = true;
+        for(String token:spec.byteRepresentation.split(" ")) {
+            if (token.isEmpty()) continue;
+            if (token.equals("n") || token.equals("o") || token.equals("nn")) {
+                Integer value = variables.get(token);
+                if (value == null) {
+                    config.error("Cannot encode " + this + " in " + s.sl);
+                    return null;
+                }
+                if (token.equals("nn")) {
+                    // words are stored in little endian:
+                    bytes.add(lowByte ? value & 0xff : (value >> 8) & 0xff);
+                    lowByte = !lowByte;
+                } else {
+                    bytes.add(value & 0xff);
+                }
+            } else {
+                String parts[] = token.split("\\+");
+                int value = Integer.parseInt(parts[0], 16);
+                for(int i = 1;i<parts.length;i++) {
+                    String part = parts[i];
+                    int multiplier = 1;
+                    if (part.startsWith("8*")) {
+                        multiplier = 8;
+                        part = part.substring(2);
+                    }
+                    if (Character.isDigit(part.charAt(0))) {
+                        value += multiplier * Integer.parseInt(part);
+                    } else {
+                        Integer v = variables.get(part);
+                        if (v == null || v < 0) {
+                            config.error("Cannot encode " + this + " in " + s.sl);
+                            return null;
+                        }
+                        value += multiplier * v;
+                    }
+                }
+                bytes.add(value);
+            }
+        }
+        if (bytes.size() != spec.sizeInBytes) {
+            config.error("Cannot encode " + this + " (no byte representation) in " + s.sl);
+            return null;
+        }
+        return bytes;
+    }
+
+
+    boolean checkRange(HashMap<String, Integer> variables, String variable, int min, int max, SourceStatement s)
+    {
+        Integer value = variables.get(variable);
+        if (value == null) return true;
+        if (value < min || value > max) {
+            config.error("Value " + value + " out of range in " + this + " in " + s.sl);
+            return false;
+        }
+        return true;
+    }
+
+
+    static int registerCode(String reg)
+    {
+        switch(reg.toLowerCase()) {
+            case "b": return 0;
+            case "c": return 1;
+            case "d": return 2;
+            case "e": return 3;
+            case "h": case "ixh": case "iyh": return 4;
+            case "l": case "ixl": case "iyl": return 5;
+            case "a": return 7;
+            default: return -1;
+        }
+    }
 }
@@ -3,21 +3,67 @@
  */
 package code;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  *
  * @author santi
  */
 public class CPUOpDependency {
-    public String register = null;
-    public String flag = null;
+    // Registers and flags are represented as a bitmask, where each bit is an 8 bit
+    // register or a flag. Register pairs (and "F") are just the union of their parts,
+    // so that aliasing (A/AF, H/L/HL, IXH/IXL/IX, flags/F, etc.) is handled by
+    // simple bitwise operations:
+    public static final int FLAG_S = 0x0001;
+    public static final int FLAG_Z = 0x0002;
+    public static final int FLAG_H = 0x0004;
+    public static final int FLAG_PV = 0x0008;
+    public static final int FLAG_N = 0x0010;
+    public static final int FLAG_C = 0x0020;
+    public static final int REG_A = 0x0040;
+    public static final int REG_B = 0x0080;
+    public static final int REG_C = 0x0100;
+    public static final int REG_D = 0x0200;
+    public static final int REG_E = 0x0400;
+    public static final int REG_H = 0x0800;
+    public static final int REG_L = 0x1000;
+    public static final int REG_IXH = 0x2000;
+    public static final int REG_IXL = 0x4000;
+    public static final int REG_IYH = 0x8000;
+    public static final int REG_IYL = 0x10000;
+    public static final int REG_SP = 0x20000;
+    public static final int REG_PC = 0x40000;
+    public static final int REG_I = 0x80000;
+    public static final int REG_R = 0x100000;
+
+    public static final int REG_F = FLAG_S | FLAG_Z | FLAG_H | FLAG_PV | FLAG_N | FLAG_C;
+
+    // Names used to reconstruct the dependency in "toString", from the biggest to
+    // the smallest, so that register pairs are printed as such:
+    static final String MASK_REGISTER_NAMES[] = {"AF", "BC", "DE", "HL", "IX", "IY",
+                                                 "A", "F", "B", "C", "D", "E", "H", "L",
+                                                 "IXH", "IXL", "IYH", "IYL", "SP", "PC", "I", "R"};
+    static final String MASK_FLAG_NAMES[] = {"S", "Z", "H", "P/V", "N", "C"};
+
+    public int regsAndFlags = 0;
     public String port = null;
     public String memoryStart = null;
     public String memoryEnd = null;
-    
+
     public CPUOpDependency(String a_reg, String a_flag, String a_port, String a_mem1, String a_mem2)
     {
-        register = a_reg;
-        flag = a_flag;
+        if (a_reg != null) regsAndFlags |= registerMask(a_reg);
+        if (a_flag != null) regsAndFlags |= flagMask(a_flag);
+        port = a_port;
+        memoryStart = a_mem1;
+        memoryEnd = a_mem2;
+    }
+
+
+    public CPUOpDependency(int a_regsAndFlags, String a_port, String a_mem1, String a_mem2)
+    {
+        regsAndFlags = a_regsAndFlags;
         port = a_port;
         memoryStart = a_mem1;
         memoryEnd = a_mem2;
@@ -26,30 +72,95 @@ public class CPUOpDependency {
 
     public CPUOpDependency(CPUOpDependency dep)
     {
-        register = dep.register;
-        flag = dep.flag;
+        regsAndFlags = dep.regsAndFlags;
         port = dep.port;
         memoryStart = dep.memoryStart;
         memoryEnd = dep.memoryEnd;
-    }    
-    
-    
+    }
+
+
+    // Returns 0 if the register name is not known:
+    public static int registerMask(String reg)
+    {
+        switch(reg.toUpperCase()) {
+            case "A": return REG_A;
+            case "F": return REG_F;
+            case "AF": return REG_A | REG_F;
+            case "B": return REG_B;
+            case "C": return REG_C;
+            case "BC": return REG_B | REG_C;
+            case "D": return REG_D;
+            case "E": return REG_E;
+            case "DE": return REG_D | REG_E;
+            case "H": return REG_H;
+            case "L": return REG_L;
+            case "HL": return REG_H | REG_L;
+            case "IXH": return REG_IXH;
+            case "IXL": return REG_IXL;
+            case "IX": return REG_IXH | REG_IXL;
+            case "IYH": return REG_IYH;
+            case "IYL": return REG_IYL;
+            case "IY": return REG_IYH | REG_IYL;
+            case "SP": return REG_SP;
+            case "PC": return REG_PC;
+            case "I": return REG_I;
+            case "R": return REG_R;
+            default: return 0;
+        }
+    }
+
+
+    // Returns 0 if the flag name is not known:
+    public static int flagMask(String flag)
+    {
+        switch(flag.toUpperCase()) {
+            case "S": return FLAG_S;
+            case "Z": return FLAG_Z;
+            case "H": return FLAG_H;
+            case "P":
+            case "V":
+            case "P/V": return FLAG_PV;
+            case "N": return FLAG_N;
+            case "C": return FLAG_C;
+            default: return 0;
+        }
+    }
+
+
+    public static List<String> maskToNames(int mask)
+    {
+        List<String> names = new ArrayList<>();
+        for(String name:MASK_REGISTER_NAMES) {
+            int regMask = registerMask(name);
+            if ((mask & regMask) == regMask) {
+                names.add(name);
+                mask &= ~regMask;
+            }
+        }
+        for(String name:MASK_FLAG_NAMES) {
+            int flagMask = flagMask(name);
+            if ((mask & flagMask) == flagMask) {
+                names.add("flag:" + name);
+                mask &= ~flagMask;
+            }
+        }
+        return names;
+    }
+
+
     public boolean isEmpty()
     {
-        return register == null && flag == null && port == null && 
+        return regsAndFlags == 0 && port == null &&
                memoryStart == null && memoryEnd == null;
     }
-    
-    
+
+
     @Override
     public boolean equals(Object o)
     {
         if (!(o instanceof CPUOpDependency)) return false;
         CPUOpDependency dep = (CPUOpDependency)o;
-        if (register == null && dep.register != null) return false;
-        if (register != null && !register.equals(dep.register)) return false;
-        if (flag == null && dep.flag != null) return false;
-        if (flag != null && !flag.equals(dep.flag)) return false;
+        if (regsAndFlags != dep.regsAndFlags) return false;
         if (port == null && dep.port != null) return false;
         if (port != null && !port.equals(dep.port)) return false;
         if (memoryStart == null && dep.memoryStart != null) return false;
@@ -58,97 +169,38 @@ public class CPUOpDependency {
         if (memoryEnd != null && !memoryEnd.equals(dep.memoryEnd)) return false;
         return true;
     }
-        
-    
+
+
+    @Override
+    public int hashCode() {
+        return regsAndFlags;
+    }
+
+
     @Override
     public String toString() {
-        if (register != null) return "reg:" + register;
-        if (flag != null) return "flag:" + flag;
+        if (regsAndFlags != 0) return "reg:" + maskToNames(regsAndFlags);
         if (port != null) return "port:" + port;
         return "mem:["+memoryStart+":"+memoryEnd+"]";
     }
-    
-    
+
+
     public boolean match(CPUOpDependency dep)
     {
-        if (register != null && dep.register != null) {
-            if (register.equals(dep.register)) return true;
-            // match register pairs with their invididual parts:
-            if (register.equals("A") && dep.register.equals("AF")) return true;
-            if (register.equals("AF") && dep.register.equals("A")) return true;
-            if ((register.equals("B") || register.equals("C")) && dep.register.equals("BC")) return true;
-            if ((dep.register.equals("B") || dep.register.equals("C")) && register.equals("BC")) return true;
-            if ((register.equals("D") || register.equals("E")) && dep.register.equals("DE")) return true;
-            if ((dep.register.equals("D") || dep.register.equals("E")) && register.equals("DE")) return true;
-            if ((register.equals("H") || register.equals("L")) && dep.register.equals("HL")) return true;
-            if ((dep.register.equals("H") || dep.register.equals("L")) && register.equals("HL")) return true;
-            if ((register.equals("IXL") || register.equals("IXH")) && dep.register.equals("IX")) return true;
-            if ((dep.register.equals("IXL") || dep.register.equals("IXH")) && register.equals("IX")) return true;
-            if ((register.equals("IYL") || register.equals("IYH")) && dep.register.equals("IY")) return true;
-            if ((dep.register.equals("IYL") || dep.register.equals("IYH")) && register.equals("IY")) return true;
-            return false;
-        }
-        if (flag != null) return flag.equals(dep.flag);
-        if (port != null) return port.equals(dep.port);
+        if ((regsAndFlags & dep.regsAndFlags) != 0) return true;
+        if (port != null && port.equals(dep.port)) return true;
         if (memoryStart != null) {
             // for now always match memory dependencies:
             // ...
             return dep.memoryStart != null;
         }
-        if (flag != null && dep.register != null) {
-            if (dep.register.equals("AF")) return true;
-        }
-        if (dep.flag != null && register != null) {
-            if (register.equals("AF")) return true;
-        }
         return false;
     }
-    
-    
+
+
     public void remove(CPUOpDependency dep)
     {
-        if (register != null && dep.register != null) {
-            if (register.equals(dep.register)) {
-                register = null;
-            }
-        }
-        if (register != null && dep.register != null) {
-            // match register pairs with their invididual parts:
-            if (register.equals("A") && dep.register.equals("AF")) register = null;
-            if (register != null && register.equals("AF") && dep.register.equals("A")) {
-                //only A is modified, but we still have a dependency going forwawrd on "F"
-                register = "F";
-            }
-            if (register != null && (register.equals("B") || register.equals("C")) && dep.register.equals("BC")) {
-                register = null;
-            }
-            if (register != null && (register.equals("D") || register.equals("E")) && dep.register.equals("DE")) {
-                register = null;
-            }
-            if (register != null && (register.equals("H") || register.equals("L")) && dep.register.equals("HL")) {
-                register = null;
-            }
-            if (register != null && (register.equals("IXL") || register.equals("IXH")) && dep.register.equals("IX")) {
-                register = null;
-            }
-            if (register != null && (register.equals("IYL") || register.equals("IYH")) && dep.register.equals("IY")) {
-                register = null;
-            }
-
-            if (register != null && dep.register.equals("B") && register.equals("BC")) register = "C";
-            if (register != null && dep.register.equals("C") && register.equals("BC")) register = "B";
-            if (register != null && dep.register.equals("D") && register.equals("DE")) register = "E";
-            if (register != null && dep.register.equals("E") && register.equals("DE")) register = "D";
-            if (register != null && dep.register.equals("H") && register.equals("HL")) register = "L";
-            if (register != null && dep.register.equals("L") && register.equals("HL")) register = "H";
-            if (register != null && dep.register.equals("IXL") && register.equals("IX")) register = "IXH";
-            if (register != null && dep.register.equals("IXH") && register.equals("IX")) register = "IXL";
-            if (register != null && dep.register.equals("IYL") && register.equals("IY")) register = "IYH";
-            if (register != null && dep.register.equals("IYH") && register.equals("IY")) register = "IYL";
-        }
-        if (flag != null && flag.equals(dep.flag)) {
-            flag = null;
-        }
+        regsAndFlags &= ~dep.regsAndFlags;
         if (port != null && port.equals(dep.port)) {
             port = null;
         }
@@ -158,17 +210,6 @@ public class CPUOpDependency {
             memoryStart = null;
             memoryEnd = null;
         }
-        if (flag != null && dep.register != null) {
-            if (dep.register.equals("AF")) {
-                dep.flag = null;
-            }
-        }
-        if (dep.flag != null && register != null) {
-            if (register.equals("F")) {
-                register = null;
-            }
-        }
-        
     }
-    
+
 }
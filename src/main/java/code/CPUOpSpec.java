@@ -28,6 +28,9 @@ public class CPUOpSpec {
     public String inputPort = null, inputMemoryStart = null, inputMemoryEnd = null;
     public List<String> outputRegs, outputFlags;
     public String outputPort = null, outputMemoryStart = null, outputMemoryEnd = null;
+    // Bitmask versions of the register/flag dependencies (see CPUOpDependency):
+    public int inputRegsAndFlags = 0, outputRegsAndFlags = 0;
+    boolean argDependentInputRegs = false, argDependentOutputRegs = false;
     
     
     public CPUOpSpec(String a_opName, int a_size, int a_times[], String a_byteRepresentation, boolean a_official, MDLConfig a_config)
@@ -61,6 +64,31 @@ public class CPUOpSpec {
     }
 
 
+    public String getByteRepresentation()
+    {
+        return byteRepresentation;
+    }
+
+
+    public int getSizeInBytes()
+    {
+        return sizeInBytes;
+    }
+
+
+    public int[] getTimes()
+    {
+        return times;
+    }
+
+
+    @Override
+    public String toString()
+    {
+        return opName + " (" + byteRepresentation + ")";
+    }
+
+
     public void addArgSpec(CPUOpSpecArg arg) {
         args.add(arg);
     }
@@ -127,31 +155,104 @@ public class CPUOpSpec {
     }
 
 
-    public List<CPUOpDependency> getInputDependencies(List<Expression> opArgs)
+    /*
+    Precomputes the bitmasks of the registers/flags read/written by this op (see
+    CPUOpDependency). Registers that depend on the op arguments (e.g., "r") are
+    not included, and are added in "getInputRegsAndFlags"/"getOutputRegsAndFlags".
+    */
+    public boolean computeDependencyMasks()
     {
-        List<CPUOpDependency> deps = new ArrayList<>();
-
+        inputRegsAndFlags = 0;
+        argDependentInputRegs = false;
         for(String reg:inputRegs) {
             if (isPrimitiveReg(reg)) {
-                deps.add(new CPUOpDependency(reg, null, null, null, null));
+                int mask = CPUOpDependency.registerMask(reg);
+                if (mask == 0) {
+                    config.error("Unknown register " + reg + " in the dependencies of " + this);
+                    return false;
+                }
+                inputRegsAndFlags |= mask;
             } else {
-                // we need to find which reg in particular is used in this op:
-                for(int i = 0;i<args.size();i++) {
-                    CPUOpSpecArg specArg = args.get(i);
-                    if (specArg.reg != null && specArg.reg.equals(reg)) {
-                        Expression opArg = opArgs.get(i);
-                        if (opArg.type == Expression.EXPRESSION_REGISTER_OR_FLAG) {
-                            deps.add(new CPUOpDependency(opArg.registerOrFlagName.toUpperCase(), null, null, null, null));
-                        } else {
-                            config.error("getInputDependencies Register expression is not of type EXPRESSION_REGISTER_OR_FLAG");
-                            return null;
-                        }
+                argDependentInputRegs = true;
+            }
+        }
+        for(String flag:inputFlags) {
+            int mask = CPUOpDependency.flagMask(flag);
+            if (mask == 0) {
+                config.error("Unknown flag " + flag + " in the dependencies of " + this);
+                return false;
+            }
+            inputRegsAndFlags |= mask;
+        }
+        outputRegsAndFlags = 0;
+        argDependentOutputRegs = false;
+        for(String reg:outputRegs) {
+            if (isPrimitiveReg(reg)) {
+                int mask = CPUOpDependency.registerMask(reg);
+                if (mask == 0) {
+                    config.error("Unknown register " + reg + " in the dependencies of " + this);
+                    return false;
+                }
+                outputRegsAndFlags |= mask;
+            } else {
+                argDependentOutputRegs = true;
+            }
+        }
+        for(String flag:outputFlags) {
+            int mask = CPUOpDependency.flagMask(flag);
+            if (mask == 0) {
+                config.error("Unknown flag " + flag + " in the dependencies of " + this);
+                return false;
+            }
+            outputRegsAndFlags |= mask;
+        }
+        return true;
+    }
+    
+    
+    public int getInputRegsAndFlags(List<Expression> opArgs)
+    {
+        if (!argDependentInputRegs) return inputRegsAndFlags;
+        return inputRegsAndFlags | argDependentRegs(inputRegs, opArgs);
+    }
+
+
+    public int getOutputRegsAndFlags(List<Expression> opArgs)
+    {
+        if (!argDependentOutputRegs) return outputRegsAndFlags;
+        return outputRegsAndFlags | argDependentRegs(outputRegs, opArgs);
+    }
+    
+    
+    int argDependentRegs(List<String> regs, List<Expression> opArgs)
+    {
+        int mask = 0;
+        for(String reg:regs) {
+            if (isPrimitiveReg(reg)) continue;
+            // we need to find which reg in particular is used in this op:
+            for(int i = 0;i<args.size();i++) {
+                CPUOpSpecArg specArg = args.get(i);
+                if (specArg.reg != null && specArg.reg.equals(reg)) {
+                    Expression opArg = opArgs.get(i);
+                    if (opArg.type == Expression.EXPRESSION_REGISTER_OR_FLAG) {
+                        mask |= CPUOpDependency.registerMask(opArg.registerOrFlagName);
+                    } else {
+                        config.error("Register expression is not of type EXPRESSION_REGISTER_OR_FLAG in " + this);
                     }
                 }
             }
         }
-        for(String flag:inputFlags) {
-            deps.add(new CPUOpDependency(null, flag, null, null, null));
+        return mask;
+    }
+
+
+    public List<CPUOpDependency> getInputDependencies(List<Expression> opArgs)
+    {
+        List<CPUOpDependency> deps = new ArrayList<>();
+
+        int mask = getInputRegsAndFlags(opArgs);
+        if (mask != 0) {
+            deps.add(new CPUOpDependency(mask, null, null, null));
         }
         if (inputPort != null) {
             deps.add(new CPUOpDependency(null, null, inputPort, null, null));
@@ -168,27 +269,9 @@ public class CPUOpSpec {
     {
         List<CPUOpDependency> deps = new ArrayList<>();
 
-        for(String reg:outputRegs) {
-            if (isPrimitiveReg(reg)) {
-                deps.add(new CPUOpDependency(reg, null, null, null, null));
-            } else {
-                // we need to find which reg in particular is used in this op:
-                for(int i = 0;i<args.size();i++) {
-                    CPUOpSpecArg specArg = args.get(i);
-                    if (specArg.reg != null && specArg.reg.equals(reg)) {
-                        Expression opArg = opArgs.get(i);
-                        if (opArg.type == Expression.EXPRESSION_REGISTER_OR_FLAG) {
-                            deps.add(new CPUOpDependency(opArg.registerOrFlagName.toUpperCase(), null, null, null, null));
-                        } else {
-                            config.error("getOutputDependencies Register expression is not of type EXPRESSION_REGISTER_OR_FLAG");
-                            return null;
-                        }
-                    }
-                }
-            }
-        }
-        for(String flag:outputFlags) {
-            deps.add(new CPUOpDependency(null, flag, null, null, null));
+        int mask = getOutputRegsAndFlags(opArgs);
+        if (mask != 0) {
+            deps.add(new CPUOpDependency(mask, null, null, null));
         }
         if (outputPort != null) {
             deps.add(new CPUOpDependency(null, null, outputPort, null, null));
@@ -8,6 +8,15 @@ package code;
  * @author santi
  */
 public class CPUOpSpecArg {
+    // Coarse operand "shapes", used by CPUOpParser to discard candidate op specs
+    // before calling "match" (which might need to evaluate expressions):
+    public static final int SHAPE_UNKNOWN = 0;
+    public static final int SHAPE_REGISTER_OR_FLAG = 1;
+    public static final int SHAPE_REGISTER_INDIRECTION = 2;
+    public static final int SHAPE_REGISTER_OFFSET_INDIRECTION = 3;
+    public static final int SHAPE_CONSTANT_INDIRECTION = 4;
+    public static final int SHAPE_CONSTANT = 5;
+    
     public String reg = null;
     public String regIndirection = null;
     public String regOffsetIndirection = null;
@@ -89,6 +98,32 @@ public class CPUOpSpecArg {
     }    
     
     
+    /*
+    Returns whether an argument with the given shape could possibly match this
+    argument specification. "regName" is only used for the register shapes.
+    This is a necessary (but not sufficient) condition for "match" to succeed.
+    */
+    public boolean couldMatchShape(int shape, String regName, CPUOpSpec spec)
+    {
+        switch(shape) {
+            case SHAPE_REGISTER_OR_FLAG:
+                if (condition != null && regName.equalsIgnoreCase(condition)) return true;
+                return reg != null && spec.regMatch(reg, regName);
+            case SHAPE_REGISTER_INDIRECTION:
+                if (regIndirection != null && spec.regMatch(regIndirection, regName)) return true;
+                return regOffsetIndirection != null && spec.regMatch(regOffsetIndirection, regName);
+            case SHAPE_REGISTER_OFFSET_INDIRECTION:
+                return regOffsetIndirection != null && spec.regMatch(regOffsetIndirection, regName);
+            case SHAPE_CONSTANT_INDIRECTION:
+                return byteConstantIndirectionAllowed || wordConstantIndirectionAllowed;
+            case SHAPE_CONSTANT:
+                return byteConstantAllowed || wordConstantAllowed || relativeLabelAllowed;
+            default:
+                return true;
+        }
+    }
+    
+    
     @Override
     public boolean equals(Object o)
     {
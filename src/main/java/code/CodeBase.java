@@ -18,6 +18,9 @@ public class CodeBase {
     SourceFile main;
     LinkedHashMap<String, SourceFile> sources = new LinkedHashMap<>();
     LinkedHashMap<String, SourceConstant> symbols = new LinkedHashMap<>();
+    
+    // Built on demand, after parsing:
+    ControlFlowGraph controlFlowGraph = null;
 
 
     public CodeBase(MDLConfig a_config)
@@ -205,6 +208,30 @@ public class CodeBase {
     }
 
 
+    public ControlFlowGraph getControlFlowGraph()
+    {
+        if (controlFlowGraph == null) {
+            controlFlowGraph = new ControlFlowGraph(this, config);
+            controlFlowGraph.build();
+        }
+        return controlFlowGraph;
+    }
+
+
+    // To be called after statements are replaced in "f" once the code is already parsed:
+    public void updateControlFlowGraph(SourceFile f, List<SourceStatement> removed, List<SourceStatement> added)
+    {
+        if (controlFlowGraph != null) controlFlowGraph.update(f, removed, added);
+    }
+
+
+    // To be called after any other structural change to the code:
+    public void resetControlFlowGraph()
+    {
+        controlFlowGraph = null;
+    }
+
+
     public void evaluateAllExpressions()
     {
         for(SourceFile f:sources.values()) {
@@ -0,0 +1,643 @@
+/*
+ * author: Santiago Ontañón Villar (Brain Games)
+ */
+package code;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import org.apache.commons.lang3.tuple.Pair;
+
+import cl.MDLConfig;
+
+/**
+ * Whole-program control flow graph. Each statement is a node linked to the
+ * statement that comes after it in execution order (with "include" statements
+ * stitched to the contents of the included files), plus the jump/call target
+ * if any. Basic blocks are derived from these nodes on demand.
+ *
+ * The statement-level graph is updated incrementally via "update" when
+ * statements are replaced (e.g., by the pattern-based optimizer), and basic
+ * blocks are recomputed lazily afterwards.
+ *
+ * @author santi
+ */
+public class ControlFlowGraph {
+    public static final int FLOW_NEXT = 0;
+    public static final int FLOW_JUMP = 1;
+    public static final int FLOW_CALL = 2;
+    public static final int FLOW_RET = 3;
+
+    static class Node {
+        SourceStatement s;
+        Node next = null, prev = null;  // execution order (ignoring jumps)
+        int flow = FLOW_NEXT;
+        boolean conditional = false;
+        SourceConstant target = null;   // jump/call target (null if it cannot be determined)
+
+        Node(SourceStatement a_s)
+        {
+            s = a_s;
+        }
+    }
+
+    static class DepCheckNode {
+        SourceStatement s;
+        CPUOpDependency dep;
+        List<SourceStatement> callStack;
+        
+        public DepCheckNode(SourceStatement a_s, CPUOpDependency a_dep, List<SourceStatement> a_cs)
+        {
+            s = a_s;
+            dep = a_dep;
+            callStack = a_cs;
+        }
+        
+        
+        public boolean match(CPUOpDependency a_dep, List<SourceStatement> a_cs)
+        {
+            if (!a_dep.equals(dep)) return false;
+            if (callStack == null) {
+                if (a_cs != null) return false;
+            } else {
+                if (a_cs == null) return false;
+                if (a_cs.size() != callStack.size()) return false;
+                for(int i = 0;i<callStack.size();i++) {
+                    if (callStack.get(i) != a_cs.get(i)) return false;
+                }
+            }
+            return true;
+        }
+    }
+
+
+    MDLConfig config;
+    CodeBase code;
+    HashMap<SourceStatement, Node> nodes = new HashMap<>();
+    List<Node> heads = new ArrayList<>();
+
+    // Derived (recomputed lazily after any update):
+    List<BasicBlock> blocks = null;
+    HashMap<SourceStatement, BasicBlock> statementBlocks = null;
+    HashMap<SourceStatement, SubroutineSummary> summaries = null;
+
+
+    public ControlFlowGraph(CodeBase a_code, MDLConfig a_config)
+    {
+        code = a_code;
+        config = a_config;
+    }
+
+
+    public void build()
+    {
+        nodes.clear();
+        heads.clear();
+        blocks = null;
+        statementBlocks = null;
+        summaries = null;
+
+        HashSet<SourceFile> visited = new HashSet<>();
+        if (code.getMain() != null) {
+            List<Node> chain = new ArrayList<>();
+            linearize(code.getMain(), chain, visited);
+            addChain(chain);
+        }
+        // Any file not reachable through includes from the main file:
+        for(SourceFile f:code.getSourceFiles()) {
+            if (visited.contains(f)) continue;
+            List<Node> chain = new ArrayList<>();
+            linearize(f, chain, visited);
+            addChain(chain);
+        }
+    }
+
+
+    void linearize(SourceFile f, List<Node> chain, HashSet<SourceFile> visited)
+    {
+        if (!visited.add(f)) return;
+        for(SourceStatement s:f.getStatements()) {
+            Node n = newNode(s);
+            chain.add(n);
+            if (s.type == SourceStatement.STATEMENT_INCLUDE && s.include != null) {
+                linearize(s.include, chain, visited);
+            }
+        }
+    }
+
+
+    void addChain(List<Node> chain)
+    {
+        if (chain.isEmpty()) return;
+        for(int i = 0;i<chain.size()-1;i++) {
+            chain.get(i).next = chain.get(i+1);
+            chain.get(i+1).prev = chain.get(i);
+        }
+        heads.add(chain.get(0));
+    }
+
+
+    Node newNode(SourceStatement s)
+    {
+        Node n = new Node(s);
+        nodes.put(s, n);
+        if (s.type == SourceStatement.STATEMENT_CPUOP) {
+            CPUOp op = s.op;
+            n.conditional = op.isConditional();
+            if (op.isRst()) {
+                n.flow = FLOW_CALL;
+            } else if (op.isRet()) {
+                n.flow = FLOW_RET;
+            } else {
+                Expression labelExp = op.getTargetJumpExpression();
+                if (labelExp != null) {
+                    n.flow = op.isCall() ? FLOW_CALL:FLOW_JUMP;
+                    if (labelExp.type == Expression.EXPRESSION_SYMBOL) {
+                        SourceConstant label = code.getSymbol(labelExp.symbolName);
+                        if (label != null && label.isLabel()) n.target = label;
+                    }
+                }
+            }
+        }
+        return n;
+    }
+
+
+    public boolean contains(SourceStatement s)
+    {
+        return nodes.containsKey(s);
+    }
+
+
+    // Next statement in execution order, assuming no jump is taken:
+    public SourceStatement getNextStatement(SourceStatement s)
+    {
+        Node n = nodes.get(s);
+        if (n == null || n.next == null) return null;
+        return n.next.s;
+    }
+
+
+    // Returns the statement the jump/call in "s" will go to, or null if it cannot be determined:
+    public SourceStatement getTargetStatement(SourceStatement s)
+    {
+        Node n = nodes.get(s);
+        if (n == null || n.target == null) return null;
+        return n.target.definingStatement;
+    }
+
+
+    /*
+    Equivalent to SourceFile.nextExecutionStatements (with "goInsideInclude" set to true),
+    but using the precomputed graph.
+    Returns <statement, callstack> pairs, or "null" when there are some potential next
+    statements that cannot be determined (e.g. "ret" without a call stack, "jp hl", "rst", etc.).
+    */
+    public List<Pair<SourceStatement, List<SourceStatement>>>
+        nextExecutionStatements(SourceStatement s, List<SourceStatement> callStack)
+    {
+        Node n = nodes.get(s);
+        if (n == null) {
+            config.error("Cannot find statement " + s + " in the control flow graph.");
+            return null;
+        }
+
+        switch(n.flow) {
+            case FLOW_RET:
+            {
+                // we don't know where are we going to jump to:
+                if (callStack != null && !callStack.isEmpty()) {
+                    SourceStatement target = callStack.get(callStack.size()-1);
+                    if (target != null) {
+                        List<SourceStatement> newCallStack = new ArrayList<>();
+                        for(int i = 0;i<callStack.size()-1;i++) {
+                            newCallStack.add(callStack.get(i));
+                        }
+                        List<Pair<SourceStatement, List<SourceStatement>>> next = new ArrayList<>();
+                        next.add(Pair.of(target, newCallStack));
+                        if (n.conditional) {
+                            next.addAll(immediatelyNextExecutionStatements(n, callStack));
+                        }
+                        return next;
+                    }
+                }
+                return null;
+            }
+
+            case FLOW_JUMP:
+            case FLOW_CALL:
+            {
+                if (n.target == null || n.target.definingStatement == null) {
+                    // not all next statements can be determined:
+                    return null;
+                }
+                List<Pair<SourceStatement, List<SourceStatement>>> next;
+                if (n.conditional) {
+                    next = immediatelyNextExecutionStatements(n, callStack);
+                } else {
+                    next = new ArrayList<>();
+                }
+                List<SourceStatement> newCallStack = callStack;
+                if (newCallStack != null && n.flow == FLOW_CALL) {
+                    if (n.next == null) {
+                        config.error("Call at the very end of the program: " + n.s);
+                        return null;
+                    }
+                    newCallStack = new ArrayList<>();
+                    newCallStack.addAll(callStack);
+                    newCallStack.add(n.next.s);
+                }
+                next.add(Pair.of(n.target.definingStatement, newCallStack));
+                return next;
+            }
+
+            default:
+            {
+                if (n.s.type == SourceStatement.STATEMENT_MACRO ||
+                    n.s.type == SourceStatement.STATEMENT_MACROCALL) {
+                    throw new IllegalStateException("Macros should have been resolved before optimization!");
+                }
+                List<SourceStatement> newCallStack = callStack;
+                if (newCallStack != null && n.s.type == SourceStatement.STATEMENT_CPUOP) {
+                    if (n.s.op.isPush()) {
+                        newCallStack = new ArrayList<>();
+                        newCallStack.addAll(callStack);
+                        newCallStack.add(null);
+                    } else if (n.s.op.isPop()) {
+                        newCallStack = new ArrayList<>();
+                        newCallStack.addAll(callStack);
+                        if (newCallStack.isEmpty()) {
+                            newCallStack = null;
+                        } else {
+                            newCallStack.remove(newCallStack.size()-1);
+                        }
+                    } else if (n.s.op.modifiesStackInNonStandardWay()) {
+                        newCallStack = null;
+                    }
+                }
+                return immediatelyNextExecutionStatements(n, newCallStack);
+            }
+        }
+    }
+
+
+    List<Pair<SourceStatement, List<SourceStatement>>> immediatelyNextExecutionStatements(Node n, List<SourceStatement> callStack)
+    {
+        List<Pair<SourceStatement, List<SourceStatement>>> next = new ArrayList<>();
+        if (n.next != null) next.add(Pair.of(n.next.s, callStack));
+        return next;
+    }
+
+
+    /*
+    Updates the graph after the statements in "removed" have been removed from "f", and
+    the statements in "added" have been inserted into "f".
+    */
+    public void update(SourceFile f, List<SourceStatement> removed, List<SourceStatement> added)
+    {
+        for(SourceStatement s:removed) {
+            Node n = nodes.remove(s);
+            if (n == null) continue;
+            if (n.prev != null) {
+                n.prev.next = n.next;
+            } else {
+                int idx = heads.indexOf(n);
+                if (n.next != null) {
+                    heads.set(idx, n.next);
+                } else {
+                    heads.remove(idx);
+                }
+            }
+            if (n.next != null) n.next.prev = n.prev;
+        }
+
+        List<SourceStatement> l = f.getStatements();
+        List<SourceStatement> toAdd = new ArrayList<>();
+        for(SourceStatement s:l) {
+            if (added.contains(s)) toAdd.add(s);
+        }
+        for(SourceStatement s:toAdd) {
+            int idx = l.indexOf(s);
+            Node n = newNode(s);
+            Node prev = null;
+            if (idx > 0) {
+                prev = lastNode(l.get(idx-1));
+            } else if (f.parentInclude != null) {
+                prev = nodes.get(f.parentInclude);
+            }
+            if (prev != null) {
+                n.prev = prev;
+                n.next = prev.next;
+                if (prev.next != null) prev.next.prev = n;
+                prev.next = n;
+            } else {
+                // beginning of a chain:
+                Node next = null;
+                for(int i = idx+1;i<l.size() && next == null;i++) {
+                    next = nodes.get(l.get(i));
+                }
+                n.next = next;
+                if (next != null) {
+                    heads.set(heads.indexOf(next), n);
+                    next.prev = n;
+                } else {
+                    heads.add(n);
+                }
+            }
+        }
+
+        blocks = null;
+        statementBlocks = null;
+        summaries = null;
+    }
+
+
+    // Last node in execution order corresponding to "s" (taking into account that includes
+    // are followed by the contents of the included file):
+    Node lastNode(SourceStatement s)
+    {
+        if (s.type == SourceStatement.STATEMENT_INCLUDE && s.include != null &&
+            !s.include.getStatements().isEmpty()) {
+            List<SourceStatement> l = s.include.getStatements();
+            return lastNode(l.get(l.size()-1));
+        }
+        return nodes.get(s);
+    }
+
+
+    public List<BasicBlock> getBasicBlocks()
+    {
+        if (blocks == null) computeBasicBlocks();
+        return blocks;
+    }
+
+
+    public BasicBlock getBasicBlock(SourceStatement s)
+    {
+        if (blocks == null) computeBasicBlocks();
+        return statementBlocks.get(s);
+    }
+
+
+    /*
+    Entry points of the routines in the program: the block with the first statement
+    of the main source file, plus all the blocks that are the target of a call.
+    */
+    public List<BasicBlock> getRoutineEntries()
+    {
+        List<BasicBlock> entries = new ArrayList<>();
+        if (code.getMain() != null && !code.getMain().getStatements().isEmpty()) {
+            BasicBlock b = getBasicBlock(code.getMain().getStatements().get(0));
+            if (b != null) entries.add(b);
+        }
+        for(BasicBlock b:getBasicBlocks()) {
+            if (b.isSubroutineEntry() && !entries.contains(b)) entries.add(b);
+        }
+        return entries;
+    }
+
+
+    /*
+    Returns the blocks that can be executed from "entry" without following calls
+    (i.e., the blocks of the routine starting at "entry"), in the order they are found.
+    */
+    public LinkedHashSet<BasicBlock> getRoutineBlocks(BasicBlock entry)
+    {
+        LinkedHashSet<BasicBlock> routine = new LinkedHashSet<>();
+        List<BasicBlock> open = new ArrayList<>();
+        open.add(entry);
+        while(!open.isEmpty()) {
+            BasicBlock b = open.remove(0);
+            if (!routine.add(b)) continue;
+            for(BasicBlock next:b.successors) {
+                if (!routine.contains(next)) open.add(next);
+            }
+        }
+        return routine;
+    }
+
+
+    void computeBasicBlocks()
+    {
+        blocks = new ArrayList<>();
+        statementBlocks = new HashMap<>();
+
+        // split the chains into blocks:
+        for(Node head:heads) {
+            BasicBlock current = null;
+            for(Node n = head;n != null;n = n.next) {
+                if (current == null || n.s.label != null) {
+                    current = new BasicBlock(blocks.size());
+                    blocks.add(current);
+                }
+                current.statements.add(n.s);
+                statementBlocks.put(n.s, current);
+                if (n.flow != FLOW_NEXT) current = null;
+            }
+        }
+
+        // edges:
+        for(BasicBlock block:blocks) {
+            Node n = nodes.get(block.getLast());
+            BasicBlock nextBlock = (n.next == null ? null:statementBlocks.get(n.next.s));
+            BasicBlock targetBlock = null;
+            if (n.target != null && n.target.definingStatement != null) {
+                targetBlock = statementBlocks.get(n.target.definingStatement);
+            }
+            switch(n.flow) {
+                case FLOW_NEXT:
+                    addEdge(block, nextBlock);
+                    break;
+                case FLOW_JUMP:
+                    if (targetBlock == null) {
+                        block.hasUnknownSuccessors = true;
+                    } else {
+                        addEdge(block, targetBlock);
+                    }
+                    if (n.conditional) addEdge(block, nextBlock);
+                    break;
+                case FLOW_CALL:
+                    block.endsInCall = true;
+                    if (targetBlock == null) {
+                        block.hasUnknownSuccessors = true;
+                    } else {
+                        block.callTarget = targetBlock;
+                        targetBlock.callers.add(block);
+                    }
+                    // assume the call returns:
+                    addEdge(block, nextBlock);
+                    break;
+                case FLOW_RET:
+                    block.endsInRet = true;
+                    if (n.conditional) addEdge(block, nextBlock);
+                    break;
+            }
+        }
+    }
+
+
+    /*
+    Returns the summary of the subroutine starting at "entry" (which should be the target
+    of some "call"), or null if it cannot be summarized (e.g., if it contains
+    control flow that cannot be determined statically).
+    */
+    public SubroutineSummary getSubroutineSummary(SourceStatement entry)
+    {
+        if (summaries == null) computeSubroutineSummaries();
+        return summaries.get(entry);
+    }
+
+
+    void computeSubroutineSummaries()
+    {
+        HashMap<SourceStatement, SubroutineSummary> candidates = new HashMap<>();
+        List<SubroutineSummary> toCompute = new ArrayList<>();
+        for(Node head:heads) {
+            for(Node n = head;n != null;n = n.next) {
+                if (n.flow != FLOW_CALL || n.target == null) continue;
+                SourceStatement entry = n.target.definingStatement;
+                if (entry == null || candidates.containsKey(entry)) continue;
+                SubroutineSummary summary = new SubroutineSummary(entry, this);
+                candidates.put(entry, summary);
+                if (summary.collectBody()) toCompute.add(summary);
+            }
+        }
+
+        // fixed point over the call graph:
+        boolean change = true;
+        while(change) {
+            change = false;
+            for(SubroutineSummary summary:toCompute) {
+                if (!summary.valid) continue;
+                for(SourceStatement callee:summary.callees) {
+                    if (!candidates.get(callee).valid) {
+                        summary.valid = false;
+                        change = true;
+                        break;
+                    }
+                }
+                if (summary.valid && summary.update(candidates)) change = true;
+            }
+        }
+
+        summaries = new HashMap<>();
+        for(SubroutineSummary summary:toCompute) {
+            if (summary.valid) summaries.put(summary.entry, summary);
+        }
+    }
+
+
+    void addEdge(BasicBlock from, BasicBlock to)
+    {
+        if (to == null || from.successors.contains(to)) return;
+        from.successors.add(to);
+        to.predecessors.add(from);
+    }
+
+
+    // - returns true/false if we know for sure the dependency is or not used
+    // - returns null when it's unclear
+    public Boolean depNotUsedAfter(SourceStatement s, CPUOpDependency a_dep)
+    {
+        List<DepCheckNode> open = new ArrayList<>();
+        HashMap<SourceStatement,List<DepCheckNode>> closed = new HashMap<>();
+        List<Pair<SourceStatement, List<SourceStatement>>> tmp = nextExecutionStatements(s, new ArrayList<>());
+        if (tmp == null) {
+            // It's hard to tell where is this instruction going to jump,
+            // so we act conservatively, and block the optimization:
+            // config.trace("    unclear next statement after " + s);
+            return false;
+        }
+        for(Pair<SourceStatement, List<SourceStatement>> pair:tmp) {
+            DepCheckNode node = new DepCheckNode(pair.getLeft(), a_dep, pair.getRight());
+            open.add(node);
+            List<DepCheckNode> l = new ArrayList<>();
+            l.add(node);
+            closed.put(pair.getLeft(), l);
+        }
+        while(!open.isEmpty()) {
+            DepCheckNode node = open.remove(0);
+            SourceStatement next = node.s;
+            CPUOpDependency dep = node.dep;
+            List<SourceStatement> callStack = node.callStack;
+            // config.trace("    "+next.sl.lineNumber+": "+next);
+
+            if (next.type == SourceStatement.STATEMENT_CPUOP) {
+                CPUOp op = next.op;
+//                if (op.isRet()) {
+//                    // It's hard to tell where is this instruction going to jump,
+//                    // so we act conservatively, and block the optimization:
+//                    // config.trace("    ret!");
+//                    return null;
+//                }
+                if (op.checkInputDependency(dep)) {
+                    // dependency is actually used!
+                    // config.trace("    dependency found!");
+                    return false;
+                }
+                if (op.isCall() && dep.port == null && dep.memoryStart == null) {
+                    // Use the summary of the subroutine (if available), rather than walking into it:
+                    SourceStatement target = getTargetStatement(next);
+                    SubroutineSummary summary = (target == null ? null:getSubroutineSummary(target));
+                    if (summary != null) {
+                        if ((dep.regsAndFlags & summary.readBeforeWritten) != 0) return false;
+                        int remaining = dep.regsAndFlags & ~op.getOutputRegsAndFlags();
+                        if (!op.isConditional()) {
+                            if (!summary.returns) continue;
+                            remaining &= ~summary.mustWrite;
+                        }
+                        SourceStatement returnSite = getNextStatement(next);
+                        if (remaining != 0 && returnSite != null) {
+                            addDepCheckNode(returnSite, new CPUOpDependency(remaining, null, null, null), callStack, open, closed);
+                        }
+                        continue;
+                    }
+                }
+                dep = op.checkOutputDependency(dep);
+//                if (dep == null) {
+//                    // config.trace("    dependency broken!");
+//                }
+            }
+            
+            if (dep != null) {
+                // add successors:
+                List<Pair<SourceStatement, List<SourceStatement>>> nextNext_l = nextExecutionStatements(next, callStack);
+                if (nextNext_l == null) {
+                    // It's hard to tell where is this instruction going to jump,
+                    // so we act conservatively, and block the optimization:
+                    // config.trace("    unclear next statement after: "+next);
+                    return null;
+                }
+                for(Pair<SourceStatement, List<SourceStatement>> nextNext_pair: nextNext_l) {
+                    addDepCheckNode(nextNext_pair.getLeft(), dep, nextNext_pair.getRight(), open, closed);
+                }
+            }
+        }
+
+        return true;
+    }
+    
+    
+    void addDepCheckNode(SourceStatement nextNext, CPUOpDependency dep, List<SourceStatement> nextNext_stack,
+                         List<DepCheckNode> open, HashMap<SourceStatement,List<DepCheckNode>> closed)
+    {
+        if (!closed.containsKey(nextNext)) {
+            DepCheckNode nextNode = new DepCheckNode(nextNext, dep, nextNext_stack);
+            open.add(nextNode);
+            List<DepCheckNode> l = new ArrayList<>();
+            l.add(nextNode);
+            closed.put(nextNext, l);
+        } else {
+            List<DepCheckNode> l = closed.get(nextNext);
+            for(DepCheckNode n:l) {
+                if (n.match(dep, nextNext_stack)) return;
+            }
+            DepCheckNode nextNode = new DepCheckNode(nextNext, dep, nextNext_stack);
+            l.add(nextNode);
+            open.add(nextNode);
+        }
+    }
+}
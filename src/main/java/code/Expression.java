@@ -992,6 +992,24 @@ public class Expression {
         return false;
     }
 
+    /*
+    Whether the expression refers to the address of the statement it is in ("$"),
+    and thus would change value if the size of the statement changes:
+    */
+    public boolean containsCurrentAddress() {
+        if (type == EXPRESSION_SYMBOL && symbolName.equals(CodeBase.CURRENT_ADDRESS)) {
+            return true;
+        }
+        if (args != null) {
+            for (Expression arg : args) {
+                if (arg.containsCurrentAddress()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     public int sizeInBytes(int granularity) {
         if (type == EXPRESSION_STRING_CONSTANT) {
             return stringConstant.length();
@@ -0,0 +1,240 @@
+/*
+ * author: Santiago Ontañón Villar (Brain Games)
+ */
+package code;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import cl.MDLConfig;
+
+/**
+ * A loop in the control flow graph of a routine (see ControlFlowGraph.getRoutineBlocks).
+ * Loops are found from the back edges of a depth-first traversal starting at the
+ * entry of the routine, so nested loops are supported. Loops that share header are
+ * merged.
+ *
+ * @author santi
+ */
+public class Loop {
+    public BasicBlock header;
+    public LinkedHashSet<BasicBlock> body = new LinkedHashSet<>();
+    public List<BasicBlock> latches = new ArrayList<>();   // blocks with a back edge to the header
+    public Loop parent = null;
+    public List<Loop> children = new ArrayList<>();
+
+    // For counted loops ("djnz", or "dec r; jr/jp nz"), when the number of iterations
+    // can be determined statically:
+    public String counterRegister = null;
+    public Integer tripCount = null;
+
+
+    public Loop(BasicBlock a_header)
+    {
+        header = a_header;
+    }
+
+
+    public int depth()
+    {
+        int depth = 1;
+        for(Loop l = parent;l != null;l = l.parent) depth++;
+        return depth;
+    }
+
+
+    /*
+    Returns the outermost loops (with their nested loops as "children") in the
+    set of blocks "blocks", which should all be reachable from "entry".
+    */
+    public static List<Loop> findLoops(BasicBlock entry, LinkedHashSet<BasicBlock> blocks, CodeBase code, MDLConfig config)
+    {
+        // find back edges with an iterative DFS:
+        HashMap<BasicBlock, Loop> loops = new HashMap<>();
+        List<BasicBlock> loopHeaders = new ArrayList<>();
+        HashSet<BasicBlock> visited = new HashSet<>();
+        HashSet<BasicBlock> onStack = new HashSet<>();
+        List<BasicBlock> stack = new ArrayList<>();
+        List<Integer> stackIndex = new ArrayList<>();
+        stack.add(entry);
+        stackIndex.add(0);
+        visited.add(entry);
+        onStack.add(entry);
+        while(!stack.isEmpty()) {
+            BasicBlock b = stack.get(stack.size()-1);
+            int idx = stackIndex.get(stackIndex.size()-1);
+            if (idx >= b.successors.size()) {
+                stack.remove(stack.size()-1);
+                stackIndex.remove(stackIndex.size()-1);
+                onStack.remove(b);
+                continue;
+            }
+            stackIndex.set(stackIndex.size()-1, idx+1);
+            BasicBlock next = b.successors.get(idx);
+            if (!blocks.contains(next)) continue;
+            if (onStack.contains(next)) {
+                // back edge:
+                Loop loop = loops.get(next);
+                if (loop == null) {
+                    loop = new Loop(next);
+                    loops.put(next, loop);
+                    loopHeaders.add(next);
+                }
+                loop.latches.add(b);
+            } else if (!visited.contains(next)) {
+                visited.add(next);
+                onStack.add(next);
+                stack.add(next);
+                stackIndex.add(0);
+            }
+        }
+
+        // loop bodies: all the blocks that reach a latch without going through the header:
+        for(BasicBlock header:loopHeaders) {
+            Loop loop = loops.get(header);
+            loop.body.add(header);
+            List<BasicBlock> open = new ArrayList<>(loop.latches);
+            while(!open.isEmpty()) {
+                BasicBlock b = open.remove(open.size()-1);
+                if (!loop.body.add(b)) continue;
+                for(BasicBlock pred:b.predecessors) {
+                    if (blocks.contains(pred) && !loop.body.contains(pred)) open.add(pred);
+                }
+            }
+        }
+
+        // nesting: the parent is the smallest other loop that contains the header:
+        List<Loop> topLevel = new ArrayList<>();
+        for(BasicBlock header:loopHeaders) {
+            Loop loop = loops.get(header);
+            for(BasicBlock header2:loopHeaders) {
+                Loop loop2 = loops.get(header2);
+                if (loop2 == loop || !loop2.body.contains(header)) continue;
+                if (loop2.body.size() == loop.body.size() && loop.body.contains(header2)) continue;
+                if (loop.parent == null || loop2.body.size() < loop.parent.body.size()) {
+                    loop.parent = loop2;
+                }
+            }
+            if (loop.parent == null) {
+                topLevel.add(loop);
+            } else {
+                loop.parent.children.add(loop);
+            }
+            loop.determineTripCount(code, config);
+        }
+        return topLevel;
+    }
+
+
+    /*
+    Returns the loop nesting depth of each statement that is inside of a loop
+    (statements not in the map are not inside of any loop).
+    */
+    public static HashMap<SourceStatement, Integer> loopDepths(CodeBase code, MDLConfig config)
+    {
+        HashMap<SourceStatement, Integer> depths = new HashMap<>();
+        ControlFlowGraph cfg = code.getControlFlowGraph();
+        for(BasicBlock entry:cfg.getRoutineEntries()) {
+            List<Loop> open = new ArrayList<>(findLoops(entry, cfg.getRoutineBlocks(entry), code, config));
+            while(!open.isEmpty()) {
+                Loop loop = open.remove(open.size()-1);
+                int depth = loop.depth();
+                for(BasicBlock b:loop.body) {
+                    for(SourceStatement s:b.statements) {
+                        Integer previous = depths.get(s);
+                        if (previous == null || previous < depth) depths.put(s, depth);
+                    }
+                }
+                open.addAll(loop.children);
+            }
+        }
+        return depths;
+    }
+
+
+    /*
+    Tries to determine the number of iterations of loops of the form:
+        ld b,N              ld r,N
+    loop:               loop:
+        ...                 ...
+        djnz loop           dec r
+                            jr nz,loop
+    where the counter is not modified anywhere else in the loop.
+    */
+    void determineTripCount(CodeBase code, MDLConfig config)
+    {
+        if (latches.size() != 1) return;
+        BasicBlock latch = latches.get(0);
+        SourceStatement last = latch.getLast();
+        if (last.type != SourceStatement.STATEMENT_CPUOP) return;
+        CPUOp decrement = null;
+        String register = null;
+        if (last.op.spec.opName.equalsIgnoreCase("djnz")) {
+            decrement = last.op;
+            register = "b";
+        } else if ((last.op.spec.opName.equalsIgnoreCase("jr") || last.op.spec.opName.equalsIgnoreCase("jp")) &&
+                   last.op.args.size() == 2 &&
+                   last.op.args.get(0).type == Expression.EXPRESSION_REGISTER_OR_FLAG &&
+                   last.op.args.get(0).registerOrFlagName.equalsIgnoreCase("nz")) {
+            // find the previous op in the block:
+            for(int i = latch.statements.size()-2;i>=0;i--) {
+                SourceStatement s = latch.statements.get(i);
+                if (s.type != SourceStatement.STATEMENT_CPUOP) continue;
+                if (s.op.spec.opName.equalsIgnoreCase("dec") &&
+                    s.op.args.size() == 1 &&
+                    s.op.args.get(0).type == Expression.EXPRESSION_REGISTER_OR_FLAG &&
+                    !code.isRegisterPair(s.op.args.get(0).registerOrFlagName)) {
+                    decrement = s.op;
+                    register = s.op.args.get(0).registerOrFlagName.toLowerCase();
+                }
+                break;
+            }
+        }
+        if (decrement == null) return;
+        int mask = CPUOpDependency.registerMask(register);
+        if (mask == 0) return;
+
+        // the counter should not be modified anywhere else in the loop:
+        ControlFlowGraph cfg = code.getControlFlowGraph();
+        for(BasicBlock b:body) {
+            for(SourceStatement s:b.statements) {
+                if (s.type != SourceStatement.STATEMENT_CPUOP || s.op == decrement) continue;
+                if ((s.op.getOutputRegsAndFlags() & mask) != 0) return;
+                if (s.op.isCall()) {
+                    SourceStatement target = cfg.getTargetStatement(s);
+                    SubroutineSummary summary = (target == null ? null:cfg.getSubroutineSummary(target));
+                    if (summary == null || (summary.clobbered & mask) != 0) return;
+                }
+            }
+        }
+
+        // initial value: the last assignment to the counter before entering the loop:
+        BasicBlock preheader = null;
+        for(BasicBlock pred:header.predecessors) {
+            if (body.contains(pred)) continue;
+            if (preheader != null) return;
+            preheader = pred;
+        }
+        if (preheader == null) return;
+        for(int i = preheader.statements.size()-1;i>=0;i--) {
+            SourceStatement s = preheader.statements.get(i);
+            if (s.type != SourceStatement.STATEMENT_CPUOP) continue;
+            if ((s.op.getOutputRegsAndFlags() & mask) == 0) continue;
+            if (s.op.spec.opName.equalsIgnoreCase("ld") &&
+                s.op.args.get(0).type == Expression.EXPRESSION_REGISTER_OR_FLAG &&
+                s.op.args.get(0).registerOrFlagName.equalsIgnoreCase(register) &&
+                s.op.args.get(1).evaluatesToIntegerConstant()) {
+                Integer value = s.op.args.get(1).evaluateToInteger(s, code, true);
+                if (value != null) {
+                    value = value & 0xff;
+                    counterRegister = register;
+                    tripCount = (value == 0 ? 256:value);
+                }
+            }
+            return;
+        }
+    }
+}
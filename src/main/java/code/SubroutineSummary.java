@@ -0,0 +1,247 @@
+/*
+ * author: Santiago Ontañón Villar (Brain Games)
+ */
+package code;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Summary of the effect of calling a subroutine on registers/flags (using the
+ * bitmasks defined in CPUOpDependency), so that analyses do not need to walk
+ * into the subroutine for every call site. Computed by ControlFlowGraph.
+ *
+ * @author santi
+ */
+public class SubroutineSummary {
+    public SourceStatement entry;
+
+    // registers/flags that might be read before being written:
+    public int readBeforeWritten = 0;
+    // registers/flags that might be written:
+    public int clobbered = 0;
+    // registers/flags that are written in all the paths that reach a "ret":
+    public int mustWrite = ~0;
+    // whether any "ret" (with a balanced stack) is reachable:
+    public boolean returns = false;
+
+    // Internal data used to compute the summary:
+    ControlFlowGraph cfg;
+    boolean valid = true;
+    List<ControlFlowGraph.Node> body = new ArrayList<>();
+    List<ControlFlowGraph.Node> exits = new ArrayList<>();
+    LinkedHashSet<SourceStatement> callees = new LinkedHashSet<>();
+
+
+    public SubroutineSummary(SourceStatement a_entry, ControlFlowGraph a_cfg)
+    {
+        entry = a_entry;
+        cfg = a_cfg;
+    }
+
+
+    /*
+    Collects all the statements that can be executed from the entry point until
+    a "ret" (without walking into the subroutines called from this one).
+    The summary is marked as invalid if there is any control flow that cannot
+    be determined statically (e.g., "jp (hl)", "rst", a "ret" with some values
+    pushed to the stack, or direct manipulation of SP). The only direct manipulations
+    of SP allowed are those of a standard stack frame, as generated by SDCC:
+    "push ix; ld ix,#0; add ix,sp; dec sp ..." ... "inc sp ..." or "ld sp,ix", "pop ix; ret".
+    */
+    boolean collectBody()
+    {
+        // bytes pushed to the stack, and the value it had when the frame pointer was set
+        // with "add ix,sp" (or -1 if ix does not currently point to the stack frame):
+        HashMap<ControlFlowGraph.Node, Integer> stackDepth = new HashMap<>();
+        HashMap<ControlFlowGraph.Node, Integer> frameDepth = new HashMap<>();
+        List<ControlFlowGraph.Node> open = new ArrayList<>();
+        ControlFlowGraph.Node first = cfg.nodes.get(entry);
+        if (first == null) return valid = false;
+        stackDepth.put(first, 0);
+        frameDepth.put(first, -1);
+        open.add(first);
+        while(!open.isEmpty()) {
+            ControlFlowGraph.Node n = open.remove(open.size()-1);
+            body.add(n);
+            int depth = stackDepth.get(n);
+            int nextDepth = depth;
+            int frame = frameDepth.get(n);
+            int nextFrame = frame;
+            if (n.s.type == SourceStatement.STATEMENT_MACRO ||
+                n.s.type == SourceStatement.STATEMENT_MACROCALL) return valid = false;
+            switch(n.flow) {
+                case ControlFlowGraph.FLOW_NEXT:
+                    if (n.s.type == SourceStatement.STATEMENT_CPUOP) {
+                        CPUOp op = n.s.op;
+                        String opString = op.toString().toLowerCase().replace(" ", "");
+                        if (op.isPush()) {
+                            nextDepth += 2;
+                        } else if (op.isPop()) {
+                            if (depth < 2) return valid = false;
+                            nextDepth -= 2;
+                            if (opString.equals("popix")) nextFrame = -1;
+                        } else if (opString.equals("addix,sp")) {
+                            nextFrame = depth;
+                        } else if (opString.equals("decsp")) {
+                            nextDepth++;
+                        } else if (opString.equals("incsp")) {
+                            if (depth < 1) return valid = false;
+                            nextDepth--;
+                        } else if (opString.equals("ldsp,ix")) {
+                            if (frame < 0) return valid = false;
+                            nextDepth = frame;
+                        } else if (op.modifiesStackInNonStandardWay()) {
+                            return valid = false;
+                        } else if ((op.getOutputRegsAndFlags() & (CPUOpDependency.REG_IXH | CPUOpDependency.REG_IXL)) != 0) {
+                            // ix does not point to the frame anymore:
+                            nextFrame = -1;
+                        }
+                    }
+                    break;
+                case ControlFlowGraph.FLOW_JUMP:
+                case ControlFlowGraph.FLOW_CALL:
+                    if (n.target == null || n.target.definingStatement == null ||
+                        !cfg.nodes.containsKey(n.target.definingStatement)) return valid = false;
+                    if (n.flow == ControlFlowGraph.FLOW_CALL) callees.add(n.target.definingStatement);
+                    break;
+                case ControlFlowGraph.FLOW_RET:
+                    if (depth != 0) return valid = false;
+                    exits.add(n);
+                    break;
+            }
+            for(ControlFlowGraph.Node next:successors(n)) {
+                Integer previousDepth = stackDepth.get(next);
+                if (previousDepth == null) {
+                    stackDepth.put(next, nextDepth);
+                    frameDepth.put(next, nextFrame);
+                    open.add(next);
+                } else if (previousDepth != nextDepth || frameDepth.get(next) != nextFrame) {
+                    return valid = false;
+                }
+            }
+        }
+        returns = !exits.isEmpty();
+        return true;
+    }
+
+
+    // Successors within the subroutine (calls go directly to the return site):
+    List<ControlFlowGraph.Node> successors(ControlFlowGraph.Node n)
+    {
+        List<ControlFlowGraph.Node> l = new ArrayList<>();
+        switch(n.flow) {
+            case ControlFlowGraph.FLOW_JUMP:
+                l.add(cfg.nodes.get(n.target.definingStatement));
+                if (n.conditional && n.next != null) l.add(n.next);
+                break;
+            case ControlFlowGraph.FLOW_RET:
+                if (n.conditional && n.next != null) l.add(n.next);
+                break;
+            default:
+                if (n.next != null) l.add(n.next);
+        }
+        return l;
+    }
+
+
+    /*
+    Recomputes the summary given the current summaries of the callees.
+    Returns whether anything changed.
+    */
+    boolean update(HashMap<SourceStatement, SubroutineSummary> summaries)
+    {
+        HashMap<ControlFlowGraph.Node, List<ControlFlowGraph.Node>> successors = new HashMap<>();
+        for(ControlFlowGraph.Node n:body) {
+            successors.put(n, successors(n));
+        }
+
+        // backwards: registers/flags read before written:
+        HashMap<ControlFlowGraph.Node, Integer> liveIn = new HashMap<>();
+        boolean change = true;
+        while(change) {
+            change = false;
+            for(int i = body.size()-1;i>=0;i--) {
+                ControlFlowGraph.Node n = body.get(i);
+                int out = 0;
+                for(ControlFlowGraph.Node next:successors.get(n)) {
+                    Integer v = liveIn.get(next);
+                    if (v != null) out |= v;
+                }
+                int in = out;
+                if (n.s.type == SourceStatement.STATEMENT_CPUOP) {
+                    int killed = n.s.op.getOutputRegsAndFlags();
+                    in = n.s.op.getInputRegsAndFlags();
+                    if (n.flow == ControlFlowGraph.FLOW_CALL) {
+                        SubroutineSummary callee = summaries.get(n.target.definingStatement);
+                        in |= callee.readBeforeWritten;
+                        if (!n.conditional) killed |= callee.mustWrite;
+                    }
+                    in |= out & ~killed;
+                }
+                Integer previous = liveIn.get(n);
+                if (previous == null || previous != in) {
+                    liveIn.put(n, in);
+                    change = true;
+                }
+            }
+        }
+
+        // forwards: registers/flags written in all paths:
+        HashMap<ControlFlowGraph.Node, Integer> writtenIn = new HashMap<>();
+        writtenIn.put(body.get(0), 0);
+        int newClobbered = 0;
+        change = true;
+        while(change) {
+            change = false;
+            for(ControlFlowGraph.Node n:body) {
+                Integer in = writtenIn.get(n);
+                if (in == null) continue;
+                int out = in;
+                if (n.s.type == SourceStatement.STATEMENT_CPUOP) {
+                    out |= n.s.op.getOutputRegsAndFlags();
+                    newClobbered |= n.s.op.getOutputRegsAndFlags();
+                    if (n.flow == ControlFlowGraph.FLOW_CALL) {
+                        SubroutineSummary callee = summaries.get(n.target.definingStatement);
+                        newClobbered |= callee.clobbered;
+                        if (!n.conditional) out |= callee.mustWrite;
+                    }
+                }
+                for(ControlFlowGraph.Node next:successors.get(n)) {
+                    Integer v = writtenIn.get(next);
+                    int newV = (v == null ? out : (v & out));
+                    if (next == body.get(0)) newV = 0;
+                    if (v == null || v != newV) {
+                        writtenIn.put(next, newV);
+                        change = true;
+                    }
+                }
+            }
+        }
+        int newMustWrite = ~0;
+        for(ControlFlowGraph.Node exit:exits) {
+            Integer in = writtenIn.get(exit);
+            if (in != null) newMustWrite &= in | exit.s.op.getOutputRegsAndFlags();
+        }
+
+        int newReadBeforeWritten = liveIn.get(body.get(0));
+        boolean anyChange = newReadBeforeWritten != readBeforeWritten ||
+                            newClobbered != clobbered ||
+                            newMustWrite != mustWrite;
+        readBeforeWritten = newReadBeforeWritten;
+        clobbered = newClobbered;
+        mustWrite = newMustWrite;
+        return anyChange;
+    }
+
+
+    @Override
+    public String toString()
+    {
+        return entry + ": reads " + CPUOpDependency.maskToNames(readBeforeWritten) +
+               ", clobbers " + CPUOpDependency.maskToNames(clobbered) +
+               (returns ? "":", does not return");
+    }
+}
@@ -24,6 +24,9 @@ public class CPUOpParser {
 
     List<CPUOpSpec> opSpecs;
     HashMap<String, List<CPUOpSpec>> opSpecHash = new HashMap<>();
+    // Candidate specs indexed by op name + the shapes of its arguments (filled lazily,
+    // as the number of different shape combinations that appear in practice is small):
+    HashMap<String, List<CPUOpSpec>> opSpecShapeHash = new HashMap<>();
     
     public boolean indirectionsOnlyWithSquareBrackets = false;
     public boolean indirectionsOnlyWithParenthesis = false;
@@ -50,6 +53,7 @@ public class CPUOpParser {
             opSpecHash.put(fake.opName, l);
         }
         l.add(fake);
+        opSpecShapeHash.clear();
     }
 
 
@@ -59,6 +63,12 @@ public class CPUOpParser {
     }
 
 
+    public List<CPUOpSpec> getOpSpecs()
+    {
+        return opSpecs;
+    }
+
+
     public List<CPUOpSpec> getOpSpecs(String name)
     {
         List<CPUOpSpec> l = opSpecHash.get(name.toLowerCase());
@@ -72,7 +82,7 @@ public class CPUOpParser {
     public List<CPUOp> parseOp(String a_op, List<Expression> a_args, SourceStatement s, SourceStatement previous, CodeBase code)
     {
         List<CPUOpSpec> candidates = getOpSpecs(a_op);
-        for(CPUOpSpec opSpec:candidates) {
+        for(CPUOpSpec opSpec:getOpSpecsByShape(a_op, candidates, a_args)) {
             List<CPUOp> l = parseOp(a_op, opSpec, a_args, s, previous, code);
             if (l != null) {
                 return l;
@@ -91,7 +101,7 @@ public class CPUOpParser {
             }
             if (anyChange) {
                 // try again!
-                for(CPUOpSpec opSpec:candidates) {
+                for(CPUOpSpec opSpec:getOpSpecsByShape(a_op, candidates, a_args)) {
                     List<CPUOp> l = parseOp(a_op, opSpec, a_args, s, previous, code);
                     if (l != null) return l;
                 }
@@ -102,6 +112,98 @@ public class CPUOpParser {
     }
 
 
+    /*
+    Returns the subset of "candidates" (in the same order) that could possibly match the
+    shapes of the arguments in "a_args". The result is cached per op name and shape tuple.
+    */
+    List<CPUOpSpec> getOpSpecsByShape(String a_op, List<CPUOpSpec> candidates, List<Expression> a_args)
+    {
+        if (candidates.isEmpty()) return candidates;
+        int shapes[] = new int[a_args.size()];
+        String regNames[] = new String[a_args.size()];
+        StringBuilder key = new StringBuilder(a_op.toLowerCase());
+        for(int i = 0;i<a_args.size();i++) {
+            Expression exp = argShapeExpression(a_op, a_args.get(i));
+            shapes[i] = argShape(a_op, exp);
+            if (shapes[i] == CPUOpSpecArg.SHAPE_REGISTER_OR_FLAG) {
+                regNames[i] = exp.registerOrFlagName;
+            } else if (shapes[i] == CPUOpSpecArg.SHAPE_REGISTER_INDIRECTION) {
+                regNames[i] = exp.args.get(0).registerOrFlagName;
+            } else if (shapes[i] == CPUOpSpecArg.SHAPE_REGISTER_OFFSET_INDIRECTION) {
+                regNames[i] = exp.args.get(0).args.get(0).registerOrFlagName;
+            }
+            key.append(' ').append(shapes[i]);
+            if (regNames[i] != null) key.append(regNames[i].toLowerCase());
+        }
+        
+        List<CPUOpSpec> l = opSpecShapeHash.get(key.toString());
+        if (l == null) {
+            l = new ArrayList<>();
+            for(CPUOpSpec spec:candidates) {
+                if (spec.args.size() != a_args.size()) continue;
+                boolean possible = true;
+                for(int i = 0;i<shapes.length;i++) {
+                    if (!spec.args.get(i).couldMatchShape(shapes[i], regNames[i], spec)) {
+                        possible = false;
+                        break;
+                    }
+                }
+                if (possible) l.add(spec);
+            }
+            opSpecShapeHash.put(key.toString(), l);
+        }
+        return l;
+    }
+    
+    
+    // Mirrors the parenthesis/bracket removal done in "parseOp" below, but without modifying the argument:
+    Expression argShapeExpression(String a_op, Expression arg)
+    {
+        if (a_op.equalsIgnoreCase("out") || a_op.equalsIgnoreCase("in")) return arg;
+        while((indirectionsOnlyWithSquareBrackets || indirectionsOnlyWithParenthesis) &&
+              arg.type == Expression.EXPRESSION_PARENTHESIS &&
+              arg.args != null &&
+              arg.args.size() == 1 &&
+              ((indirectionsOnlyWithSquareBrackets && arg.parenthesis.equals("(")) ||
+               (indirectionsOnlyWithParenthesis && arg.parenthesis.equals("[")))) {
+            arg = arg.args.get(0);
+        }
+        return arg;
+    }
+    
+    
+    int argShape(String a_op, Expression exp)
+    {
+        switch(exp.type) {
+            case Expression.EXPRESSION_REGISTER_OR_FLAG:
+                return CPUOpSpecArg.SHAPE_REGISTER_OR_FLAG;
+            case Expression.EXPRESSION_SYMBOL:
+                // "s"/"ns" might be turned into flags by "parseOp":
+                if (exp.symbolName.equalsIgnoreCase("s") ||
+                    exp.symbolName.equalsIgnoreCase("ns")) return CPUOpSpecArg.SHAPE_UNKNOWN;
+                return CPUOpSpecArg.SHAPE_CONSTANT;
+            case Expression.EXPRESSION_PARENTHESIS:
+            {
+                if (exp.args == null || exp.args.size() != 1) return CPUOpSpecArg.SHAPE_UNKNOWN;
+                Expression exp2 = exp.args.get(0);
+                if (exp2.type == Expression.EXPRESSION_REGISTER_OR_FLAG) {
+                    return CPUOpSpecArg.SHAPE_REGISTER_INDIRECTION;
+                }
+                if ((exp2.type == Expression.EXPRESSION_SUM || exp2.type == Expression.EXPRESSION_SUB) &&
+                    exp2.args.get(0).type == Expression.EXPRESSION_REGISTER_OR_FLAG &&
+                    exp2.args.get(1).evaluatesToIntegerConstant()) {
+                    return CPUOpSpecArg.SHAPE_REGISTER_OFFSET_INDIRECTION;
+                }
+                if (exp2.evaluatesToIntegerConstant()) return CPUOpSpecArg.SHAPE_CONSTANT_INDIRECTION;
+                return CPUOpSpecArg.SHAPE_UNKNOWN;
+            }
+            default:
+                if (exp.evaluatesToIntegerConstant()) return CPUOpSpecArg.SHAPE_CONSTANT;
+                return CPUOpSpecArg.SHAPE_UNKNOWN;
+        }
+    }
+    
+
     public List<CPUOp> parseOp(String a_op, CPUOpSpec spec, List<Expression> a_args, SourceStatement s, SourceStatement previous, CodeBase code)
     {
         if (!a_op.equalsIgnoreCase(spec.opName)) return null;
@@ -192,7 +294,7 @@ public class CPUOpParser {
                                     }   break;
                             }
                             if (exp != null) {
-                                tokens.addAll(Tokenizer.tokenize(exp.toString()));
+                                tokens.addAll(Tokenizer.tokenize(exp.toString(), config.lexer));
                             }
                         } else if (spec.args.get(1).regOffsetIndirection != null) {
                             Expression exp = null;
@@ -212,14 +314,14 @@ public class CPUOpParser {
                                     }   break;
                             }
                             if (exp != null) {
-                                tokens.addAll(Tokenizer.tokenize(exp.toString()));
+                                tokens.addAll(Tokenizer.tokenize(exp.toString(), config.lexer));
                             }
                         } else {
                             return null;
                         }
                     } else if (token.equals("nn")) {
                         // we assume this occurs only as the second argument:
-                        tokens.addAll(Tokenizer.tokenize(a_args.get(1).toString()));
+                        tokens.addAll(Tokenizer.tokenize(a_args.get(1).toString(), config.lexer));
                     } else {
                         tokens.add(token);
                     }
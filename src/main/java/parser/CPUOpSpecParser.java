@@ -15,7 +15,6 @@ import org.apache.commons.io.IOUtils;
 import cl.MDLConfig;
 import code.CPUOpSpec;
 import code.CPUOpSpecArg;
-import util.Resources;
 
 /**
  *
@@ -30,7 +29,16 @@ public class CPUOpSpecParser {
 
     public List<CPUOpSpec> parseSpecs() throws IOException
     {
-        try (BufferedReader br = Resources.asReader(config.cpuInstructionSet)) {
+        if (config.batchCache != null) {
+            return config.batchCache.getInstructionSet(config.cpuInstructionSet, this);
+        }
+        return parseSpecsInternal();
+    }
+
+
+    public List<CPUOpSpec> parseSpecsInternal() throws IOException
+    {
+        try (BufferedReader br = config.sourceProvider.asReader(config.cpuInstructionSet)) {
             List<CPUOpSpec> specs = IOUtils.readLines(br)
                     .stream()
                     .filter(line -> !Tokenizer.isSingleLineComment(line))
@@ -295,6 +303,8 @@ public class CPUOpSpecParser {
             }
         }
 
+        if (!spec.computeDependencyMasks()) return null;
+
         return spec;
     }
 
@@ -15,7 +15,6 @@ import code.CodeBase;
 import code.Expression;
 import code.SourceFile;
 import code.SourceStatement;
-import util.Resources;
 
 public class CodeBaseParser {
     MDLConfig config;
@@ -94,9 +93,11 @@ public class CodeBaseParser {
         }
 
         SourceFile f = new SourceFile(fileName, parent, parentInclude, code, config);
-        if (parent == null)
-            code.setMain(f);
         code.addSourceFile(f);
+        if (parent == null) {
+            code.setMain(f);
+            if (!attachSymbolPacks(f, code)) return null;
+        }
         config.preProcessor.pushState();
         try {
             if (parseSourceFileInternal(f, code, config)) {
@@ -113,6 +114,23 @@ public class CodeBaseParser {
         return null;
     }
 
+    /*
+    Defines the symbols of the packs selected with "-symbol-pack" at the beginning
+    of the main source file:
+    */
+    boolean attachSymbolPacks(SourceFile f, CodeBase code)
+    {
+        for(String name:config.symbolPacks) {
+            SymbolPack pack = SymbolPack.get(name, config);
+            if (pack == null) return false;
+            SourceLine sl = new SourceLine("", f, 0);
+            List<SourceStatement> l = pack.attach(sl, f, code, config);
+            if (l == null) return false;
+            for(SourceStatement s:l) f.addStatement(s);
+        }
+        return true;
+    }
+
     // Returns: <SourceLine, file_linenumber>
     Pair<SourceLine, Integer> getNextLine(BufferedReader br, SourceFile f, int file_linenumber, List<String> tokens)
             throws IOException
@@ -128,7 +146,7 @@ public class CodeBaseParser {
             sl = new SourceLine(line, f, file_linenumber);
         }
 
-        Tokenizer.tokenize(sl.line, unfilteredTokens);
+        Tokenizer.tokenize(sl.line, unfilteredTokens, config.lexer);
         if (!unfilteredTokens.isEmpty() && unfilteredTokens.get(unfilteredTokens.size()-1).equals(",")) {
             // unfinished line, get the next one!
             List<String> tokens2 = new ArrayList<>();
@@ -163,7 +181,7 @@ public class CodeBaseParser {
     {
         // config.trace("Parsing "+f.fileName+"...");
 
-        try (BufferedReader br = Resources.asReader(f.fileName)) {
+        try (BufferedReader br = config.sourceProvider.asReader(f.fileName)) {
             int file_lineNumber = 0;
             while(true) {
                 List<String> tokens = new ArrayList<>();
@@ -422,7 +422,7 @@ public class ExpressionParser {
                     }
                 }
                 return exp;
-            } else if (Tokenizer.isSymbol(tokens.get(0))) {
+            } else if (Tokenizer.isSymbol(tokens.get(0), config.lexer)) {
                 String token = tokens.remove(0);
                 if (!caseSensitiveSymbols) token = token.toLowerCase();
 
@@ -0,0 +1,35 @@
+/*
+ * author: Santiago Ontañón Villar (Brain Games)
+ */
+package parser;
+
+import java.util.HashMap;
+
+/**
+ * The lexical settings used by the Tokenizer, which some dialects change (e.g., to
+ * allow '&' hex constants, or to define string escape sequences). Each MDLConfig has
+ * its own, so that separate MDLConfig/CodeBase instances can be used in parallel
+ * threads.
+ *
+ * @author santi
+ */
+public class LexerConfig {
+    public HashMap<String,String> stringEscapeSequences = new HashMap<>();
+    public boolean allowAndpersandHex = false;
+    public boolean sdccStyleHashMarksForConstants = false;
+    public boolean sdccStyleDollarInLabels = false;
+
+
+    /*
+    Returns a copy of these settings, but without string escape sequences (used to get
+    the raw file names in include/incbin statements):
+    */
+    public LexerConfig withoutEscapeSequences()
+    {
+        LexerConfig lexer = new LexerConfig();
+        lexer.allowAndpersandHex = allowAndpersandHex;
+        lexer.sdccStyleHashMarksForConstants = sdccStyleHashMarksForConstants;
+        lexer.sdccStyleDollarInLabels = sdccStyleDollarInLabels;
+        return lexer;
+    }
+}
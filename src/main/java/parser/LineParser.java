@@ -17,7 +17,6 @@ import code.Expression;
 import code.SourceConstant;
 import code.SourceFile;
 import code.SourceStatement;
-import util.Resources;
 
 public class LineParser {
     public static final int MACRO_LABEL_MACRO_ARGS = 1;
@@ -254,7 +253,7 @@ public class LineParser {
         } else if (config.dialectParser != null && config.dialectParser.recognizeIdiom(tokens)) {
             // this one might return one or more statements:
             return config.dialectParser.parseLine(tokens, sl, s, previous, source, code);
-        } else if (Tokenizer.isSymbol(token)) {
+        } else if (Tokenizer.isSymbol(token, config.lexer)) {
             // try to parseArgs it as an assembler instruction or macro call:
             tokens.remove(0);
             if (config.opParser.isOpName(token)) {
@@ -281,7 +280,7 @@ public class LineParser {
         if (config.preProcessor.isMacroName(token, config.preProcessor.MACRO_MACRO)) {
             return false;
         }
-        if (Tokenizer.isSymbol(token)) {
+        if (Tokenizer.isSymbol(token, config.lexer)) {
             return true;
         }
         if (allowNumberLabels && Tokenizer.isInteger(token)) {
@@ -472,10 +471,7 @@ public class LineParser {
                 rawFileName = Tokenizer.stringValue(token);
                 
                 if (!applyEscapeSequencesToIncludeArguments) {
-                    HashMap<String,String> tmp = Tokenizer.stringEscapeSequences;
-                    Tokenizer.stringEscapeSequences = new HashMap<>();
-                    List<String> tokens2 = Tokenizer.tokenize(sl.line);
-                    Tokenizer.stringEscapeSequences = tmp;
+                    List<String> tokens2 = Tokenizer.tokenize(sl.line, config.lexer.withoutEscapeSequences());
                     for(String token2:tokens2) {
                         if (Tokenizer.isString(token2)) {
                             rawFileName = Tokenizer.stringValue(token2);
@@ -528,10 +524,7 @@ public class LineParser {
             rawFileName = Tokenizer.stringValue(token);
             
             if (!applyEscapeSequencesToIncludeArguments) {
-                HashMap<String,String> tmp = Tokenizer.stringEscapeSequences;
-                Tokenizer.stringEscapeSequences = new HashMap<>();
-                List<String> tokens2 = Tokenizer.tokenize(sl.line);
-                Tokenizer.stringEscapeSequences = tmp;
+                List<String> tokens2 = Tokenizer.tokenize(sl.line, config.lexer.withoutEscapeSequences());
                 for(String token2:tokens2) {
                     if (Tokenizer.isString(token2)) {
                         rawFileName = Tokenizer.stringValue(token2);
@@ -564,8 +557,10 @@ public class LineParser {
         s.type = SourceStatement.STATEMENT_INCBIN;
         s.incbin = new File(path);
         s.incbinOriginalStr = rawFileName;
-        File f = new File(path);
-        if (!f.exists()) {
+        int incbinLength;
+        try {
+            incbinLength = (int)config.sourceProvider.size(path);
+        } catch (Exception e) {
             config.error("Incbin file " + rawFileName + " does not exist in " + sl);
             return false;
         }
@@ -606,11 +601,11 @@ public class LineParser {
             if (skip_exp != null) {
                 s.incbinSize = Expression.operatorExpression(
                         Expression.EXPRESSION_SUB,
-                        Expression.constantExpression((int) f.length(), config),
+                        Expression.constantExpression(incbinLength, config),
                         skip_exp, config);
                 s.incbinSizeSpecified = false;
             } else {
-                s.incbinSize = Expression.constantExpression((int) f.length(), config);
+                s.incbinSize = Expression.constantExpression(incbinLength, config);
                 s.incbinSizeSpecified = false;
             }
         }
@@ -963,7 +958,7 @@ public class LineParser {
         }
 
         // Relative to current directory
-        if (Resources.exists(rawFileName)) {
+        if (config.sourceProvider.exists(rawFileName)) {
             config.debug("Included file " + rawFileName + " found relative to current directory");
             return rawFileName;
         }
@@ -975,7 +970,7 @@ public class LineParser {
             // is an absolute directory, which in different configurations cannot be ensured to be true.
             // for example when calling mdl like: java -jar mdl.jar ../project/src/main.asm -I ../project2/src
             final String relativePath = pathConcat(sourcePath, rawFileName);
-            if (Resources.exists(relativePath)) {
+            if (config.sourceProvider.exists(relativePath)) {
                 config.debug("Included file " + rawFileName + " found relative to original source file");
                 return relativePath;
             }
@@ -986,7 +981,7 @@ public class LineParser {
             // santi: Do NOT change to "FilenameUtils.concat", that function assumes that the first argument
             // is an absolute directory, which in different configurations cannot be ensured to be true.
             final String relativePath = pathConcat(includePath.getAbsolutePath(), rawFileName);
-            if (Resources.exists(relativePath)) {
+            if (config.sourceProvider.exists(relativePath)) {
                 config.debug("Included file " + rawFileName + " found relative to include path " + includePath);
                 return relativePath;
             }
@@ -211,12 +211,12 @@ public class SourceMacro {
     public SourceLine replaceMacroArg(SourceLine sl, List<String> names, List<Expression> args, SourceStatement macroCall, MDLConfig config)
     {
         String line2 = sl.line;
-        List<String> tokens = Tokenizer.tokenizeIncludingBlanks(line2);
+        List<String> tokens = Tokenizer.tokenizeIncludingBlanks(line2, config.lexer);
         line2 = "";
 
         String previous = null;
         for(String token:tokens) {
-            if (previous != null && config.lineParser.macroArguentPrefixes.contains(previous) && Tokenizer.isSymbol(token)) {
+            if (previous != null && config.lineParser.macroArguentPrefixes.contains(previous) && Tokenizer.isSymbol(token, config.lexer)) {
                 // variable name starting with "?" (or equivalent parameter prefix for the dialect):
                 line2 = line2.substring(0, line2.length()-1);
                 token = previous + token;
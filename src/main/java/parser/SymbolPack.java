@@ -0,0 +1,186 @@
+/*
+ * Author: Santiago Ontañón Villar (Brain Games)
+ */
+package parser;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import cl.MDLConfig;
+import code.CodeBase;
+import code.Expression;
+import code.SourceConstant;
+import code.SourceFile;
+import code.SourceStatement;
+import util.SourceProvider;
+
+/**
+ * An immutable table of system symbols (e.g., the MSX BIOS calls), read once from
+ * a file of "name: equ value" lines and then shared by all the code bases that use
+ * it. Attaching a pack to a code base does not go through the line parser: it just
+ * creates one constant statement per symbol.
+ *
+ * @author santi
+ */
+public class SymbolPack {
+    // Packs that can be selected by name, rather than by file name:
+    public static final HashMap<String, String> BUILT_IN_PACKS = new HashMap<>();
+    static {
+        BUILT_IN_PACKS.put("msx-bios", "data/msx-bios-calls.asm");
+    }
+
+    public static final int MAX_CACHED_PACKS = 16;
+
+    // Packs already loaded (least recently used first), indexed by the source provider
+    // they were read from and their file name:
+    static final LinkedHashMap<CacheKey, SymbolPack> cache = new LinkedHashMap<CacheKey, SymbolPack>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<CacheKey, SymbolPack> eldest) {
+            return size() > MAX_CACHED_PACKS;
+        }
+    };
+
+
+    static class CacheKey {
+        SourceProvider provider;
+        String fileName;
+
+        CacheKey(SourceProvider a_provider, String a_fileName)
+        {
+            provider = a_provider;
+            fileName = a_fileName;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof CacheKey)) return false;
+            CacheKey key = (CacheKey)o;
+            return provider.equals(key.provider) && fileName.equals(key.fileName);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return provider.hashCode() * 31 + fileName.hashCode();
+        }
+    }
+
+    public final String fileName;
+    public final List<String> names;
+    public final List<Integer> values;
+    public final List<Boolean> hex;
+
+
+    SymbolPack(String a_fileName, List<String> a_names, List<Integer> a_values, List<Boolean> a_hex)
+    {
+        fileName = a_fileName;
+        names = Collections.unmodifiableList(a_names);
+        values = Collections.unmodifiableList(a_values);
+        hex = Collections.unmodifiableList(a_hex);
+    }
+
+
+    /*
+    Returns the pack with the given name (either a built-in pack, or a file name),
+    loading it only the first time it is requested from the source provider of "config":
+    */
+    public static synchronized SymbolPack get(String name, MDLConfig config)
+    {
+        String fileName = BUILT_IN_PACKS.getOrDefault(name, name);
+        CacheKey key = new CacheKey(config.sourceProvider, fileName);
+        SymbolPack pack = cache.get(key);
+        if (pack == null) {
+            pack = load(fileName, config);
+            if (pack == null) return null;
+            cache.put(key, pack);
+        }
+        return pack;
+    }
+
+
+    static SymbolPack load(String fileName, MDLConfig config)
+    {
+        List<String> names = new ArrayList<>();
+        List<Integer> values = new ArrayList<>();
+        List<Boolean> hex = new ArrayList<>();
+        try (BufferedReader br = config.sourceProvider.asReader(fileName)) {
+            int lineNumber = 0;
+            while(true) {
+                String line = br.readLine();
+                if (line == null) break;
+                lineNumber++;
+                List<String> tokens = Tokenizer.tokenize(line);
+                if (tokens.isEmpty() || Tokenizer.isSingleLineComment(tokens.get(0))) continue;
+                if (tokens.size() >= 2 && tokens.get(1).equals(":")) tokens.remove(1);
+                if (tokens.size() < 3 || !tokens.get(1).equalsIgnoreCase("equ") ||
+                    (tokens.size() > 3 && !Tokenizer.isSingleLineComment(tokens.get(3)))) {
+                    config.error("Unsupported line in symbol pack " + fileName + "#" + lineNumber + ": " + line);
+                    return null;
+                }
+                String token = tokens.get(2);
+                Integer value = null;
+                boolean isHex = false;
+                if (Tokenizer.isInteger(token)) {
+                    try {
+                        value = Integer.parseInt(token);
+                    } catch (NumberFormatException e) {
+                        // the value is out of range, reported below
+                    }
+                } else {
+                    value = Tokenizer.parseHex(token);
+                    isHex = true;
+                }
+                if (value == null) {
+                    config.error("Invalid value " + token + " in symbol pack " + fileName + "#" + lineNumber + ": " + line);
+                    return null;
+                }
+                names.add(tokens.get(0));
+                values.add(value);
+                hex.add(isHex);
+            }
+        } catch (IOException e) {
+            config.error("Cannot read symbol pack " + fileName);
+            return null;
+        }
+        config.debug("Symbol pack " + fileName + " loaded with " + names.size() + " symbols");
+        return new SymbolPack(fileName, names, values, hex);
+    }
+
+
+    /*
+    Defines all the symbols of the pack in "code", returning the statements that
+    define them (to be inserted in "source"). Symbols that were already defined with
+    the same value are skipped:
+    */
+    public List<SourceStatement> attach(SourceLine sl, SourceFile source, CodeBase code, MDLConfig config)
+    {
+        List<SourceStatement> l = new ArrayList<>();
+        for(int i = 0;i<names.size();i++) {
+            String name = names.get(i);
+            if (!config.lineParser.caseSensitiveSymbols) name = name.toLowerCase();
+            int value = values.get(i);
+            SourceConstant previous = code.getSymbol(name);
+            if (previous != null) {
+                Object previousValue = previous.getValue(code, true);
+                if (previousValue == null || !previousValue.equals(value)) {
+                    config.error("Redefining symbol " + name + " from symbol pack " + fileName + " with a different value in " + sl);
+                    return null;
+                }
+                continue;
+            }
+            SourceStatement s = new SourceStatement(SourceStatement.STATEMENT_CONSTANT, sl, source, config);
+            Expression exp = Expression.constantExpression(value, false, hex.get(i), config);
+            s.label = new SourceConstant(name, names.get(i), exp, s, config);
+            if (code.addSymbol(name, s.label) != 1) return null;
+            l.add(s);
+        }
+        return l;
+    }
+}
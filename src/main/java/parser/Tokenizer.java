@@ -5,10 +5,8 @@ package parser;
 
 import cl.MDLConfig;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.StringTokenizer;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class Tokenizer {    
@@ -34,34 +32,40 @@ public class Tokenizer {
         doubleTokens.add("==");
     }    
     
-    public static HashMap<String,String> stringEscapeSequences = new HashMap<>();
+    // Settings used when no configuration is given (standard MDL syntax, as used in
+    // pattern files), this object is never modified:
+    static final LexerConfig DEFAULT_LEXER = new LexerConfig();
     
+    static final Pattern doublePattern = Pattern.compile("[\\x00-\\x20]*[+-]?(((((\\p{Digit}+)(\\.)?((\\p{Digit}+)?)([eE][+-]?(\\p{Digit}+))?)|(\\.((\\p{Digit}+))([eE][+-]?(\\p{Digit}+))?)|(((0[xX](\\p{XDigit}+)(\\.)?)|(0[xX](\\p{XDigit}+)?(\\.)(\\p{XDigit}+)))[pP][+-]?(\\p{Digit}+)))[fFdD]?))[\\x00-\\x20]*");
     
-    public static boolean allowAndpersandHex = false;
-    public static boolean sdccStyleHashMarksForConstants = false;
-    public static boolean sdccStyleDollarInLabels = false;
-    
+    public static List<String> tokenizeIncludingBlanks(String line) {
+        return tokenize(line, new ArrayList<>(), true, DEFAULT_LEXER);
+    }
     
-    static Matcher doubleMatcher = Pattern.compile("[\\x00-\\x20]*[+-]?(((((\\p{Digit}+)(\\.)?((\\p{Digit}+)?)([eE][+-]?(\\p{Digit}+))?)|(\\.((\\p{Digit}+))([eE][+-]?(\\p{Digit}+))?)|(((0[xX](\\p{XDigit}+)(\\.)?)|(0[xX](\\p{XDigit}+)?(\\.)(\\p{XDigit}+)))[pP][+-]?(\\p{Digit}+)))[fFdD]?))[\\x00-\\x20]*")
-            .matcher("");        
     
-    public static List<String> tokenizeIncludingBlanks(String line) {
-        return tokenize(line, new ArrayList<>(), true);
+    public static List<String> tokenizeIncludingBlanks(String line, LexerConfig lexer) {
+        return tokenize(line, new ArrayList<>(), true, lexer);
     }
     
     
     public static List<String> tokenize(String line) {
-        return tokenize(line, new ArrayList<>(), false);
+        return tokenize(line, new ArrayList<>(), false, DEFAULT_LEXER);
+    }
+
+    
+    public static List<String> tokenize(String line, LexerConfig lexer) {
+        return tokenize(line, new ArrayList<>(), false, lexer);
     }
 
-    public static List<String> tokenize(String line, List<String> tokens) {
-        return tokenize(line, tokens, false);
+    
+    public static List<String> tokenize(String line, List<String> tokens, LexerConfig lexer) {
+        return tokenize(line, tokens, false, lexer);
     }
     
     
-    public static List<String> tokenize(String line, List<String> tokens, boolean includeBlanks) {
+    public static List<String> tokenize(String line, List<String> tokens, boolean includeBlanks, LexerConfig lexer) {
         StringTokenizer st;
-        if (sdccStyleDollarInLabels) {
+        if (lexer.sdccStyleDollarInLabels) {
             st = new StringTokenizer(line, " \r\n\t()[]#,;:+-*/%|&'\"!?<>=~^{}\\", true);
         } else {
             st = new StringTokenizer(line, " \r\n\t()[]#$,;:+-*/%|&'\"!?<>=~^{}\\", true);
@@ -76,7 +80,7 @@ public class Tokenizer {
                     previous = previous.concat(next);
                     continue;
                 }
-                if (!sdccStyleHashMarksForConstants) {
+                if (!lexer.sdccStyleHashMarksForConstants) {
                     if (previous.equals("#") && isHexCharacter(next.charAt(0))) {
                         // merge, as this is just a single symbol
                         tokens.remove(tokens.size()-1);
@@ -92,7 +96,7 @@ public class Tokenizer {
                     previous = previous.concat(next);
                     continue;
                 }
-                if (allowAndpersandHex) {
+                if (lexer.allowAndpersandHex) {
                     if (previous.equals("&") && isHexCharacter(next.charAt(0))) {
                         // merge, as this is just a single symbol
                         tokens.remove(tokens.size()-1);
@@ -129,8 +133,8 @@ public class Tokenizer {
                     if (next.equals("\\")) {
                         String nextNext = st.nextToken();
                         // TODO: support escape sequences longer than 1 character:
-                        if (stringEscapeSequences.containsKey(nextNext.substring(0, 1))) {
-                            tokenBuilder.append(stringEscapeSequences.get(nextNext.substring(0, 1))).append(nextNext.substring(1));
+                        if (lexer.stringEscapeSequences.containsKey(nextNext.substring(0, 1))) {
+                            tokenBuilder.append(lexer.stringEscapeSequences.get(nextNext.substring(0, 1))).append(nextNext.substring(1));
                         } else {
                             tokenBuilder.append(next).append(nextNext);
                         }
@@ -186,6 +190,12 @@ public class Tokenizer {
     
     
     public static boolean isSymbol(String token)
+    {
+        return isSymbol(token, DEFAULT_LEXER);
+    }
+
+    
+    public static boolean isSymbol(String token, LexerConfig lexer)
     {
         if (token.equalsIgnoreCase("af'")) return true;
         if (token.equals("$")) return true;
@@ -194,7 +204,7 @@ public class Tokenizer {
         if ((c>='a' && c<='z') || (c>='A' && c<='Z') || c=='_' ||
             c=='.' || c == '@') return true;
         
-        if (sdccStyleDollarInLabels && token.charAt(token.length()-1) == '$' &&
+        if (lexer.sdccStyleDollarInLabels && token.charAt(token.length()-1) == '$' &&
             c>='0' && c<='9') {
             return true;
         }
@@ -231,7 +241,7 @@ public class Tokenizer {
 
     public static boolean isDouble(String token)
     {
-        return doubleMatcher.reset(token).matches();
+        return doublePattern.matcher(token).matches();
     }
     
     
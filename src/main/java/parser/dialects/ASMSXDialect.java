@@ -17,8 +17,8 @@ import java.util.List;
 import java.util.Random;
 import parser.LineParser;
 import parser.SourceLine;
+import parser.SymbolPack;
 import parser.Tokenizer;
-import util.Resources;
 
 /**
  *
@@ -45,6 +45,7 @@ public class ASMSXDialect implements Dialect {
     }
     
     MDLConfig config;
+    private final DialectKeywords keywords = new DialectKeywords();
 
     Random r = new Random();
 
@@ -56,6 +57,8 @@ public class ASMSXDialect implements Dialect {
     SourceStatement basicHeaderStatement = null;
     Expression startAddressLabel = null;
     List<SourceStatement> pageDefinitions = new ArrayList<>();
+    // Statements added at the end to fill pages/the ROM with zeros:
+    List<SourceStatement> paddingStatements = new ArrayList<>();
     
     // ROM characteristics:
     int romType = ROM_STANDARD;
@@ -72,6 +75,13 @@ public class ASMSXDialect implements Dialect {
     {
         config = a_config;
 
+        keywords.add(1, ".bios", "bios", ".byte", "byte", ".word", "word", ".rom", "rom",
+                     ".basic", "basic", ".search", "search", ".wav", "wav", ".cas", "cas",
+                     ".megarom", "megarom", ".select", "select", ".zilog", "zilog", ".subpage", "subpage");
+        keywords.add(2, "filename", ".filename", ".size", "size", ".page", "page", ".printtext", "printtext",
+                     ".print", "print", ".printdec", "printdec", ".printhex", "printhex", ".start", "start",
+                     "=");
+
         config.lineParser.addKeywordSynonym(".org", config.lineParser.KEYWORD_ORG);
         config.lineParser.addKeywordSynonym(".include", config.lineParser.KEYWORD_INCLUDE);
         config.lineParser.addKeywordSynonym(".incbin", config.lineParser.KEYWORD_INCBIN);
@@ -127,49 +137,16 @@ public class ASMSXDialect implements Dialect {
     }
 
 
+    @Override
+    public DialectKeywords getKeywords()
+    {
+        return keywords;
+    }
+
+
     @Override
     public boolean recognizeIdiom(List<String> tokens) {
-        if (tokens.size()>=1 && tokens.get(0).equalsIgnoreCase(".bios")) return true;
-        if (tokens.size()>=1 && tokens.get(0).equalsIgnoreCase("bios")) return true;
-        if (tokens.size()>=2 && tokens.get(0).equalsIgnoreCase("filename")) return true;
-        if (tokens.size()>=2 && tokens.get(0).equalsIgnoreCase(".filename")) return true;
-        if (tokens.size()>=2 && tokens.get(0).equalsIgnoreCase(".size")) return true;
-        if (tokens.size()>=2 && tokens.get(0).equalsIgnoreCase("size")) return true;
-        if (tokens.size()>=2 && tokens.get(0).equalsIgnoreCase(".page")) return true;
-        if (tokens.size()>=2 && tokens.get(0).equalsIgnoreCase("page")) return true;
-        if (tokens.size()>=2 && tokens.get(0).equalsIgnoreCase(".printtext")) return true;
-        if (tokens.size()>=2 && tokens.get(0).equalsIgnoreCase("printtext")) return true;
-        if (tokens.size()>=2 && tokens.get(0).equalsIgnoreCase(".print")) return true;
-        if (tokens.size()>=2 && tokens.get(0).equalsIgnoreCase("print")) return true;
-        if (tokens.size()>=2 && tokens.get(0).equalsIgnoreCase(".printdec")) return true;
-        if (tokens.size()>=2 && tokens.get(0).equalsIgnoreCase("printdec")) return true;
-        if (tokens.size()>=2 && tokens.get(0).equalsIgnoreCase(".printhex")) return true;
-        if (tokens.size()>=2 && tokens.get(0).equalsIgnoreCase("printhex")) return true;
-        if (tokens.size()>=1 && tokens.get(0).equalsIgnoreCase(".byte")) return true;
-        if (tokens.size()>=1 && tokens.get(0).equalsIgnoreCase("byte")) return true;
-        if (tokens.size()>=1 && tokens.get(0).equalsIgnoreCase(".word")) return true;
-        if (tokens.size()>=1 && tokens.get(0).equalsIgnoreCase("word")) return true;
-        if (tokens.size()>=1 && tokens.get(0).equalsIgnoreCase(".rom")) return true;
-        if (tokens.size()>=1 && tokens.get(0).equalsIgnoreCase("rom")) return true;
-        if (tokens.size()>=1 && tokens.get(0).equalsIgnoreCase(".basic")) return true;
-        if (tokens.size()>=1 && tokens.get(0).equalsIgnoreCase("basic")) return true;
-        if (tokens.size()>=2 && tokens.get(0).equalsIgnoreCase(".start")) return true;
-        if (tokens.size()>=2 && tokens.get(0).equalsIgnoreCase("start")) return true;
-        if (tokens.size()>=1 && tokens.get(0).equalsIgnoreCase(".search")) return true;
-        if (tokens.size()>=1 && tokens.get(0).equalsIgnoreCase("search")) return true;
-        if (tokens.size()>=2 && tokens.get(0).equalsIgnoreCase("=")) return true;
-        if (tokens.size()>=1 && tokens.get(0).equalsIgnoreCase(".wav")) return true;
-        if (tokens.size()>=1 && tokens.get(0).equalsIgnoreCase("wav")) return true;
-        if (tokens.size()>=1 && tokens.get(0).equalsIgnoreCase(".cas")) return true;
-        if (tokens.size()>=1 && tokens.get(0).equalsIgnoreCase("cas")) return true;
-        if (tokens.size()>=1 && tokens.get(0).equalsIgnoreCase(".megarom")) return true;
-        if (tokens.size()>=1 && tokens.get(0).equalsIgnoreCase("megarom")) return true;
-        if (tokens.size()>=1 && tokens.get(0).equalsIgnoreCase(".select")) return true;
-        if (tokens.size()>=1 && tokens.get(0).equalsIgnoreCase("select")) return true;
-        if (tokens.size()>=1 && tokens.get(0).equalsIgnoreCase(".zilog")) return true;
-        if (tokens.size()>=1 && tokens.get(0).equalsIgnoreCase("zilog")) return true;
-        if (tokens.size()>=1 && tokens.get(0).equalsIgnoreCase(".subpage")) return true;
-        if (tokens.size()>=1 && tokens.get(0).equalsIgnoreCase("subpage")) return true;
+        if (keywords.recognizes(tokens)) return true;
         
         // weird syntax that for some reason asMSX swallows (undocumented):
         // if a line is all dashes, it's ignored:
@@ -280,12 +257,12 @@ public class ASMSXDialect implements Dialect {
     List<List<String>> tokenizeFileLines(String fileName)
     {
         try {
-            BufferedReader br = Resources.asReader(fileName);
+            BufferedReader br = config.sourceProvider.asReader(fileName);
             List<List<String>> tokenizedLines = new ArrayList<>();
             while(true) {
                 String line = br.readLine();
                 if (line == null) break;
-                tokenizedLines.add(Tokenizer.tokenize(line));
+                tokenizedLines.add(Tokenizer.tokenize(line, config.lexer));
             }
             return tokenizedLines;
         } catch (Exception e) {
@@ -304,12 +281,12 @@ public class ASMSXDialect implements Dialect {
         
         if (tokens.size()>=1 && (tokens.get(0).equalsIgnoreCase(".bios") || tokens.get(0).equalsIgnoreCase("bios"))) {
             tokens.remove(0);
-            // Define all the bios calls:
-            List<List<String>> tokenizedLines = tokenizeFileLines(biosCallsFileName);
-            for(List<String> tokens2: tokenizedLines) {
-                List<SourceStatement> l2 = config.lineParser.parse(tokens2, sl, source, -1, code, config);
-                l.addAll(l2);
-            }
+            // Define all the bios calls (the pack is parsed only once, and shared):
+            SymbolPack bios = SymbolPack.get(biosCallsFileName, config);
+            if (bios == null) return null;
+            List<SourceStatement> l2 = bios.attach(sl, source, code, config);
+            if (l2 == null) return null;
+            l.addAll(l2);
             if (config.lineParser.parseRestofTheLine(tokens, sl, s, source)) return l;
         }
         if (tokens.size()>=1 && (tokens.get(0).equalsIgnoreCase(".search") || tokens.get(0).equalsIgnoreCase("search"))) {
@@ -757,6 +734,34 @@ public class ASMSXDialect implements Dialect {
     }
     
     
+    public int getROMType()
+    {
+        return romType;
+    }
+
+
+    public int getPageSize()
+    {
+        return pageSize;
+    }
+
+
+    /*
+    The "org" statements generated for each ".subpage" (indexed by subpage number,
+    null for those not defined):
+    */
+    public List<SourceStatement> getPageDefinitions()
+    {
+        return pageDefinitions;
+    }
+
+
+    public boolean isPadding(SourceStatement s)
+    {
+        return paddingStatements.contains(s);
+    }
+    
+    
     @Override    
     public void performAnyInitialActions(CodeBase code) {
         SourceConstant sc = new SourceConstant("pi", "pi", Expression.constantExpression(Math.PI, config), null, config);
@@ -862,6 +867,7 @@ public class ASMSXDialect implements Dialect {
                                 SourceStatement padStatement = new SourceStatement(SourceStatement.STATEMENT_DEFINE_SPACE, null, lastGeneratingBytes.source, config);
                                 padStatement.space = Expression.constantExpression(pad, config);
                                 padStatement.space_value = Expression.constantExpression(0, config);
+                                paddingStatements.add(padStatement);
                                 previous.source.addStatement(previous.source.getStatements().indexOf(previous)+1, padStatement);                            
                             }
                         }
@@ -889,6 +895,7 @@ public class ASMSXDialect implements Dialect {
                     SourceStatement padStatement = new SourceStatement(SourceStatement.STATEMENT_DEFINE_SPACE, null, lastGeneratingBytes.source, config);
                     padStatement.space = Expression.constantExpression(pad, config);
                     padStatement.space_value = Expression.constantExpression(0, config);
+                    paddingStatements.add(padStatement);
                     lastGeneratingBytes.source.addStatement(lastGeneratingBytes.source.getStatements().indexOf(lastGeneratingBytes)+1, padStatement);
                 }
             } else if (basicHeaderStatement != null) {
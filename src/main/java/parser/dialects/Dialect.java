@@ -21,10 +21,22 @@ import parser.SourceMacro;
 public interface Dialect {
 
 
+    // Keywords handled by "parseLine" (null if the dialect does not define any):
+    default DialectKeywords getKeywords() {
+        return null;
+    }
+
+    // Names of the symbols that the source code marks as visible from outside of the program
+    // (e.g., ".globl" in sdcc), so that they are not reported as unused (null if none):
+    default List<String> getExportedSymbols() {
+        return null;
+    }
+
     // @return true if the line represented by "tokens" is recognized by this dialect parser
+    // (by default, if it starts with one of the keywords returned by "getKeywords")
     default boolean recognizeIdiom(List<String> tokens) {
-        // (no-op by default)
-        return false;
+        DialectKeywords keywords = getKeywords();
+        return keywords != null && keywords.recognizes(tokens);
     }
 
     // Called when a new symbol is defined (so that the dialect parser can do whatever special it
@@ -0,0 +1,35 @@
+/*
+ * Author: Santiago Ontañón Villar (Brain Games)
+ */
+package parser.dialects;
+
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Table of the keywords a dialect handles in its "parseLine" method, built once
+ * when the dialect is created. Each keyword (stored case-folded) is associated with
+ * the minimum number of tokens a line starting with it needs to have to be
+ * recognized, so a line can be recognized with a single hash lookup.
+ *
+ * @author santi
+ */
+public class DialectKeywords {
+    HashMap<String, Integer> minimumTokens = new HashMap<>();
+
+
+    public void add(int a_minimumTokens, String ... keywords)
+    {
+        for(String keyword:keywords) {
+            minimumTokens.put(keyword.toLowerCase(), a_minimumTokens);
+        }
+    }
+
+
+    public boolean recognizes(List<String> tokens)
+    {
+        if (tokens.isEmpty()) return false;
+        Integer n = minimumTokens.get(tokens.get(0).toLowerCase());
+        return n != null && tokens.size() >= n;
+    }
+}
@@ -47,6 +47,7 @@ public class GlassDialect implements Dialect {
     
     
     MDLConfig config;
+    private final DialectKeywords keywords = new DialectKeywords();
     
     // Although this is not documented, it seems you can have the same "section XXX" command multiple times
     // in the same codebase, and the address counters just continue from the last time. So, we need to keep
@@ -61,35 +62,31 @@ public class GlassDialect implements Dialect {
     {
         config = a_config;
 
+        keywords.add(2, "section");
+        keywords.add(1, "ends", "proc", "endp", "error", "warning");
+
         config.eagerMacroEvaluation = false;  // Glass expects lazy evaluation of macros
         
         config.preProcessor.dialectMacros.put("irp", "endm");
         
         // recognized escape sequences by Glass:
-        Tokenizer.stringEscapeSequences.put("0", "\u0000");
-        Tokenizer.stringEscapeSequences.put("a", "\u0007");
-        Tokenizer.stringEscapeSequences.put("t", "\t");
-        Tokenizer.stringEscapeSequences.put("n", "\n");
-        Tokenizer.stringEscapeSequences.put("f", "\f");
-        Tokenizer.stringEscapeSequences.put("r", "\r");
-        Tokenizer.stringEscapeSequences.put("e", "\u0027");
-        Tokenizer.stringEscapeSequences.put("\"", "\"");
-        Tokenizer.stringEscapeSequences.put("'", "'");
-        Tokenizer.stringEscapeSequences.put("\\", "\\");
+        config.lexer.stringEscapeSequences.put("0", "\u0000");
+        config.lexer.stringEscapeSequences.put("a", "\u0007");
+        config.lexer.stringEscapeSequences.put("t", "\t");
+        config.lexer.stringEscapeSequences.put("n", "\n");
+        config.lexer.stringEscapeSequences.put("f", "\f");
+        config.lexer.stringEscapeSequences.put("r", "\r");
+        config.lexer.stringEscapeSequences.put("e", "\u0027");
+        config.lexer.stringEscapeSequences.put("\"", "\"");
+        config.lexer.stringEscapeSequences.put("'", "'");
+        config.lexer.stringEscapeSequences.put("\\", "\\");
     }
 
 
     @Override
-    public boolean recognizeIdiom(List<String> tokens)
+    public DialectKeywords getKeywords()
     {
-        if (tokens.size()>=2 && tokens.get(0).equalsIgnoreCase("section")) return true;
-        if (tokens.size()>=1 && tokens.get(0).equalsIgnoreCase("ends")) return true;
-        if (tokens.size()>=1 && tokens.get(0).equalsIgnoreCase("proc")) return true;
-        if (tokens.size()>=1 && tokens.get(0).equalsIgnoreCase("endp")) return true;
-        if (tokens.size()>=1 && tokens.get(0).equalsIgnoreCase("error")) return true;
-        if (tokens.size()>=1 && tokens.get(0).equalsIgnoreCase("warning")) return true;
-        
-        return false;
+        return keywords;
     }
 
 
@@ -224,7 +221,7 @@ public class GlassDialect implements Dialect {
         }
         if (sl == null) return null;
         
-        Tokenizer.tokenize(sl.line, unfilteredTokens);
+        Tokenizer.tokenize(sl.line, unfilteredTokens, config.lexer);
         if (!unfilteredTokens.isEmpty() && unfilteredTokens.get(unfilteredTokens.size()-1).equals(",")) {
             // unfinished line, get the next one!
             List<String> tokens2 = new ArrayList<>();
@@ -437,7 +434,7 @@ public class GlassDialect implements Dialect {
                         }
                     }
                 } else {
-                    List<SourceStatement> l = config.lineParser.parse(Tokenizer.tokenize(sl.line), 
+                    List<SourceStatement> l = config.lineParser.parse(Tokenizer.tokenize(sl.line, config.lexer), 
                             sl, f, f.getStatements().size(), code, config);
                     if (l == null) {
                         // we fail to assemble the macro, but it's ok, some times it can happen
@@ -23,6 +23,7 @@ public class PasmoDialect implements Dialect {
     private final String procPrefix = "__pasmo_proc__";
     
     private final MDLConfig config;
+    private final DialectKeywords keywords = new DialectKeywords();
     
     int procCounter = 0;
     List<String> localLabels = new ArrayList<>();
@@ -35,21 +36,18 @@ public class PasmoDialect implements Dialect {
         super();
 
         config = a_config;
+
+        keywords.add(1, "proc", "endp", "end");
+        keywords.add(2, "public", "local");
                 
         config.warning_jpHlWithParenthesis = false;  // I don't think WinAPE supports "jp hl"
     }
 
     
     @Override
-    public boolean recognizeIdiom(List<String> tokens)
+    public DialectKeywords getKeywords()
     {
-        if (tokens.size()>=1 && tokens.get(0).equalsIgnoreCase("proc")) return true;
-        if (tokens.size()>=1 && tokens.get(0).equalsIgnoreCase("endp")) return true;
-        if (tokens.size()>=2 && tokens.get(0).equalsIgnoreCase("public")) return true;
-        if (tokens.size()>=2 && tokens.get(0).equalsIgnoreCase("local")) return true;
-        if (tokens.size()>=1 && tokens.get(0).equalsIgnoreCase("end")) return true;
-        
-        return false;
+        return keywords;
     }
     
 
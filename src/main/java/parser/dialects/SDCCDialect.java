@@ -24,16 +24,20 @@ import parser.Tokenizer;
 public class SDCCDialect implements Dialect {
 
     MDLConfig config;
+    private final DialectKeywords keywords = new DialectKeywords();
     
     
     List<String> definedAreas = new ArrayList<>();
     String currentArea;
+    List<String> exportedSymbols = new ArrayList<>();
     
     
     public SDCCDialect(MDLConfig a_config)
     {
         config = a_config;
 
+        keywords.add(2, ".module", ".optsdcc", ".globl", ".area");
+
         // We ignore the distinction between ":" and "::" for now:
         config.lineParser.addKeywordSynonym("::", config.lineParser.KEYWORD_COLON);
 
@@ -66,19 +70,23 @@ public class SDCCDialect implements Dialect {
         config.lineParser.sdccStyleOffsets = true;
         
         // Note, these have to be deactivated as soon as we are done parsing (otherwise, the optimizer patterns will not be parsed right)
-        Tokenizer.sdccStyleDollarInLabels = true;
-        Tokenizer.sdccStyleHashMarksForConstants = true;
+        config.lexer.sdccStyleDollarInLabels = true;
+        config.lexer.sdccStyleHashMarksForConstants = true;
         config.hexStyle = MDLConfig.HEX_STYLE_0X;
     }    
     
     
     @Override
-    public boolean recognizeIdiom(List<String> tokens) {
-        if (tokens.size() >= 2 && tokens.get(0).equalsIgnoreCase(".module")) return true;
-        if (tokens.size() >= 2 && tokens.get(0).equalsIgnoreCase(".optsdcc")) return true;
-        if (tokens.size() >= 2 && tokens.get(0).equalsIgnoreCase(".globl")) return true;
-        if (tokens.size() >= 2 && tokens.get(0).equalsIgnoreCase(".area")) return true;
-        return false;
+    public DialectKeywords getKeywords()
+    {
+        return keywords;
+    }
+
+
+    @Override
+    public List<String> getExportedSymbols()
+    {
+        return exportedSymbols;
     }
     
     
@@ -157,7 +165,7 @@ public class SDCCDialect implements Dialect {
         }
         if (tokens.size() >= 2 && tokens.get(0).equalsIgnoreCase(".globl")) {
             tokens.remove(0);
-            tokens.remove(0);   // label name
+            exportedSymbols.add(tokens.remove(0));   // label name
             if (config.lineParser.parseRestofTheLine(tokens, sl, s, source)) return l;
             return null;
         }
@@ -225,8 +233,8 @@ public class SDCCDialect implements Dialect {
     @Override
     public boolean performAnyFinalActions(CodeBase code)
     {            
-        Tokenizer.sdccStyleDollarInLabels = false;
-        Tokenizer.sdccStyleHashMarksForConstants = false;
+        config.lexer.sdccStyleDollarInLabels = false;
+        config.lexer.sdccStyleHashMarksForConstants = false;
         
         return true;
     }
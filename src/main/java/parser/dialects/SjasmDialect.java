@@ -18,7 +18,6 @@ import code.SourceFile;
 import code.SourceStatement;
 import java.io.File;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.StringTokenizer;
 import parser.LineParser;
@@ -32,6 +31,7 @@ import parser.Tokenizer;
  * @author santi
  */
 public class SjasmDialect implements Dialect {
+    public static final int MAX_PLACEMENT_ITERATIONS = 16;
     
     public static class SjasmStruct {
         String name;
@@ -47,6 +47,7 @@ public class SjasmDialect implements Dialect {
         int page = -1;
         Expression address;
         int actualAddress = -1;
+        int cachedSize = 0;   // size reserved for the block when assigning blocks to pages
         List<SourceStatement> statements = new ArrayList<>();
         
         public CodeBlock(SourceStatement a_s, int a_page, Expression a_address)
@@ -79,66 +80,12 @@ public class SjasmDialect implements Dialect {
             start = a_start;
             size = a_size;
         }
-        
-        
-        public boolean addBlock(CodeBlock block, CodeBase code)
-        {
-            int spot = -1;
-            if (block.address != null) {
-                // check if it fits:
-                int blockAddress = block.address.evaluateToInteger(block.startStatement, code, true);
-                for(CodeBlock b2:blocks) {
-                    if (b2.actualAddress < blockAddress + block.size(code) &&
-                        blockAddress < b2.actualAddress + b2.size(code)) {
-                        // overlap!
-                        return false;
-                    } else {
-                        if (b2.actualAddress > blockAddress) {
-                            spot = blocks.indexOf(b2);
-                        }
-                    }
-                }
-                block.actualAddress = blockAddress;
-                if (spot == -1) {
-                    blocks.add(block);                
-                } else {
-                    blocks.add(spot, block);
-                }
-                return true;
-            } else {            
-                // otherwise, find a spot:
-                int pageStart = start.evaluateToInteger(s, code, true);
-                int blockAddress = pageStart;
-                int blockSize = block.size(code);
 
-                for(CodeBlock b2:blocks) {
-                    if (b2.actualAddress-blockAddress >= blockSize) {
-                        // found a spot!
-                        spot = blocks.indexOf(b2);
-                        break;
-                    }
-                    blockAddress = b2.actualAddress+b2.size(code);
-                }
-                if (spot == -1) {
-                    // add at the end:
-                    int spaceLeft = (pageStart + size.evaluateToInteger(s, code, false)) - blockAddress;
-                    if (spaceLeft >= blockSize) {
-                        block.actualAddress = blockAddress;
-                        blocks.add(block);
-                    } else {
-                        return false;
-                    }
-                } else {
-                    block.actualAddress = blockAddress;
-                    blocks.add(spot, block);
-                }
-                return true;
-            }
-        }
     }
     
 
     MDLConfig config;
+    private final DialectKeywords keywords = new DialectKeywords();
 
     SjasmStruct struct = null;
     List<SjasmStruct> structs = new ArrayList<>();
@@ -163,6 +110,12 @@ public class SjasmDialect implements Dialect {
     public SjasmDialect(MDLConfig a_config) {
         config = a_config;
 
+        keywords.add(2, "struct", "map", "field", "assert", "incdir", "output", "defpage", "page",
+                     "dz", ":=", "align", "module", "jr.", "jp.", "djnz.", "define",
+                     "xdefine");
+        keywords.add(1, "ends", "end", "endmap", "code", "endmodule");
+        keywords.add(3, "[", "assign");
+
         config.warning_jpHlWithParenthesis = false;  // I don't think sjasm supports "jp hl"
         
         config.lineParser.addKeywordSynonym("byte", config.lineParser.KEYWORD_DB);
@@ -379,26 +332,26 @@ public class SjasmDialect implements Dialect {
         addFakeInstruction("ldd (IY+o),nn", "ld (IY+o),nn\ndec IY");
 
         // recognized escape sequences by sjasm:
-        Tokenizer.stringEscapeSequences.put("\\", "\\");
-        Tokenizer.stringEscapeSequences.put("?", "\u0063");
-        Tokenizer.stringEscapeSequences.put("'", "'");
-        Tokenizer.stringEscapeSequences.put("\"", "\"");
-        Tokenizer.stringEscapeSequences.put("a", "\u0007");
-        Tokenizer.stringEscapeSequences.put("b", "\u0008");
-        Tokenizer.stringEscapeSequences.put("d", "\u0127");
-        Tokenizer.stringEscapeSequences.put("e", "\u0027");
-        Tokenizer.stringEscapeSequences.put("f", "\u0012");
-        Tokenizer.stringEscapeSequences.put("n", "\n");
-        Tokenizer.stringEscapeSequences.put("r", "\r");
-        Tokenizer.stringEscapeSequences.put("t", "\t");
-        Tokenizer.stringEscapeSequences.put("v", "\u0011");
+        config.lexer.stringEscapeSequences.put("\\", "\\");
+        config.lexer.stringEscapeSequences.put("?", "\u0063");
+        config.lexer.stringEscapeSequences.put("'", "'");
+        config.lexer.stringEscapeSequences.put("\"", "\"");
+        config.lexer.stringEscapeSequences.put("a", "\u0007");
+        config.lexer.stringEscapeSequences.put("b", "\u0008");
+        config.lexer.stringEscapeSequences.put("d", "\u0127");
+        config.lexer.stringEscapeSequences.put("e", "\u0027");
+        config.lexer.stringEscapeSequences.put("f", "\u0012");
+        config.lexer.stringEscapeSequences.put("n", "\n");
+        config.lexer.stringEscapeSequences.put("r", "\r");
+        config.lexer.stringEscapeSequences.put("t", "\t");
+        config.lexer.stringEscapeSequences.put("v", "\u0011");
         config.lineParser.applyEscapeSequencesToIncludeArguments = false;
     }
     
     
     private boolean addFakeInstruction(String in, String out)
     {
-        String data[] = {in,"0","0","2","ff","0", "","","","", "","","","", "false"};
+        String data[] = {in,"0","0","2","","", "","","","", "","","","", "false"};
         CPUOpSpec fakeSpec = config.opSpecParser.parseOpSpecLine(data, config);
         if (fakeSpec == null) {
             config.error("cannot parse fake instruction " + in);
@@ -407,7 +360,7 @@ public class SjasmDialect implements Dialect {
 
         fakeSpec.fakeInstructionEquivalent = new ArrayList<>();
         for(String line:out.split("\n")) {
-            fakeSpec.fakeInstructionEquivalent.add(Tokenizer.tokenize(line));
+            fakeSpec.fakeInstructionEquivalent.add(Tokenizer.tokenize(line, config.lexer));
         }
         
         config.opParser.addOpSpec(fakeSpec);        
@@ -415,33 +368,17 @@ public class SjasmDialect implements Dialect {
     }
     
 
+    @Override
+    public DialectKeywords getKeywords()
+    {
+        return keywords;
+    }
+
+
     @Override
     public boolean recognizeIdiom(List<String> tokens) {
-        if (tokens.size() >= 2 && tokens.get(0).equalsIgnoreCase("struct")) return true;
-        if (tokens.size() >= 1 && tokens.get(0).equalsIgnoreCase("ends")) return true;
-        if (tokens.size() >= 1 && tokens.get(0).equalsIgnoreCase("end")) return true;
-        if (tokens.size() >= 2 && tokens.get(0).equalsIgnoreCase("map")) return true;
-        if (tokens.size() >= 1 && tokens.get(0).equalsIgnoreCase("endmap")) return true;
+        if (keywords.recognizes(tokens)) return true;
         if (tokens.size() >= 1 && tokens.get(0).startsWith("#")) return true; 
-        if (tokens.size() >= 2 && tokens.get(0).equalsIgnoreCase("field")) return true;
-        if (tokens.size() >= 2 && tokens.get(0).equalsIgnoreCase("assert")) return true;
-        if (tokens.size() >= 2 && tokens.get(0).equalsIgnoreCase("incdir")) return true;
-        if (tokens.size() >= 2 && tokens.get(0).equalsIgnoreCase("output")) return true;
-        if (tokens.size() >= 2 && tokens.get(0).equalsIgnoreCase("defpage")) return true;
-        if (tokens.size() >= 1 && tokens.get(0).equalsIgnoreCase("code")) return true;
-        if (tokens.size() >= 2 && tokens.get(0).equalsIgnoreCase("page")) return true;
-        if (tokens.size() >= 2 && tokens.get(0).equalsIgnoreCase("dz")) return true;
-        if (tokens.size() >= 3 && tokens.get(0).equalsIgnoreCase("[")) return true;
-        if (tokens.size() >= 2 && tokens.get(0).equalsIgnoreCase(":=")) return true;
-        if (tokens.size() >= 2 && tokens.get(0).equalsIgnoreCase("align")) return true;
-        if (tokens.size() >= 2 && tokens.get(0).equalsIgnoreCase("module")) return true;
-        if (tokens.size() >= 1 && tokens.get(0).equalsIgnoreCase("endmodule")) return true;
-        if (tokens.size() >= 2 && tokens.get(0).equalsIgnoreCase("jr.")) return true;
-        if (tokens.size() >= 2 && tokens.get(0).equalsIgnoreCase("jp.")) return true;
-        if (tokens.size() >= 2 && tokens.get(0).equalsIgnoreCase("djnz.")) return true;
-        if (tokens.size() >= 2 && tokens.get(0).equalsIgnoreCase("define")) return true;
-        if (tokens.size() >= 2 && tokens.get(0).equalsIgnoreCase("xdefine")) return true;
-        if (tokens.size() >= 3 && tokens.get(0).equalsIgnoreCase("assign")) return true;
 
         for(SjasmStruct s:structs) {
             if (tokens.get(0).equals(s.name)) return true;
@@ -1334,105 +1271,151 @@ public class SjasmDialect implements Dialect {
             // Resolve enhanced jr/jp, only within-block:
             resolveEnhancedJumps(code);
 
-            // Assign blocks to pages, first those that have a defined address, then the rest:
-            // Start with those that have a defined address:
-            List<CodeBlock> blocksToAssign = new ArrayList<>();
             for(CodeBlock b:codeBlocks) {
-                Integer address = null;
-                if (b.address != null) address = b.address.evaluateToInteger(b.startStatement, code, true);
-                if (address == null) {
-                    blocksToAssign.add(b);
-                } else {
-                    CodePage page = pages.get(b.page);
-                    if (!page.addBlock(b, code)) {
-                        config.error("Could not add block of size " + b.size(code) + " to page " + page + "!");
-                        return false;
-                    }
+                if (!pages.containsKey(b.page)) {
+                    config.error("Code block assigned to undefined page " + b.page + " in " + b.startStatement.sl);
+                    return false;
                 }
+                b.cachedSize = b.size(code);
             }
+            List<Integer> pageIndexes = new ArrayList<>();
+            pageIndexes.addAll(pages.keySet());
+            Collections.sort(pageIndexes);
 
-            // Sort the rest of codeblocks by size, and assign them to pages where they fit:
-            Collections.sort(blocksToAssign, new Comparator<CodeBlock>() {
-                @Override
-                public int compare(CodeBlock b1, CodeBlock b2) {
-                    return -Integer.compare(b1.size(code), b2.size(code));
+            // The size of a block might depend on its address (e.g., if it contains an
+            // "align"), so once the blocks are placed, their sizes are recomputed. If any
+            // block grew, blocks are placed again reserving the larger size:
+            int sizes[] = new int[codeBlocks.size()];
+            boolean placed = false;
+            for(int iteration = 0;iteration < MAX_PLACEMENT_ITERATIONS && !placed;iteration++) {
+                if (!placeCodeBlocks(pageIndexes, code)) return false;
+                reconstructMainFile(initialBlock, pageIndexes, code);
+                placed = true;
+                for(int i = 0;i<codeBlocks.size();i++) {
+                    CodeBlock b = codeBlocks.get(i);
+                    sizes[i] = b.size(code);
+                    if (sizes[i] > b.cachedSize) {
+                        b.cachedSize = sizes[i];
+                        placed = false;
+                    }
                 }
-            });
+            }
+            if (!placed) {
+                config.error("Could not place the sjasm code blocks, as their sizes depend on their addresses.");
+                return false;
+            }
 
-            for(CodeBlock b:blocksToAssign) {
-                CodePage page = pages.get(b.page);
-                if (!page.addBlock(b, code)) {
-                    config.error("Could not add block of size " + b.size(code) + " to page " + page + "!");
+            // Blocks that got smaller do not move, but the spaces in between need to be updated:
+            boolean shrunk = false;
+            for(int i = 0;i<codeBlocks.size();i++) {
+                CodeBlock b = codeBlocks.get(i);
+                if (sizes[i] < b.cachedSize) {
+                    b.cachedSize = sizes[i];
+                    shrunk = true;
+                }
+            }
+            if (shrunk) reconstructMainFile(initialBlock, pageIndexes, code);
+        } else {
+            resolveEnhancedJumps(code);
+        }
+        return true;
+    }
+        
+    
+    /*
+    Assigns an address to each code block (using "cachedSize" as their sizes): first
+    those that have a defined address, and then the rest are packed in the space left
+    in their pages:
+    */
+    boolean placeCodeBlocks(List<Integer> pageIndexes, CodeBase code)
+    {
+        for(CodePage page:pages.values()) page.blocks.clear();
+        SjasmPagePacker packer = new SjasmPagePacker(config);
+        HashMap<Integer, List<CodeBlock>> blocksToAssign = new HashMap<>();
+        for(CodeBlock b:codeBlocks) {
+            Integer address = null;
+            if (b.address != null) address = b.address.evaluateToInteger(b.startStatement, code, true);
+            if (address == null) {
+                if (!blocksToAssign.containsKey(b.page)) blocksToAssign.put(b.page, new ArrayList<>());
+                blocksToAssign.get(b.page).add(b);
+            } else {
+                if (!packer.addFixedBlock(pages.get(b.page), b, address)) {
+                    config.error("Could not add block of size " + b.cachedSize + " to page " + b.page + "!");
                     return false;
                 }
             }
+        }
+        for(int idx:pageIndexes) {
+            List<CodeBlock> blocks = blocksToAssign.get(idx);
+            if (blocks == null) blocks = new ArrayList<>();
+            if (!packer.pack(idx, pages.get(idx), blocks, code)) return false;
+        }
+        return true;
+    }
 
-            // Create a new source file, and add all the code blocks:
-            SourceFile reconstructedFile = new SourceFile(code.getMain().fileName, null, null, code, config);
-            code.getSourceFiles().clear();
-            code.addSourceFile(reconstructedFile);
-            code.setMain(reconstructedFile);
 
-            // start by adding initialBlock:
-            for(SourceStatement s:initialBlock.statements) {
-                s.source = reconstructedFile;
-                reconstructedFile.addStatement(s);
-            }
+    /*
+    Replaces the source files of the code base by a single file with the code blocks
+    at their assigned addresses (inserting spaces in between):
+    */
+    void reconstructMainFile(CodeBlock initialBlock, List<Integer> pageIndexes, CodeBase code)
+    {
+        SourceFile reconstructedFile = new SourceFile(code.getMain().fileName, null, null, code, config);
+        code.getSourceFiles().clear();
+        code.addSourceFile(reconstructedFile);
+        code.setMain(reconstructedFile);
 
-            // add the rest of blocks, inserting appropriate spacing in between:
-            List<Integer> pageIndexes = new ArrayList<>();
-            pageIndexes.addAll(pages.keySet());
-            Collections.sort(pageIndexes);
+        // start by adding initialBlock:
+        for(SourceStatement s:initialBlock.statements) {
+            s.source = reconstructedFile;
+            reconstructedFile.addStatement(s);
+        }
 
-            for(int idx:pageIndexes) {
-                CodePage page = pages.get(idx);
-                SourceStatement org = new SourceStatement(SourceStatement.STATEMENT_ORG, new SourceLine("", reconstructedFile, reconstructedFile.getStatements().size()+1), reconstructedFile, config);
-                org.org = page.start;
-                reconstructedFile.addStatement(org);
-                int pageStart = page.start.evaluateToInteger(page.s, code, true);
-                int pageSize = page.size.evaluateToInteger(page.s, code, true);
-                int currentAddress = pageStart;
-                for(CodeBlock block:page.blocks) {
-                    if (block.actualAddress > currentAddress) {
-                        // insert space:
-                        SourceStatement space = new SourceStatement(SourceStatement.STATEMENT_DEFINE_SPACE, new SourceLine("", reconstructedFile, reconstructedFile.getStatements().size()+1), reconstructedFile, config);
-                        space.space = Expression.operatorExpression(Expression.EXPRESSION_SUB,
-                                        Expression.constantExpression(block.actualAddress, config),
-                                        Expression.symbolExpression(CodeBase.CURRENT_ADDRESS, space, code, config),
-                                        config);
-                        space.space_value = Expression.constantExpression(0, config);
-                        reconstructedFile.addStatement(space);
-                        config.debug("inserting space (end of block) of " + (block.actualAddress-currentAddress));
-                    }
-                    for(SourceStatement s:block.statements) {
-                        s.source = reconstructedFile;
-                        reconstructedFile.addStatement(s);
-                    }
-                    code.resetAddresses();
-                    currentAddress = block.actualAddress + block.size(code);
-                }
-                if (currentAddress < pageStart + pageSize) {
+        // add the rest of blocks, inserting appropriate spacing in between:
+        for(int idx:pageIndexes) {
+            CodePage page = pages.get(idx);
+            SourceStatement org = new SourceStatement(SourceStatement.STATEMENT_ORG, new SourceLine("", reconstructedFile, reconstructedFile.getStatements().size()+1), reconstructedFile, config);
+            org.org = page.start;
+            reconstructedFile.addStatement(org);
+            int pageStart = page.start.evaluateToInteger(page.s, code, true);
+            int pageSize = page.size.evaluateToInteger(page.s, code, true);
+            int currentAddress = pageStart;
+            for(CodeBlock block:page.blocks) {
+                if (block.actualAddress > currentAddress) {
                     // insert space:
                     SourceStatement space = new SourceStatement(SourceStatement.STATEMENT_DEFINE_SPACE, new SourceLine("", reconstructedFile, reconstructedFile.getStatements().size()+1), reconstructedFile, config);
                     space.space = Expression.operatorExpression(Expression.EXPRESSION_SUB,
-                                    Expression.constantExpression(pageStart + pageSize, config),
+                                    Expression.constantExpression(block.actualAddress, config),
                                     Expression.symbolExpression(CodeBase.CURRENT_ADDRESS, space, code, config),
                                     config);
                     space.space_value = Expression.constantExpression(0, config);
                     reconstructedFile.addStatement(space);
-                    config.debug("inserting space (end of page) of " + ((pageStart + pageSize) - currentAddress) + " from " + currentAddress + " to " + (pageStart + pageSize));
+                    config.debug("inserting space (end of block) of " + (block.actualAddress-currentAddress));
+                }
+                for(SourceStatement s:block.statements) {
+                    s.source = reconstructedFile;
+                    reconstructedFile.addStatement(s);
                 }
-                config.debug("page " + idx + " from " + pageStart + " to " + (pageStart+pageSize));
+                currentAddress = block.actualAddress + block.cachedSize;
             }
-
-            code.resetAddresses();
-        } else {
-            resolveEnhancedJumps(code);
+            if (currentAddress < pageStart + pageSize) {
+                // insert space:
+                SourceStatement space = new SourceStatement(SourceStatement.STATEMENT_DEFINE_SPACE, new SourceLine("", reconstructedFile, reconstructedFile.getStatements().size()+1), reconstructedFile, config);
+                space.space = Expression.operatorExpression(Expression.EXPRESSION_SUB,
+                                Expression.constantExpression(pageStart + pageSize, config),
+                                Expression.symbolExpression(CodeBase.CURRENT_ADDRESS, space, code, config),
+                                config);
+                space.space_value = Expression.constantExpression(0, config);
+                reconstructedFile.addStatement(space);
+                config.debug("inserting space (end of page) of " + ((pageStart + pageSize) - currentAddress) + " from " + currentAddress + " to " + (pageStart + pageSize));
+            }
+            config.debug("page " + idx + " from " + pageStart + " to " + (pageStart+pageSize));
         }
-        return true;
+
+        code.resetAddresses();
     }
-        
-    
+
+
     public CodeBlock findCodeBlock(SourceStatement s)
     {
         for(CodeBlock cb:codeBlocks) {
@@ -1552,7 +1535,7 @@ public class SjasmDialect implements Dialect {
         
         for(SourceLine sl:macro.lines) {
             String line2 = sl.line;
-            List<String> tokens = Tokenizer.tokenizeIncludingBlanks(line2);
+            List<String> tokens = Tokenizer.tokenizeIncludingBlanks(line2, config.lexer);
             line2 = "";
 
             boolean allEmptySoFar = true;
@@ -1592,13 +1575,13 @@ public class SjasmDialect implements Dialect {
             
             if (repeatLinesToExecute != null) {
                 SourceLine repeatStatement = repeatLinesToExecute.remove(0);
-                List<String> tokens2 = Tokenizer.tokenize(repeatStatement.line);
+                List<String> tokens2 = Tokenizer.tokenize(repeatStatement.line, config.lexer);
                 tokens2.remove(0);  // skip "repeat"
                 Expression exp = config.expressionParser.parse(tokens2, macroCall, macroCall.source.getPreviousStatementTo(macroCall, code), code);
                 int nIterations = exp.evaluateToInteger(macroCall, code, false);
                 for(int i = 0;i<nIterations;i++) {
                     for(SourceLine sl3:repeatLinesToExecute) {
-                        List<String> tokens3 = Tokenizer.tokenizeIncludingBlanks(sl3.line);
+                        List<String> tokens3 = Tokenizer.tokenizeIncludingBlanks(sl3.line, config.lexer);
                         String line3 = "";
                         for(String token:tokens3) {
                             String newToken = token;
@@ -1612,7 +1595,7 @@ public class SjasmDialect implements Dialect {
                         
                         if (line3.trim().toLowerCase().startsWith("rotate ")) {
                             // execute a rotate:
-                            List<String> tokensRotate = Tokenizer.tokenize(line3);
+                            List<String> tokensRotate = Tokenizer.tokenize(line3, config.lexer);
                             tokensRotate.remove(0); // skip "rotate"
                             Expression expRotate = config.expressionParser.parse(tokensRotate, macroCall, macroCall.source.getPreviousStatementTo(macroCall, code), code);
                             int nRotations = expRotate.evaluateToInteger(macroCall, code, false);
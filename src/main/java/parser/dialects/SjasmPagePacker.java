@@ -0,0 +1,218 @@
+/*
+ * Author: Santiago Ontañón Villar (Brain Games)
+ */
+package parser.dialects;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import cl.MDLConfig;
+import code.CodeBase;
+import parser.dialects.SjasmDialect.CodeBlock;
+import parser.dialects.SjasmDialect.CodePage;
+
+/**
+ * Assigns addresses to the sjasm "code" blocks that do not have a fixed address.
+ * Blocks with a fixed address split each page into a set of gaps, and the rest of
+ * blocks of the page are packed into them (a bin-packing problem with bins of
+ * different capacities). Best-fit-decreasing is tried first, and if it cannot fit
+ * all the blocks, a bounded branch-and-bound search is used.
+ *
+ * Blocks are packed using the sizes in "CodeBlock.cachedSize", so no addresses need
+ * to be recomputed during packing. As the size of a block might change when it is
+ * moved (e.g., "align"), SjasmDialect checks the sizes after placing the blocks, and
+ * packs them again if needed.
+ *
+ * @author santi
+ */
+public class SjasmPagePacker {
+    public static final int MAX_SEARCH_NODES = 1000000;
+
+    static class Gap {
+        int start;
+        int capacity;
+        int used = 0;
+        List<CodeBlock> blocks = new ArrayList<>();
+
+        Gap(int a_start, int a_capacity)
+        {
+            start = a_start;
+            capacity = a_capacity;
+        }
+
+        int free()
+        {
+            return capacity - used;
+        }
+    }
+
+    MDLConfig config;
+    int searchNodes = 0;
+
+
+    public SjasmPagePacker(MDLConfig a_config)
+    {
+        config = a_config;
+    }
+
+
+    /*
+    Adds a block with a fixed address to a page, making sure it does not overlap with
+    any of the other fixed blocks:
+    */
+    public boolean addFixedBlock(CodePage page, CodeBlock block, int address)
+    {
+        int spot = -1;
+        for(CodeBlock b2:page.blocks) {
+            if (b2.actualAddress < address + block.cachedSize &&
+                address < b2.actualAddress + b2.cachedSize) {
+                // overlap!
+                return false;
+            }
+            if (spot == -1 && b2.actualAddress > address) {
+                spot = page.blocks.indexOf(b2);
+            }
+        }
+        block.actualAddress = address;
+        if (spot == -1) {
+            page.blocks.add(block);
+        } else {
+            page.blocks.add(spot, block);
+        }
+        return true;
+    }
+
+
+    /*
+    Packs "blocks" in the space left in "page" by the blocks already in it (which
+    are assumed to be sorted by address).
+    */
+    public boolean pack(int pageNumber, CodePage page, List<CodeBlock> blocks, CodeBase code)
+    {
+        if (page.start == null || page.size == null) {
+            config.error("sjasm page " + pageNumber + " does not define its start address and size!");
+            return false;
+        }
+        int pageStart = page.start.evaluateToInteger(page.s, code, true);
+        int pageSize = page.size.evaluateToInteger(page.s, code, false);
+        List<Gap> gaps = new ArrayList<>();
+        int address = pageStart;
+        for(CodeBlock b:page.blocks) {
+            if (b.actualAddress > address) gaps.add(new Gap(address, b.actualAddress - address));
+            address = Math.max(address, b.actualAddress + b.cachedSize);
+        }
+        if (pageStart + pageSize > address) gaps.add(new Gap(address, pageStart + pageSize - address));
+
+        // sort by size (stable, so blocks of the same size keep their order in the source):
+        List<CodeBlock> sorted = new ArrayList<>(blocks);
+        sorted.sort((b1, b2) -> Integer.compare(b2.cachedSize, b1.cachedSize));
+
+        CodeBlock unassigned = bestFitDecreasing(sorted, gaps);
+        if (unassigned != null) {
+            config.debug("sjasm page " + pageNumber + ": best-fit-decreasing could not fit all blocks, trying branch and bound");
+            for(Gap gap:gaps) {
+                gap.blocks.clear();
+                gap.used = 0;
+            }
+            int remaining = 0;
+            for(CodeBlock b:sorted) remaining += b.cachedSize;
+            searchNodes = 0;
+            if (!branchAndBound(sorted, 0, remaining, gaps)) {
+                if (searchNodes >= MAX_SEARCH_NODES) {
+                    config.error("sjasm page " + pageNumber + ": search limit reached while trying to fit its code blocks.");
+                }
+                config.error("Could not add block of size " + unassigned.cachedSize + " to page " + pageNumber + "!");
+                return false;
+            }
+        }
+
+        // Assign the addresses:
+        for(Gap gap:gaps) {
+            address = gap.start;
+            for(CodeBlock b:gap.blocks) {
+                b.actualAddress = address;
+                address += b.cachedSize;
+            }
+        }
+        for(CodeBlock b:blocks) {
+            int spot = page.blocks.size();
+            for(int i = 0;i<page.blocks.size();i++) {
+                if (page.blocks.get(i).actualAddress > b.actualAddress) {
+                    spot = i;
+                    break;
+                }
+            }
+            page.blocks.add(spot, b);
+        }
+
+        int used = 0;
+        for(CodeBlock b:page.blocks) used += b.cachedSize;
+        config.info("sjasm page " + pageNumber + ": " + used + " of " + pageSize + " bytes used (" +
+                    (pageSize - used) + " bytes free, in " + freeSpaces(gaps) + " separate spaces)");
+        return true;
+    }
+
+
+    /*
+    Returns null if all blocks could be assigned, or the first block that could not:
+    */
+    CodeBlock bestFitDecreasing(List<CodeBlock> sorted, List<Gap> gaps)
+    {
+        for(CodeBlock b:sorted) {
+            Gap best = null;
+            for(Gap gap:gaps) {
+                if (gap.free() >= b.cachedSize && (best == null || gap.free() < best.free())) best = gap;
+            }
+            if (best == null) return b;
+            best.blocks.add(b);
+            best.used += b.cachedSize;
+        }
+        return null;
+    }
+
+
+    boolean branchAndBound(List<CodeBlock> sorted, int index, int remaining, List<Gap> gaps)
+    {
+        if (index >= sorted.size()) return true;
+        if (searchNodes++ >= MAX_SEARCH_NODES) return false;
+        CodeBlock b = sorted.get(index);
+
+        // bound: the remaining blocks must fit in the free space of the gaps where
+        // at least the smallest of them fits:
+        int smallest = sorted.get(sorted.size()-1).cachedSize;
+        int free = 0;
+        for(Gap gap:gaps) {
+            if (gap.free() >= smallest) free += gap.free();
+        }
+        if (free < remaining) return false;
+
+        // try the gaps in best-fit order, skipping those with the same free space as
+        // one already tried (they lead to equivalent subproblems):
+        List<Gap> candidates = new ArrayList<>();
+        for(Gap gap:gaps) {
+            if (gap.free() >= b.cachedSize) candidates.add(gap);
+        }
+        candidates.sort((g1, g2) -> Integer.compare(g1.free(), g2.free()));
+        int lastFree = -1;
+        for(Gap gap:candidates) {
+            if (gap.free() == lastFree) continue;
+            lastFree = gap.free();
+            gap.blocks.add(b);
+            gap.used += b.cachedSize;
+            if (branchAndBound(sorted, index+1, remaining - b.cachedSize, gaps)) return true;
+            gap.blocks.remove(gap.blocks.size()-1);
+            gap.used -= b.cachedSize;
+        }
+        return false;
+    }
+
+
+    int freeSpaces(List<Gap> gaps)
+    {
+        int n = 0;
+        for(Gap gap:gaps) {
+            if (gap.free() > 0) n++;
+        }
+        return n;
+    }
+}
@@ -20,6 +20,7 @@ import parser.SourceLine;
 public class TniAsmDialect implements Dialect {
 
     private final MDLConfig config;
+    private final DialectKeywords keywords = new DialectKeywords();
 
 
     /**
@@ -30,6 +31,8 @@ public class TniAsmDialect implements Dialect {
         super();
 
         config = a_config;
+
+        keywords.add(2, "rw", "fname", "forg");
         
         config.warning_jpHlWithParenthesis = false;  // I don't think tniasm supports "jp hl"
 
@@ -44,12 +47,9 @@ public class TniAsmDialect implements Dialect {
 
     
     @Override
-    public boolean recognizeIdiom(List<String> tokens)
+    public DialectKeywords getKeywords()
     {
-        if (tokens.size()>=2 && tokens.get(0).equalsIgnoreCase("rw")) return true;
-        if (tokens.size()>=2 && tokens.get(0).equalsIgnoreCase("fname")) return true;
-        if (tokens.size()>=2 && tokens.get(0).equalsIgnoreCase("forg")) return true;
-        return false;
+        return keywords;
     }
     
     
@@ -22,6 +22,7 @@ import parser.Tokenizer;
 public class WinAPEDialect implements Dialect {
 
     private final MDLConfig config;
+    private final DialectKeywords keywords = new DialectKeywords();
     
     public String writingTo = null;
 
@@ -29,21 +30,21 @@ public class WinAPEDialect implements Dialect {
         super();
 
         config = a_config;
+
+        keywords.add(2, "write");
+        keywords.add(1, "close");
         
         config.lineParser.KEYWORD_INCLUDE = "read";
         
         config.warning_jpHlWithParenthesis = false;  // I don't think WinAPE supports "jp hl"
-        Tokenizer.allowAndpersandHex = true;
+        config.lexer.allowAndpersandHex = true;
     }
 
     
     @Override
-    public boolean recognizeIdiom(List<String> tokens)
+    public DialectKeywords getKeywords()
     {
-        if (tokens.size()>=2 && tokens.get(0).equalsIgnoreCase("write")) return true;
-        if (tokens.size()>=1 && tokens.get(0).equalsIgnoreCase("close")) return true;
-        
-        return false;
+        return keywords;
     }
     
 
@@ -0,0 +1,160 @@
+/*
+ * Author: Santiago Ontañón Villar (Brain Games)
+ */
+package simulator;
+
+import java.util.Random;
+
+import cl.MDLConfig;
+import code.CodeBase;
+import code.SourceConstant;
+import workers.BinaryGenerator;
+
+/**
+ * Checks that two versions of a code base (e.g., before and after optimization)
+ * behave the same: a routine is called in both, starting from the same (random or
+ * given) registers and memory, and the resulting registers, flags, memory and port
+ * outputs are compared. Memory addresses whose initial contents differ between the
+ * two versions (i.e., the code that was changed) and the stack area right below the
+ * initial stack pointer are not compared.
+ *
+ * @author santi
+ */
+public class DifferentialTester {
+    MDLConfig config;
+    Z80Decoder decoder;
+
+    public int stackPointer = 0xf000;
+    public int stackSize = 256;     // bytes below "stackPointer" that are not compared
+    public long maxInstructions = 10000000;
+    public int flagMask = Z80Simulator.ALL_FLAGS;
+    public String registers[] = {"A", "B", "C", "D", "E", "H", "L", "IXH", "IXL", "IYH", "IYL", "SP"};
+    public boolean compareMemory = true;
+
+
+    public DifferentialTester(MDLConfig a_config)
+    {
+        config = a_config;
+        decoder = new Z80Decoder(config.opParser.getOpSpecs(), config);
+    }
+
+
+    public Z80Decoder getDecoder()
+    {
+        return decoder;
+    }
+
+
+    public Z80Simulator newSimulator()
+    {
+        return new Z80Simulator(decoder);
+    }
+
+
+    /*
+    Address of a label in a code base (or null if it is not defined):
+    */
+    public Integer labelAddress(CodeBase code, String label)
+    {
+        SourceConstant sc = code.getSymbol(label);
+        if (sc == null) return null;
+        Object value = sc.getValue(code, false);
+        if (value instanceof Integer) return (Integer)value;
+        return null;
+    }
+
+
+    /*
+    Calls "label" in both code bases "runs" times, each time from a different random
+    state (generated from "seed"). Returns null if both behave the same, or a
+    description of the first difference found otherwise:
+    */
+    public String compare(CodeBase original, CodeBase optimized, String label, int runs, long seed)
+    {
+        Integer address1 = labelAddress(original, label);
+        Integer address2 = labelAddress(optimized, label);
+        if (address1 == null || address2 == null) return "Label " + label + " not found";
+
+        BinaryGenerator assembler = new BinaryGenerator(config);
+        byte image1[] = new byte[Z80Simulator.MEMORY_SIZE];
+        byte image2[] = new byte[Z80Simulator.MEMORY_SIZE];
+        boolean written1[] = new boolean[Z80Simulator.MEMORY_SIZE];
+        boolean written2[] = new boolean[Z80Simulator.MEMORY_SIZE];
+        if (!assembler.assemble(original, image1, written1)) return "Cannot assemble the original code";
+        if (!assembler.assemble(optimized, image2, written2)) return "Cannot assemble the optimized code";
+
+        Random r = new Random(seed);
+        byte randomMemory[] = new byte[Z80Simulator.MEMORY_SIZE];
+        Z80Simulator sim1 = newSimulator();
+        Z80Simulator sim2 = newSimulator();
+        for(int run = 0;run<runs;run++) {
+            r.nextBytes(randomMemory);
+            for(int i = 0;i<Z80Simulator.MEMORY_SIZE;i++) {
+                sim1.memory[i] = written1[i] ? image1[i] : randomMemory[i];
+                sim2.memory[i] = written2[i] ? image2[i] : randomMemory[i];
+            }
+            for(int i = 0;i<Z80Simulator.NUM_REGISTERS;i++) {
+                sim1.regs[i] = sim2.regs[i] = r.nextInt(256);
+            }
+            sim1.sp = sim2.sp = stackPointer;
+            for(int i = 0;i<256;i++) {
+                sim1.portInputs[i] = sim2.portInputs[i] = r.nextInt(256);
+            }
+            String difference = compare(sim1, address1, sim2, address2);
+            if (difference != null) return "Run " + run + ": " + difference;
+        }
+        return null;
+    }
+
+
+    /*
+    Calls "address1" in "sim1" and "address2" in "sim2", starting from their current
+    states (which are expected to be the same, except for the code being compared),
+    and returns null if they end in the same state, or a description of the first
+    difference found otherwise:
+    */
+    public String compare(Z80Simulator sim1, int address1, Z80Simulator sim2, int address2)
+    {
+        // addresses that differ before the call are not compared:
+        boolean differentBefore[] = new boolean[Z80Simulator.MEMORY_SIZE];
+        for(int i = 0;i<Z80Simulator.MEMORY_SIZE;i++) {
+            differentBefore[i] = sim1.memory[i] != sim2.memory[i];
+        }
+        int sp = sim1.sp;
+
+        int status1 = sim1.call(address1, maxInstructions);
+        int status2 = sim2.call(address2, maxInstructions);
+        if (status1 != status2) {
+            return "Different result: " + Z80Simulator.STATUS_NAMES[status1] + " (at #" + Integer.toHexString(sim1.pc) + ") vs " +
+                   Z80Simulator.STATUS_NAMES[status2] + " (at #" + Integer.toHexString(sim2.pc) + ")";
+        }
+        if (status1 != Z80Simulator.STATUS_RETURNED && status1 != Z80Simulator.STATUS_HALTED) {
+            return "Code did not finish: " + Z80Simulator.STATUS_NAMES[status1] + " (at #" + Integer.toHexString(sim1.pc) + ")";
+        }
+        for(String register:registers) {
+            int v1 = sim1.getRegister(register);
+            int v2 = sim2.getRegister(register);
+            if (v1 != v2) return "Different value of " + register + ": " + v1 + " vs " + v2;
+        }
+        int f1 = sim1.regs[Z80Simulator.F] & flagMask;
+        int f2 = sim2.regs[Z80Simulator.F] & flagMask;
+        if (f1 != f2) return "Different flags: #" + Integer.toHexString(f1) + " vs #" + Integer.toHexString(f2);
+        if (compareMemory) {
+            for(int i = 0;i<Z80Simulator.MEMORY_SIZE;i++) {
+                if (differentBefore[i]) continue;
+                if (i < sp && i >= sp - stackSize) continue;
+                if (sim1.memory[i] != sim2.memory[i]) {
+                    return "Different value at address #" + Integer.toHexString(i) + ": " +
+                           (sim1.memory[i] & 0xff) + " vs " + (sim2.memory[i] & 0xff);
+                }
+            }
+        }
+        for(int i = 0;i<256;i++) {
+            if (sim1.portOutputs[i] != sim2.portOutputs[i]) {
+                return "Different output to port " + i + ": " + sim1.portOutputs[i] + " vs " + sim2.portOutputs[i];
+            }
+        }
+        if (sim1.outputHash != sim2.outputHash) return "Different sequence of port outputs";
+        return null;
+    }
+}
@@ -0,0 +1,402 @@
+/*
+ * Author: Santiago Ontañón Villar (Brain Games)
+ */
+package simulator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import cl.MDLConfig;
+import code.CPUOpSpec;
+import code.CPUOpSpecArg;
+
+/**
+ * Decoding table for Z80Simulator, built from the byte representations of the op
+ * specs of the instruction set (e.g., "DD CB o 46+8*b"). Ops are stored in a trie
+ * indexed by their opcode bytes, where each leaf contains a fully decoded op (the
+ * operation, and the kind of each of its arguments), so no work other than
+ * following the opcode bytes is needed when simulating. Once built, it is only read,
+ * so it can be shared by any number of simulators.
+ *
+ * @author santi
+ */
+public class Z80Decoder {
+    public static final String OPERATION_NAMES[] = {
+        "nop", "ld", "push", "pop", "ex", "exx",
+        "add", "adc", "sub", "sbc", "and", "xor", "or", "cp", "inc", "dec",
+        "daa", "cpl", "neg", "ccf", "scf", "rlca", "rrca", "rla", "rra",
+        "rlc", "rrc", "rl", "rr", "sla", "sra", "srl", "rld", "rrd", "bit", "set", "res",
+        "jp", "jr", "djnz", "call", "ret", "reti", "retn", "rst",
+        "halt", "di", "ei", "im", "in", "out",
+        "ini", "ind", "inir", "indr", "outi", "outd", "otir", "otdr",
+        "ldi", "ldd", "ldir", "lddr", "cpi", "cpd", "cpir", "cpdr", "mulub", "muluw"};
+    public static final int OP_NOP = 0;
+    public static final int OP_LD = 1;
+    public static final int OP_PUSH = 2;
+    public static final int OP_POP = 3;
+    public static final int OP_EX = 4;
+    public static final int OP_EXX = 5;
+    public static final int OP_ADD = 6;
+    public static final int OP_ADC = 7;
+    public static final int OP_SUB = 8;
+    public static final int OP_SBC = 9;
+    public static final int OP_AND = 10;
+    public static final int OP_XOR = 11;
+    public static final int OP_OR = 12;
+    public static final int OP_CP = 13;
+    public static final int OP_INC = 14;
+    public static final int OP_DEC = 15;
+    public static final int OP_DAA = 16;
+    public static final int OP_CPL = 17;
+    public static final int OP_NEG = 18;
+    public static final int OP_CCF = 19;
+    public static final int OP_SCF = 20;
+    public static final int OP_RLCA = 21;
+    public static final int OP_RRCA = 22;
+    public static final int OP_RLA = 23;
+    public static final int OP_RRA = 24;
+    public static final int OP_RLC = 25;
+    public static final int OP_RRC = 26;
+    public static final int OP_RL = 27;
+    public static final int OP_RR = 28;
+    public static final int OP_SLA = 29;
+    public static final int OP_SRA = 30;
+    public static final int OP_SRL = 31;
+    public static final int OP_RLD = 32;
+    public static final int OP_RRD = 33;
+    public static final int OP_BIT = 34;
+    public static final int OP_SET = 35;
+    public static final int OP_RES = 36;
+    public static final int OP_JP = 37;
+    public static final int OP_JR = 38;
+    public static final int OP_DJNZ = 39;
+    public static final int OP_CALL = 40;
+    public static final int OP_RET = 41;
+    public static final int OP_RETI = 42;
+    public static final int OP_RETN = 43;
+    public static final int OP_RST = 44;
+    public static final int OP_HALT = 45;
+    public static final int OP_DI = 46;
+    public static final int OP_EI = 47;
+    public static final int OP_IM = 48;
+    public static final int OP_IN = 49;
+    public static final int OP_OUT = 50;
+    public static final int OP_INI = 51;
+    public static final int OP_IND = 52;
+    public static final int OP_INIR = 53;
+    public static final int OP_INDR = 54;
+    public static final int OP_OUTI = 55;
+    public static final int OP_OUTD = 56;
+    public static final int OP_OTIR = 57;
+    public static final int OP_OTDR = 58;
+    public static final int OP_LDI = 59;
+    public static final int OP_LDD = 60;
+    public static final int OP_LDIR = 61;
+    public static final int OP_LDDR = 62;
+    public static final int OP_CPI = 63;
+    public static final int OP_CPD = 64;
+    public static final int OP_CPIR = 65;
+    public static final int OP_CPDR = 66;
+    public static final int OP_MULUB = 67;
+    public static final int OP_MULUW = 68;
+
+    // Kinds of arguments:
+    public static final int ARG_NONE = 0;
+    public static final int ARG_REG8 = 1;          // value: register index (see Z80Simulator)
+    public static final int ARG_REG16 = 2;         // value: register pair (see Z80Simulator)
+    public static final int ARG_IND_REG16 = 3;     // (BC), (DE), (HL), (SP), (IX), (IY)
+    public static final int ARG_IND_INDEX = 4;     // (IX+o), (IY+o)
+    public static final int ARG_IMM8 = 5;
+    public static final int ARG_IMM16 = 6;
+    public static final int ARG_IND_IMM8 = 7;      // port "(n)"
+    public static final int ARG_IND_IMM16 = 8;
+    public static final int ARG_PORT_C = 9;        // port "(C)"
+    public static final int ARG_CONDITION = 10;    // value: index in CONDITION_NAMES
+    public static final int ARG_RELATIVE = 11;
+    public static final int ARG_CONSTANT = 12;     // value: the constant (bit number, rst address, etc.)
+
+    public static final String CONDITION_NAMES[] = {"NZ", "Z", "NC", "C", "PO", "PE", "P", "M"};
+
+    // Operands that appear after the opcode bytes:
+    public static final int OPERAND_DISPLACEMENT = 0;
+    public static final int OPERAND_BYTE = 1;
+    public static final int OPERAND_WORD_LOW = 2;
+    public static final int OPERAND_WORD_HIGH = 3;
+
+    public static class DecodedOp {
+        public CPUOpSpec spec;
+        public int operation;
+        public int arg1Kind = ARG_NONE, arg1 = 0;
+        public int arg2Kind = ARG_NONE, arg2 = 0;
+        public boolean wide = false;    // whether this is a 16 bit operation
+        public int operands[];
+        public int timeTaken, timeNotTaken;
+        public int refreshIncrements;   // number of M1 cycles (increments of the R register)
+    }
+
+    static class Node {
+        Node next[] = null;
+        DecodedOp op = null;
+        // For "DD CB o XX" ops, where the displacement comes before the last opcode byte:
+        boolean displacementFirst = false;
+    }
+
+    MDLConfig config;
+    Node root = new Node();
+    public int nDecodedOps = 0;
+
+
+    public Z80Decoder(List<CPUOpSpec> specs, MDLConfig a_config)
+    {
+        config = a_config;
+        root.next = new Node[256];
+        // official ops first, so they take precedence over the unofficial ways to write them:
+        for(CPUOpSpec spec:specs) {
+            if (spec.official) addSpec(spec);
+        }
+        for(CPUOpSpec spec:specs) {
+            if (!spec.official) addSpec(spec);
+        }
+        config.debug("Z80Decoder: " + nDecodedOps + " ops decoded");
+    }
+
+
+    void addSpec(CPUOpSpec spec)
+    {
+        int operation = indexOf(OPERATION_NAMES, spec.getName());
+        String encoding = spec.getByteRepresentation();
+        if (operation < 0 || encoding == null || encoding.trim().isEmpty()) {
+            config.debug("Z80Decoder: ignoring " + spec);
+            return;
+        }
+        int n = spec.args.size();
+        expand(spec, operation, 0, new int[n], new int[n], new HashMap<>());
+    }
+
+
+    /*
+    Generates all the variants of an op spec (e.g., one per register for "r"):
+    */
+    void expand(CPUOpSpec spec, int operation, int i, int kinds[], int values[], HashMap<String, Integer> variables)
+    {
+        if (i >= spec.args.size()) {
+            add(spec, operation, kinds, values, variables);
+            return;
+        }
+        CPUOpSpecArg arg = spec.args.get(i);
+        int options[] = null;
+        String variable = null;
+        if (arg.reg != null) {
+            switch(arg.reg) {
+                case "r":
+                    variable = "r";
+                    options = new int[]{Z80Simulator.B, Z80Simulator.C, Z80Simulator.D, Z80Simulator.E,
+                                        Z80Simulator.H, Z80Simulator.L, Z80Simulator.A};
+                    break;
+                case "p":
+                    variable = "p";
+                    options = new int[]{Z80Simulator.B, Z80Simulator.C, Z80Simulator.D, Z80Simulator.E,
+                                        Z80Simulator.IXH, Z80Simulator.IXL, Z80Simulator.A};
+                    break;
+                case "q":
+                    variable = "q";
+                    options = new int[]{Z80Simulator.B, Z80Simulator.C, Z80Simulator.D, Z80Simulator.E,
+                                        Z80Simulator.IYH, Z80Simulator.IYL, Z80Simulator.A};
+                    break;
+                case "IXp":
+                    variable = "p";
+                    options = new int[]{Z80Simulator.IXH, Z80Simulator.IXL};
+                    break;
+                case "IYq":
+                    variable = "q";
+                    options = new int[]{Z80Simulator.IYH, Z80Simulator.IYL};
+                    break;
+                default:
+                {
+                    int reg = Z80Simulator.registerIndex(arg.reg);
+                    if (reg >= 0) {
+                        kinds[i] = ARG_REG8;
+                        values[i] = reg;
+                    } else {
+                        int pair = Z80Simulator.registerPairIndex(arg.reg);
+                        if (pair < 0) {
+                            config.error("Z80Decoder: unsupported register " + arg.reg + " in " + spec);
+                            return;
+                        }
+                        kinds[i] = ARG_REG16;
+                        values[i] = pair;
+                    }
+                }
+            }
+            if (options != null) {
+                for(int reg:options) {
+                    kinds[i] = ARG_REG8;
+                    values[i] = reg;
+                    variables.put(variable, Z80Simulator.registerCode(reg));
+                    expand(spec, operation, i+1, kinds, values, variables);
+                }
+                variables.remove(variable);
+                return;
+            }
+        } else if (arg.regIndirection != null) {
+            if (arg.regIndirection.equals("C")) {
+                kinds[i] = ARG_PORT_C;
+            } else {
+                kinds[i] = ARG_IND_REG16;
+                values[i] = Z80Simulator.registerPairIndex(arg.regIndirection);
+            }
+        } else if (arg.regOffsetIndirection != null) {
+            kinds[i] = ARG_IND_INDEX;
+            values[i] = Z80Simulator.registerPairIndex(arg.regOffsetIndirection);
+        } else if (arg.condition != null) {
+            kinds[i] = ARG_CONDITION;
+            values[i] = indexOf(CONDITION_NAMES, arg.condition);
+        } else if (arg.byteConstantAllowed && arg.min != null) {
+            kinds[i] = ARG_CONSTANT;
+            if (arg.min.equals(arg.max)) {
+                values[i] = arg.min;
+            } else {
+                // bit number ("b"):
+                for(int b = arg.min;b<=arg.max;b++) {
+                    values[i] = b;
+                    variables.put("b", b);
+                    expand(spec, operation, i+1, kinds, values, variables);
+                }
+                variables.remove("b");
+                return;
+            }
+        } else if (arg.byteConstantAllowed) {
+            kinds[i] = ARG_IMM8;
+        } else if (arg.wordConstantAllowed) {
+            kinds[i] = ARG_IMM16;
+        } else if (arg.relativeLabelAllowed) {
+            kinds[i] = ARG_RELATIVE;
+        } else if (arg.byteConstantIndirectionAllowed) {
+            kinds[i] = ARG_IND_IMM8;
+        } else if (arg.wordConstantIndirectionAllowed) {
+            kinds[i] = ARG_IND_IMM16;
+        } else {
+            config.error("Z80Decoder: unsupported argument in " + spec);
+            return;
+        }
+        expand(spec, operation, i+1, kinds, values, variables);
+    }
+
+
+    void add(CPUOpSpec spec, int operation, int kinds[], int values[], HashMap<String, Integer> variables)
+    {
+        Node node = root;
+        int depth = 0;
+        List<Integer> operands = new ArrayList<>();
+        boolean lowByte = true;
+        for(String token:spec.getByteRepresentation().trim().split(" ")) {
+            if (token.isEmpty()) continue;
+            switch(token) {
+                case "o":
+                    operands.add(OPERAND_DISPLACEMENT);
+                    break;
+                case "n":
+                    operands.add(OPERAND_BYTE);
+                    break;
+                case "nn":
+                    operands.add(lowByte ? OPERAND_WORD_LOW : OPERAND_WORD_HIGH);
+                    lowByte = !lowByte;
+                    break;
+                default:
+                {
+                    Integer value = opcodeByte(token, variables);
+                    if (value == null) {
+                        config.error("Z80Decoder: cannot decode " + token + " in " + spec);
+                        return;
+                    }
+                    if (!operands.isEmpty()) {
+                        // only "DD CB o XX"-style ops have operands before the last opcode byte:
+                        if (operands.size() != 1 || operands.get(0) != OPERAND_DISPLACEMENT) {
+                            config.error("Z80Decoder: unsupported byte representation in " + spec);
+                            return;
+                        }
+                        node.displacementFirst = true;
+                        operands.clear();
+                    }
+                    if (node.op != null) {
+                        config.error("Z80Decoder: " + spec + " conflicts with " + node.op.spec);
+                        return;
+                    }
+                    if (node.next == null) node.next = new Node[256];
+                    if (node.next[value] == null) node.next[value] = new Node();
+                    node = node.next[value];
+                    depth++;
+                }
+            }
+        }
+        // Ops that were already added (e.g., the official version of an unofficial op) are skipped:
+        if (node == root || node.op != null || node.next != null) return;
+
+        DecodedOp op = new DecodedOp();
+        op.spec = spec;
+        op.operation = operation;
+        if (kinds.length >= 1) {
+            op.arg1Kind = kinds[0];
+            op.arg1 = values[0];
+        }
+        if (kinds.length >= 2) {
+            op.arg2Kind = kinds[1];
+            op.arg2 = values[1];
+        }
+        for(int kind:kinds) {
+            if (kind == ARG_REG16) op.wide = true;
+        }
+        op.operands = new int[operands.size()];
+        for(int i = 0;i<op.operands.length;i++) op.operands[i] = operands.get(i);
+        op.timeTaken = op.timeNotTaken = spec.getTimes()[0];
+        for(int time:spec.getTimes()) {
+            op.timeTaken = Math.max(op.timeTaken, time);
+            op.timeNotTaken = Math.min(op.timeNotTaken, time);
+        }
+        op.refreshIncrements = Math.min(depth, 2);
+        node.op = op;
+        nDecodedOps++;
+    }
+
+
+    /*
+    Evaluates an opcode byte like "40+8*b+r":
+    */
+    static Integer opcodeByte(String token, HashMap<String, Integer> variables)
+    {
+        String parts[] = token.split("\\+");
+        int value;
+        try {
+            value = Integer.parseInt(parts[0], 16);
+            for(int i = 1;i<parts.length;i++) {
+                String part = parts[i];
+                int multiplier = 1;
+                if (part.startsWith("8*")) {
+                    multiplier = 8;
+                    part = part.substring(2);
+                }
+                if (Character.isDigit(part.charAt(0))) {
+                    value += multiplier * Integer.parseInt(part);
+                } else {
+                    Integer v = variables.get(part);
+                    if (v == null) return null;
+                    value += multiplier * v;
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (value < 0 || value > 255) return null;
+        return value;
+    }
+
+
+    static int indexOf(String l[], String name)
+    {
+        for(int i = 0;i<l.length;i++) {
+            if (l[i].equalsIgnoreCase(name)) return i;
+        }
+        return -1;
+    }
+}
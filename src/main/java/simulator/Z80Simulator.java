@@ -0,0 +1,893 @@
+/*
+ * Author: Santiago Ontañón Villar (Brain Games)
+ */
+package simulator;
+
+import java.util.Arrays;
+
+import simulator.Z80Decoder.DecodedOp;
+import simulator.Z80Decoder.Node;
+
+/**
+ * Instruction-level Z80 simulator (registers, flags, 64KB of memory and I/O ports),
+ * that decodes the ops using a Z80Decoder (built from the instruction set). It is
+ * meant to check that two pieces of code behave the same (see DifferentialTester),
+ * so it does not allocate any memory while simulating. Some simplifications:
+ * - The undocumented flag bits (3 and 5) are never set by the simulated ops.
+ * - I/O ports are deterministic stubs: "in" returns the value in "portInputs" for
+ *   the port, and "out" stores the value in "portOutputs" (and updates "outputHash").
+ * - There are no interrupts, and R800 multiplications are not supported.
+ *
+ * @author santi
+ */
+public class Z80Simulator {
+    public static final int MEMORY_SIZE = 65536;
+
+    // 8 bit registers (B..L and A use the same codes as in the Z80 encoding):
+    public static final int B = 0;
+    public static final int C = 1;
+    public static final int D = 2;
+    public static final int E = 3;
+    public static final int H = 4;
+    public static final int L = 5;
+    public static final int F = 6;
+    public static final int A = 7;
+    public static final int IXH = 8;
+    public static final int IXL = 9;
+    public static final int IYH = 10;
+    public static final int IYL = 11;
+    public static final int I = 12;
+    public static final int R = 13;
+    // the alternate registers B'..A' are stored right after (in the same order as B..A):
+    public static final int ALTERNATE = 14;
+    public static final int NUM_REGISTERS = ALTERNATE + 8;
+    public static final String REGISTER_NAMES[] = {"B", "C", "D", "E", "H", "L", "F", "A",
+                                                    "IXH", "IXL", "IYH", "IYL", "I", "R"};
+
+    // register pairs:
+    public static final int BC = 0;
+    public static final int DE = 1;
+    public static final int HL = 2;
+    public static final int SP = 3;
+    public static final int AF = 4;
+    public static final int IX = 5;
+    public static final int IY = 6;
+    public static final int AF_ALTERNATE = 7;
+    public static final String REGISTER_PAIR_NAMES[] = {"BC", "DE", "HL", "SP", "AF", "IX", "IY", "AF'"};
+    static final int PAIR_HIGH[] = {B, D, H, -1, A, IXH, IYH, ALTERNATE + A};
+    static final int PAIR_LOW[] = {C, E, L, -1, F, IXL, IYL, ALTERNATE + F};
+
+    // bits in the F register:
+    public static final int S_FLAG = 0x80;
+    public static final int Z_FLAG = 0x40;
+    public static final int H_FLAG = 0x10;
+    public static final int PV_FLAG = 0x04;
+    public static final int N_FLAG = 0x02;
+    public static final int C_FLAG = 0x01;
+    public static final int ALL_FLAGS = S_FLAG | Z_FLAG | H_FLAG | PV_FLAG | N_FLAG | C_FLAG;
+
+    // Result of "step" and "call":
+    public static final int STATUS_OK = 0;
+    public static final int STATUS_RETURNED = 1;
+    public static final int STATUS_HALTED = 2;
+    public static final int STATUS_TIMEOUT = 3;
+    public static final int STATUS_UNKNOWN_OP = 4;
+    public static final int STATUS_UNSUPPORTED_OP = 5;
+    public static final String STATUS_NAMES[] = {"ok", "returned", "halted", "timeout", "unknown op", "unsupported op"};
+
+    Z80Decoder decoder;
+
+    public final int regs[] = new int[NUM_REGISTERS];
+    public int sp = 0, pc = 0;
+    public final byte memory[] = new byte[MEMORY_SIZE];
+    public boolean iff1 = false, iff2 = false, halted = false;
+    public int interruptMode = 0;
+    public final int portInputs[] = new int[256];
+    public final int portOutputs[] = new int[256];
+    public int outputHash = 0;  // hash of the sequence of all the values written to ports
+
+    // "call" returns when reaching this address with the stack as it was before the call:
+    public int returnAddress = 0xffff;
+
+    public long instructions = 0;
+    public long cycles = 0;
+
+    // operands of the op being executed:
+    int displacement = 0, immediate = 0;
+
+
+    public Z80Simulator(Z80Decoder a_decoder)
+    {
+        decoder = a_decoder;
+        reset();
+    }
+
+
+    public final void reset()
+    {
+        Arrays.fill(regs, 0);
+        Arrays.fill(memory, (byte)0);
+        Arrays.fill(portInputs, 0xff);
+        Arrays.fill(portOutputs, -1);
+        sp = 0xffff;
+        pc = 0;
+        iff1 = iff2 = halted = false;
+        interruptMode = 0;
+        outputHash = 0;
+        instructions = 0;
+        cycles = 0;
+    }
+
+
+    public void copyStateFrom(Z80Simulator sim)
+    {
+        System.arraycopy(sim.regs, 0, regs, 0, regs.length);
+        System.arraycopy(sim.memory, 0, memory, 0, memory.length);
+        System.arraycopy(sim.portInputs, 0, portInputs, 0, portInputs.length);
+        System.arraycopy(sim.portOutputs, 0, portOutputs, 0, portOutputs.length);
+        sp = sim.sp;
+        pc = sim.pc;
+        iff1 = sim.iff1;
+        iff2 = sim.iff2;
+        halted = sim.halted;
+        interruptMode = sim.interruptMode;
+        outputHash = sim.outputHash;
+        returnAddress = sim.returnAddress;
+        instructions = sim.instructions;
+        cycles = sim.cycles;
+    }
+
+
+    public void load(byte data[], int address)
+    {
+        for(int i = 0;i<data.length;i++) {
+            memory[(address + i) & 0xffff] = data[i];
+        }
+    }
+
+
+    public static int registerIndex(String name)
+    {
+        for(int i = 0;i<REGISTER_NAMES.length;i++) {
+            if (REGISTER_NAMES[i].equalsIgnoreCase(name)) return i;
+        }
+        return -1;
+    }
+
+
+    public static int registerPairIndex(String name)
+    {
+        for(int i = 0;i<REGISTER_PAIR_NAMES.length;i++) {
+            if (REGISTER_PAIR_NAMES[i].equalsIgnoreCase(name)) return i;
+        }
+        return -1;
+    }
+
+
+    /*
+    Code of a register in the Z80 encoding (IXH/IYH and IXL/IYL use the codes of H and L):
+    */
+    public static int registerCode(int reg)
+    {
+        if (reg == IXH || reg == IYH) return H;
+        if (reg == IXL || reg == IYL) return L;
+        return reg;
+    }
+
+
+    /*
+    Returns the value of a register or register pair given its name (e.g., "a", "hl",
+    "pc"), or -1 if the name is not a register:
+    */
+    public int getRegister(String name)
+    {
+        if (name.equalsIgnoreCase("pc")) return pc;
+        int reg = registerIndex(name);
+        if (reg >= 0) return regs[reg];
+        int pair = registerPairIndex(name);
+        if (pair >= 0) return getPair(pair);
+        return -1;
+    }
+
+
+    public boolean setRegister(String name, int value)
+    {
+        if (name.equalsIgnoreCase("pc")) {
+            pc = value & 0xffff;
+            return true;
+        }
+        int reg = registerIndex(name);
+        if (reg >= 0) {
+            regs[reg] = value & 0xff;
+            return true;
+        }
+        int pair = registerPairIndex(name);
+        if (pair >= 0) {
+            setPair(pair, value);
+            return true;
+        }
+        return false;
+    }
+
+
+    public int getPair(int pair)
+    {
+        if (pair == SP) return sp;
+        return (regs[PAIR_HIGH[pair]] << 8) | regs[PAIR_LOW[pair]];
+    }
+
+
+    public void setPair(int pair, int value)
+    {
+        if (pair == SP) {
+            sp = value & 0xffff;
+        } else {
+            regs[PAIR_HIGH[pair]] = (value >> 8) & 0xff;
+            regs[PAIR_LOW[pair]] = value & 0xff;
+        }
+    }
+
+
+    public int read8(int address)
+    {
+        return memory[address & 0xffff] & 0xff;
+    }
+
+
+    public void write8(int address, int value)
+    {
+        memory[address & 0xffff] = (byte)value;
+    }
+
+
+    public int read16(int address)
+    {
+        return read8(address) | (read8(address + 1) << 8);
+    }
+
+
+    public void write16(int address, int value)
+    {
+        write8(address, value);
+        write8(address + 1, value >> 8);
+    }
+
+
+    void push(int value)
+    {
+        sp = (sp - 2) & 0xffff;
+        write16(sp, value);
+    }
+
+
+    int pop()
+    {
+        int value = read16(sp);
+        sp = (sp + 2) & 0xffff;
+        return value;
+    }
+
+
+    /*
+    Simulates a call to "address": it returns when the code returns (STATUS_RETURNED),
+    halts, finds an op it cannot simulate, or after "maxInstructions" (STATUS_TIMEOUT):
+    */
+    public int call(int address, long maxInstructions)
+    {
+        push(returnAddress);
+        int stopSp = (sp + 2) & 0xffff;
+        pc = address & 0xffff;
+        for(long i = 0;i<maxInstructions;i++) {
+            if (pc == returnAddress && sp == stopSp) return STATUS_RETURNED;
+            int status = step();
+            if (status != STATUS_OK) return status;
+        }
+        if (pc == returnAddress && sp == stopSp) return STATUS_RETURNED;
+        return STATUS_TIMEOUT;
+    }
+
+
+    /*
+    Executes the op at "pc":
+    */
+    public int step()
+    {
+        int opAddress = pc;
+        Node node = decoder.root;
+        do {
+            if (node.displacementFirst) {
+                displacement = memory[pc];
+                pc = (pc + 1) & 0xffff;
+            }
+            node = node.next[memory[pc] & 0xff];
+            pc = (pc + 1) & 0xffff;
+            if (node == null) {
+                pc = opAddress;
+                return STATUS_UNKNOWN_OP;
+            }
+        } while(node.op == null);
+        DecodedOp op = node.op;
+        for(int operand:op.operands) {
+            switch(operand) {
+                case Z80Decoder.OPERAND_DISPLACEMENT:
+                    displacement = memory[pc];
+                    break;
+                case Z80Decoder.OPERAND_BYTE:
+                case Z80Decoder.OPERAND_WORD_LOW:
+                    immediate = memory[pc] & 0xff;
+                    break;
+                default:
+                    immediate |= (memory[pc] & 0xff) << 8;
+            }
+            pc = (pc + 1) & 0xffff;
+        }
+        regs[R] = (regs[R] & 0x80) | ((regs[R] + op.refreshIncrements) & 0x7f);
+        instructions++;
+        cycles += op.timeNotTaken;
+        return execute(op, opAddress);
+    }
+
+
+    int address(int kind, int value)
+    {
+        switch(kind) {
+            case Z80Decoder.ARG_IND_REG16:
+                return getPair(value);
+            case Z80Decoder.ARG_IND_INDEX:
+                return (getPair(value) + displacement) & 0xffff;
+            default:
+                return immediate;
+        }
+    }
+
+
+    int get8(int kind, int value)
+    {
+        switch(kind) {
+            case Z80Decoder.ARG_REG8:
+                return regs[value];
+            case Z80Decoder.ARG_IMM8:
+                return immediate;
+            case Z80Decoder.ARG_CONSTANT:
+                return value;
+            default:
+                return read8(address(kind, value));
+        }
+    }
+
+
+    void set8(int kind, int value, int v)
+    {
+        if (kind == Z80Decoder.ARG_REG8) {
+            regs[value] = v & 0xff;
+        } else {
+            write8(address(kind, value), v);
+        }
+    }
+
+
+    int get16(int kind, int value)
+    {
+        switch(kind) {
+            case Z80Decoder.ARG_REG16:
+                return getPair(value);
+            case Z80Decoder.ARG_IMM16:
+                return immediate;
+            default:
+                return read16(address(kind, value));
+        }
+    }
+
+
+    void set16(int kind, int value, int v)
+    {
+        if (kind == Z80Decoder.ARG_REG16) {
+            setPair(value, v);
+        } else {
+            write16(address(kind, value), v);
+        }
+    }
+
+
+    boolean condition(int cc)
+    {
+        int f = regs[F];
+        switch(cc) {
+            case 0: return (f & Z_FLAG) == 0;   // NZ
+            case 1: return (f & Z_FLAG) != 0;   // Z
+            case 2: return (f & C_FLAG) == 0;   // NC
+            case 3: return (f & C_FLAG) != 0;   // C
+            case 4: return (f & PV_FLAG) == 0;  // PO
+            case 5: return (f & PV_FLAG) != 0;  // PE
+            case 6: return (f & S_FLAG) == 0;   // P
+            default: return (f & S_FLAG) != 0;  // M
+        }
+    }
+
+
+    static int szFlags(int v)
+    {
+        v &= 0xff;
+        return (v & S_FLAG) | (v == 0 ? Z_FLAG : 0);
+    }
+
+
+    static int parityFlag(int v)
+    {
+        return (Integer.bitCount(v & 0xff) % 2 == 0 ? PV_FLAG : 0);
+    }
+
+
+    void add8(int v, int c)
+    {
+        int a = regs[A];
+        int r = a + v + c;
+        regs[F] = szFlags(r) |
+                  (((a & 0xf) + (v & 0xf) + c) > 0xf ? H_FLAG : 0) |
+                  (((a ^ ~v) & (a ^ r) & 0x80) != 0 ? PV_FLAG : 0) |
+                  (r > 0xff ? C_FLAG : 0);
+        regs[A] = r & 0xff;
+    }
+
+
+    int sub8(int v, int c)
+    {
+        int a = regs[A];
+        int r = a - v - c;
+        regs[F] = szFlags(r) |
+                  (((a & 0xf) - (v & 0xf) - c) < 0 ? H_FLAG : 0) |
+                  (((a ^ v) & (a ^ r) & 0x80) != 0 ? PV_FLAG : 0) |
+                  N_FLAG |
+                  (r < 0 ? C_FLAG : 0);
+        return r & 0xff;
+    }
+
+
+    void jump(DecodedOp op, int target)
+    {
+        pc = target & 0xffff;
+        cycles += op.timeTaken - op.timeNotTaken;
+    }
+
+
+    void output(int port, int value)
+    {
+        portOutputs[port & 0xff] = value & 0xff;
+        outputHash = outputHash * 31 + (((port & 0xff) << 8) | (value & 0xff));
+    }
+
+
+    int execute(DecodedOp op, int opAddress)
+    {
+        int f = regs[F];
+        switch(op.operation) {
+            case Z80Decoder.OP_NOP:
+                break;
+
+            case Z80Decoder.OP_LD:
+                if (op.wide) {
+                    set16(op.arg1Kind, op.arg1, get16(op.arg2Kind, op.arg2));
+                } else {
+                    int v = get8(op.arg2Kind, op.arg2);
+                    set8(op.arg1Kind, op.arg1, v);
+                    if (op.arg2Kind == Z80Decoder.ARG_REG8 && (op.arg2 == I || op.arg2 == R)) {
+                        regs[F] = (f & C_FLAG) | szFlags(v) | (iff2 ? PV_FLAG : 0);
+                    }
+                }
+                break;
+
+            case Z80Decoder.OP_PUSH:
+                push(getPair(op.arg1));
+                break;
+
+            case Z80Decoder.OP_POP:
+                setPair(op.arg1, pop());
+                break;
+
+            case Z80Decoder.OP_EX:
+                if (op.arg1Kind == Z80Decoder.ARG_IND_REG16) {
+                    // ex (sp),hl/ix/iy:
+                    int v = read16(sp);
+                    write16(sp, getPair(op.arg2));
+                    setPair(op.arg2, v);
+                } else {
+                    int v = getPair(op.arg1);
+                    setPair(op.arg1, getPair(op.arg2));
+                    setPair(op.arg2, v);
+                }
+                break;
+
+            case Z80Decoder.OP_EXX:
+                for(int reg = B;reg<=L;reg++) {
+                    int v = regs[reg];
+                    regs[reg] = regs[ALTERNATE + reg];
+                    regs[ALTERNATE + reg] = v;
+                }
+                break;
+
+            case Z80Decoder.OP_ADD:
+            case Z80Decoder.OP_ADC:
+            {
+                int c = (op.operation == Z80Decoder.OP_ADC ? (f & C_FLAG) : 0);
+                if (op.wide) {
+                    int a = getPair(op.arg1);
+                    int v = getPair(op.arg2);
+                    int r = a + v + c;
+                    int h = ((a & 0xfff) + (v & 0xfff) + c) > 0xfff ? H_FLAG : 0;
+                    if (op.operation == Z80Decoder.OP_ADD) {
+                        regs[F] = (f & (S_FLAG | Z_FLAG | PV_FLAG)) | h | (r > 0xffff ? C_FLAG : 0);
+                    } else {
+                        regs[F] = ((r & 0x8000) != 0 ? S_FLAG : 0) | ((r & 0xffff) == 0 ? Z_FLAG : 0) | h |
+                                  (((a ^ ~v) & (a ^ r) & 0x8000) != 0 ? PV_FLAG : 0) |
+                                  (r > 0xffff ? C_FLAG : 0);
+                    }
+                    setPair(op.arg1, r);
+                } else {
+                    add8(aluSource(op), c);
+                }
+                break;
+            }
+
+            case Z80Decoder.OP_SUB:
+            case Z80Decoder.OP_SBC:
+            {
+                int c = (op.operation == Z80Decoder.OP_SBC ? (f & C_FLAG) : 0);
+                if (op.wide) {
+                    int a = getPair(op.arg1);
+                    int v = getPair(op.arg2);
+                    int r = a - v - c;
+                    regs[F] = ((r & 0x8000) != 0 ? S_FLAG : 0) | ((r & 0xffff) == 0 ? Z_FLAG : 0) |
+                              (((a & 0xfff) - (v & 0xfff) - c) < 0 ? H_FLAG : 0) |
+                              (((a ^ v) & (a ^ r) & 0x8000) != 0 ? PV_FLAG : 0) |
+                              N_FLAG | (r < 0 ? C_FLAG : 0);
+                    setPair(op.arg1, r);
+                } else {
+                    regs[A] = sub8(aluSource(op), c);
+                }
+                break;
+            }
+
+            case Z80Decoder.OP_CP:
+                sub8(aluSource(op), 0);
+                break;
+
+            case Z80Decoder.OP_AND:
+                regs[A] &= aluSource(op);
+                regs[F] = szFlags(regs[A]) | H_FLAG | parityFlag(regs[A]);
+                break;
+
+            case Z80Decoder.OP_XOR:
+                regs[A] ^= aluSource(op);
+                regs[F] = szFlags(regs[A]) | parityFlag(regs[A]);
+                break;
+
+            case Z80Decoder.OP_OR:
+                regs[A] |= aluSource(op);
+                regs[F] = szFlags(regs[A]) | parityFlag(regs[A]);
+                break;
+
+            case Z80Decoder.OP_INC:
+                if (op.wide) {
+                    setPair(op.arg1, getPair(op.arg1) + 1);
+                } else {
+                    int r = (get8(op.arg1Kind, op.arg1) + 1) & 0xff;
+                    set8(op.arg1Kind, op.arg1, r);
+                    regs[F] = (f & C_FLAG) | szFlags(r) | ((r & 0xf) == 0 ? H_FLAG : 0) | (r == 0x80 ? PV_FLAG : 0);
+                }
+                break;
+
+            case Z80Decoder.OP_DEC:
+                if (op.wide) {
+                    setPair(op.arg1, getPair(op.arg1) - 1);
+                } else {
+                    int r = (get8(op.arg1Kind, op.arg1) - 1) & 0xff;
+                    set8(op.arg1Kind, op.arg1, r);
+                    regs[F] = (f & C_FLAG) | szFlags(r) | ((r & 0xf) == 0xf ? H_FLAG : 0) | (r == 0x7f ? PV_FLAG : 0) | N_FLAG;
+                }
+                break;
+
+            case Z80Decoder.OP_DAA:
+            {
+                int a = regs[A];
+                int correction = 0;
+                int carry = f & C_FLAG;
+                if ((f & H_FLAG) != 0 || (a & 0xf) > 9) correction = 0x06;
+                if (carry != 0 || a > 0x99) {
+                    correction |= 0x60;
+                    carry = C_FLAG;
+                }
+                int r, h;
+                if ((f & N_FLAG) != 0) {
+                    r = a - correction;
+                    h = ((f & H_FLAG) != 0 && (a & 0xf) < 6) ? H_FLAG : 0;
+                } else {
+                    r = a + correction;
+                    h = (a & 0xf) > 9 ? H_FLAG : 0;
+                }
+                r &= 0xff;
+                regs[A] = r;
+                regs[F] = szFlags(r) | h | parityFlag(r) | (f & N_FLAG) | carry;
+                break;
+            }
+
+            case Z80Decoder.OP_CPL:
+                regs[A] = (~regs[A]) & 0xff;
+                regs[F] = (f & (S_FLAG | Z_FLAG | PV_FLAG | C_FLAG)) | H_FLAG | N_FLAG;
+                break;
+
+            case Z80Decoder.OP_NEG:
+            {
+                int a = regs[A];
+                regs[A] = 0;
+                regs[A] = sub8(a, 0);
+                break;
+            }
+
+            case Z80Decoder.OP_CCF:
+                regs[F] = (f & (S_FLAG | Z_FLAG | PV_FLAG)) | ((f & C_FLAG) != 0 ? H_FLAG : C_FLAG);
+                break;
+
+            case Z80Decoder.OP_SCF:
+                regs[F] = (f & (S_FLAG | Z_FLAG | PV_FLAG)) | C_FLAG;
+                break;
+
+            case Z80Decoder.OP_RLCA:
+            {
+                int a = regs[A];
+                regs[A] = ((a << 1) | (a >> 7)) & 0xff;
+                regs[F] = (f & (S_FLAG | Z_FLAG | PV_FLAG)) | (a >> 7);
+                break;
+            }
+
+            case Z80Decoder.OP_RRCA:
+            {
+                int a = regs[A];
+                regs[A] = (a >> 1) | ((a & 1) << 7);
+                regs[F] = (f & (S_FLAG | Z_FLAG | PV_FLAG)) | (a & 1);
+                break;
+            }
+
+            case Z80Decoder.OP_RLA:
+            {
+                int a = regs[A];
+                regs[A] = ((a << 1) | (f & C_FLAG)) & 0xff;
+                regs[F] = (f & (S_FLAG | Z_FLAG | PV_FLAG)) | (a >> 7);
+                break;
+            }
+
+            case Z80Decoder.OP_RRA:
+            {
+                int a = regs[A];
+                regs[A] = (a >> 1) | ((f & C_FLAG) << 7);
+                regs[F] = (f & (S_FLAG | Z_FLAG | PV_FLAG)) | (a & 1);
+                break;
+            }
+
+            case Z80Decoder.OP_RLC:
+            case Z80Decoder.OP_RRC:
+            case Z80Decoder.OP_RL:
+            case Z80Decoder.OP_RR:
+            case Z80Decoder.OP_SLA:
+            case Z80Decoder.OP_SRA:
+            case Z80Decoder.OP_SRL:
+            {
+                int v = get8(op.arg1Kind, op.arg1);
+                int r, c;
+                switch(op.operation) {
+                    case Z80Decoder.OP_RLC: c = v >> 7; r = (v << 1) | c; break;
+                    case Z80Decoder.OP_RRC: c = v & 1; r = (v >> 1) | (c << 7); break;
+                    case Z80Decoder.OP_RL: c = v >> 7; r = (v << 1) | (f & C_FLAG); break;
+                    case Z80Decoder.OP_RR: c = v & 1; r = (v >> 1) | ((f & C_FLAG) << 7); break;
+                    case Z80Decoder.OP_SLA: c = v >> 7; r = v << 1; break;
+                    case Z80Decoder.OP_SRA: c = v & 1; r = (v >> 1) | (v & 0x80); break;
+                    default: c = v & 1; r = v >> 1; break;  // srl
+                }
+                r &= 0xff;
+                set8(op.arg1Kind, op.arg1, r);
+                regs[F] = szFlags(r) | parityFlag(r) | c;
+                break;
+            }
+
+            case Z80Decoder.OP_RLD:
+            case Z80Decoder.OP_RRD:
+            {
+                int address = getPair(HL);
+                int m = read8(address);
+                int a = regs[A];
+                if (op.operation == Z80Decoder.OP_RLD) {
+                    write8(address, (m << 4) | (a & 0x0f));
+                    a = (a & 0xf0) | (m >> 4);
+                } else {
+                    write8(address, ((a & 0x0f) << 4) | (m >> 4));
+                    a = (a & 0xf0) | (m & 0x0f);
+                }
+                regs[A] = a;
+                regs[F] = (f & C_FLAG) | szFlags(a) | parityFlag(a);
+                break;
+            }
+
+            case Z80Decoder.OP_BIT:
+            {
+                int v = get8(op.arg2Kind, op.arg2) & (1 << op.arg1);
+                regs[F] = (f & C_FLAG) | H_FLAG | (v == 0 ? Z_FLAG | PV_FLAG : 0) | (v & S_FLAG);
+                break;
+            }
+
+            case Z80Decoder.OP_SET:
+                set8(op.arg2Kind, op.arg2, get8(op.arg2Kind, op.arg2) | (1 << op.arg1));
+                break;
+
+            case Z80Decoder.OP_RES:
+                set8(op.arg2Kind, op.arg2, get8(op.arg2Kind, op.arg2) & ~(1 << op.arg1));
+                break;
+
+            case Z80Decoder.OP_JP:
+                if (op.arg1Kind == Z80Decoder.ARG_CONDITION) {
+                    if (condition(op.arg1)) jump(op, immediate);
+                } else if (op.arg1Kind == Z80Decoder.ARG_IND_REG16) {
+                    // jp (hl)/(ix)/(iy):
+                    pc = getPair(op.arg1);
+                } else {
+                    pc = immediate;
+                }
+                break;
+
+            case Z80Decoder.OP_JR:
+                if (op.arg1Kind != Z80Decoder.ARG_CONDITION || condition(op.arg1)) {
+                    jump(op, pc + displacement);
+                }
+                break;
+
+            case Z80Decoder.OP_DJNZ:
+                regs[B] = (regs[B] - 1) & 0xff;
+                if (regs[B] != 0) jump(op, pc + displacement);
+                break;
+
+            case Z80Decoder.OP_CALL:
+                if (op.arg1Kind != Z80Decoder.ARG_CONDITION || condition(op.arg1)) {
+                    push(pc);
+                    jump(op, immediate);
+                }
+                break;
+
+            case Z80Decoder.OP_RET:
+                if (op.arg1Kind != Z80Decoder.ARG_CONDITION || condition(op.arg1)) {
+                    jump(op, pop());
+                }
+                break;
+
+            case Z80Decoder.OP_RETI:
+            case Z80Decoder.OP_RETN:
+                iff1 = iff2;
+                pc = pop();
+                break;
+
+            case Z80Decoder.OP_RST:
+                push(pc);
+                pc = op.arg1;
+                break;
+
+            case Z80Decoder.OP_HALT:
+                halted = true;
+                return STATUS_HALTED;
+
+            case Z80Decoder.OP_DI:
+                iff1 = iff2 = false;
+                break;
+
+            case Z80Decoder.OP_EI:
+                iff1 = iff2 = true;
+                break;
+
+            case Z80Decoder.OP_IM:
+                interruptMode = op.arg1;
+                break;
+
+            case Z80Decoder.OP_IN:
+                if (op.arg2Kind == Z80Decoder.ARG_IND_IMM8) {
+                    // in a,(n) does not modify the flags:
+                    regs[A] = portInputs[immediate] & 0xff;
+                } else {
+                    int v = portInputs[regs[C]] & 0xff;
+                    // "in f,(c)" only modifies the flags:
+                    if (op.arg1 != F) regs[op.arg1] = v;
+                    regs[F] = (f & C_FLAG) | szFlags(v) | parityFlag(v);
+                }
+                break;
+
+            case Z80Decoder.OP_OUT:
+                if (op.arg1Kind == Z80Decoder.ARG_IND_IMM8) {
+                    output(immediate, regs[A]);
+                } else {
+                    output(regs[C], get8(op.arg2Kind, op.arg2));
+                }
+                break;
+
+            case Z80Decoder.OP_INI:
+            case Z80Decoder.OP_IND:
+            case Z80Decoder.OP_INIR:
+            case Z80Decoder.OP_INDR:
+            case Z80Decoder.OP_OUTI:
+            case Z80Decoder.OP_OUTD:
+            case Z80Decoder.OP_OTIR:
+            case Z80Decoder.OP_OTDR:
+            {
+                int hl = getPair(HL);
+                regs[B] = (regs[B] - 1) & 0xff;
+                if (op.operation == Z80Decoder.OP_INI || op.operation == Z80Decoder.OP_IND ||
+                    op.operation == Z80Decoder.OP_INIR || op.operation == Z80Decoder.OP_INDR) {
+                    write8(hl, portInputs[regs[C]]);
+                } else {
+                    output(regs[C], read8(hl));
+                }
+                boolean increment = op.operation == Z80Decoder.OP_INI || op.operation == Z80Decoder.OP_INIR ||
+                                    op.operation == Z80Decoder.OP_OUTI || op.operation == Z80Decoder.OP_OTIR;
+                setPair(HL, increment ? hl + 1 : hl - 1);
+                regs[F] = (f & C_FLAG) | szFlags(regs[B]) | N_FLAG;
+                boolean repeat = op.operation == Z80Decoder.OP_INIR || op.operation == Z80Decoder.OP_INDR ||
+                                 op.operation == Z80Decoder.OP_OTIR || op.operation == Z80Decoder.OP_OTDR;
+                if (repeat && regs[B] != 0) jump(op, opAddress);
+                break;
+            }
+
+            case Z80Decoder.OP_LDI:
+            case Z80Decoder.OP_LDD:
+            case Z80Decoder.OP_LDIR:
+            case Z80Decoder.OP_LDDR:
+            {
+                int delta = (op.operation == Z80Decoder.OP_LDI || op.operation == Z80Decoder.OP_LDIR) ? 1 : -1;
+                int hl = getPair(HL);
+                int de = getPair(DE);
+                int bc = (getPair(BC) - 1) & 0xffff;
+                write8(de, read8(hl));
+                setPair(HL, hl + delta);
+                setPair(DE, de + delta);
+                setPair(BC, bc);
+                regs[F] = (f & (S_FLAG | Z_FLAG | C_FLAG)) | (bc != 0 ? PV_FLAG : 0);
+                if ((op.operation == Z80Decoder.OP_LDIR || op.operation == Z80Decoder.OP_LDDR) && bc != 0) {
+                    jump(op, opAddress);
+                }
+                break;
+            }
+
+            case Z80Decoder.OP_CPI:
+            case Z80Decoder.OP_CPD:
+            case Z80Decoder.OP_CPIR:
+            case Z80Decoder.OP_CPDR:
+            {
+                int delta = (op.operation == Z80Decoder.OP_CPI || op.operation == Z80Decoder.OP_CPIR) ? 1 : -1;
+                int hl = getPair(HL);
+                int bc = (getPair(BC) - 1) & 0xffff;
+                int a = regs[A];
+                int v = read8(hl);
+                int r = (a - v) & 0xff;
+                setPair(HL, hl + delta);
+                setPair(BC, bc);
+                regs[F] = (f & C_FLAG) | szFlags(r) | (((a & 0xf) - (v & 0xf)) < 0 ? H_FLAG : 0) |
+                          (bc != 0 ? PV_FLAG : 0) | N_FLAG;
+                if ((op.operation == Z80Decoder.OP_CPIR || op.operation == Z80Decoder.OP_CPDR) && bc != 0 && r != 0) {
+                    jump(op, opAddress);
+                }
+                break;
+            }
+
+            default:
+                // R800 multiplications:
+                pc = opAddress;
+                instructions--;
+                cycles -= op.timeNotTaken;
+                return STATUS_UNSUPPORTED_OP;
+        }
+        return STATUS_OK;
+    }
+
+
+    /*
+    Source of 8 bit arithmetic/logic ops (e.g., "b" in both "add a,b" and "sub b"):
+    */
+    int aluSource(DecodedOp op)
+    {
+        if (op.arg2Kind != Z80Decoder.ARG_NONE) return get8(op.arg2Kind, op.arg2);
+        return get8(op.arg1Kind, op.arg1);
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Author: Santiago Ontañón Villar (Brain Games)
+ */
+package util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.HashMap;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Keeps in memory the contents of every file read through it, so each file is only
+ * read once from the provider it decorates, even if used by several code bases
+ * (e.g., in batch mode). Files written go directly to the decorated provider
+ * (and are removed from the cache).
+ *
+ * @author santi
+ */
+public class CachingSourceProvider implements SourceProvider {
+    SourceProvider provider;
+    HashMap<String, byte[]> contents = new HashMap<>();
+    // number of files actually read from "provider":
+    public int reads = 0;
+
+
+    public CachingSourceProvider(SourceProvider a_provider)
+    {
+        provider = a_provider;
+    }
+
+
+    byte[] get(String path) throws IOException
+    {
+        synchronized(contents) {
+            byte data[] = contents.get(path);
+            if (data != null) return data;
+        }
+        byte data[];
+        try (InputStream is = provider.asInputStream(path)) {
+            data = IOUtils.toByteArray(is);
+        }
+        synchronized(contents) {
+            if (!contents.containsKey(path)) {
+                contents.put(path, data);
+                reads++;
+            }
+        }
+        return data;
+    }
+
+
+    @Override
+    public boolean exists(String path)
+    {
+        synchronized(contents) {
+            if (contents.containsKey(path)) return true;
+        }
+        return provider.exists(path);
+    }
+
+
+    @Override
+    public InputStream asInputStream(String path) throws IOException
+    {
+        return new ByteArrayInputStream(get(path));
+    }
+
+
+    @Override
+    public long size(String path) throws IOException
+    {
+        return get(path).length;
+    }
+
+
+    @Override
+    public Writer asWriter(String path) throws IOException
+    {
+        // the cached contents (if any) would be outdated after this:
+        synchronized(contents) {
+            contents.remove(path);
+        }
+        return provider.asWriter(path);
+    }
+
+
+    @Override
+    public OutputStream asOutputStream(String path) throws IOException
+    {
+        synchronized(contents) {
+            contents.remove(path);
+        }
+        return provider.asOutputStream(path);
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Author: Santiago Ontañón Villar (Brain Games)
+ */
+package util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Reads files from the classpath or the file system (see Resources), and writes
+ * them to the file system. This is the default source provider.
+ *
+ * @author santi
+ */
+public class FileSystemSourceProvider implements SourceProvider {
+
+    // This provider has no state, so all its instances read the same files (this is
+    // used, e.g., to share the symbol packs read through different instances):
+    @Override
+    public boolean equals(Object o)
+    {
+        return o != null && o.getClass() == getClass();
+    }
+
+
+    @Override
+    public int hashCode()
+    {
+        return getClass().hashCode();
+    }
+
+
+    @Override
+    public boolean exists(String path)
+    {
+        return Resources.exists(path);
+    }
+
+
+    @Override
+    public InputStream asInputStream(String path) throws IOException
+    {
+        return Resources.asInputStream(path);
+    }
+
+
+    @Override
+    public BufferedReader asReader(String path) throws IOException
+    {
+        return Resources.asReader(path);
+    }
+
+
+    @Override
+    public long size(String path) throws IOException
+    {
+        if (Resources.existsInFileSystem(path)) return new File(path).length();
+        try (InputStream is = asInputStream(path)) {
+            return IOUtils.toByteArray(is).length;
+        }
+    }
+
+
+    @Override
+    public Writer asWriter(String path) throws IOException
+    {
+        return new FileWriter(path);
+    }
+
+
+    @Override
+    public OutputStream asOutputStream(String path) throws IOException
+    {
+        return new FileOutputStream(path);
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Author: Santiago Ontañón Villar (Brain Games)
+ */
+package util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+/**
+ * Serves files from memory, and keeps all the files written (e.g., the output of
+ * "-asm") in memory, so MDL can be used with no file system I/O. Files that are not
+ * in memory (e.g., MDL's own data files, like instruction sets or pattern files) are
+ * requested to the "fallback" provider, if any.
+ *
+ * @author santi
+ */
+public class InMemorySourceProvider implements SourceProvider {
+    HashMap<String, byte[]> files = new HashMap<>();
+    LinkedHashMap<String, StringWriter> outputs = new LinkedHashMap<>();
+    LinkedHashMap<String, ByteArrayOutputStream> binaryOutputs = new LinkedHashMap<>();
+    SourceProvider fallback;
+
+
+    public InMemorySourceProvider(SourceProvider a_fallback)
+    {
+        fallback = a_fallback;
+    }
+
+
+    static String normalize(String path)
+    {
+        return Paths.get(path).normalize().toString();
+    }
+
+
+    public synchronized void addFile(String path, byte[] data)
+    {
+        files.put(normalize(path), data);
+    }
+
+
+    public void addFile(String path, String contents)
+    {
+        addFile(path, contents.getBytes());
+    }
+
+
+    /*
+    Returns the contents written to "path" (or null if nothing was written to it):
+    */
+    public synchronized String getOutput(String path)
+    {
+        StringWriter sw = outputs.get(normalize(path));
+        if (sw == null) return null;
+        return sw.toString();
+    }
+
+
+    /*
+    Returns the bytes written to "path" as a binary file (or null if nothing was
+    written to it):
+    */
+    public synchronized byte[] getBinaryOutput(String path)
+    {
+        ByteArrayOutputStream os = binaryOutputs.get(normalize(path));
+        if (os == null) return null;
+        return os.toByteArray();
+    }
+
+
+    @Override
+    public synchronized boolean exists(String path)
+    {
+        if (files.containsKey(normalize(path))) return true;
+        return fallback != null && fallback.exists(path);
+    }
+
+
+    @Override
+    public synchronized InputStream asInputStream(String path) throws IOException
+    {
+        byte data[] = files.get(normalize(path));
+        if (data != null) return new ByteArrayInputStream(data);
+        if (fallback != null) return fallback.asInputStream(path);
+        throw new FileNotFoundException(path);
+    }
+
+
+    @Override
+    public synchronized long size(String path) throws IOException
+    {
+        byte data[] = files.get(normalize(path));
+        if (data != null) return data.length;
+        if (fallback != null) return fallback.size(path);
+        throw new FileNotFoundException(path);
+    }
+
+
+    @Override
+    public synchronized Writer asWriter(String path) throws IOException
+    {
+        StringWriter sw = new StringWriter();
+        outputs.put(normalize(path), sw);
+        return sw;
+    }
+
+
+    @Override
+    public synchronized OutputStream asOutputStream(String path) throws IOException
+    {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        binaryOutputs.put(normalize(path), os);
+        return os;
+    }
+}
@@ -2,6 +2,7 @@ package util;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
@@ -39,6 +40,23 @@ public class Resources {
         throw new FileNotFoundException(path);
     }
 
+    public static InputStream asInputStream(String path) throws IOException {
+
+        // From classpath
+        if (existsInClasspath(path)) {
+            ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+            return classLoader.getResourceAsStream(path);
+        }
+
+        // From filesystem
+        if (existsInFileSystem(path)) {
+            return new FileInputStream(new File(path).getAbsoluteFile());
+        }
+
+        // File not found
+        throw new FileNotFoundException(path);
+    }
+
     private static boolean existsInClasspath(String path) {
 
         if (StringUtils.isBlank(path)) {
@@ -0,0 +1,40 @@
+/*
+ * Author: Santiago Ontañón Villar (Brain Games)
+ */
+package util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Writer;
+
+/**
+ * Where MDL reads its input files from (source files, includes, incbins, pattern
+ * files, etc.), and writes its output files to. By default, the classpath and the
+ * file system are used (FileSystemSourceProvider), but when embedding MDL, sources
+ * can be provided from memory (InMemorySourceProvider), from a zip/jar file
+ * (ZipSourceProvider), or cached after reading them once (CachingSourceProvider).
+ *
+ * @author santi
+ */
+public interface SourceProvider {
+    public boolean exists(String path);
+
+    public InputStream asInputStream(String path) throws IOException;
+
+    // Size in bytes of a file (used for incbin statements):
+    public long size(String path) throws IOException;
+
+    public Writer asWriter(String path) throws IOException;
+
+    // For binary output files (e.g., the output of "-bin"):
+    public OutputStream asOutputStream(String path) throws IOException;
+
+
+    public default BufferedReader asReader(String path) throws IOException
+    {
+        return new BufferedReader(new InputStreamReader(asInputStream(path)));
+    }
+}
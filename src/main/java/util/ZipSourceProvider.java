@@ -0,0 +1,83 @@
+/*
+ * Author: Santiago Ontañón Villar (Brain Games)
+ */
+package util;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.file.Paths;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Serves files from a zip (or jar) file. Files not in the zip file, as well as all
+ * the files written, are handled by the "fallback" provider, if any.
+ *
+ * @author santi
+ */
+public class ZipSourceProvider implements SourceProvider {
+    ZipFile zip;
+    SourceProvider fallback;
+
+
+    public ZipSourceProvider(ZipFile a_zip, SourceProvider a_fallback)
+    {
+        zip = a_zip;
+        fallback = a_fallback;
+    }
+
+
+    ZipEntry getEntry(String path)
+    {
+        // zip entries always use '/' as the separator:
+        String name = Paths.get(path).normalize().toString().replace('\\', '/');
+        return zip.getEntry(name);
+    }
+
+
+    @Override
+    public boolean exists(String path)
+    {
+        if (getEntry(path) != null) return true;
+        return fallback != null && fallback.exists(path);
+    }
+
+
+    @Override
+    public InputStream asInputStream(String path) throws IOException
+    {
+        ZipEntry entry = getEntry(path);
+        if (entry != null) return zip.getInputStream(entry);
+        if (fallback != null) return fallback.asInputStream(path);
+        throw new FileNotFoundException(path);
+    }
+
+
+    @Override
+    public long size(String path) throws IOException
+    {
+        ZipEntry entry = getEntry(path);
+        if (entry != null) return entry.getSize();
+        if (fallback != null) return fallback.size(path);
+        throw new FileNotFoundException(path);
+    }
+
+
+    @Override
+    public Writer asWriter(String path) throws IOException
+    {
+        if (fallback != null) return fallback.asWriter(path);
+        throw new IOException("Cannot write " + path + " to a zip source provider");
+    }
+
+
+    @Override
+    public OutputStream asOutputStream(String path) throws IOException
+    {
+        if (fallback != null) return fallback.asOutputStream(path);
+        throw new IOException("Cannot write " + path + " to a zip source provider");
+    }
+}
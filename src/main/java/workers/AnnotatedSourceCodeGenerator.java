@@ -3,7 +3,10 @@
  */
 package workers;
 
-import java.io.FileWriter;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.List;
 
 import cl.MDLConfig;
@@ -56,14 +59,14 @@ public class AnnotatedSourceCodeGenerator implements MDLWorker {
             
             if (config.evaluateAllExpressions) code.evaluateAllExpressions();
             
-            try (FileWriter fw = new FileWriter(outputFileName)) {
+            try (Writer fw = new BufferedWriter(config.sourceProvider.asWriter(outputFileName))) {
                 for(SourceFile sf:code.getSourceFiles()) {
                     fw.write("; ------------------------------------------------\n");
                     fw.write("; ---- " + sf.fileName + " --------------------------------\n");
                     fw.write("; ------------------------------------------------\n\n");
                     fw.write("; Address  Size  Time\n");
                     fw.write("; -------------------\n");
-                    fw.write(sourceFileString(sf, code));
+                    sourceFileString(sf, fw, code);
                     fw.write("\n");
                 }
                 fw.flush();
@@ -81,23 +84,27 @@ public class AnnotatedSourceCodeGenerator implements MDLWorker {
 
     public String sourceFileString(SourceFile sf, CodeBase code)
     {
-        StringBuilder sb = new StringBuilder();
-        sourceFileString(sf, sb, code);
-        return sb.toString();
+        StringWriter sw = new StringWriter();
+        try {
+            sourceFileString(sf, sw, code);
+        } catch (IOException e) {
+            // this cannot happen when writing to a StringWriter
+        }
+        return sw.toString();
     }
 
 
-    public void sourceFileString(SourceFile sf, StringBuilder sb, CodeBase code)
+    public void sourceFileString(SourceFile sf, Writer w, CodeBase code) throws IOException
     {
         for (SourceStatement ss:sf.getStatements()) {
-            sb.append("  ");
+            w.write("  ");
             Integer address = ss.getAddress(code);
             if (address == null) {
-                sb.append("????");
+                w.write("????");
             } else {
-                sb.append(Tokenizer.toHexWord(address, config.hexStyle));
+                w.write(Tokenizer.toHexWord(address, config.hexStyle));
             }
-            sb.append("  ");
+            w.write("  ");
             Integer size = ss.sizeInBytes(code, true, true, true);
             if (size == null) {
                 config.error("Cannot evaluate the size of statement: " + ss);
@@ -105,15 +112,15 @@ public class AnnotatedSourceCodeGenerator implements MDLWorker {
             }
             String sizeString = "" + (size > 0 ? size:"");
             while(sizeString.length() < 4) sizeString = " " + sizeString;
-            sb.append(sizeString);
-            sb.append("  ");
+            w.write(sizeString);
+            w.write("  ");
             String timeString = "" + ss.timeString();
             while(timeString.length() < 5) timeString = " " + timeString;
-            sb.append(timeString);
-            sb.append("  ");
+            w.write(timeString);
+            w.write("  ");
 
-            sb.append(ss.toString());
-            sb.append("\n");
+            w.write(ss.toString());
+            w.write("\n");
         }
     }
 }
@@ -0,0 +1,234 @@
+/*
+ * Author: Santiago Ontañón Villar (Brain Games)
+ */
+package workers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+import cl.MDLConfig;
+import code.CodeBase;
+import code.Expression;
+import code.SourceFile;
+import code.SourceStatement;
+
+/**
+ * Assembles the code base into a binary image, encoding the CPU ops with the byte
+ * representations of the instruction set. The bytes of each statement are output
+ * in the order in which they appear in the code (org statements only change the
+ * addresses), so the page/ROM layouts of each dialect (which are resolved during
+ * parsing by inserting org/ds statements) are respected.
+ *
+ * @author santi
+ */
+public class BinaryGenerator implements MDLWorker {
+    MDLConfig config = null;
+
+    String outputFileName = null;
+
+
+    public BinaryGenerator(MDLConfig a_config)
+    {
+        config = a_config;
+    }
+
+
+    @Override
+    public String docString() {
+        return "  -bin <output file>: assembles the code and saves the resulting binary image.\n";
+    }
+
+
+    @Override
+    public boolean parseFlag(List<String> flags) {
+        if (flags.get(0).equals("-bin") && flags.size()>=2) {
+            flags.remove(0);
+            outputFileName = flags.remove(0);
+            return true;
+        }
+        return false;
+    }
+
+
+    @Override
+    public boolean work(CodeBase code) {
+        if (outputFileName != null) {
+            config.debug("Executing "+this.getClass().getSimpleName()+" worker...");
+
+            /* The whole image is assembled before writing, so no partial file is
+               left behind if a statement cannot be assembled: */
+            ByteArrayOutputStream image = new ByteArrayOutputStream();
+            if (!assemble(code.getMain(), code, image)) return false;
+            try (OutputStream os = config.sourceProvider.asOutputStream(outputFileName)) {
+                image.writeTo(os);
+            } catch (Exception e) {
+                config.error("Cannot write to file " + outputFileName + ": " + e);
+                return false;
+            }
+            config.debug("BinaryGenerator: " + image.size() + " bytes written to " + outputFileName);
+        }
+        return true;
+    }
+
+
+    /*
+    Returns the binary image of "code" (or null if it cannot be assembled):
+    */
+    public byte[] assemble(CodeBase code)
+    {
+        ByteArrayOutputStream image = new ByteArrayOutputStream();
+        if (!assemble(code.getMain(), code, image)) return null;
+        return image.toByteArray();
+    }
+
+
+    /*
+    Assembles "code" directly into a 64KB memory, placing the bytes of each statement
+    at its address (used, e.g., to load code into a simulator). If "written" is not
+    null, the addresses that were written are marked in it:
+    */
+    public boolean assemble(CodeBase code, byte memory[], boolean written[])
+    {
+        return assemble(code.getMain(), code, null, memory, written);
+    }
+
+
+    boolean assemble(SourceFile sf, CodeBase code, ByteArrayOutputStream image)
+    {
+        return assemble(sf, code, image, null, null);
+    }
+
+
+    boolean assemble(SourceFile sf, CodeBase code, ByteArrayOutputStream image, byte memory[], boolean written[])
+    {
+        for (SourceStatement s:sf.getStatements()) {
+            if (s.type == SourceStatement.STATEMENT_INCLUDE) {
+                if (!assemble(s.include, code, image, memory, written)) return false;
+            } else if (memory == null) {
+                if (!assemble(s, code, image)) return false;
+            } else {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                if (!assemble(s, code, bytes)) return false;
+                if (bytes.size() == 0) continue;
+                Integer address = s.getAddress(code);
+                if (address == null) {
+                    config.error("Cannot determine the address of " + s.sl);
+                    return false;
+                }
+                for(byte b:bytes.toByteArray()) {
+                    memory[address & 0xffff] = b;
+                    if (written != null) written[address & 0xffff] = true;
+                    address++;
+                }
+            }
+        }
+        return true;
+    }
+
+
+    boolean assemble(SourceStatement s, CodeBase code, ByteArrayOutputStream image)
+    {
+        switch(s.type) {
+            case SourceStatement.STATEMENT_CPUOP:
+            {
+                List<Integer> bytes = s.op.assemble(s, code);
+                if (bytes == null) return false;
+                for(int v:bytes) image.write(v);
+                return true;
+            }
+
+            case SourceStatement.STATEMENT_DATA_BYTES:
+                return assembleData(s, 1, code, image);
+
+            case SourceStatement.STATEMENT_DATA_WORDS:
+                return assembleData(s, 2, code, image);
+
+            case SourceStatement.STATEMENT_DATA_DOUBLE_WORDS:
+                return assembleData(s, 4, code, image);
+
+            case SourceStatement.STATEMENT_DEFINE_SPACE:
+            {
+                // virtual spaces only advance the address:
+                if (s.space_value == null) return true;
+                Integer size = s.space.evaluateToInteger(s, code, true);
+                Integer value = s.space_value.evaluateToInteger(s, code, true);
+                if (size == null || value == null) {
+                    config.error("Cannot evaluate space definition in " + s.sl);
+                    return false;
+                }
+                for(int i = 0;i<size;i++) image.write(value);
+                return true;
+            }
+
+            case SourceStatement.STATEMENT_INCBIN:
+                return assembleIncbin(s, code, image);
+
+            case SourceStatement.STATEMENT_MACROCALL:
+                config.error("Unexpanded macro call in " + s.sl);
+                return false;
+
+            default:
+                return true;
+        }
+    }
+
+
+    boolean assembleData(SourceStatement s, int size, CodeBase code, ByteArrayOutputStream image)
+    {
+        for(Expression exp:s.data) {
+            if (exp.type == Expression.EXPRESSION_STRING_CONSTANT) {
+                for(int i = 0;i<exp.stringConstant.length();i++) {
+                    image.write(exp.stringConstant.charAt(i));
+                }
+            } else {
+                Integer value = exp.evaluateToInteger(s, code, true);
+                if (value == null) {
+                    config.error("Cannot evaluate " + exp + " in " + s.sl);
+                    return false;
+                }
+                // little endian:
+                for(int i = 0;i<size;i++) {
+                    image.write(value >> (8*i));
+                }
+            }
+        }
+        return true;
+    }
+
+
+    boolean assembleIncbin(SourceStatement s, CodeBase code, ByteArrayOutputStream image)
+    {
+        Integer skip = 0;
+        Integer size = s.incbinSize.evaluateToInteger(s, code, true);
+        if (s.incbinSkip != null) skip = s.incbinSkip.evaluateToInteger(s, code, true);
+        if (size == null || skip == null) {
+            config.error("Cannot evaluate the size of " + s.sl);
+            return false;
+        }
+        byte buffer[] = new byte[SourceCodeGenerator.INCBIN_BUFFER_SIZE];
+        try (InputStream is = config.sourceProvider.asInputStream(s.incbin.getPath())) {
+            while(skip > 0) {
+                int n = is.read(buffer, 0, Math.min(buffer.length, skip));
+                if (n < 0) break;
+                skip -= n;
+            }
+            while(size > 0) {
+                int n = is.read(buffer, 0, Math.min(buffer.length, size));
+                if (n < 0) break;
+                image.write(buffer, 0, n);
+                size -= n;
+            }
+        } catch (IOException e) {
+            config.error("Cannot read incbin file " + s.incbin + " in " + s.sl);
+            return false;
+        }
+        if (size > 0) {
+            config.error("Incbin file " + s.incbin + " is shorter than expected in " + s.sl);
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,389 @@
+/*
+ * author: Santiago Ontañón Villar (Brain Games)
+ */
+package workers;
+
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import cl.MDLConfig;
+import code.BasicBlock;
+import code.CodeBase;
+import code.ControlFlowGraph;
+import code.Loop;
+import code.SourceStatement;
+
+/**
+ * Estimates (statically, from the instruction timings) the worst-case execution time
+ * of each routine and loop in the program. Loops with a number of iterations that
+ * cannot be determined statically are counted as executing only once.
+ *
+ * @author santi
+ */
+public class CycleProfiler implements MDLWorker {
+
+    public static class RoutineInfo {
+        public BasicBlock entry;
+        public String name;
+        public LinkedHashSet<BasicBlock> blocks;
+        public List<Loop> loops;
+        public int time = 0;
+        // false if there are calls/jumps to unknown targets, or loops with unknown iterations:
+        public boolean complete = true;
+        public boolean recursive = false;
+        boolean inProgress = false;
+        boolean done = false;
+    }
+
+    public static class LoopInfo {
+        public Loop loop;
+        public int timePerIteration = 0;
+        public int time = 0;
+    }
+
+    MDLConfig config = null;
+    String outputFileName = null;
+    String outputJsonFileName = null;
+
+    HashMap<BasicBlock, RoutineInfo> routines = new HashMap<>();
+    HashMap<Loop, LoopInfo> loops = new HashMap<>();
+
+
+    public CycleProfiler(MDLConfig a_config)
+    {
+        config = a_config;
+    }
+
+
+    @Override
+    public String docString()
+    {
+        return "  -prof <output file>: generates a tsv file with the estimated worst-case execution time (statically, from the instruction timings) of each routine and loop, sorted by time.\n" +
+               "  -prof-json <output file>: same as -prof, but in json format.\n";
+    }
+
+
+    @Override
+    public boolean parseFlag(List<String> flags)
+    {
+        if (flags.get(0).equals("-prof") && flags.size()>=2) {
+            flags.remove(0);
+            outputFileName = flags.remove(0);
+            return true;
+        }
+        if (flags.get(0).equals("-prof-json") && flags.size()>=2) {
+            flags.remove(0);
+            outputJsonFileName = flags.remove(0);
+            return true;
+        }
+        return false;
+    }
+
+
+    @Override
+    public boolean work(CodeBase code)
+    {
+        if (outputFileName == null && outputJsonFileName == null) return true;
+
+        config.debug("Executing "+this.getClass().getSimpleName()+" worker...");
+
+        List<RoutineInfo> sorted = profile(code);
+        if (outputFileName != null) {
+            try (Writer fw = config.sourceProvider.asWriter(outputFileName)) {
+                fw.write(profileTableString(sorted));
+                fw.flush();
+            } catch (Exception e) {
+                config.error("Cannot write to file " + outputFileName + ": " + e);
+                return false;
+            }
+        }
+        if (outputJsonFileName != null) {
+            try (Writer fw = config.sourceProvider.asWriter(outputJsonFileName)) {
+                fw.write(profileJsonString(sorted));
+                fw.flush();
+            } catch (Exception e) {
+                config.error("Cannot write to file " + outputJsonFileName + ": " + e);
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /*
+    Returns the routines sorted by estimated time (from higher to lower).
+    */
+    public List<RoutineInfo> profile(CodeBase code)
+    {
+        routines.clear();
+        loops.clear();
+        ControlFlowGraph cfg = code.getControlFlowGraph();
+
+        List<RoutineInfo> sorted = new ArrayList<>();
+        for(BasicBlock entry:cfg.getRoutineEntries()) {
+            sorted.add(routineTime(entry, code));
+        }
+        sorted.sort((r1, r2) -> Integer.compare(r2.time, r1.time));
+        return sorted;
+    }
+
+
+    RoutineInfo routineTime(BasicBlock entry, CodeBase code)
+    {
+        RoutineInfo r = routines.get(entry);
+        if (r == null) {
+            r = new RoutineInfo();
+            r.entry = entry;
+            SourceStatement first = entry.getFirst();
+            if (first.label != null) {
+                r.name = first.label.originalName;
+            } else if (code.getMain() != null && first == code.getMain().getStatements().get(0)) {
+                r.name = "<program start>";
+            } else {
+                r.name = "<unnamed>";
+            }
+            r.blocks = code.getControlFlowGraph().getRoutineBlocks(entry);
+            r.loops = Loop.findLoops(entry, r.blocks, code, config);
+            routines.put(entry, r);
+        }
+        if (r.done) return r;
+        if (r.inProgress) {
+            // recursive call, we cannot estimate its time:
+            r.recursive = true;
+            r.complete = false;
+            return r;
+        }
+        r.inProgress = true;
+        r.time = regionTime(entry, r.blocks, r.loops, r, code);
+        r.inProgress = false;
+        r.done = true;
+        return r;
+    }
+
+
+    /*
+    Longest path (in time) starting at "start" in the region defined by "blocks",
+    where the loops in "innerLoops" are collapsed into single nodes, and edges going
+    back to "start" are ignored.
+    */
+    int regionTime(BasicBlock start, Set<BasicBlock> blocks, List<Loop> innerLoops, RoutineInfo r, CodeBase code)
+    {
+        HashMap<BasicBlock, BasicBlock> representative = new HashMap<>();
+        HashMap<BasicBlock, Integer> nodeTime = new HashMap<>();
+        for(Loop loop:innerLoops) {
+            LoopInfo li = loopTime(loop, r, code);
+            for(BasicBlock b:loop.body) representative.put(b, loop.header);
+            nodeTime.put(loop.header, li.time);
+        }
+        for(BasicBlock b:blocks) {
+            if (!representative.containsKey(b)) {
+                representative.put(b, b);
+                nodeTime.put(b, blockTime(b, r, code));
+            }
+        }
+
+        // successors in the collapsed graph:
+        HashMap<BasicBlock, List<BasicBlock>> successors = new HashMap<>();
+        for(BasicBlock b:blocks) {
+            BasicBlock from = representative.get(b);
+            List<BasicBlock> l = successors.get(from);
+            if (l == null) {
+                l = new ArrayList<>();
+                successors.put(from, l);
+            }
+            for(BasicBlock next:b.successors) {
+                if (!blocks.contains(next) || next == start) continue;
+                BasicBlock to = representative.get(next);
+                if (to != from && !l.contains(to)) l.add(to);
+            }
+        }
+
+        // topological order (ignoring any remaining back edges, which can only
+        // happen with irreducible control flow):
+        List<BasicBlock> order = new ArrayList<>();
+        HashSet<BasicBlock> visited = new HashSet<>();
+        topologicalSort(representative.get(start), successors, visited, new HashSet<>(), order);
+
+        HashMap<BasicBlock, Integer> longest = new HashMap<>();
+        for(int i = order.size()-1;i>=0;i--) {
+            BasicBlock b = order.get(i);
+            int time = nodeTime.get(b);
+            int best = 0;
+            for(BasicBlock next:successors.get(b)) {
+                Integer t = longest.get(next);
+                if (t != null && t > best) best = t;
+            }
+            longest.put(b, time + best);
+        }
+        return longest.get(representative.get(start));
+    }
+
+
+    void topologicalSort(BasicBlock b, HashMap<BasicBlock, List<BasicBlock>> successors,
+                         HashSet<BasicBlock> visited, HashSet<BasicBlock> onStack, List<BasicBlock> order)
+    {
+        visited.add(b);
+        onStack.add(b);
+        for(BasicBlock next:successors.get(b)) {
+            if (!visited.contains(next)) topologicalSort(next, successors, visited, onStack, order);
+        }
+        onStack.remove(b);
+        order.add(0, b);
+    }
+
+
+    LoopInfo loopTime(Loop loop, RoutineInfo r, CodeBase code)
+    {
+        LoopInfo li = loops.get(loop);
+        if (li != null) return li;
+        li = new LoopInfo();
+        li.loop = loop;
+        loops.put(loop, li);
+        li.timePerIteration = regionTime(loop.header, loop.body, loop.children, r, code);
+        if (loop.tripCount == null) {
+            r.complete = false;
+            li.time = li.timePerIteration;
+        } else {
+            li.time = li.timePerIteration * loop.tripCount;
+            // the last iteration does not take the jump back to the header:
+            SourceStatement last = loop.latches.get(0).getLast();
+            int times[] = last.op.timing();
+            if (times.length == 2) li.time -= Math.abs(times[0] - times[1]);
+        }
+        return li;
+    }
+
+
+    // Worst-case time of executing all the statements in a block:
+    int blockTime(BasicBlock b, RoutineInfo r, CodeBase code)
+    {
+        ControlFlowGraph cfg = code.getControlFlowGraph();
+        if (b.hasUnknownSuccessors) r.complete = false;
+        int time = 0;
+        for(SourceStatement s:b.statements) {
+            if (s.type != SourceStatement.STATEMENT_CPUOP) continue;
+            int max = 0;
+            for(int t:s.op.timing()) max = Math.max(max, t);
+            time += max;
+            if (s.op.isCall()) {
+                SourceStatement target = cfg.getTargetStatement(s);
+                BasicBlock targetBlock = (target == null ? null:cfg.getBasicBlock(target));
+                if (targetBlock == null) {
+                    r.complete = false;
+                } else {
+                    RoutineInfo callee = routineTime(targetBlock, code);
+                    time += callee.time;
+                    if (!callee.complete) r.complete = false;
+                }
+            }
+        }
+        return time;
+    }
+
+
+    String loopName(Loop loop)
+    {
+        SourceStatement first = loop.header.getFirst();
+        return first.label != null ? first.label.originalName:"<unnamed>";
+    }
+
+
+    void allLoops(List<Loop> l, List<Loop> result)
+    {
+        for(Loop loop:l) {
+            result.add(loop);
+            allLoops(loop.children, result);
+        }
+    }
+
+
+    public String profileTableString(List<RoutineInfo> sorted)
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("type\tname\tsource\titerations\ttime per iteration\ttime (" + config.timeUnit + "s)\tcomplete\n");
+        for(RoutineInfo r:sorted) {
+            sb.append("routine\t");
+            sb.append(r.name);
+            sb.append("\t");
+            sb.append(r.entry.getFirst().fileNameLineString());
+            sb.append("\t\t\t");
+            sb.append(r.time);
+            sb.append("\t");
+            sb.append(r.complete);
+            sb.append("\n");
+            List<Loop> l = new ArrayList<>();
+            allLoops(r.loops, l);
+            for(Loop loop:l) {
+                LoopInfo li = loops.get(loop);
+                sb.append("loop\t");
+                for(int i = 1;i<loop.depth();i++) sb.append("  ");
+                sb.append(loopName(loop));
+                sb.append("\t");
+                sb.append(loop.header.getFirst().fileNameLineString());
+                sb.append("\t");
+                sb.append(loop.tripCount == null ? "?":loop.tripCount);
+                sb.append("\t");
+                sb.append(li.timePerIteration);
+                sb.append("\t");
+                sb.append(li.time);
+                sb.append("\t");
+                sb.append(loop.tripCount != null);
+                sb.append("\n");
+            }
+        }
+        return sb.toString();
+    }
+
+
+    public String profileJsonString(List<RoutineInfo> sorted)
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n  \"timeUnit\": \"" + config.timeUnit + "\",\n  \"routines\": [");
+        for(int i = 0;i<sorted.size();i++) {
+            RoutineInfo r = sorted.get(i);
+            sb.append(i == 0 ? "\n":",\n");
+            sb.append("    {\"name\": " + jsonString(r.name) +
+                      ", \"source\": " + jsonString(r.entry.getFirst().fileNameLineString()) +
+                      ", \"time\": " + r.time +
+                      ", \"complete\": " + r.complete +
+                      ", \"recursive\": " + r.recursive +
+                      ", \"loops\": ");
+            loopsJson(r.loops, sb);
+            sb.append("}");
+        }
+        sb.append("\n  ]\n}\n");
+        return sb.toString();
+    }
+
+
+    void loopsJson(List<Loop> l, StringBuilder sb)
+    {
+        sb.append("[");
+        for(int i = 0;i<l.size();i++) {
+            Loop loop = l.get(i);
+            LoopInfo li = loops.get(loop);
+            if (i > 0) sb.append(", ");
+            sb.append("{\"name\": " + jsonString(loopName(loop)) +
+                      ", \"source\": " + jsonString(loop.header.getFirst().fileNameLineString()) +
+                      ", \"depth\": " + loop.depth() +
+                      ", \"iterations\": " + (loop.tripCount == null ? "null":loop.tripCount) +
+                      ", \"timePerIteration\": " + li.timePerIteration +
+                      ", \"time\": " + li.time +
+                      ", \"loops\": ");
+            loopsJson(loop.children, sb);
+            sb.append("}");
+        }
+        sb.append("]");
+    }
+
+
+    static String jsonString(String str)
+    {
+        return "\"" + str.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+}
@@ -3,7 +3,8 @@
  */
 package workers;
 
-import java.io.FileWriter;
+import java.io.BufferedWriter;
+import java.io.Writer;
 import java.util.HashMap;
 import java.util.List;
 
@@ -51,66 +52,63 @@ public class DotGenerator implements MDLWorker {
 
         config.debug("Executing "+this.getClass().getSimpleName()+" worker...");
 
-        HashMap<String, String> nodeNames = new HashMap<>();
-        StringBuilder sb = new StringBuilder();
-
-        sb.append("digraph codeanalysis {\n");
-        sb.append("graph[rankdir=LR];\n");
-
-        // vertices:
-        for(SourceFile f : code.getSourceFiles()) {
-            String sName = "" + (nodeNames.size()+1);
-            nodeNames.put(f.fileName, sName);
-
-            sb.append(sName);
-            sb.append(" [shape=record label=\"");
-            sb.append(sourceFileDotCountent(f, code));
-            sb.append("\"]\n");
-
-            for(SourceStatement s : f.getStatements()) {
-                if (config.includeBinariesInAnalysis) {
-                    if (s.type == SourceStatement.STATEMENT_INCBIN) {
-                        sName = "" + (nodeNames.size()+1);
-                        nodeNames.put(s.incbin.getName(), sName);
-
-                        sb.append(sName);
-                        sb.append(" [style=filled fillcolor=");
-                        sb.append(BINARY_COLOR);
-                        sb.append(" shape=record label=\"{{name:|");
-                        sb.append(s.incbin);
-                        sb.append("}|{size:|");
-                        sb.append(s.incbinSize);
-                        sb.append("}}}");
-                        sb.append("\"]\n");
+        try (Writer w = new BufferedWriter(config.sourceProvider.asWriter(outputFileName))) {
+            HashMap<String, String> nodeNames = new HashMap<>();
+
+            w.write("digraph codeanalysis {\n");
+            w.write("graph[rankdir=LR];\n");
+
+            // vertices:
+            for(SourceFile f : code.getSourceFiles()) {
+                String sName = "" + (nodeNames.size()+1);
+                nodeNames.put(f.fileName, sName);
+
+                w.write(sName);
+                w.write(" [shape=record label=\"");
+                w.write(sourceFileDotCountent(f, code));
+                w.write("\"]\n");
+
+                for(SourceStatement s : f.getStatements()) {
+                    if (config.includeBinariesInAnalysis) {
+                        if (s.type == SourceStatement.STATEMENT_INCBIN) {
+                            sName = "" + (nodeNames.size()+1);
+                            nodeNames.put(s.incbin.getName(), sName);
+
+                            w.write(sName);
+                            w.write(" [style=filled fillcolor=");
+                            w.write(BINARY_COLOR);
+                            w.write(" shape=record label=\"{{name:|");
+                            w.write(s.incbin.toString());
+                            w.write("}|{size:|");
+                            w.write(s.incbinSize.toString());
+                            w.write("}}}");
+                            w.write("\"]\n");
+                        }
                     }
                 }
             }
-        }
 
-        // edges:
-        for(SourceFile f: code.getSourceFiles()) {
-            for(SourceStatement s : f.getStatements()) {
-                if (s.type == SourceStatement.STATEMENT_INCLUDE) {
-                    sb.append(nodeNames.get(f.fileName));
-                    sb.append(" -> ");
-                    sb.append(nodeNames.get(s.include.fileName));
-                    sb.append("\n");
-                } else if (s.type == SourceStatement.STATEMENT_INCBIN) {
-                    if (config.includeBinariesInAnalysis) {
-                        sb.append(nodeNames.get(f.fileName));
-                        sb.append(" -> ");
-                        sb.append(nodeNames.get(s.incbin.getName()));
-                        sb.append("\n");
+            // edges:
+            for(SourceFile f: code.getSourceFiles()) {
+                for(SourceStatement s : f.getStatements()) {
+                    if (s.type == SourceStatement.STATEMENT_INCLUDE) {
+                        w.write(nodeNames.get(f.fileName));
+                        w.write(" -> ");
+                        w.write(nodeNames.get(s.include.fileName));
+                        w.write("\n");
+                    } else if (s.type == SourceStatement.STATEMENT_INCBIN) {
+                        if (config.includeBinariesInAnalysis) {
+                            w.write(nodeNames.get(f.fileName));
+                            w.write(" -> ");
+                            w.write(nodeNames.get(s.incbin.getName()));
+                            w.write("\n");
+                        }
                     }
                 }
             }
-        }
-
-        sb.append("}");
 
-        try (FileWriter fw = new FileWriter(outputFileName)) {
-            fw.write(sb.toString());
-            fw.flush();
+            w.write("}");
+            w.flush();
         } catch (Exception e) {
             config.error("Cannot write to file " + outputFileName);
             return false;
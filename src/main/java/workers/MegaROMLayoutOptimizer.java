@@ -0,0 +1,376 @@
+/*
+ * Author: Santiago Ontañón Villar (Brain Games)
+ */
+package workers;
+
+import java.io.BufferedReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import cl.MDLConfig;
+import code.BasicBlock;
+import code.CPUOp;
+import code.CodeBase;
+import code.ControlFlowGraph;
+import code.Loop;
+import code.SourceStatement;
+import parser.Tokenizer;
+import parser.dialects.ASMSXDialect;
+import workers.pattopt.CostModel;
+
+/**
+ * Proposes a distribution of the routines of an asMSX MegaROM into its subpages
+ * that minimizes the number of calls/jumps between subpages that are mapped to the
+ * same address (which require switching banks).
+ *
+ * The code of each subpage is split into "chunks", each starting at a routine entry
+ * and going until the next routine entry (so, data after a routine moves together
+ * with it). Calls/jumps between chunks are weighted by 10^(loop depth of the call),
+ * multiplied by the number of executions of the calling routine if a profile is
+ * provided. Chunks are then moved greedily (always doing the move that most reduces
+ * the weight of cross-bank calls/jumps) among subpages mapped to the same address,
+ * as long as they fit in the destination subpage. Chunks that fall through into the
+ * next one, and code outside of any subpage, are never moved.
+ *
+ * @author santi
+ */
+public class MegaROMLayoutOptimizer implements MDLWorker {
+    public static final int MAX_MOVES = 1000;
+
+    public static class Chunk {
+        public String name;
+        public SourceStatement first;
+        public List<SourceStatement> statements = new ArrayList<>();
+        public int subpage;     // -1 if it is not inside of any subpage
+        public int originalSubpage;
+        public int size = 0;
+        public boolean movable = true;
+        public long executions = 1;
+        // weight of the calls/jumps between this chunk and others (in both directions):
+        public LinkedHashMap<Chunk, Long> edges = new LinkedHashMap<>();
+    }
+
+    public static class Subpage {
+        public int number;
+        public SourceStatement definition;
+        public int address;
+        public int used = 0;
+    }
+
+    MDLConfig config;
+    String outputFileName = null;
+    String profileFileName = null;
+
+    int pageSize = 0;
+    List<Chunk> chunks = new ArrayList<>();
+    LinkedHashMap<Integer, Subpage> subpages = new LinkedHashMap<>();
+    long initialCost = 0;
+    long finalCost = 0;
+
+
+    public MegaROMLayoutOptimizer(MDLConfig a_config)
+    {
+        config = a_config;
+    }
+
+
+    @Override
+    public String docString()
+    {
+        return "  -rom-layout <output file>: (only for asMSX MegaROMs) proposes which subpage each routine should be in, to minimize the calls/jumps that require switching banks, and saves the proposal to the given file.\n" +
+               "  -rom-layout-profile <file>: number of executions of each routine to weight calls in -rom-layout (one '<label> <count>' pair per line). By default, calls are weighted only by their loop depth.\n";
+    }
+
+
+    @Override
+    public boolean parseFlag(List<String> flags)
+    {
+        if (flags.get(0).equals("-rom-layout") && flags.size()>=2) {
+            flags.remove(0);
+            outputFileName = flags.remove(0);
+            return true;
+        }
+        if (flags.get(0).equals("-rom-layout-profile") && flags.size()>=2) {
+            flags.remove(0);
+            profileFileName = flags.remove(0);
+            return true;
+        }
+        return false;
+    }
+
+
+    @Override
+    public boolean work(CodeBase code)
+    {
+        if (outputFileName == null) return true;
+
+        config.debug("Executing "+this.getClass().getSimpleName()+" worker...");
+
+        if (!optimize(code)) return false;
+        try (Writer fw = config.sourceProvider.asWriter(outputFileName)) {
+            fw.write(layoutString());
+            fw.flush();
+        } catch (Exception e) {
+            config.error("Cannot write to file " + outputFileName + ": " + e);
+            return false;
+        }
+        return true;
+    }
+
+
+    public boolean optimize(CodeBase code)
+    {
+        if (!(config.dialectParser instanceof ASMSXDialect) ||
+            ((ASMSXDialect)config.dialectParser).getROMType() == ASMSXDialect.ROM_STANDARD) {
+            config.error("-rom-layout can only be used with asMSX MegaROMs.");
+            return false;
+        }
+        ASMSXDialect dialect = (ASMSXDialect)config.dialectParser;
+        pageSize = dialect.getPageSize();
+        chunks.clear();
+        subpages.clear();
+        for(int i = 0;i<dialect.getPageDefinitions().size();i++) {
+            SourceStatement s = dialect.getPageDefinitions().get(i);
+            if (s == null) continue;
+            Subpage p = new Subpage();
+            p.number = i;
+            p.definition = s;
+            p.address = s.org.evaluateToInteger(s, code, true);
+            subpages.put(i, p);
+        }
+
+        HashMap<SourceStatement, Chunk> chunkOf = splitIntoChunks(code, dialect);
+        if (profileFileName != null && !loadProfile()) return false;
+        addEdges(code, chunkOf);
+
+        initialCost = cost();
+        int moves = 0;
+        while(moves < MAX_MOVES && bestMove()) moves++;
+        finalCost = cost();
+
+        int moved = 0;
+        for(Chunk c:chunks) {
+            if (c.subpage != c.originalSubpage) moved++;
+        }
+        config.info("MegaROMLayoutOptimizer: weight of cross-bank calls/jumps reduced from " + initialCost +
+                    " to " + finalCost + " by moving " + moved + (moved == 1 ? " routine.":" routines."));
+        return true;
+    }
+
+
+    HashMap<SourceStatement, Chunk> splitIntoChunks(CodeBase code, ASMSXDialect dialect)
+    {
+        ControlFlowGraph cfg = code.getControlFlowGraph();
+        HashSet<SourceStatement> entries = new HashSet<>();
+        for(BasicBlock b:cfg.getRoutineEntries()) entries.add(b.getFirst());
+
+        HashMap<SourceStatement, Chunk> chunkOf = new HashMap<>();
+        int subpage = -1;
+        Chunk chunk = null;
+        SourceStatement s = code.getMain().getNextStatementTo(null, code);
+        while(s != null) {
+            if (s.type == SourceStatement.STATEMENT_INCLUDE && !s.include.getStatements().isEmpty()) {
+                s = s.include.getStatements().get(0);
+                continue;
+            }
+            if (dialect.getPageDefinitions().contains(s)) {
+                subpage = dialect.getPageDefinitions().indexOf(s);
+                chunk = null;
+            } else if (!dialect.isPadding(s)) {
+                if (chunk == null || entries.contains(s)) {
+                    chunk = new Chunk();
+                    chunk.first = s;
+                    chunk.subpage = chunk.originalSubpage = subpage;
+                    if (!entries.contains(s)) {
+                        chunk.name = (subpage == -1 ? "<start>":"<start of subpage " + subpage + ">");
+                        chunk.movable = false;
+                    } else {
+                        chunk.name = (s.label != null ? s.label.originalName:"<unnamed>");
+                    }
+                    if (subpage == -1) chunk.movable = false;
+                    chunks.add(chunk);
+                }
+                chunk.statements.add(s);
+                chunkOf.put(s, chunk);
+                int size = s.sizeInBytes(code, false, true, false);
+                chunk.size += size;
+                if (subpage != -1) subpages.get(subpage).used += size;
+            }
+            s = s.source.getNextStatementTo(s, code);
+        }
+
+        // chunks that fall through into the next one need to stay together:
+        for(int i = 0;i<chunks.size();i++) {
+            Chunk c = chunks.get(i);
+            CPUOp last = null;
+            for(SourceStatement s2:c.statements) {
+                if (s2.type == SourceStatement.STATEMENT_CPUOP) last = s2.op;
+            }
+            if (last != null && !endsFlow(last)) {
+                c.movable = false;
+                if (i < chunks.size()-1 && chunks.get(i+1).subpage == c.subpage) {
+                    chunks.get(i+1).movable = false;
+                }
+            }
+        }
+        return chunkOf;
+    }
+
+
+    boolean endsFlow(CPUOp op)
+    {
+        if (op.isConditional() || op.spec.opName.equalsIgnoreCase("djnz")) return false;
+        return op.isRet() || op.isJump();
+    }
+
+
+    boolean loadProfile()
+    {
+        HashMap<String, Chunk> chunksByName = new HashMap<>();
+        for(Chunk c:chunks) chunksByName.put(c.name, c);
+        try (BufferedReader br = config.sourceProvider.asReader(profileFileName)) {
+            while(true) {
+                String line = br.readLine();
+                if (line == null) break;
+                List<String> tokens = Tokenizer.tokenize(line);
+                if (tokens.size() < 2 || Tokenizer.isSingleLineComment(tokens.get(0))) continue;
+                Chunk c = chunksByName.get(tokens.get(0));
+                if (c == null) {
+                    config.warn("Unknown routine in " + profileFileName + ": " + tokens.get(0));
+                    continue;
+                }
+                c.executions = Long.parseLong(tokens.get(1));
+            }
+        } catch (Exception e) {
+            config.error("Cannot read the profile file " + profileFileName + ": " + e);
+            return false;
+        }
+        return true;
+    }
+
+
+    void addEdges(CodeBase code, HashMap<SourceStatement, Chunk> chunkOf)
+    {
+        ControlFlowGraph cfg = code.getControlFlowGraph();
+        HashMap<SourceStatement, Integer> depths = Loop.loopDepths(code, config);
+        for(Chunk c:chunks) {
+            for(SourceStatement s:c.statements) {
+                if (s.type != SourceStatement.STATEMENT_CPUOP) continue;
+                if (!s.op.isCall() && !s.op.isJump()) continue;
+                SourceStatement target = cfg.getTargetStatement(s);
+                Chunk c2 = (target == null ? null:chunkOf.get(target));
+                if (c2 == null || c2 == c) continue;
+                long weight = c.executions;
+                Integer depth = depths.get(s);
+                for(int i = 0;depth != null && i<depth;i++) weight *= CostModel.LOOP_DEPTH_WEIGHT;
+                c.edges.put(c2, c.edges.getOrDefault(c2, 0L) + weight);
+                c2.edges.put(c, c2.edges.getOrDefault(c, 0L) + weight);
+            }
+        }
+    }
+
+
+    /*
+    Two chunks need a bank switch to call each other if they are in different
+    subpages mapped to the same address:
+    */
+    boolean conflict(int subpage1, int subpage2)
+    {
+        if (subpage1 == -1 || subpage2 == -1 || subpage1 == subpage2) return false;
+        return subpages.get(subpage1).address == subpages.get(subpage2).address;
+    }
+
+
+    long cost()
+    {
+        long cost = 0;
+        for(Chunk c:chunks) {
+            for(Chunk c2:c.edges.keySet()) {
+                if (conflict(c.subpage, c2.subpage)) cost += c.edges.get(c2);
+            }
+        }
+        return cost / 2;
+    }
+
+
+    /*
+    Applies the move that reduces the cost the most, returning false if there is none:
+    */
+    boolean bestMove()
+    {
+        Chunk bestChunk = null;
+        Subpage bestSubpage = null;
+        long bestGain = 0;
+        for(Chunk c:chunks) {
+            if (!c.movable) continue;
+            Subpage from = subpages.get(c.subpage);
+            for(Subpage to:subpages.values()) {
+                if (to == from || to.address != from.address) continue;
+                if (to.used + c.size > pageSize) continue;
+                long gain = 0;
+                for(Chunk c2:c.edges.keySet()) {
+                    if (conflict(c.subpage, c2.subpage)) gain += c.edges.get(c2);
+                    if (conflict(to.number, c2.subpage)) gain -= c.edges.get(c2);
+                }
+                if (gain > bestGain) {
+                    bestChunk = c;
+                    bestSubpage = to;
+                    bestGain = gain;
+                }
+            }
+        }
+        if (bestChunk == null) return false;
+        config.debug("MegaROMLayoutOptimizer: moving " + bestChunk.name + " to subpage " + bestSubpage.number + " (gain " + bestGain + ")");
+        subpages.get(bestChunk.subpage).used -= bestChunk.size;
+        bestSubpage.used += bestChunk.size;
+        bestChunk.subpage = bestSubpage.number;
+        return true;
+    }
+
+
+    public List<Chunk> getChunks()
+    {
+        return chunks;
+    }
+
+
+    public long getInitialCost()
+    {
+        return initialCost;
+    }
+
+
+    public long getFinalCost()
+    {
+        return finalCost;
+    }
+
+
+    public String layoutString()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("; MegaROM layout proposed by MDL: weight of cross-bank calls/jumps reduced from " +
+                  initialCost + " to " + finalCost + "\n");
+        sb.append("; Moves:\n");
+        for(Chunk c:chunks) {
+            if (c.subpage == c.originalSubpage) continue;
+            sb.append(";   " + c.name + " (" + c.size + " bytes, " + c.first.fileNameLineString() + "): subpage " +
+                      c.originalSubpage + " -> subpage " + c.subpage + "\n");
+        }
+        for(Subpage p:subpages.values()) {
+            sb.append(".subpage " + p.number + " at #" + Tokenizer.toHexWord(p.address) + "  ; " +
+                      p.used + " of " + pageSize + " bytes used\n");
+            for(Chunk c:chunks) {
+                if (c.subpage != p.number) continue;
+                sb.append(";   " + c.name);
+                if (c.subpage != c.originalSubpage) sb.append(" (moved from subpage " + c.originalSubpage + ")");
+                sb.append("\n");
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -3,9 +3,11 @@
  */
 package workers;
 
-import java.io.FileInputStream;
-import java.io.FileWriter;
+import java.io.BufferedWriter;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.List;
 
 import cl.MDLConfig;
@@ -20,6 +22,7 @@ import java.util.Arrays;
  * @author santi
  */
 public class SourceCodeGenerator implements MDLWorker {
+    public static final int INCBIN_BUFFER_SIZE = 8192;
 
     MDLConfig config = null;
 
@@ -68,8 +71,8 @@ public class SourceCodeGenerator implements MDLWorker {
 
             if (config.evaluateAllExpressions) code.evaluateAllExpressions();
             
-            try (FileWriter fw = new FileWriter(outputFileName)) {
-                fw.write(sourceFileString(code.getMain(), code));
+            try (Writer fw = new BufferedWriter(config.sourceProvider.asWriter(outputFileName))) {
+                sourceFileString(code.getMain(), code, fw);
                 fw.flush();
             } catch (Exception e) {
                 config.error("Cannot write to file " + outputFileName + ": " + e);
@@ -83,69 +86,97 @@ public class SourceCodeGenerator implements MDLWorker {
 
     public String sourceFileString(SourceFile sf, CodeBase code)
     {
-        StringBuilder sb = new StringBuilder();
-        sourceFileString(sf, code, sb);
-        return sb.toString();
+        StringWriter sw = new StringWriter();
+        try {
+            sourceFileString(sf, code, sw);
+        } catch (IOException e) {
+            // this cannot happen when writing to a StringWriter
+        }
+        return sw.toString();
     }
 
 
-    public void sourceFileString(SourceFile sf, CodeBase code, StringBuilder sb)
+    /*
+    Writes the source code of "sf" (and of all the files it includes) to "w" as the
+    statements are visited, so the output is never held in memory as a whole:
+    */
+    public void sourceFileString(SourceFile sf, CodeBase code, Writer w) throws IOException
     {
         for (SourceStatement ss:sf.getStatements()) {
             if (ss.type == SourceStatement.STATEMENT_INCLUDE) {
                 if (ss.label != null) {
                     // make sure we don't lose the label:
-                    sb.append(ss.label.name);
+                    w.write(ss.label.name);
                     if (config.output_safetyEquDollar) {
                         if (config.output_equsWithoutColon) {
-                            sb.append(" equ $\n");
+                            w.write(" equ $\n");
                         } else {
-                            sb.append(": equ $\n");
+                            w.write(": equ $\n");
                         }
                     } else {
-                        sb.append(":\n");                        
+                        w.write(":\n");                        
                     }
                 }
-                sourceFileString(ss.include, code, sb);
+                sourceFileString(ss.include, code, w);
             } else if (ss.type == SourceStatement.STATEMENT_INCBIN && expandIncbin) {
                 int skip = 0;
                 int size = 0;
                 if (ss.incbinSkip != null) skip = ss.incbinSkip.evaluateToInteger(ss, code, false);
                 if (ss.incbinSize != null) size = ss.incbinSize.evaluateToInteger(ss, code, false);
-                try (InputStream is = new FileInputStream(ss.incbin)) {
-                    int count = 0;
-                    while(is.available() != 0) {
-                        int data = is.read();
-                        if (skip > 0) {
-                            skip --;
-                            continue;
-                        }
-                        if (count > 0) {
-                            sb.append(", ");
-                        } else {
-                            sb.append("    db ");
-                        }
-                        sb.append(data);
-                        count++;
-                        if (count >= incbinBytesPerLine) {
-                            sb.append("\n");
-                            count = 0;
-                        }
-                        size --;
-                        if (size <= 0) break;
-                    }
-                    if (count > 0) sb.append("\n");
-                } catch(Exception e) {
+                try (InputStream is = config.sourceProvider.asInputStream(ss.incbin.getPath())) {
+                    expandIncbin(is, skip, size, w);
+                } catch(IOException e) {
                     config.error("Cannot expand incbin: " + ss.incbin);
                 }
             } else {
                 if (config.dialectParser != null) {
-                    sb.append(config.dialectParser.statementToString(ss, Paths.get(code.getMain().getPath())));
+                    w.write(config.dialectParser.statementToString(ss, Paths.get(code.getMain().getPath())));
                 } else {
-                    sb.append(ss.toStringUsingRootPath(Paths.get(code.getMain().getPath())));
+                    w.write(ss.toStringUsingRootPath(Paths.get(code.getMain().getPath())));
                 }
-                sb.append("\n");
+                w.write("\n");
             }
         }
     }
+
+
+    /*
+    Writes "size" bytes of "is" (after skipping the first "skip") as "db" statements,
+    reading the data in blocks of INCBIN_BUFFER_SIZE bytes:
+    */
+    void expandIncbin(InputStream is, int skip, int size, Writer w) throws IOException
+    {
+        byte buffer[] = new byte[INCBIN_BUFFER_SIZE];
+        while(skip > 0) {
+            int n = is.read(buffer, 0, Math.min(buffer.length, skip));
+            if (n < 0) return;
+            skip -= n;
+        }
+        StringBuilder line = new StringBuilder();
+        int count = 0;
+        while(size > 0) {
+            int n = is.read(buffer, 0, Math.min(buffer.length, size));
+            if (n < 0) break;
+            for(int i = 0;i<n;i++) {
+                if (count > 0) {
+                    line.append(", ");
+                } else {
+                    line.append("    db ");
+                }
+                line.append(buffer[i] & 0xff);
+                count++;
+                if (count >= incbinBytesPerLine) {
+                    line.append("\n");
+                    w.write(line.toString());
+                    line.setLength(0);
+                    count = 0;
+                }
+            }
+            size -= n;
+        }
+        if (count > 0) {
+            line.append("\n");
+            w.write(line.toString());
+        }
+    }
 }
@@ -3,7 +3,10 @@
  */
 package workers;
 
-import java.io.FileWriter;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -50,8 +53,8 @@ public class SourceCodeTableGenerator implements MDLWorker {
         if (outputFileName != null) {
             config.debug("Executing "+this.getClass().getSimpleName()+" worker...");
 
-            try (FileWriter fw = new FileWriter(outputFileName)) {
-                fw.write(sourceFileTableString(code));
+            try (Writer fw = new BufferedWriter(config.sourceProvider.asWriter(outputFileName))) {
+                sourceFileTableString(code, fw);
                 fw.flush();
             } catch (Exception e) {
                 config.error("Cannot write to file " + outputFileName + ": " + e);
@@ -63,6 +66,18 @@ public class SourceCodeTableGenerator implements MDLWorker {
 
 
     public String sourceFileTableString(CodeBase code)
+    {
+        StringWriter sw = new StringWriter();
+        try {
+            sourceFileTableString(code, sw);
+        } catch (IOException e) {
+            // this cannot happen when writing to a StringWriter
+        }
+        return sw.toString();
+    }
+
+
+    public void sourceFileTableString(CodeBase code, Writer w) throws IOException
     {
         HashMap<String, String> fileInfo = new HashMap<>();
         List<String> sortedSources = new ArrayList<>();
@@ -84,13 +99,10 @@ public class SourceCodeTableGenerator implements MDLWorker {
 
         sortedSources.addAll(fileInfo.keySet());
         Collections.sort(sortedSources);
-        StringBuilder sb = new StringBuilder();
-        sb.append("source file\tself size\ttotal size\n");
+        w.write("source file\tself size\ttotal size\n");
         for(String name:sortedSources) {
-            sb.append(fileInfo.get(name));
-            sb.append("\n");
+            w.write(fileInfo.get(name));
+            w.write("\n");
         }
-
-        return sb.toString();
     }
 }
@@ -3,7 +3,10 @@
  */
 package workers;
 
-import java.io.FileWriter;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -57,8 +60,8 @@ public class SymbolTableGenerator implements MDLWorker {
         if (outputFileName != null) {
             config.debug("Executing "+this.getClass().getSimpleName()+" worker...");
 
-            try (FileWriter fw = new FileWriter(outputFileName)) {
-                fw.write(symbolTableString(code));
+            try (Writer fw = new BufferedWriter(config.sourceProvider.asWriter(outputFileName))) {
+                symbolTableString(code, fw);
                 fw.flush();
             } catch (Exception e) {
                 config.error("Cannot write to file " + outputFileName + ": " + e);
@@ -71,36 +74,45 @@ public class SymbolTableGenerator implements MDLWorker {
 
 
     public String symbolTableString(CodeBase code)
+    {
+        StringWriter sw = new StringWriter();
+        try {
+            symbolTableString(code, sw);
+        } catch (IOException e) {
+            // this cannot happen when writing to a StringWriter
+        }
+        return sw.toString();
+    }
+
+
+    public void symbolTableString(CodeBase code, Writer w) throws IOException
     {
         List<String> sortedSymbols = new ArrayList<>();
         sortedSymbols.addAll(code.getSymbols());
         Collections.sort(sortedSymbols);
-        StringBuilder sb = new StringBuilder();
         for(String name:sortedSymbols) {
             SourceConstant symbol = code.getSymbol(name);
             if (symbol.exp.type == Expression.EXPRESSION_SYMBOL &&
                 symbol.exp.symbolName.equalsIgnoreCase(CodeBase.CURRENT_ADDRESS) ||
                 includeConstants) {
-                sb.append(name);
-                sb.append(": equ ");
+                w.write(name);
+                w.write(": equ ");
                 if (symbol.exp.isConstant()) {
-                    sb.append(symbol.getValue(code, true));
+                    w.write(String.valueOf(symbol.getValue(code, true)));
                 } else if (symbol.isLabel()) {
                     Object value = symbol.getValue(code, true);
                     if (value instanceof Integer) {
-                        sb.append(Tokenizer.toHexWord((Integer)value, config.hexStyle));
+                        w.write(Tokenizer.toHexWord((Integer)value, config.hexStyle));
                     } else {
-                        sb.append(value);
+                        w.write(String.valueOf(value));
                     }
                 } else {
-                    sb.append(symbol.getValue(code, true));
-                    sb.append("  ; ");
-                    sb.append(symbol.exp);
+                    w.write(String.valueOf(symbol.getValue(code, true)));
+                    w.write("  ; ");
+                    w.write(symbol.exp.toString());
                 }
-                sb.append("\n");
+                w.write("\n");
             }
         }
-
-        return sb.toString();
     }
 }
@@ -0,0 +1,187 @@
+/*
+ * Author: Santiago Ontañón Villar (Brain Games)
+ */
+package workers.pattopt;
+
+import java.util.HashMap;
+import java.util.List;
+
+import cl.MDLConfig;
+import code.CodeBase;
+import code.Loop;
+import code.SourceStatement;
+
+/**
+ * Objective used by the pattern-based optimizer to compare pattern matches, and
+ * to reject those that make the code worse. Time is measured in the time unit
+ * of the selected CPU (t-states, or nops for the CPC).
+ *
+ * @author santi
+ */
+public class CostModel {
+    public static final int OBJECTIVE_SIZE = 0;
+    public static final int OBJECTIVE_SPEED = 1;
+    public static final int OBJECTIVE_BLEND = 2;
+    public static final int OBJECTIVE_LOOP_SPEED = 3;
+
+    // With OBJECTIVE_LOOP_SPEED, time saved inside of loops is multiplied by this
+    // for each level of loop nesting:
+    public static final int LOOP_DEPTH_WEIGHT = 10;
+
+    MDLConfig config;
+    public int objective = OBJECTIVE_SIZE;
+    public int bytesWeight = 1;
+    public int timeWeight = 1;
+
+    HashMap<SourceStatement, Integer> loopDepths = null;
+
+
+    public CostModel(MDLConfig a_config)
+    {
+        config = a_config;
+    }
+
+
+    /*
+    Parses an objective of the form: "size", "speed", "loop-speed" or "blend:<bytes weight>,<time weight>"
+    */
+    public boolean parse(String str)
+    {
+        if (str.equals("size")) {
+            objective = OBJECTIVE_SIZE;
+        } else if (str.equals("speed")) {
+            objective = OBJECTIVE_SPEED;
+        } else if (str.equals("loop-speed")) {
+            objective = OBJECTIVE_LOOP_SPEED;
+        } else if (str.startsWith("blend:")) {
+            String weights[] = str.substring(6).split(",");
+            if (weights.length != 2) {
+                config.error("Blend objective should be of the form 'blend:<bytes weight>,<time weight>', but was: " + str);
+                return false;
+            }
+            try {
+                bytesWeight = Integer.parseInt(weights[0].trim());
+                timeWeight = Integer.parseInt(weights[1].trim());
+            } catch (NumberFormatException e) {
+                config.error("Cannot parse the weights of the blend objective: " + str);
+                return false;
+            }
+            objective = OBJECTIVE_BLEND;
+        } else {
+            config.error("Unknown optimization objective: " + str);
+            return false;
+        }
+        return true;
+    }
+
+
+    /*
+    Both time savings added together, so that optimizations of conditional
+    instructions are evaluated by the average of the two cases:
+    */
+    int timeSaving(Pattern patt, PatternMatch match, CodeBase code)
+    {
+        int times[] = patt.getTimeSaving(match, code);
+        return times[0] + times[1];
+    }
+
+
+    /*
+    The savings according to the main objective (if it is negative, the pattern makes
+    the code worse, and should not be applied):
+    */
+    public long primarySaving(Pattern patt, PatternMatch match, CodeBase code)
+    {
+        switch(objective) {
+            case OBJECTIVE_SIZE:
+                return patt.getSpaceSaving(match, code);
+            case OBJECTIVE_SPEED:
+                return timeSaving(patt, match, code);
+            case OBJECTIVE_BLEND:
+                // bytes are doubled, as time savings are the sum of both cases:
+                return (long)bytesWeight * patt.getSpaceSaving(match, code) * 2 +
+                       (long)timeWeight * timeSaving(patt, match, code);
+            case OBJECTIVE_LOOP_SPEED:
+            {
+                long saving = timeSaving(patt, match, code);
+                for(int i = 0;i<loopDepth(match, code);i++) saving *= LOOP_DEPTH_WEIGHT;
+                return saving;
+            }
+        }
+        return 0;
+    }
+
+
+    // Used to break ties:
+    public long secondarySaving(Pattern patt, PatternMatch match, CodeBase code)
+    {
+        switch(objective) {
+            case OBJECTIVE_SIZE:
+                return timeSaving(patt, match, code);
+            case OBJECTIVE_BLEND:
+                return 0;
+            default:
+                return patt.getSpaceSaving(match, code);
+        }
+    }
+
+
+    public boolean regresses(Pattern patt, PatternMatch match, CodeBase code)
+    {
+        return primarySaving(patt, match, code) < 0;
+    }
+
+
+    /*
+    Returns whether match1 is preferred to match2:
+    */
+    public boolean better(Pattern patt1, PatternMatch match1, Pattern patt2, PatternMatch match2, CodeBase code)
+    {
+        long primary1 = primarySaving(patt1, match1, code);
+        long primary2 = primarySaving(patt2, match2, code);
+        if (primary1 != primary2) return primary1 > primary2;
+        return secondarySaving(patt1, match1, code) > secondarySaving(patt2, match2, code);
+    }
+
+
+    /*
+    A single number combining both savings (lexicographically), for when the savings
+    of several matches need to be added together:
+    */
+    public long weight(Pattern patt, PatternMatch match, CodeBase code)
+    {
+        return primarySaving(patt, match, code) * 0x10000 + secondarySaving(patt, match, code);
+    }
+
+
+    int loopDepth(PatternMatch match, CodeBase code)
+    {
+        if (loopDepths == null) loopDepths = Loop.loopDepths(code, config);
+        int depth = 0;
+        for(List<SourceStatement> l:match.map.values()) {
+            for(SourceStatement s:l) {
+                Integer d = loopDepths.get(s);
+                if (d != null && d > depth) depth = d;
+            }
+        }
+        return depth;
+    }
+
+
+    /*
+    Called after a match is applied, so the statements that were added inherit the
+    loop depth of the statements they replaced:
+    */
+    public void matchApplied(PatternMatch match)
+    {
+        if (loopDepths == null) return;
+        int depth = 0;
+        for(SourceStatement s:match.removed) {
+            Integer d = loopDepths.remove(s);
+            if (d != null && d > depth) depth = d;
+        }
+        if (depth > 0) {
+            for(SourceStatement s:match.added) loopDepths.put(s, depth);
+        }
+    }
+}
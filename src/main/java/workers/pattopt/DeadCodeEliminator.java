@@ -0,0 +1,351 @@
+/*
+ * Author: Santiago Ontañón Villar (Brain Games)
+ */
+package workers.pattopt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import cl.MDLConfig;
+import code.CPUOp;
+import code.CodeBase;
+import code.ControlFlowGraph;
+import code.Expression;
+import code.SourceConstant;
+import code.SourceFile;
+import code.SourceStatement;
+import workers.MDLWorker;
+import workers.pattopt.PatternBasedOptimizer.OptimizationResult;
+
+/**
+ * Finds the instructions that can never be executed, and the labels that are never
+ * used. Reachability is computed over the control flow graph starting from: the
+ * first statement of the main file, any label whose address is used by a reachable
+ * instruction or by any non-code statement (data tables, constant definitions, ROM
+ * headers, etc.), any label the dialect marks as exported (e.g., ".globl" in sdcc),
+ * and any label declared as a root by the user. Instructions marked with the
+ * no-optimization pragma are also considered roots. Code only reached from outside
+ * of the program through other means (e.g., interrupt hooks set up by the BIOS)
+ * needs to be declared with "-dce-root".
+ *
+ * These are reported, and optionally removed (in which case, they also show up in
+ * the files generated with "-poapply").
+ *
+ * @author santi
+ */
+public class DeadCodeEliminator implements MDLWorker {
+
+    MDLConfig config;
+    PatternBasedOptimizer pbo = null;   // to record the removals for "-poapply" (if any)
+    boolean activate = false;
+    boolean remove = false;
+    List<String> userRoots = new ArrayList<>();
+
+    // analysis results:
+    HashSet<SourceStatement> reachable = new HashSet<>();
+    HashSet<SourceConstant> usedLabels = new HashSet<>();
+    HashMap<Integer, SourceStatement> statementsByAddress = null;
+
+
+    public DeadCodeEliminator(MDLConfig a_config, PatternBasedOptimizer a_pbo)
+    {
+        config = a_config;
+        pbo = a_pbo;
+    }
+
+
+    @Override
+    public String docString()
+    {
+        return "  -dce: reports code that can never be executed, and labels that are never used.\n" +
+               "  -dce-remove: same as -dce, but also removes them (use together with -poapply to see the changes in the original files).\n" +
+               "  -dce-root <label>: declares an additional entry point for -dce (e.g., routines called from outside of the program). Labels exported by the dialect (e.g., '.globl' in sdcc) are already entry points. Can be used multiple times.\n";
+    }
+
+
+    @Override
+    public boolean parseFlag(List<String> flags)
+    {
+        if (flags.get(0).equals("-dce")) {
+            flags.remove(0);
+            activate = true;
+            return true;
+        }
+        if (flags.get(0).equals("-dce-remove")) {
+            flags.remove(0);
+            activate = true;
+            remove = true;
+            return true;
+        }
+        if (flags.get(0).equals("-dce-root") && flags.size()>=2) {
+            flags.remove(0);
+            userRoots.add(flags.remove(0));
+            activate = true;
+            return true;
+        }
+        return false;
+    }
+
+
+    @Override
+    public boolean work(CodeBase code)
+    {
+        if (!activate) return true;
+        config.debug("Executing "+this.getClass().getSimpleName()+" worker...");
+        OptimizationResult r = eliminate(code);
+        return r != null;
+    }
+
+
+    public OptimizationResult eliminate(CodeBase code)
+    {
+        if (!computeReachability(code)) return null;
+
+        OptimizationResult r = new OptimizationResult();
+        int unusedLabels = 0;
+        for (SourceFile f : code.getSourceFiles()) {
+            PatternMatch edits = new PatternMatch(null, f);
+            List<SourceStatement> l = f.getStatements();
+            // statements that are not removed (built in a single pass, rather than removing
+            // them one by one from "l"):
+            List<SourceStatement> kept = new ArrayList<>(l.size());
+            for (int i = 0; i < l.size(); i++) {
+                SourceStatement s = l.get(i);
+                if (s.type == SourceStatement.STATEMENT_CPUOP && !reachable.contains(s)) {
+                    // a block of consecutive unreachable instructions:
+                    int last = i;
+                    int bytes = 0, instructions = 0;
+                    for(int j = i;j<l.size();j++) {
+                        SourceStatement s2 = l.get(j);
+                        if (s2.type == SourceStatement.STATEMENT_CPUOP) {
+                            if (reachable.contains(s2)) break;
+                            last = j;
+                            instructions++;
+                            bytes += s2.op.sizeInBytes();
+                        } else if (!s2.isEmptyAllowingComments()) {
+                            break;
+                        }
+                    }
+                    config.info("Dead code", s.fileNameLineString(),
+                                "Unreachable code (" + instructions + " instructions, " + bytes + " bytes)");
+                    r.patternApplications++;
+                    r.bytesSaved += bytes;
+                    for(int j = i;j<=last;j++) {
+                        SourceStatement s2 = l.get(j);
+                        if (remove && s2.type == SourceStatement.STATEMENT_CPUOP) {
+                            if (s2.label != null) code.removeSymbol(s2.label.name);
+                            edits.removed.add(s2);
+                        } else {
+                            kept.add(s2);
+                        }
+                    }
+                    i = last;
+                } else if (s.label != null && s.label.isLabel() && !usedLabels.contains(s.label)) {
+                    config.info("Dead code", s.fileNameLineString(), "Unused label " + s.label.originalName);
+                    unusedLabels++;
+                    if (remove && s.type == SourceStatement.STATEMENT_NONE) {
+                        code.removeSymbol(s.label.name);
+                        edits.removed.add(s);
+                    } else if (remove && s.type == SourceStatement.STATEMENT_CPUOP) {
+                        SourceStatement s2 = new SourceStatement(SourceStatement.STATEMENT_CPUOP, s.sl, s.source, config);
+                        s2.op = s.op;
+                        s2.comment = s.comment;
+                        code.removeSymbol(s.label.name);
+                        kept.add(s2);
+                        edits.removed.add(s);
+                        edits.added.add(s2);
+                    } else {
+                        kept.add(s);
+                    }
+                } else {
+                    kept.add(s);
+                }
+            }
+            if (!edits.removed.isEmpty()) {
+                l.clear();
+                l.addAll(kept);
+                code.updateControlFlowGraph(f, edits.removed, edits.added);
+                if (pbo != null) pbo.appliedOptimizations.add(edits);
+            }
+        }
+        if (remove) code.resetAddresses();
+
+        config.info("DeadCodeEliminator: " + r.patternApplications + " unreachable code blocks (" +
+                    r.bytesSaved + " bytes), " + unusedLabels + " unused labels" +
+                    (remove ? " removed." : " found."));
+        return r;
+    }
+
+
+    /*
+    Computes the set of reachable statements, and the set of used labels (only uses from
+    reachable/non-code statements count):
+    */
+    boolean computeReachability(CodeBase code)
+    {
+        reachable.clear();
+        usedLabels.clear();
+        statementsByAddress = null;
+        ControlFlowGraph cfg = code.getControlFlowGraph();
+        LinkedHashSet<SourceStatement> open = new LinkedHashSet<>();
+
+        if (code.getMain() != null && !code.getMain().getStatements().isEmpty()) {
+            open.add(code.getMain().getStatements().get(0));
+        }
+        for(String name:userRoots) {
+            SourceConstant label = code.getSymbol(name);
+            if (label == null || label.definingStatement == null) {
+                config.error("Unknown label passed to -dce-root: " + name);
+                return false;
+            }
+            usedLabels.add(label);
+            open.add(label.definingStatement);
+        }
+        List<String> exported = (config.dialectParser == null ? null : config.dialectParser.getExportedSymbols());
+        if (exported != null) {
+            for(String name:exported) {
+                SourceConstant label = code.getSymbol(name);
+                // symbols defined in other modules are also declared with ".globl":
+                if (label == null || label.definingStatement == null) continue;
+                usedLabels.add(label);
+                if (label.isLabel()) open.add(label.definingStatement);
+            }
+        }
+        // labels that act as the prefix of local labels (e.g. "routine" in "routine.loop")
+        // are kept, as removing them would change the scope of the local labels:
+        HashSet<String> prefixes = new HashSet<>();
+        for(String name:code.getSymbols()) {
+            for(int idx = name.indexOf('.');idx > 0;idx = name.indexOf('.', idx+1)) {
+                prefixes.add(name.substring(0, idx));
+            }
+        }
+        for (SourceFile f : code.getSourceFiles()) {
+            for (SourceStatement s : f.getStatements()) {
+                if (s.label != null && prefixes.contains(s.label.name)) usedLabels.add(s.label);
+                if (s.type != SourceStatement.STATEMENT_CPUOP) {
+                    // non-code statements are never removed, so their label uses always count:
+                    addLabelUses(s, code, open);
+                } else if (s.comment != null && s.comment.contains(config.PRAGMA_NO_OPTIMIZATION)) {
+                    open.add(s);
+                }
+            }
+        }
+
+        while(!open.isEmpty()) {
+            SourceStatement s = open.iterator().next();
+            open.remove(s);
+            if (!reachable.add(s)) continue;
+            if (!cfg.contains(s)) continue;
+            addLabelUses(s, code, open);
+            for(SourceStatement next:successors(s, code, cfg)) {
+                if (!reachable.contains(next)) open.add(next);
+            }
+        }
+        return true;
+    }
+
+
+    List<SourceStatement> successors(SourceStatement s, CodeBase code, ControlFlowGraph cfg)
+    {
+        List<SourceStatement> successors = new ArrayList<>();
+        SourceStatement next = cfg.getNextStatement(s);
+        if (s.type != SourceStatement.STATEMENT_CPUOP) {
+            if (next != null) successors.add(next);
+            return successors;
+        }
+        CPUOp op = s.op;
+        Expression target = op.getTargetJumpExpression();
+        boolean fallsThrough = true;
+        if (op.isRet()) {
+            fallsThrough = op.isConditional();
+        } else if (target != null && !op.isCall()) {
+            fallsThrough = op.isConditional() || op.spec.opName.equalsIgnoreCase("djnz");
+        }
+        if (fallsThrough && next != null) successors.add(next);
+        if (target != null) {
+            SourceStatement targetStatement = cfg.getTargetStatement(s);
+            if (targetStatement == null) targetStatement = statementAtAddress(target, s, code);
+            if (targetStatement != null) successors.add(targetStatement);
+        }
+        return successors;
+    }
+
+
+    /*
+    For jumps to expressions other than a label (e.g., "jp label+3"):
+    */
+    SourceStatement statementAtAddress(Expression target, SourceStatement s, CodeBase code)
+    {
+        if (!target.evaluatesToIntegerConstant()) return null;  // e.g., "jp (hl)"
+        Integer address = target.evaluateToInteger(s, code, true);
+        if (address == null) return null;
+        if (statementsByAddress == null) {
+            statementsByAddress = new HashMap<>();
+            for (SourceFile f : code.getSourceFiles()) {
+                for (SourceStatement s2 : f.getStatements()) {
+                    if (s2.type != SourceStatement.STATEMENT_CPUOP) continue;
+                    Integer address2 = s2.getAddress(code);
+                    if (address2 != null && !statementsByAddress.containsKey(address2)) {
+                        statementsByAddress.put(address2, s2);
+                    }
+                }
+            }
+        }
+        return statementsByAddress.get(address);
+    }
+
+
+    /*
+    Marks the labels used in the expressions of "s" as used, and those whose address
+    is used in some other way than as the target of a jump/call as roots:
+    */
+    void addLabelUses(SourceStatement s, CodeBase code, LinkedHashSet<SourceStatement> open)
+    {
+        Expression jumpTarget = (s.op == null ? null : s.op.getTargetJumpExpression());
+        for(Expression exp:statementExpressions(s)) {
+            boolean isJumpTarget = (exp == jumpTarget && exp.type == Expression.EXPRESSION_SYMBOL);
+            for(String name:symbolNames(exp, new ArrayList<>())) {
+                SourceConstant c = code.getSymbol(name);
+                if (c == null) continue;
+                usedLabels.add(c);
+                if (!isJumpTarget && c.isLabel() && c.definingStatement != null &&
+                    !reachable.contains(c.definingStatement)) {
+                    open.add(c.definingStatement);
+                }
+            }
+        }
+    }
+
+
+    static List<Expression> statementExpressions(SourceStatement s)
+    {
+        List<Expression> l = new ArrayList<>();
+        if (s.org != null) l.add(s.org);
+        if (s.incbinSize != null) l.add(s.incbinSize);
+        if (s.incbinSkip != null) l.add(s.incbinSkip);
+        if (s.data != null) l.addAll(s.data);
+        if (s.space != null) l.add(s.space);
+        if (s.space_value != null) l.add(s.space_value);
+        if (s.op != null) l.addAll(s.op.args);
+        if (s.macroCallArguments != null) l.addAll(s.macroCallArguments);
+        if (s.type == SourceStatement.STATEMENT_CONSTANT && s.label != null && s.label.exp != null) {
+            l.add(s.label.exp);
+        }
+        return l;
+    }
+
+
+    static List<String> symbolNames(Expression exp, List<String> names)
+    {
+        if (exp.type == Expression.EXPRESSION_SYMBOL && !exp.symbolName.equals(CodeBase.CURRENT_ADDRESS)) {
+            names.add(exp.symbolName);
+        }
+        if (exp.args != null) {
+            for(Expression arg:exp.args) symbolNames(arg, names);
+        }
+        return names;
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Author: Santiago Ontañón Villar (Brain Games)
+ */
+package workers.pattopt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import cl.MDLConfig;
+import code.CPUOp;
+import code.CodeBase;
+import code.Expression;
+import code.SourceFile;
+import code.SourceStatement;
+import workers.MDLWorker;
+import workers.pattopt.PatternBasedOptimizer.OptimizationResult;
+
+/**
+ * Converts "jp"/"jp cc" instructions to "jr"/"jr cc" when the target is within
+ * reach, and "jr" instructions whose target is out of reach back to "jp". All the
+ * jumps are considered at once in each pass (with a single computation of the
+ * addresses), and passes are repeated until no jump changes, since shortening
+ * some jumps might bring others into range (or, across "org" statements, push
+ * them out of range). A jump that had to be expanded is never shortened again, to
+ * ensure termination.
+ *
+ * @author santi
+ */
+public class JumpRelaxer implements MDLWorker {
+    public static final String JR_CONDITIONS[] = {"nz", "z", "nc", "c"};
+    public static final int MAX_PASSES = 100;
+
+    MDLConfig config;
+    PatternBasedOptimizer pbo = null;   // to respect its equality constraints, and record the changes for "-poapply" (if any)
+    boolean activate = false;
+    boolean onlyExpand = false;
+
+
+    public JumpRelaxer(MDLConfig a_config, PatternBasedOptimizer a_pbo)
+    {
+        config = a_config;
+        pbo = a_pbo;
+    }
+
+
+    @Override
+    public String docString()
+    {
+        return "  -jr: converts all jp/jp cc instructions whose target is within reach to jr/jr cc (iterating until no more can be converted), and any jr whose target is out of reach back to jp. Notice that an unconditional jr is smaller but slower than a jp.\n" +
+               "  -jr-fix: only converts jr instructions whose target is out of reach to jp.\n";
+    }
+
+
+    @Override
+    public boolean parseFlag(List<String> flags)
+    {
+        if (flags.get(0).equals("-jr")) {
+            flags.remove(0);
+            activate = true;
+            return true;
+        }
+        if (flags.get(0).equals("-jr-fix")) {
+            flags.remove(0);
+            activate = true;
+            onlyExpand = true;
+            return true;
+        }
+        return false;
+    }
+
+
+    @Override
+    public boolean work(CodeBase code)
+    {
+        if (!activate) return true;
+        config.debug("Executing "+this.getClass().getSimpleName()+" worker...");
+        relax(code);
+        return true;
+    }
+
+
+    public OptimizationResult relax(CodeBase code)
+    {
+        List<EqualityConstraint> equalities = (pbo == null ? new ArrayList<>() : pbo.equalitiesToMaintain);
+        List<SourceStatement> jumps = new ArrayList<>();
+        HashMap<SourceStatement, CPUOp> originalOps = new HashMap<>();
+        for (SourceFile f : code.getSourceFiles()) {
+            for (SourceStatement s : f.getStatements()) {
+                if (s.type != SourceStatement.STATEMENT_CPUOP) continue;
+                if (s.comment != null && s.comment.contains(config.PRAGMA_NO_OPTIMIZATION)) continue;
+                if (jumpTarget(s) == null) continue;
+                jumps.add(s);
+                originalOps.put(s, s.op);
+            }
+        }
+
+        // jumps that should not be changed anymore:
+        HashSet<SourceStatement> frozen = new HashSet<>();
+        for(int pass = 0;pass < MAX_PASSES;pass++) {
+            code.resetAddresses();
+            HashMap<SourceStatement, CPUOp> shortened = new HashMap<>();
+            HashMap<SourceStatement, CPUOp> expanded = new HashMap<>();
+            for(SourceStatement s:jumps) {
+                String opName = s.op.spec.opName.toLowerCase();
+                Integer distance = jumpDistance(s, code);
+                if (opName.equals("jr")) {
+                    if (distance == null || !inJrRange(distance)) {
+                        // a jump shortened in an earlier pass goes back to its original op, so
+                        // that it does not count as a change:
+                        CPUOp original = originalOps.get(s);
+                        CPUOp op = (original.spec.opName.equalsIgnoreCase("jp") ? original : replacementOp(s, "jp", code));
+                        if (op != null) expanded.put(s, op);
+                    }
+                } else if (!onlyExpand && !frozen.contains(s) && distance != null && inJrRange(distance)) {
+                    CPUOp op = replacementOp(s, "jr", code);
+                    if (op != null) shortened.put(s, op);
+                }
+            }
+            if (shortened.isEmpty() && expanded.isEmpty()) break;
+
+            HashMap<SourceStatement, CPUOp> previousOps = new HashMap<>();
+            for(SourceStatement s:expanded.keySet()) {
+                previousOps.put(s, s.op);
+                s.op = expanded.get(s);
+                frozen.add(s);
+            }
+            for(SourceStatement s:shortened.keySet()) {
+                previousOps.put(s, s.op);
+                s.op = shortened.get(s);
+            }
+            code.resetAddresses();
+            EqualityConstraint broken = brokenEquality(equalities, code);
+            if (broken != null && !shortened.isEmpty()) {
+                // undo the jumps shortened in this pass, and do not try them again:
+                for(SourceStatement s:shortened.keySet()) {
+                    s.op = previousOps.get(s);
+                    frozen.add(s);
+                }
+                code.resetAddresses();
+                config.info("Jump relaxation: " + shortened.size() + " jumps left as they were, as shortening them breaks the equality constraint: " + broken.exp1 + " == " + broken.exp2);
+                broken = brokenEquality(equalities, code);
+            }
+            if (broken != null) {
+                config.warn("Jump relaxation: the equality constraint " + broken.exp1 + " == " + broken.exp2 + " is broken after expanding out of range jumps.");
+            }
+            if (pass == MAX_PASSES - 1) {
+                config.warn("Jump relaxation: did not converge after " + MAX_PASSES + " passes.");
+            }
+        }
+
+        OptimizationResult r = new OptimizationResult();
+        for(SourceStatement s:jumps) {
+            CPUOp original = originalOps.get(s);
+            if (s.op == original) continue;
+            int bytesSaved = original.sizeInBytes() - s.op.sizeInBytes();
+            int timeSaved[] = {original.timing()[0] - s.op.timing()[0],
+                               original.timing()[original.timing().length-1] - s.op.timing()[s.op.timing().length-1]};
+            String timeString = (timeSaved[0] == timeSaved[1] ? "" + timeSaved[0] : timeSaved[0] + "/" + timeSaved[1]);
+            config.info("Jump relaxation", s.fileNameLineString(),
+                    "Replace " + original + " with " + s.op +
+                    " (" + bytesSaved + " bytes, " + timeString + " " + config.timeUnit + "s saved)");
+            r.patternApplications++;
+            r.bytesSaved += bytesSaved;
+            r.timeSaved[0] += timeSaved[0];
+            r.timeSaved[1] += timeSaved[1];
+            if (pbo != null) {
+                // the op is replaced in place, so the statement is both removed and added:
+                PatternMatch edit = new PatternMatch(null, s.source);
+                edit.removed.add(s);
+                edit.added.add(s);
+                pbo.appliedOptimizations.add(edit);
+            }
+        }
+        config.info("JumpRelaxer: "+r.patternApplications+" jumps changed, " +
+                    r.bytesSaved+" bytes, " +
+                    r.timeString() + " " +config.timeUnit+"s saved.");
+        return r;
+    }
+
+
+    /*
+    Returns the target of a jp/jr that could be converted to the other, or null otherwise:
+    */
+    Expression jumpTarget(SourceStatement s)
+    {
+        if (s.op == null) return null;
+        String opName = s.op.spec.opName.toLowerCase();
+        if (!opName.equals("jp") && !opName.equals("jr")) return null;
+        if (s.op.args.size() == 2) {
+            Expression condition = s.op.args.get(0);
+            if (condition.type != Expression.EXPRESSION_REGISTER_OR_FLAG) return null;
+            boolean found = false;
+            for(String c:JR_CONDITIONS) {
+                if (c.equalsIgnoreCase(condition.registerOrFlagName)) found = true;
+            }
+            if (!found) return null;
+        } else if (s.op.args.size() != 1) {
+            return null;
+        }
+        Expression target = s.op.args.get(s.op.args.size()-1);
+        // targets relative to "$" would move if the size of the jump changes:
+        if (!target.evaluatesToIntegerConstant() || target.containsCurrentAddress()) return null;
+        return target;
+    }
+
+
+    Integer jumpDistance(SourceStatement s, CodeBase code)
+    {
+        Integer address = s.getAddress(code);
+        Integer target = jumpTarget(s).evaluateToInteger(s, code, true);
+        if (address == null || target == null) return null;
+        return target - address;
+    }
+
+
+    /*
+    A "jr" offset is relative to the address after the jr (which is 2 bytes long):
+    */
+    static boolean inJrRange(int distance)
+    {
+        return distance >= -126 && distance <= 129;
+    }
+
+
+    CPUOp replacementOp(SourceStatement s, String opName, CodeBase code)
+    {
+        List<Expression> args = new ArrayList<>(s.op.args);
+        List<CPUOp> op_l = config.opParser.parseOp(opName, args, s, null, code);
+        if (op_l == null || op_l.size() != 1) return null;
+        return op_l.get(0);
+    }
+
+
+    EqualityConstraint brokenEquality(List<EqualityConstraint> equalities, CodeBase code)
+    {
+        for(EqualityConstraint eq:equalities) {
+            if (!eq.check(code, config)) return eq;
+        }
+        return null;
+    }
+}
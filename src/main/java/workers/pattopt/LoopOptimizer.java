@@ -0,0 +1,501 @@
+/*
+ * Author: Santiago Ontañón Villar (Brain Games)
+ */
+package workers.pattopt;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import cl.MDLConfig;
+import code.BasicBlock;
+import code.CPUOp;
+import code.CPUOpDependency;
+import code.CodeBase;
+import code.ControlFlowGraph;
+import code.Expression;
+import code.Loop;
+import code.SourceFile;
+import code.SourceStatement;
+import code.SubroutineSummary;
+import workers.MDLWorker;
+import workers.pattopt.PatternBasedOptimizer.OptimizationResult;
+
+/**
+ * Optimizations that require knowing the loops in the code (see code.Loop):
+ * - "dec b; ...; jr/jp nz,loop" at the end of a loop is replaced by "djnz loop" (when
+ *   the instructions in between do not use b or the flags, and the flags set by "dec b"
+ *   are not used afterwards).
+ * - Loop-invariant loads ("ld r,constant" at the beginning of a loop, when "r" is not
+ *   modified anywhere else in the loop) are moved out of the loop.
+ * - Optionally, single block loops with a known number of iterations are unrolled, when
+ *   the result is not larger than a given size.
+ * Savings are multiplied by the number of iterations, when it is known.
+ *
+ * @author santi
+ */
+public class LoopOptimizer implements MDLWorker {
+    public static final int MAX_PASSES = 16;
+    // flags modified by "dec r" (which "djnz" does not modify):
+    public static final int DEC_FLAGS = CPUOpDependency.FLAG_S | CPUOpDependency.FLAG_Z |
+                                        CPUOpDependency.FLAG_H | CPUOpDependency.FLAG_PV |
+                                        CPUOpDependency.FLAG_N;
+    public static final int REG_B = CPUOpDependency.REG_B;
+
+    MDLConfig config;
+    PatternBasedOptimizer pbo = null;   // to record the changes for "-poapply" (if any)
+    boolean activate = false;
+    int unrollMaxBytes = 0;
+
+
+    public LoopOptimizer(MDLConfig a_config, PatternBasedOptimizer a_pbo)
+    {
+        config = a_config;
+        pbo = a_pbo;
+    }
+
+
+    @Override
+    public String docString()
+    {
+        return "  -lo: loop optimizations: replaces loop counters decremented with 'dec b; jr/jp nz' by djnz, and moves loads of constants that do not change within a loop out of the loop.\n" +
+               "  -lo-unroll <bytes>: same as -lo, but additionally unrolls loops with a known number of iterations, when the unrolled loop takes at most <bytes> bytes (faster, but larger code).\n";
+    }
+
+
+    @Override
+    public boolean parseFlag(List<String> flags)
+    {
+        if (flags.get(0).equals("-lo")) {
+            flags.remove(0);
+            activate = true;
+            return true;
+        }
+        if (flags.get(0).equals("-lo-unroll") && flags.size()>=2) {
+            flags.remove(0);
+            try {
+                unrollMaxBytes = Integer.parseInt(flags.remove(0));
+            } catch(NumberFormatException e) {
+                config.error("Invalid number of bytes passed to -lo-unroll");
+                return false;
+            }
+            activate = true;
+            return true;
+        }
+        return false;
+    }
+
+
+    @Override
+    public boolean work(CodeBase code)
+    {
+        if (!activate) return true;
+        config.debug("Executing "+this.getClass().getSimpleName()+" worker...");
+        optimize(code);
+        return true;
+    }
+
+
+    public OptimizationResult optimize(CodeBase code)
+    {
+        OptimizationResult r = new OptimizationResult();
+        // Loops are recomputed after each pass. Within a pass, at most one change is made
+        // to each loop (and loops sharing blocks with modified loops are left for the next pass):
+        for(int pass = 0;pass < MAX_PASSES;pass++) {
+            code.resetAddresses();
+            ControlFlowGraph cfg = code.getControlFlowGraph();
+            HashSet<BasicBlock> touched = new HashSet<>();
+            boolean change = false;
+            for(Loop loop:allLoops(code, cfg)) {
+                boolean overlaps = false;
+                for(BasicBlock b:loop.body) {
+                    if (touched.contains(b)) overlaps = true;
+                }
+                if (overlaps) continue;
+                if (convertToDjnz(loop, code, cfg, r) ||
+                    hoistInvariant(loop, code, cfg, r) ||
+                    (unrollMaxBytes > 0 && unroll(loop, code, cfg, r))) {
+                    touched.addAll(loop.body);
+                    change = true;
+                }
+            }
+            if (!change) break;
+        }
+        config.info("LoopOptimizer: "+r.patternApplications+" optimizations applied, " +
+                    r.bytesSaved+" bytes, " +
+                    r.timeString() + " " +config.timeUnit+"s saved.");
+        return r;
+    }
+
+
+    /*
+    All the loops in the code, inner loops before the loops that contain them:
+    */
+    List<Loop> allLoops(CodeBase code, ControlFlowGraph cfg)
+    {
+        List<Loop> loops = new ArrayList<>();
+        HashSet<BasicBlock> headers = new HashSet<>();
+        for(BasicBlock entry:cfg.getRoutineEntries()) {
+            for(Loop loop:Loop.findLoops(entry, cfg.getRoutineBlocks(entry), code, config)) {
+                addLoops(loop, loops, headers);
+            }
+        }
+        return loops;
+    }
+
+
+    void addLoops(Loop loop, List<Loop> loops, HashSet<BasicBlock> headers)
+    {
+        for(Loop child:loop.children) addLoops(child, loops, headers);
+        if (headers.add(loop.header)) loops.add(loop);
+    }
+
+
+    boolean convertToDjnz(Loop loop, CodeBase code, ControlFlowGraph cfg, OptimizationResult r)
+    {
+        for(BasicBlock latch:loop.latches) {
+            SourceStatement jump = latch.getLast();
+            if (!isJumpNz(jump) || noOpt(jump)) continue;
+            SourceStatement target = cfg.getTargetStatement(jump);
+            if (target == null || cfg.getBasicBlock(target) != loop.header) continue;
+
+            // find the "dec b":
+            SourceStatement dec = null;
+            for(int i = latch.statements.size()-2;i>=0;i--) {
+                SourceStatement s = latch.statements.get(i);
+                if (s.type != SourceStatement.STATEMENT_CPUOP) continue;
+                if (isDec(s.op, "b")) {
+                    dec = s;
+                    break;
+                }
+                if (((s.op.getInputRegsAndFlags() | s.op.getOutputRegsAndFlags()) &
+                     (REG_B | CPUOpDependency.REG_F)) != 0) break;
+            }
+            if (dec == null || dec.label != null || noOpt(dec) || dec.source != jump.source) continue;
+
+            // the flags set by "dec b" should not be used later on:
+            Boolean notUsed = cfg.depNotUsedAfter(jump, new CPUOpDependency(DEC_FLAGS, null, null, null));
+            if (notUsed == null || !notUsed) continue;
+
+            // the "djnz" ends up where the jump was, but one byte earlier (as "dec b" is removed):
+            Integer decAddress = dec.getAddress(code);
+            Integer jumpAddress = jump.getAddress(code);
+            Integer targetAddress = jump.op.args.get(1).evaluateToInteger(jump, code, true);
+            if (decAddress == null || jumpAddress == null || targetAddress == null) continue;
+            if (targetAddress > decAddress || !JumpRelaxer.inJrRange(targetAddress - (jumpAddress - 1))) continue;
+
+            List<Expression> args = new ArrayList<>();
+            args.add(jump.op.args.get(1));
+            CPUOp djnz = newOp("djnz", args, jump, code);
+            if (djnz == null) continue;
+            SourceStatement djnzStatement = newStatement(jump, djnz);
+            djnzStatement.comment = jump.comment;
+
+            List<SourceStatement> l = jump.source.getStatements();
+            l.remove(dec);
+            l.set(l.indexOf(jump), djnzStatement);
+            PatternMatch edit = new PatternMatch(null, jump.source);
+            edit.removed.add(dec);
+            edit.removed.add(jump);
+            edit.added.add(djnzStatement);
+            code.updateControlFlowGraph(jump.source, edit.removed, edit.added);
+            code.resetAddresses();
+
+            // time saved in the iterations where the jump is taken / in the last iteration:
+            int taken = dec.op.timing()[0] + jump.op.timing()[0] - djnz.timing()[0];
+            int notTaken = dec.op.timing()[0] + last(jump.op.timing()) - last(djnz.timing());
+            record(edit, jump, "Replace " + dec.op + "; " + jump.op + " with " + djnz,
+                   dec.op.sizeInBytes() + jump.op.sizeInBytes() - djnz.sizeInBytes(),
+                   taken, notTaken, loop.tripCount, r);
+            return true;
+        }
+        return false;
+    }
+
+
+    boolean hoistInvariant(Loop loop, CodeBase code, ControlFlowGraph cfg, OptimizationResult r)
+    {
+        // the block where the loads will be moved to:
+        BasicBlock preheader = null;
+        for(BasicBlock pred:loop.header.predecessors) {
+            if (loop.body.contains(pred)) continue;
+            if (preheader != null) return false;
+            preheader = pred;
+        }
+        if (preheader == null || preheader.successors.size() != 1) return false;
+        // the loads are inserted before the jump to the loop (if any), or at the end of the preheader:
+        SourceStatement last = preheader.getLast();
+        SourceFile f = last.source;
+        List<SourceStatement> l = f.getStatements();
+        boolean beforeLast = last.type == SourceStatement.STATEMENT_CPUOP && last.op.isJump();
+        if (beforeLast) {
+            if (last.op.isConditional() || noOpt(last)) return false;
+        } else {
+            int idx = l.indexOf(last);
+            if (idx < 0 || idx + 1 >= l.size() || l.get(idx + 1) != loop.header.getFirst()) return false;
+        }
+
+        int readBefore = 0;
+        for(SourceStatement s:loop.header.statements) {
+            if (s.type != SourceStatement.STATEMENT_CPUOP) continue;
+            int mask = invariantLoadMask(s, code);
+            if (mask != 0 && (readBefore & mask) == 0 && !noOpt(s) && !modifiedInLoop(mask, s, loop, cfg)) {
+                SourceStatement hoisted = newStatement(last, s.op);
+                hoisted.comment = s.comment;
+                List<SourceStatement> l2 = s.source.getStatements();
+                PatternMatch edit = new PatternMatch(null, s.source);
+                edit.removed.add(s);
+                if (s.label != null) {
+                    SourceStatement labelStatement = new SourceStatement(SourceStatement.STATEMENT_NONE, s.sl, s.source, config);
+                    labelStatement.label = s.label;
+                    labelStatement.label.definingStatement = labelStatement;
+                    l2.set(l2.indexOf(s), labelStatement);
+                    edit.added.add(labelStatement);
+                } else {
+                    l2.remove(s);
+                }
+                code.updateControlFlowGraph(s.source, edit.removed, edit.added);
+                l.add(beforeLast ? l.indexOf(last) : l.indexOf(last) + 1, hoisted);
+                PatternMatch edit2 = new PatternMatch(null, f);
+                edit2.added.add(hoisted);
+                code.updateControlFlowGraph(f, edit2.removed, edit2.added);
+                code.resetAddresses();
+                if (beforeLast) {
+                    // for -poapply, so that the load appears before the jump:
+                    edit2.removed.add(last);
+                    edit2.added.add(last);
+                }
+                if (pbo != null) pbo.appliedOptimizations.add(edit2);
+
+                // the load is still executed once:
+                int time = s.op.timing()[0];
+                record(edit, s, "Move " + s.op + " out of the loop", 0, time,
+                       (loop.tripCount == null ? time : 0), loop.tripCount, r);
+                return true;
+            }
+            readBefore |= s.op.getInputRegsAndFlags();
+        }
+        return false;
+    }
+
+
+    /*
+    If "s" is "ld r,constant" (or "ld rr,constant"), returns the mask of the register:
+    */
+    int invariantLoadMask(SourceStatement s, CodeBase code)
+    {
+        CPUOp op = s.op;
+        if (!op.spec.opName.equalsIgnoreCase("ld") || op.args.size() != 2) return 0;
+        Expression reg = op.args.get(0);
+        Expression value = op.args.get(1);
+        if (!reg.isRegister(code)) return 0;
+        if (value.type == Expression.EXPRESSION_PARENTHESIS || !value.evaluatesToIntegerConstant() ||
+            value.containsCurrentAddress()) return 0;
+        String name = reg.registerOrFlagName.toLowerCase();
+        if (name.equals("sp") || name.equals("i") || name.equals("r")) return 0;
+        return CPUOpDependency.registerMask(name);
+    }
+
+
+    boolean modifiedInLoop(int mask, SourceStatement except, Loop loop, ControlFlowGraph cfg)
+    {
+        for(BasicBlock b:loop.body) {
+            if (b.hasUnknownSuccessors && !b.endsInCall) return true;
+            for(SourceStatement s:b.statements) {
+                if (s.type != SourceStatement.STATEMENT_CPUOP || s == except) continue;
+                if ((s.op.getOutputRegsAndFlags() & mask) != 0) return true;
+                if (s.op.isCall()) {
+                    SourceStatement target = cfg.getTargetStatement(s);
+                    SubroutineSummary summary = (target == null ? null:cfg.getSubroutineSummary(target));
+                    if (summary == null || (summary.clobbered & mask) != 0) return true;
+                }
+            }
+        }
+        return false;
+    }
+
+
+    boolean unroll(Loop loop, CodeBase code, ControlFlowGraph cfg, OptimizationResult r)
+    {
+        if (loop.tripCount == null || loop.body.size() != 1 || !loop.children.isEmpty()) return false;
+        BasicBlock b = loop.header;
+        SourceStatement jump = b.getLast();
+        if (jump.type != SourceStatement.STATEMENT_CPUOP || noOpt(jump)) return false;
+        int counterMask = CPUOpDependency.registerMask(loop.counterRegister);
+
+        // loop overhead ("djnz", or "dec r" + "jr/jp nz") and body:
+        List<SourceStatement> overhead = new ArrayList<>();
+        List<SourceStatement> body = new ArrayList<>();
+        int deadAfterLoop = counterMask;
+        int flagsWritten = 0;
+        for(SourceStatement s:b.statements) {
+            if (s.type != SourceStatement.STATEMENT_CPUOP) continue;
+            if (noOpt(s)) return false;
+            if (s == jump) {
+                overhead.add(s);
+            } else if (!jump.op.spec.opName.equalsIgnoreCase("djnz") && isDec(s.op, loop.counterRegister) &&
+                       s == previousOp(b, jump)) {
+                overhead.add(s);
+                deadAfterLoop |= DEC_FLAGS;
+            } else {
+                if ((s.op.getInputRegsAndFlags() & counterMask) != 0) return false;
+                // flags read before the body sets them come from the previous iteration
+                // (e.g., from "dec b"), which is no longer there once unrolled:
+                int input = s.op.getInputRegsAndFlags();
+                if (s.op.isCall()) {
+                    SourceStatement target = cfg.getTargetStatement(s);
+                    SubroutineSummary summary = (target == null ? null:cfg.getSubroutineSummary(target));
+                    if (summary == null) return false;
+                    input |= summary.readBeforeWritten;
+                }
+                if ((input & CPUOpDependency.REG_F & ~flagsWritten) != 0) return false;
+                flagsWritten |= s.op.getOutputRegsAndFlags() & CPUOpDependency.REG_F;
+                for(Expression arg:s.op.args) {
+                    if (arg.containsCurrentAddress()) return false;
+                }
+                body.add(s);
+            }
+        }
+        if (body.isEmpty() || (overhead.size() == 2 && overhead.get(0).label != null)) return false;
+        int bodyBytes = 0, bodyTime = 0, overheadBytes = 0, overheadTime = 0;
+        for(SourceStatement s:body) {
+            bodyBytes += s.op.sizeInBytes();
+            bodyTime += s.op.timing()[0];
+        }
+        for(SourceStatement s:overhead) {
+            overheadBytes += s.op.sizeInBytes();
+            overheadTime += s.op.timing()[0];
+        }
+        if (bodyBytes * loop.tripCount > unrollMaxBytes) return false;
+
+        // the counter (and flags) should not be used after the loop, as they will not be 0:
+        SourceStatement exit = cfg.getNextStatement(jump);
+        if (exit == null || !notUsedFrom(exit, deadAfterLoop, cfg)) return false;
+
+        SourceFile f = jump.source;
+        List<SourceStatement> l = f.getStatements();
+        int idx = l.indexOf(body.get(0));
+        for(SourceStatement s:b.statements) {
+            if (s.source != f) return false;
+        }
+        PatternMatch edit = new PatternMatch(null, f);
+        edit.removed.addAll(body);
+        edit.removed.addAll(overhead);
+        for(int i = 0;i<loop.tripCount;i++) {
+            for(SourceStatement s:body) {
+                SourceStatement s2 = newStatement(jump, s.op);
+                if (i == 0 && s.label != null) {
+                    s2.label = s.label;
+                    s2.label.definingStatement = s2;
+                }
+                edit.added.add(s2);
+            }
+        }
+        for(SourceStatement s:edit.removed) l.remove(s);
+        l.addAll(idx, edit.added);
+        code.updateControlFlowGraph(f, edit.removed, edit.added);
+        code.resetAddresses();
+
+        // the last iteration does not take the jump back:
+        int lastIteration = overheadTime - jump.op.timing()[0] + last(jump.op.timing());
+        record(edit, jump, "Unroll loop with " + loop.tripCount + " iterations",
+               overheadBytes + bodyBytes - bodyBytes * loop.tripCount, overheadTime, lastIteration, loop.tripCount, r);
+        return true;
+    }
+
+
+    /*
+    Whether registers/flags in "mask" are not used from "s" (included) onwards:
+    */
+    boolean notUsedFrom(SourceStatement s, int mask, ControlFlowGraph cfg)
+    {
+        CPUOpDependency dep = new CPUOpDependency(mask, null, null, null);
+        if (s.type == SourceStatement.STATEMENT_CPUOP) {
+            if (s.op.checkInputDependency(dep)) return false;
+            dep = s.op.checkOutputDependency(dep);
+            if (dep == null) return true;
+        }
+        Boolean notUsed = cfg.depNotUsedAfter(s, dep);
+        return notUsed != null && notUsed;
+    }
+
+
+    SourceStatement previousOp(BasicBlock b, SourceStatement s)
+    {
+        for(int i = b.statements.indexOf(s)-1;i>=0;i--) {
+            if (b.statements.get(i).type == SourceStatement.STATEMENT_CPUOP) return b.statements.get(i);
+        }
+        return null;
+    }
+
+
+    static boolean isJumpNz(SourceStatement s)
+    {
+        if (s.type != SourceStatement.STATEMENT_CPUOP) return false;
+        String name = s.op.spec.opName.toLowerCase();
+        if (!name.equals("jr") && !name.equals("jp")) return false;
+        if (s.op.args.size() != 2) return false;
+        return RegisterAllocator.isRegister(s.op.args.get(0), "nz");
+    }
+
+
+    static boolean isDec(CPUOp op, String reg)
+    {
+        return op.spec.opName.equalsIgnoreCase("dec") && op.args.size() == 1 &&
+               RegisterAllocator.isRegister(op.args.get(0), reg);
+    }
+
+
+    boolean noOpt(SourceStatement s)
+    {
+        return s.comment != null && s.comment.contains(config.PRAGMA_NO_OPTIMIZATION);
+    }
+
+
+    static int last(int times[])
+    {
+        return times[times.length-1];
+    }
+
+
+    /*
+    "time1"/"time2" are the times saved per iteration (when the loop continues/exits). If the
+    number of iterations is known, the times saved in all iterations are reported:
+    */
+    void record(PatternMatch edit, SourceStatement s, String description, int bytesSaved,
+                int time1, int time2, Integer iterations, OptimizationResult r)
+    {
+        int timeSaved[] = {time1, time2};
+        String timeString;
+        if (iterations != null) {
+            timeSaved[0] = time1 * Math.max(0, iterations - 1) + time2;
+            timeSaved[1] = timeSaved[0];
+            timeString = timeSaved[0] + " " + config.timeUnit + "s saved in " + iterations + " iterations";
+        } else {
+            timeString = (time1 == time2 ? "" + time1 : time1 + "/" + time2) + " " + config.timeUnit + "s saved per iteration";
+        }
+        config.info("Loop optimization", s.fileNameLineString(),
+                description + " (" + bytesSaved + " bytes, " + timeString + ")");
+        r.patternApplications++;
+        r.bytesSaved += bytesSaved;
+        r.timeSaved[0] += timeSaved[0];
+        r.timeSaved[1] += timeSaved[1];
+        if (pbo != null) pbo.appliedOptimizations.add(edit);
+    }
+
+
+    SourceStatement newStatement(SourceStatement s, CPUOp op)
+    {
+        SourceStatement s2 = new SourceStatement(SourceStatement.STATEMENT_CPUOP, s.sl, s.source, config);
+        s2.op = op;
+        return s2;
+    }
+
+
+    CPUOp newOp(String opName, List<Expression> args, SourceStatement s, CodeBase code)
+    {
+        List<CPUOp> op_l = config.opParser.parseOp(opName, args, s, null, code);
+        if (op_l == null || op_l.size() != 1) return null;
+        return op_l.get(0);
+    }
+}
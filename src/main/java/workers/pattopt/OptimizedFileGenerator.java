@@ -0,0 +1,54 @@
+/*
+ * Author: Santiago Ontañón Villar (Brain Games)
+ */
+package workers.pattopt;
+
+import java.util.List;
+
+import cl.MDLConfig;
+import code.CodeBase;
+import workers.MDLWorker;
+
+/**
+ * Generates the files requested with "-poapply" (see PatternBasedOptimizer). It runs
+ * after all the optimizers, so that the generated files contain the changes made by
+ * all of them (each optimizer records its changes in the PatternBasedOptimizer).
+ *
+ * @author santi
+ */
+public class OptimizedFileGenerator implements MDLWorker {
+
+    MDLConfig config;
+    PatternBasedOptimizer pbo;
+
+
+    public OptimizedFileGenerator(MDLConfig a_config, PatternBasedOptimizer a_pbo)
+    {
+        config = a_config;
+        pbo = a_pbo;
+    }
+
+
+    @Override
+    public String docString()
+    {
+        // "-poapply" is documented by the PatternBasedOptimizer:
+        return "";
+    }
+
+
+    @Override
+    public boolean parseFlag(List<String> flags)
+    {
+        return false;
+    }
+
+
+    @Override
+    public boolean work(CodeBase code)
+    {
+        if (!pbo.generateFilesWithAppliedOptimizations) return true;
+        config.debug("Executing "+this.getClass().getSimpleName()+" worker...");
+        return pbo.applyOptimizationsToOriginalFiles(code);
+    }
+}
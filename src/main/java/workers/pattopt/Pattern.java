@@ -4,7 +4,6 @@
 package workers.pattopt;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 
 import org.apache.commons.lang3.tuple.Pair;
@@ -47,35 +46,9 @@ public class Pattern {
     List<CPUOpPattern> replacement = new ArrayList<>();
     List<Constraint> constraints = new ArrayList<>();
     
-    
-    static class DepCheckNode {
-        SourceStatement s;
-        CPUOpDependency dep;
-        List<SourceStatement> callStack;
-        
-        public DepCheckNode(SourceStatement a_s, CPUOpDependency a_dep, List<SourceStatement> a_cs)
-        {
-            s = a_s;
-            dep = a_dep;
-            callStack = a_cs;
-        }
-        
-        
-        public boolean match(CPUOpDependency a_dep, List<SourceStatement> a_cs)
-        {
-            if (!a_dep.equals(dep)) return false;
-            if (callStack == null) {
-                if (a_cs != null) return false;
-            } else {
-                if (a_cs == null) return false;
-                if (a_cs.size() != callStack.size()) return false;
-                for(int i = 0;i<callStack.size();i++) {
-                    if (callStack.get(i) != a_cs.get(i)) return false;
-                }
-            }
-            return true;
-        }
-    }
+    // Only used when profiling the patterns (see "-postats"):
+    PatternStats stats = null;
+    Constraint lastRejectingConstraint = null;
     
 
     public Pattern(String patternString, MDLConfig a_config)
@@ -379,6 +352,27 @@ public class Pattern {
 
     public PatternMatch match(int a_index, SourceFile f, CodeBase code,
                               PatternBasedOptimizer pbo)
+    {
+        if (stats == null) return matchInternal(a_index, f, code, pbo);
+        if (f.getStatements().get(a_index).type != SourceStatement.STATEMENT_CPUOP) return null;
+        long start = System.nanoTime();
+        lastRejectingConstraint = null;
+        PatternMatch match = matchInternal(a_index, f, code, pbo);
+        stats.attempts++;
+        if (match == null) {
+            if (lastRejectingConstraint == null) {
+                stats.instructionRejections++;
+            } else {
+                stats.constraintRejection(lastRejectingConstraint.name);
+            }
+        }
+        stats.nanos += System.nanoTime() - start;
+        return match;
+    }
+    
+
+    PatternMatch matchInternal(int a_index, SourceFile f, CodeBase code,
+                               PatternBasedOptimizer pbo)
     {
         int index = a_index;
         int index_to_display_message_on = -1;
@@ -478,7 +472,10 @@ public class Pattern {
             for(Constraint constraint:constraints) {
                 if (constraint.triggerAfterID == patt.ID) {
                     if (!checkConstraint(constraint, match, f, code, pbo,
-                                         index_to_display_message_on)) return null;
+                                         index_to_display_message_on)) {
+                        lastRejectingConstraint = constraint;
+                        return null;
+                    }
                 }
             }
             
@@ -489,7 +486,10 @@ public class Pattern {
         // potential match! check constraints:
         for(Constraint constraint:constraints) {
             if (!checkConstraint(constraint, match, f, code, pbo,
-                                 index_to_display_message_on)) return null;
+                                 index_to_display_message_on)) {
+                lastRejectingConstraint = constraint;
+                return null;
+            }
         }
 
         return match;
@@ -905,6 +905,18 @@ public class Pattern {
     public boolean apply(SourceFile f, PatternMatch match, 
                          CodeBase code,
                          List<EqualityConstraint> equalitiesToMaintain)
+    {
+        if (stats == null) return applyInternal(f, match, code, equalitiesToMaintain);
+        long start = System.nanoTime();
+        boolean applied = applyInternal(f, match, code, equalitiesToMaintain);
+        stats.nanos += System.nanoTime() - start;
+        return applied;
+    }
+    
+    
+    boolean applyInternal(SourceFile f, PatternMatch match, 
+                          CodeBase code,
+                          List<EqualityConstraint> equalitiesToMaintain)
     {
         // undo record:
         List<Pair<Integer, SourceStatement>> undo = new ArrayList<>();
@@ -1041,10 +1053,13 @@ public class Pattern {
                 }
                  while(equalitiesToMaintain.size() > previousLength) equalitiesToMaintain.remove(equalitiesToMaintain.size()-1);
                 config.info("Optimization undone, as it was breaking the equality constraint: " + eq.exp1 + " == " + eq.exp2);
+                if (stats != null) stats.undos++;
                 code.resetAddresses();
                 return false;
             }
         }
+        
+        code.updateControlFlowGraph(f, match.removed, match.added);
                 
         return true;
     }
@@ -1052,7 +1067,7 @@ public class Pattern {
 
     public boolean regNotModified(SourceStatement s, String reg, SourceFile f, CodeBase code)
     {
-        CPUOpDependency dep = new CPUOpDependency(reg.toUpperCase(), null, null, null, null);        
+        int mask = CPUOpDependency.registerMask(reg);
         if (s.type == SourceStatement.STATEMENT_CPUOP) {
             CPUOp op = s.op;            
             if (op.isRet()) {
@@ -1062,8 +1077,7 @@ public class Pattern {
                 return false;
             }
             
-            CPUOpDependency dep2 = op.checkOutputDependency(dep);
-            return dep.equals(dep2);
+            return (op.getOutputRegsAndFlags() & mask) == 0;
         } else {
             return true;
         }
@@ -1072,7 +1086,7 @@ public class Pattern {
     
     public boolean flagNotModified(SourceStatement s, String flag, SourceFile f, CodeBase code)
     {
-        CPUOpDependency dep = new CPUOpDependency(null, flag.toUpperCase(), null, null, null);        
+        int mask = CPUOpDependency.flagMask(flag);
         if (s.type == SourceStatement.STATEMENT_CPUOP) {
             CPUOp op = s.op;            
             if (op.isRet()) {
@@ -1082,8 +1096,7 @@ public class Pattern {
                 return false;
             }
             
-            CPUOpDependency dep2 = op.checkOutputDependency(dep);
-            return dep.equals(dep2);
+            return (op.getOutputRegsAndFlags() & mask) == 0;
         } else {
             return true;
         }
@@ -1092,7 +1105,7 @@ public class Pattern {
 
     public boolean regNotUsed(SourceStatement s, String reg, SourceFile f, CodeBase code)
     {
-        CPUOpDependency dep = new CPUOpDependency(reg.toUpperCase(), null, null, null, null);        
+        int mask = CPUOpDependency.registerMask(reg);
         if (s.type == SourceStatement.STATEMENT_CPUOP) {
             CPUOp op = s.op;            
             if (op.isRet()) {
@@ -1102,7 +1115,7 @@ public class Pattern {
                 return false;
             }
             
-            return !op.checkInputDependency(dep);
+            return (op.getInputRegsAndFlags() & mask) == 0;
         } else {
             return true;
         }
@@ -1111,7 +1124,7 @@ public class Pattern {
     
     public boolean flagNotUsed(SourceStatement s, String flag, SourceFile f, CodeBase code)
     {
-        CPUOpDependency dep = new CPUOpDependency(null, flag.toUpperCase(), null, null, null);        
+        int mask = CPUOpDependency.flagMask(flag);
         if (s.type == SourceStatement.STATEMENT_CPUOP) {
             CPUOp op = s.op;            
             if (op.isRet()) {
@@ -1121,7 +1134,7 @@ public class Pattern {
                 return false;
             }
             
-            return !op.checkInputDependency(dep);
+            return (op.getInputRegsAndFlags() & mask) == 0;
         } else {
             return true;
         }
@@ -1146,85 +1159,6 @@ public class Pattern {
     // - returns null when it's unclear
     public Boolean depNotUsedAfter(SourceStatement s, CPUOpDependency a_dep, SourceFile f, CodeBase code)
     {
-        List<DepCheckNode> open = new ArrayList<>();
-        HashMap<SourceStatement,List<DepCheckNode>> closed = new HashMap<>();
-        List<Pair<SourceStatement, List<SourceStatement>>> tmp = f.nextExecutionStatements(s, true, new ArrayList<>(), code);
-        if (tmp == null) {
-            // It's hard to tell where is this instruction going to jump,
-            // so we act conservatively, and block the optimization:
-            // config.trace("    unclear next statement after " + s);
-            return false;
-        }
-        for(Pair<SourceStatement, List<SourceStatement>> pair:tmp) {
-            DepCheckNode node = new DepCheckNode(pair.getLeft(), a_dep, pair.getRight());
-            open.add(node);
-            List<DepCheckNode> l = new ArrayList<>();
-            l.add(node);
-            closed.put(pair.getLeft(), l);
-        }
-        while(!open.isEmpty()) {
-            DepCheckNode node = open.remove(0);
-            SourceStatement next = node.s;
-            CPUOpDependency dep = node.dep;
-            List<SourceStatement> callStack = node.callStack;
-            // config.trace("    "+next.sl.lineNumber+": "+next);
-
-            if (next.type == SourceStatement.STATEMENT_CPUOP) {
-                CPUOp op = next.op;
-//                if (op.isRet()) {
-//                    // It's hard to tell where is this instruction going to jump,
-//                    // so we act conservatively, and block the optimization:
-//                    // config.trace("    ret!");
-//                    return null;
-//                }
-                if (op.checkInputDependency(dep)) {
-                    // dependency is actually used!
-                    // config.trace("    dependency found!");
-                    return false;
-                }
-                dep = op.checkOutputDependency(dep);
-//                if (dep == null) {
-//                    // config.trace("    dependency broken!");
-//                }
-            }
-            
-            if (dep != null) {
-                // add successors:
-                List<Pair<SourceStatement, List<SourceStatement>>> nextNext_l = next.source.nextExecutionStatements(next, true, callStack, code);
-                if (nextNext_l == null) {
-                    // It's hard to tell where is this instruction going to jump,
-                    // so we act conservatively, and block the optimization:
-                    // config.trace("    unclear next statement after: "+next);
-                    return null;
-                }
-                for(Pair<SourceStatement, List<SourceStatement>> nextNext_pair: nextNext_l) {
-                    SourceStatement nextNext = nextNext_pair.getLeft();
-                    List<SourceStatement> netNext_stack = nextNext_pair.getRight();
-                    if (!closed.containsKey(nextNext)) {
-                        DepCheckNode nextNode = new DepCheckNode(nextNext, dep, netNext_stack);
-                        open.add(nextNode);
-                        List<DepCheckNode> l = new ArrayList<>();
-                        l.add(nextNode);
-                        closed.put(nextNext, l);
-                    } else {
-                        List<DepCheckNode> l = closed.get(nextNext);
-                        boolean found = false;
-                        for(DepCheckNode n:l) {
-                            if (n.match(dep, netNext_stack)) {
-                                found = true;
-                                break;
-                            }
-                        }
-                        if (!found) {
-                            DepCheckNode nextNode = new DepCheckNode(nextNext, dep, netNext_stack);
-                            l.add(nextNode);
-                            open.add(nextNode);
-                        }
-                    }
-                }
-            }
-        }
-
-        return true;
+        return code.getControlFlowGraph().depNotUsedAfter(s, a_dep);
     }
 }
@@ -4,6 +4,7 @@
 package workers.pattopt;
 
 import java.io.BufferedReader;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -11,12 +12,9 @@ import cl.MDLConfig;
 import code.CodeBase;
 import code.SourceFile;
 import code.SourceStatement;
-import java.io.FileReader;
-import java.io.FileWriter;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.lang3.tuple.Pair;
 import parser.Tokenizer;
-import util.Resources;
 import workers.MDLWorker;
 
 /**
@@ -48,6 +46,17 @@ public class PatternBasedOptimizer implements MDLWorker {
     }
     
 
+    // A candidate pattern match for global selection, covering the statements
+    // from "start" to "end" (both inclusive) of a source file:
+    static class MatchCandidate {
+        Pattern patt;
+        PatternMatch match;
+        SourceStatement first;
+        int start, end;
+        long weight;
+    }
+    
+
     public boolean logPotentialOptimizations = false;    
     public boolean generateFilesWithAppliedOptimizations = false;
     public boolean onlyOnePotentialOptimizationPerLine = true;
@@ -55,8 +64,18 @@ public class PatternBasedOptimizer implements MDLWorker {
     MDLConfig config;
     boolean activate = false;
     boolean silent = false;
+    // When true, instead of greedily applying the best pattern at each statement, all the
+    // matches in a file are collected, and the non-overlapping subset with maximum savings is applied:
+    boolean globalSelection = false;
+    // When "useCostModel" is true, matches are compared using "costModel", and those
+    // that make the code worse according to it are not applied:
+    boolean useCostModel = false;
+    CostModel costModel;
     String inputPatternsFileName = "data/pbo-patterns.txt";
     List<Pattern> patterns = new ArrayList<>();
+    // Per-pattern profiling output (if not null, patterns are profiled):
+    String statsFileName = null;
+    String statsJsonFileName = null;
     
     // Some optimizations depend on certain labels to have specific values. After applying them,
     // we need to ensure that other optimizations to not change those values and make the code incorrect.
@@ -71,6 +90,7 @@ public class PatternBasedOptimizer implements MDLWorker {
     public PatternBasedOptimizer(MDLConfig a_config)
     {
         config = a_config;
+        costModel = new CostModel(config);
     }
 
 
@@ -81,9 +101,13 @@ public class PatternBasedOptimizer implements MDLWorker {
                "  -poapply: For each assembler <file> parsed by MDL, a corresponding <file>.mdl.asm is generated with the optimizations applied to it.\n" + 
                "  -popotential: Reports lines where a potential optimization was not applied for safety, but could maybe be done manually (at most one potential optimization per line is shown).\n" +
                "  -popotential-all: Same as above, but without the one-per-line constraint.\n" +
+               "  -poglobal: Instead of applying the best optimization at each line as soon as it is found, collects all the potential optimizations of each file, and applies the non-overlapping subset that saves the most bytes. Use '-poglobal speed' to maximize the time saved instead (same as '-poglobal -pocost speed').\n" +
+               "  -pocost <objective>: objective used to select among the optimizations that can be applied at each line, and to discard those that make the code worse. It can be 'size', 'speed', 'loop-speed' (like 'speed', but time saved inside of loops counts " + CostModel.LOOP_DEPTH_WEIGHT + " times more per nesting level), or 'blend:<bytes weight>,<time weight>' (a weighted sum of bytes and time saved).\n" +
                "  -popatterns <file>: specifies the file to load optimization patterns from (default 'data/pbo-patterns.txt', " +
                                      "which contains patterns that optimize both size and speed). For targetting size optimizations, use " +
-                                     "'data/pbo-patterns-size.txt'.\n";
+                                     "'data/pbo-patterns-size.txt'.\n" +
+               "  -postats <output file>: generates a tsv file with per-pattern statistics of the pattern-based optimizer (attempts, rejections by the instructions or by each constraint, applications, undos, savings and time spent on each pattern), sorted by time spent.\n" +
+               "  -postats-json <output file>: same as -postats, but in json format.\n";
     }
 
     @Override
@@ -127,12 +151,47 @@ public class PatternBasedOptimizer implements MDLWorker {
             onlyOnePotentialOptimizationPerLine = false;
             return true;
         }
+        if (flags.get(0).equals("-poglobal")) {
+            flags.remove(0);
+            if (!flags.isEmpty()) {
+                if (flags.get(0).equals("size")) {
+                    costModel.objective = CostModel.OBJECTIVE_SIZE;
+                    flags.remove(0);
+                } else if (flags.get(0).equals("speed")) {
+                    costModel.objective = CostModel.OBJECTIVE_SPEED;
+                    flags.remove(0);
+                }
+            }
+            activate = true;
+            globalSelection = true;
+            return true;
+        }
+        if (flags.get(0).equals("-pocost") && flags.size()>=2) {
+            if (!costModel.parse(flags.get(1))) return false;
+            flags.remove(0);
+            flags.remove(0);
+            activate = true;
+            useCostModel = true;
+            return true;
+        }
         if (flags.get(0).equals("-popatterns") && flags.size()>=2) {
             flags.remove(0);
             activate = true;
             inputPatternsFileName = flags.remove(0);
             return true;
         }
+        if (flags.get(0).equals("-postats") && flags.size()>=2) {
+            flags.remove(0);
+            activate = true;
+            statsFileName = flags.remove(0);
+            return true;
+        }
+        if (flags.get(0).equals("-postats-json") && flags.size()>=2) {
+            flags.remove(0);
+            activate = true;
+            statsJsonFileName = flags.remove(0);
+            return true;
+        }
         return false;
     }
 
@@ -140,13 +199,18 @@ public class PatternBasedOptimizer implements MDLWorker {
     void initPatterns()
     {
         loadPatterns(inputPatternsFileName);
+        if (statsFileName != null || statsJsonFileName != null) {
+            for(Pattern patt:patterns) {
+                if (patt.stats == null) patt.stats = new PatternStats(patt);
+            }
+        }
     }
     
     
     void loadPatterns(String fileName) 
     {
         config.debug("Loading patterns from " + fileName);
-        try (BufferedReader br = Resources.asReader(fileName)) {
+        try (BufferedReader br = config.sourceProvider.asReader(fileName)) {
             String patternString = "";
             while(true) {
                 String line = br.readLine();
@@ -195,9 +259,26 @@ public class PatternBasedOptimizer implements MDLWorker {
     @Override
     public boolean work(CodeBase code) {
         if (activate) {
+            // the files for "-poapply" are generated by the OptimizedFileGenerator, once
+            // all the other optimizers have run:
             optimize(code);
-            if (generateFilesWithAppliedOptimizations) {
-                applyOptimizationsToOriginalFiles(code);
+            if (statsFileName != null) {
+                try (Writer fw = config.sourceProvider.asWriter(statsFileName)) {
+                    fw.write(statsTableString(sortedStats()));
+                    fw.flush();
+                } catch (Exception e) {
+                    config.error("Cannot write to file " + statsFileName + ": " + e);
+                    return false;
+                }
+            }
+            if (statsJsonFileName != null) {
+                try (Writer fw = config.sourceProvider.asWriter(statsJsonFileName)) {
+                    fw.write(statsJsonString(sortedStats()));
+                    fw.flush();
+                } catch (Exception e) {
+                    config.error("Cannot write to file " + statsJsonFileName + ": " + e);
+                    return false;
+                }
             }
         }
         return true;
@@ -210,12 +291,18 @@ public class PatternBasedOptimizer implements MDLWorker {
         List<Pair<Pattern,PatternMatch>> matches = new ArrayList<>();
         
         for (SourceFile f : code.getSourceFiles()) {
+            if (globalSelection) {
+                optimizeWithGlobalSelection(f, code, r);
+                continue;
+            }
             for (int i = 0; i < f.getStatements().size(); i++) {
                 alreadyShownAPotentialOptimization = false;
                 matches.clear();
                 for(Pattern patt: patterns) {
                     PatternMatch match = patt.match(i, f, code, this);
-                    if (match != null) matches.add(Pair.of(patt,match));
+                    if (match == null) continue;
+                    if (useCostModel && costModel.regresses(patt, match, code)) continue;
+                    matches.add(Pair.of(patt,match));
                 }
 
                 if (!matches.isEmpty()) {
@@ -224,6 +311,13 @@ public class PatternBasedOptimizer implements MDLWorker {
                     PatternMatch bestMatch = null;
                     int bestSavings = 0;    // selection is based on bytes saved
                     for(Pair<Pattern,PatternMatch> p:matches) {
+                        if (useCostModel) {
+                            if (bestPatt == null || costModel.better(p.getLeft(), p.getRight(), bestPatt, bestMatch, code)) {
+                                bestPatt = p.getLeft();
+                                bestMatch = p.getRight();
+                            }
+                            continue;
+                        }
                         int savings = p.getLeft().getSpaceSaving(p.getRight(), code);
                         if (bestPatt == null || savings > bestSavings) {
                             bestPatt = p.getLeft();
@@ -232,58 +326,8 @@ public class PatternBasedOptimizer implements MDLWorker {
                         }
                     }
                     
-                    SourceStatement statementToDisplayMessageOn = null;
-                    int startIndex = i;
-                    int endIndex = startIndex;
-                    for(int id:bestMatch.map.keySet()) {
-                        if (id == 0) statementToDisplayMessageOn = bestMatch.map.get(id).get(0);
-                        for(SourceStatement s:bestMatch.map.get(id)) {
-                            int idx = f.getStatements().indexOf(s);
-                            if (idx > endIndex) endIndex = idx;
-                        }
-                    }
-                    if (statementToDisplayMessageOn == null) {
-                        config.warn("Could not identify the statement to display the optimization message on...");
-                        statementToDisplayMessageOn = f.getStatements().get(i);
-                    }
-//                    SourceStatement endStatement = null;
-//                    if (f.getStatements().size()>endIndex+1) {
-//                        endStatement = f.getStatements().get(endIndex+1);
-//                    }
-
-                    if (bestPatt.apply(f, bestMatch, code, equalitiesToMaintain)) {
-                        if (config.isInfoEnabled()) {
-                            int bytesSaved = bestPatt.getSpaceSaving(bestMatch, code);
-                            String timeSavedString = bestPatt.getTimeSavingString(bestMatch, code);
-                            config.info("Pattern-based optimization", statementToDisplayMessageOn.fileNameLineString(), 
-                                    bestPatt.getInstantiatedName(bestMatch)+" ("+bytesSaved+" bytes, " +
-                                    timeSavedString + " " +config.timeUnit+"s saved)");
-
-//                            if (config.isDebugEnabled()) {
-//                                StringBuilder previousCode = new StringBuilder();
-//                                for(int line = startIndex;line<endIndex;line++) {
-//                                    previousCode.append('\n')
-//                                                .append(f.getStatements().get(line).toString());
-//                                }
-//
-//                                StringBuilder newCode = new StringBuilder();
-//                                endIndex = f.getStatements().size();
-//                                if (endStatement != null) endIndex = f.getStatements().indexOf(endStatement);
-//                                for(int line = startIndex;line<endIndex;line++) {
-//                                    newCode.append('\n')
-//                                           .append(f.getStatements().get(line).toString());
-//                                }
-//
-//                                config.debug(previousCode + "\nReplaced by:" + newCode);
-//                            }
-                        }
-                        r.patternApplications++;
-                        r.bytesSaved += bestPatt.getSpaceSaving(bestMatch, code);
-                        r.timeSaved[0] += bestPatt.getTimeSaving(bestMatch, code)[0];
-                        r.timeSaved[1] += bestPatt.getTimeSaving(bestMatch, code)[1];
+                    if (applyMatch(f, bestPatt, bestMatch, i, code, r)) {
                         i = Math.max(0, i-2);   // go back a couple of statements, as more optimizations might chain
-                        
-                        appliedOptimizations.add(bestMatch);
                     }
                 }
             }
@@ -296,6 +340,222 @@ public class PatternBasedOptimizer implements MDLWorker {
     }
     
     
+    /*
+    Collects all the pattern matches in "f", and applies the subset of non-overlapping
+    matches with maximum savings (weighted interval scheduling). Since applying
+    optimizations can enable new ones, this is repeated until no more optimizations
+    can be applied.
+    */
+    void optimizeWithGlobalSelection(SourceFile f, CodeBase code, OptimizationResult r)
+    {
+        while(true) {
+            List<MatchCandidate> candidates = new ArrayList<>();
+            for (int i = 0; i < f.getStatements().size(); i++) {
+                alreadyShownAPotentialOptimization = false;
+                for(Pattern patt: patterns) {
+                    PatternMatch match = patt.match(i, f, code, this);
+                    if (match == null) continue;
+                    MatchCandidate c = new MatchCandidate();
+                    c.patt = patt;
+                    c.match = match;
+                    c.first = f.getStatements().get(i);
+                    c.start = i;
+                    c.end = matchEndIndex(f, match, i);
+                    c.weight = costModel.weight(patt, match, code);
+                    // matches that do not improve the objective are never selected:
+                    if (c.weight > 0) candidates.add(c);
+                }
+            }
+            if (candidates.isEmpty()) return;
+            
+            // best[j]: best total weight using only the first j candidates (sorted by end):
+            candidates.sort((c1, c2) -> Integer.compare(c1.end, c2.end));
+            int n = candidates.size();
+            long best[] = new long[n+1];
+            int previous[] = new int[n];
+            for(int j = 0;j<n;j++) {
+                // number of candidates that end before candidate j starts:
+                int lo = 0, hi = j;
+                while(lo < hi) {
+                    int mid = (lo + hi) / 2;
+                    if (candidates.get(mid).end < candidates.get(j).start) {
+                        lo = mid + 1;
+                    } else {
+                        hi = mid;
+                    }
+                }
+                previous[j] = lo;
+                best[j+1] = Math.max(best[j], candidates.get(j).weight + best[lo]);
+            }
+            List<MatchCandidate> selected = new ArrayList<>();
+            for(int j = n;j>0;) {
+                if (best[j] == best[j-1]) {
+                    j--;
+                } else {
+                    selected.add(candidates.get(j-1));
+                    j = previous[j-1];
+                }
+            }
+
+            // Apply them (selected is sorted from last to first). Previous applications
+            // might have invalidated the constraints of a match, so we match again (without
+            // counting it in the pattern statistics, as this match was already counted):
+            boolean anyApplied = false;
+            for(MatchCandidate c:selected) {
+                int index = f.getStatements().indexOf(c.first);
+                if (index < 0) continue;
+                PatternMatch match = c.patt.matchInternal(index, f, code, this);
+                if (match == null || matchEndIndex(f, match, index) != index + c.end - c.start) continue;
+                if (applyMatch(f, c.patt, match, index, code, r)) anyApplied = true;
+            }
+            if (!anyApplied) return;
+        }
+    }
+    
+    
+    int matchEndIndex(SourceFile f, PatternMatch match, int startIndex)
+    {
+        int endIndex = startIndex;
+        for(List<SourceStatement> l:match.map.values()) {
+            for(SourceStatement s:l) {
+                int idx = f.getStatements().indexOf(s);
+                if (idx > endIndex) endIndex = idx;
+            }
+        }
+        return endIndex;
+    }
+    
+    
+    boolean applyMatch(SourceFile f, Pattern patt, PatternMatch match, int i, CodeBase code, OptimizationResult r)
+    {
+        SourceStatement statementToDisplayMessageOn = null;
+        for(int id:match.map.keySet()) {
+            if (id == 0) statementToDisplayMessageOn = match.map.get(id).get(0);
+        }
+        if (statementToDisplayMessageOn == null) {
+            config.warn("Could not identify the statement to display the optimization message on...");
+            statementToDisplayMessageOn = f.getStatements().get(i);
+        }
+
+        if (patt.apply(f, match, code, equalitiesToMaintain)) {
+            if (config.isInfoEnabled()) {
+                int bytesSaved = patt.getSpaceSaving(match, code);
+                String timeSavedString = patt.getTimeSavingString(match, code);
+                config.info("Pattern-based optimization", statementToDisplayMessageOn.fileNameLineString(), 
+                        patt.getInstantiatedName(match)+" ("+bytesSaved+" bytes, " +
+                        timeSavedString + " " +config.timeUnit+"s saved)");
+            }
+            r.patternApplications++;
+            r.bytesSaved += patt.getSpaceSaving(match, code);
+            r.timeSaved[0] += patt.getTimeSaving(match, code)[0];
+            r.timeSaved[1] += patt.getTimeSaving(match, code)[1];
+            if (patt.stats != null) {
+                patt.stats.applications++;
+                patt.stats.bytesSaved += patt.getSpaceSaving(match, code);
+                patt.stats.timeSaved[0] += patt.getTimeSaving(match, code)[0];
+                patt.stats.timeSaved[1] += patt.getTimeSaving(match, code)[1];
+            }
+            appliedOptimizations.add(match);
+            costModel.matchApplied(match);
+            return true;
+        }
+        return false;
+    }
+    
+    
+    /*
+    Returns the statistics of all the patterns (only if profiling was enabled), sorted
+    by the time spent on each of them (from higher to lower).
+    */
+    public List<PatternStats> sortedStats()
+    {
+        List<PatternStats> sorted = new ArrayList<>();
+        for(Pattern patt:patterns) {
+            if (patt.stats != null) sorted.add(patt.stats);
+        }
+        sorted.sort((s1, s2) -> Long.compare(s2.nanos, s1.nanos));
+        return sorted;
+    }
+
+
+    public String statsTableString(List<PatternStats> sorted)
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("pattern\tattempts\tinstruction rejections\tconstraint rejections\tapplications\tundos\tbytes saved\t" +
+                  config.timeUnit + "s saved\ttime (microseconds)\n");
+        for(PatternStats ps:sorted) {
+            sb.append(ps.pattern.getName());
+            sb.append("\t");
+            sb.append(ps.attempts);
+            sb.append("\t");
+            sb.append(ps.instructionRejections);
+            sb.append("\t");
+            sb.append(ps.totalConstraintRejections());
+            for(String name:ps.constraintRejections.keySet()) {
+                sb.append(" " + name + ":" + ps.constraintRejections.get(name));
+            }
+            sb.append("\t");
+            sb.append(ps.applications);
+            sb.append("\t");
+            sb.append(ps.undos);
+            sb.append("\t");
+            sb.append(ps.bytesSaved);
+            sb.append("\t");
+            sb.append(ps.timeString());
+            sb.append("\t");
+            sb.append(ps.nanos / 1000);
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
+
+
+    public String statsJsonString(List<PatternStats> sorted)
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n  \"timeUnit\": \"" + config.timeUnit + "\",\n  \"patterns\": [");
+        for(int i = 0;i<sorted.size();i++) {
+            PatternStats ps = sorted.get(i);
+            sb.append(i == 0 ? "\n":",\n");
+            sb.append("    {\"name\": " + jsonString(ps.pattern.getName()) +
+                      ", \"attempts\": " + ps.attempts +
+                      ", \"instructionRejections\": " + ps.instructionRejections +
+                      ", \"constraintRejections\": {");
+            int j = 0;
+            for(String name:ps.constraintRejections.keySet()) {
+                if (j++ > 0) sb.append(", ");
+                sb.append(jsonString(name) + ": " + ps.constraintRejections.get(name));
+            }
+            sb.append("}, \"applications\": " + ps.applications +
+                      ", \"undos\": " + ps.undos +
+                      ", \"bytesSaved\": " + ps.bytesSaved +
+                      ", \"timeSaved\": [" + ps.timeSaved[0] + ", " + ps.timeSaved[1] + "]" +
+                      ", \"nanos\": " + ps.nanos + "}");
+        }
+        sb.append("\n  ]\n}\n");
+        return sb.toString();
+    }
+
+
+    static String jsonString(String str)
+    {
+        return "\"" + str.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+
+    /*
+    Records changes made by other optimizers, so that they show up in the files
+    generated with "-poapply":
+    */
+    public void recordAppliedOptimization(SourceFile f, List<SourceStatement> removed, List<SourceStatement> added)
+    {
+        PatternMatch match = new PatternMatch(null, f);
+        match.removed.addAll(removed);
+        match.added.addAll(added);
+        appliedOptimizations.add(match);
+    }
+
+
     public boolean applyOptimizationsToOriginalFiles(CodeBase code)
     {
         for(SourceFile f:code.getSourceFiles()) {
@@ -307,7 +567,7 @@ public class PatternBasedOptimizer implements MDLWorker {
             //   original turned into
             List<List<String>> lines = new ArrayList<>();
             try {
-                BufferedReader br = new BufferedReader(new FileReader(f.fileName));
+                BufferedReader br = config.sourceProvider.asReader(f.fileName);
                 while(true) {
                     String line = br.readLine();
                     if (line == null) break;
@@ -384,7 +644,7 @@ public class PatternBasedOptimizer implements MDLWorker {
             
             // 4) Save lines:
             try {
-                FileWriter fw = new FileWriter(newFileName);
+                Writer fw = config.sourceProvider.asWriter(newFileName);
                 for(List<String> l:lines) {
                     for(String line:l) {
                         fw.write(line + "\n");
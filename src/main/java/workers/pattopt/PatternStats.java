@@ -0,0 +1,60 @@
+/*
+ * Author: Santiago Ontañón Villar (Brain Games)
+ */
+package workers.pattopt;
+
+import java.util.LinkedHashMap;
+
+/**
+ * Profiling information of a single optimization pattern, accumulated over all the
+ * times it is tried by the pattern-based optimizer (see "-postats").
+ *
+ * @author santi
+ */
+public class PatternStats {
+    public Pattern pattern;
+
+    // number of statements the pattern was tried at:
+    public int attempts = 0;
+    // attempts rejected because the instructions did not match the pattern:
+    public int instructionRejections = 0;
+    // attempts rejected by a constraint, indexed by constraint name:
+    public LinkedHashMap<String, Integer> constraintRejections = new LinkedHashMap<>();
+    public int applications = 0;
+    // applications that had to be undone as they broke an equality constraint:
+    public int undos = 0;
+    public int bytesSaved = 0;
+    public int timeSaved[] = {0,0};
+    // cumulative time spent matching and applying the pattern:
+    public long nanos = 0;
+
+
+    public PatternStats(Pattern a_pattern)
+    {
+        pattern = a_pattern;
+    }
+
+
+    public void constraintRejection(String constraintName)
+    {
+        Integer n = constraintRejections.get(constraintName);
+        constraintRejections.put(constraintName, n == null ? 1:n+1);
+    }
+
+
+    public int totalConstraintRejections()
+    {
+        int total = 0;
+        for(int n:constraintRejections.values()) total += n;
+        return total;
+    }
+
+
+    public String timeString() {
+        if (timeSaved[0] == timeSaved[1]) {
+            return ""+timeSaved[0];
+        } else {
+            return timeSaved[0] + "/" + timeSaved[1];
+        }
+    }
+}
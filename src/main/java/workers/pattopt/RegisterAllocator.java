@@ -0,0 +1,656 @@
+/*
+ * Author: Santiago Ontañón Villar (Brain Games)
+ */
+package workers.pattopt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import cl.MDLConfig;
+import code.BasicBlock;
+import code.CPUOp;
+import code.CPUOpDependency;
+import code.CodeBase;
+import code.ControlFlowGraph;
+import code.Expression;
+import code.SourceFile;
+import code.SourceStatement;
+import code.SubroutineSummary;
+import workers.MDLWorker;
+import workers.pattopt.PatternBasedOptimizer.OptimizationResult;
+
+/**
+ * Register-level optimizations meant for compiler-generated code (e.g., SDCC), which
+ * keeps local variables in the stack frame (accessed via "(ix+d)"), and moves values
+ * around between registers more than needed:
+ * - Stack slot promotion: a local variable "(ix-d)" of a routine is replaced by a
+ *   register that is not used anywhere in the routine (nor in the subroutines it calls).
+ *   This is only done when the address of the stack frame is never taken (so the
+ *   variable cannot be accessed in any other way), and when the register is not used
+ *   after the routine returns (by checking all the call sites, or, for the SDCC
+ *   dialect, assuming its calling convention, where the callee can modify any register
+ *   other than ix/iy). Recursive routines are skipped, as each recursive call would
+ *   overwrite the register.
+ * - Copy propagation: after "ld r1,r2", uses of "r1" in the same basic block are
+ *   replaced by "r2", and if "r1" is not used anymore afterwards, the "ld" is removed.
+ *
+ * @author santi
+ */
+public class RegisterAllocator implements MDLWorker {
+    // Registers that can be used for promoting stack slots, in order of preference:
+    public static final String PROMOTION_REGISTERS[] = {"b", "c", "d", "e", "h", "l", "a"};
+    public static final String COPY_REGISTERS[] = {"a", "b", "c", "d", "e", "h", "l"};
+    public static final int REG_IX = CPUOpDependency.REG_IXH | CPUOpDependency.REG_IXL;
+    // Registers used to pass arguments and return values in the SDCC calling conventions
+    // (both the stack-based one, and "__sdcccall(1)"):
+    public static final int SDCC_ARGUMENT_REGS = CPUOpDependency.REG_A | CPUOpDependency.REG_D |
+                                                 CPUOpDependency.REG_E | CPUOpDependency.REG_H |
+                                                 CPUOpDependency.REG_L;
+    public static final int SDCC_RETURN_REGS = SDCC_ARGUMENT_REGS;
+
+    MDLConfig config;
+    PatternBasedOptimizer pbo = null;   // to record the changes for "-poapply" (if any)
+    boolean activate = false;
+
+
+    public RegisterAllocator(MDLConfig a_config, PatternBasedOptimizer a_pbo)
+    {
+        config = a_config;
+        pbo = a_pbo;
+    }
+
+
+    @Override
+    public String docString()
+    {
+        return "  -ra: replaces local variables in the stack frame ((ix+d) accesses) by free registers, and propagates register copies within basic blocks (designed for compiler-generated code, such as SDCC's).\n";
+    }
+
+
+    @Override
+    public boolean parseFlag(List<String> flags)
+    {
+        if (flags.get(0).equals("-ra")) {
+            flags.remove(0);
+            activate = true;
+            return true;
+        }
+        return false;
+    }
+
+
+    @Override
+    public boolean work(CodeBase code)
+    {
+        if (!activate) return true;
+        config.debug("Executing "+this.getClass().getSimpleName()+" worker...");
+        optimize(code);
+        return true;
+    }
+
+
+    public OptimizationResult optimize(CodeBase code)
+    {
+        OptimizationResult r = new OptimizationResult();
+        promoteStackSlots(code, r);
+        // New ops for the statements that are modified (null for removed statements):
+        LinkedHashMap<SourceStatement, CPUOp> changes = new LinkedHashMap<>();
+        propagateCopies(code, changes, r);
+        applyChanges(code, changes, "Copy propagation", r);
+        config.info("RegisterAllocator: "+r.patternApplications+" optimizations applied, " +
+                    r.bytesSaved+" bytes, " +
+                    r.timeString() + " " +config.timeUnit+"s saved.");
+        return r;
+    }
+
+
+    void promoteStackSlots(CodeBase code, OptimizationResult r)
+    {
+        // Routines are processed one at a time, and the changes applied right away, so
+        // that the subroutine summaries used for the next routines are up to date:
+        HashSet<SourceStatement> done = new HashSet<>();
+        boolean change = true;
+        while(change) {
+            change = false;
+            ControlFlowGraph cfg = code.getControlFlowGraph();
+            for(BasicBlock entry:cfg.getBasicBlocks()) {
+                if (done.contains(entry.getFirst()) || !isRoutineEntry(entry)) continue;
+                LinkedHashSet<BasicBlock> routine = cfg.getRoutineBlocks(entry);
+                for(BasicBlock b:routine) done.add(b.getFirst());
+                if (!standardFrame(routine, code) || isRecursive(routine, cfg)) continue;
+                LinkedHashMap<SourceStatement, CPUOp> changes = promoteStackSlots(entry, routine, code, cfg);
+                if (!changes.isEmpty()) {
+                    applyChanges(code, changes, "Stack slot promotion", r);
+                    change = true;
+                    break;
+                }
+            }
+        }
+    }
+
+
+    LinkedHashMap<SourceStatement, CPUOp> promoteStackSlots(BasicBlock entry, LinkedHashSet<BasicBlock> routine,
+                                                            CodeBase code, ControlFlowGraph cfg)
+    {
+        LinkedHashMap<SourceStatement, CPUOp> changes = new LinkedHashMap<>();
+        // local variables (ix-d) and the statements that access them:
+        LinkedHashMap<Integer, List<SourceStatement>> slots = new LinkedHashMap<>();
+        int used = 0;
+        for(BasicBlock b:routine) {
+            for(SourceStatement s:b.statements) {
+                if (s.type != SourceStatement.STATEMENT_CPUOP) continue;
+                used |= s.op.getInputRegsAndFlags() | s.op.getOutputRegsAndFlags();
+                if (s.op.isCall()) used |= calleeRegisters(s, cfg);
+                Integer offset = null;
+                for(Expression arg:s.op.args) {
+                    Integer offset2 = ixOffset(arg, s, code);
+                    if (offset2 != null) offset = offset2;
+                }
+                if (offset == null) continue;
+                List<SourceStatement> l = slots.get(offset);
+                if (l == null) {
+                    l = new ArrayList<>();
+                    slots.put(offset, l);
+                }
+                l.add(s);
+            }
+        }
+
+        HashSet<Integer> stackAccesses = stackAccessedSlots(entry, routine, code, cfg);
+        if (stackAccesses == null) return changes;
+        for(int offset:slots.keySet()) {
+            // Arguments (positive offsets) are written by the caller, and slots written/read
+            // with push/pop cannot be replaced by a register:
+            if (offset >= 0 || stackAccesses.contains(offset)) continue;
+            for(String reg:PROMOTION_REGISTERS) {
+                int mask = CPUOpDependency.registerMask(reg);
+                if ((used & mask) != 0) continue;
+                if (!notUsedAfterReturning(entry, mask, cfg)) continue;
+                LinkedHashMap<SourceStatement, CPUOp> slotChanges = new LinkedHashMap<>();
+                for(SourceStatement s:slots.get(offset)) {
+                    CPUOp op = replaceArgs(s, offset, reg, code);
+                    if (op == null) break;
+                    slotChanges.put(s, op);
+                }
+                if (slotChanges.size() != slots.get(offset).size()) break;
+                config.info("Stack slot promotion", entry.getFirst().fileNameLineString(),
+                            "Local variable at (ix" + offset + ") replaced by register " + reg);
+                changes.putAll(slotChanges);
+                used |= mask;
+                break;
+            }
+        }
+        return changes;
+    }
+
+
+    /*
+    Blocks starting with a label that can only be reached via a call (or from outside
+    of the code base). Blocks that only contain labels/directives (e.g., the label SDCC
+    defines at the beginning of each area) are ignored as predecessors:
+    */
+    static boolean isRoutineEntry(BasicBlock b)
+    {
+        if (b.getFirst().label == null) return false;
+        List<BasicBlock> open = new ArrayList<>(b.predecessors);
+        LinkedHashSet<BasicBlock> closed = new LinkedHashSet<>();
+        while(!open.isEmpty()) {
+            BasicBlock pred = open.remove(0);
+            if (pred == b) return false;
+            if (!closed.add(pred)) continue;
+            for(SourceStatement s:pred.statements) {
+                if (s.type == SourceStatement.STATEMENT_CPUOP) return false;
+            }
+            open.addAll(pred.predecessors);
+        }
+        return true;
+    }
+
+
+    /*
+    Checks that the only uses of ix in the routine are to access the stack frame, and
+    that the address of the stack frame is never taken (so, its contents can only be
+    accessed via "(ix+d)"):
+    */
+    boolean standardFrame(LinkedHashSet<BasicBlock> routine, CodeBase code)
+    {
+        boolean framePointer = false;
+        SourceStatement firstOp = null;
+        for(BasicBlock b:routine) {
+            for(SourceStatement s:b.statements) {
+                if (firstOp == null && s.type == SourceStatement.STATEMENT_CPUOP) firstOp = s;
+            }
+        }
+        for(BasicBlock b:routine) {
+            if (b.hasUnknownSuccessors && !b.endsInCall) return false;
+            for(int i = 0;i<b.statements.size();i++) {
+                SourceStatement s = b.statements.get(i);
+                if (s.type != SourceStatement.STATEMENT_CPUOP) continue;
+                if (s.comment != null && s.comment.contains(config.PRAGMA_NO_OPTIMIZATION)) return false;
+                CPUOp op = s.op;
+                if (op.isRst()) return false;
+                if (op.isRet() && !op.spec.opName.equalsIgnoreCase("ret")) return false;
+                String opString = op.toString().toLowerCase().replace(" ", "");
+                int regs = op.getInputRegsAndFlags() | op.getOutputRegsAndFlags();
+                if ((regs & REG_IX) != 0) {
+                    if (opString.equals("pushix")) {
+                        // saving the caller's frame pointer, which must happen before anything else:
+                        if (s != firstOp) return false;
+                    } else if (opString.equals("addix,sp")) {
+                        framePointer = true;
+                    } else if (opString.equals("ldix,0") || opString.equals("popix") ||
+                               opString.equals("ldsp,ix")) {
+                        // setting up / restoring the frame
+                    } else {
+                        boolean indexed = false;
+                        for(Expression arg:op.args) {
+                            if (ixOffset(arg, s, code) != null) indexed = true;
+                        }
+                        if (!indexed || (op.getOutputRegsAndFlags() & REG_IX) != 0) return false;
+                    }
+                }
+                if ((op.getInputRegsAndFlags() & CPUOpDependency.REG_SP) != 0) {
+                    if (op.isPush() || op.isPop() || op.isCall() || op.isRet()) continue;
+                    if (opString.equals("incsp") || opString.equals("decsp") ||
+                        opString.equals("addix,sp") || opString.equals("ldsp,ix") ||
+                        opString.equals("ldsp,hl")) continue;
+                    // allocation of the stack frame:
+                    if (opString.equals("addhl,sp") && i+1 < b.statements.size() &&
+                        b.statements.get(i+1).op != null &&
+                        b.statements.get(i+1).op.toString().toLowerCase().replace(" ", "").equals("ldsp,hl")) continue;
+                    return false;
+                }
+            }
+        }
+        return framePointer;
+    }
+
+
+    /*
+    Offsets of the stack frame slots accessed via the stack pointer instead of via
+    "(ix+d)": pushes/pops (e.g., SDCC sometimes stores a register in a local variable
+    with a "push" right after setting up the frame), and "ex (sp),rr". Pops whose
+    value is never used (e.g., to release the frame) do not count. Returns null if the
+    position of sp relative to ix cannot be determined at some point:
+    */
+    HashSet<Integer> stackAccessedSlots(BasicBlock entry, LinkedHashSet<BasicBlock> routine,
+                                        CodeBase code, ControlFlowGraph cfg)
+    {
+        HashSet<Integer> accessed = new HashSet<>();
+        // bytes between ix and sp at the beginning of each block (null before the frame is set up):
+        HashMap<BasicBlock, Integer> depths = new HashMap<>();
+        List<BasicBlock> open = new ArrayList<>();
+        depths.put(entry, null);
+        open.add(entry);
+        while(!open.isEmpty()) {
+            BasicBlock b = open.remove(0);
+            Integer depth = depths.get(b);
+            for(int i = 0;i<b.statements.size();i++) {
+                SourceStatement s = b.statements.get(i);
+                if (s.type != SourceStatement.STATEMENT_CPUOP) continue;
+                CPUOp op = s.op;
+                String opString = op.toString().toLowerCase().replace(" ", "");
+                if (opString.equals("addix,sp") || opString.equals("ldsp,ix")) {
+                    depth = 0;
+                } else if (opString.equals("popix")) {
+                    // the frame of the caller is restored:
+                    depth = null;
+                } else if (depth == null) {
+                    continue;
+                } else if (op.isPush()) {
+                    depth += 2;
+                    accessed.add(-depth);
+                    accessed.add(-depth+1);
+                } else if (op.isPop()) {
+                    if (!notUsedAfter(s, op.getOutputRegsAndFlags() & ~CPUOpDependency.REG_SP, cfg)) {
+                        accessed.add(-depth);
+                        accessed.add(-depth+1);
+                    }
+                    depth -= 2;
+                } else if (opString.equals("decsp")) {
+                    depth++;
+                } else if (opString.equals("incsp")) {
+                    depth--;
+                } else if (opString.startsWith("ex(sp),")) {
+                    accessed.add(-depth);
+                    accessed.add(-depth+1);
+                } else if (opString.equals("ldsp,hl")) {
+                    // "ld hl,-n; add hl,sp; ld sp,hl" (see "standardFrame"):
+                    SourceStatement s2 = (i >= 2 ? b.statements.get(i-2) : null);
+                    if (s2 == null || s2.op == null || !s2.op.spec.opName.equalsIgnoreCase("ld") ||
+                        !isRegister(s2.op.args.get(0), "hl") ||
+                        !s2.op.args.get(1).evaluatesToIntegerConstant()) return null;
+                    Integer delta = s2.op.args.get(1).evaluateToInteger(s2, code, true);
+                    if (delta == null) return null;
+                    depth -= (short)(int)delta;
+                }
+            }
+            for(BasicBlock next:b.successors) {
+                if (!routine.contains(next)) continue;
+                if (depths.containsKey(next)) {
+                    Integer previous = depths.get(next);
+                    if (previous == null ? depth != null : !previous.equals(depth)) return null;
+                } else {
+                    depths.put(next, depth);
+                    open.add(next);
+                }
+            }
+        }
+        return accessed;
+    }
+
+
+    /*
+    Whether any block of the routine can be called again (directly or through the
+    routines it calls) while the routine is running. The register of a promoted slot
+    would be overwritten by the recursive call, and the subroutine summaries (computed
+    before the promotion) do not reflect this:
+    */
+    boolean isRecursive(LinkedHashSet<BasicBlock> routine, ControlFlowGraph cfg)
+    {
+        List<BasicBlock> open = new ArrayList<>(routine);
+        HashSet<BasicBlock> closed = new HashSet<>(routine);
+        while(!open.isEmpty()) {
+            BasicBlock b = open.remove(0);
+            for(SourceStatement s:b.statements) {
+                if (s.type != SourceStatement.STATEMENT_CPUOP || !s.op.isCall()) continue;
+                SourceStatement target = cfg.getTargetStatement(s);
+                BasicBlock callee = (target == null ? null:cfg.getBasicBlock(target));
+                // unknown callees already prevent the promotion (see "calleeRegisters"):
+                if (callee == null) continue;
+                for(BasicBlock b2:cfg.getRoutineBlocks(callee)) {
+                    if (routine.contains(b2)) return true;
+                    if (closed.add(b2)) open.add(b2);
+                }
+            }
+        }
+        return false;
+    }
+
+
+    /*
+    Registers that the subroutine called by "s" might read or modify (all, if unknown):
+    */
+    int calleeRegisters(SourceStatement s, ControlFlowGraph cfg)
+    {
+        SourceStatement target = cfg.getTargetStatement(s);
+        SubroutineSummary summary = (target == null ? null:cfg.getSubroutineSummary(target));
+        if (summary == null) return ~0;
+        return summary.readBeforeWritten | summary.clobbered;
+    }
+
+
+    boolean notUsedAfterReturning(BasicBlock entry, int mask, ControlFlowGraph cfg)
+    {
+        // Without callers in the code base, we can only rely on the calling convention:
+        if (entry.callers.isEmpty()) return config.dialect.equals("sdcc");
+        for(BasicBlock caller:entry.callers) {
+            if (!notUsedAfter(caller.getLast(), mask, cfg)) return false;
+        }
+        return true;
+    }
+
+
+    /*
+    Returns "d" if "arg" is of the form "(ix+d)", and null otherwise:
+    */
+    Integer ixOffset(Expression arg, SourceStatement s, CodeBase code)
+    {
+        if (arg.type != Expression.EXPRESSION_PARENTHESIS || arg.args.size() != 1) return null;
+        Expression exp = arg.args.get(0);
+        if (isRegister(exp, "ix")) return 0;
+        if ((exp.type == Expression.EXPRESSION_SUM || exp.type == Expression.EXPRESSION_SUB) &&
+            isRegister(exp.args.get(0), "ix") && exp.args.get(1).evaluatesToIntegerConstant()) {
+            Integer d = exp.args.get(1).evaluateToInteger(s, code, true);
+            if (d == null) return null;
+            return (exp.type == Expression.EXPRESSION_SUM ? d : -d);
+        }
+        return null;
+    }
+
+
+    static boolean isRegister(Expression exp, String reg)
+    {
+        return exp.type == Expression.EXPRESSION_REGISTER_OR_FLAG && exp.registerOrFlagName.equalsIgnoreCase(reg);
+    }
+
+
+    CPUOp replaceArgs(SourceStatement s, int offset, String reg, CodeBase code)
+    {
+        List<Expression> args = new ArrayList<>();
+        for(Expression arg:s.op.args) {
+            Integer offset2 = ixOffset(arg, s, code);
+            if (offset2 != null) {
+                if (offset2 != offset) return null;
+                args.add(Expression.symbolExpression(reg, s, code, config));
+            } else {
+                args.add(arg);
+            }
+        }
+        return newOp(s.op.spec.opName, args, s, code);
+    }
+
+
+    void propagateCopies(CodeBase code, HashMap<SourceStatement, CPUOp> changes, OptimizationResult r)
+    {
+        ControlFlowGraph cfg = code.getControlFlowGraph();
+        for(BasicBlock b:cfg.getBasicBlocks()) {
+            for(int i = 0;i<b.statements.size();i++) {
+                SourceStatement copy = b.statements.get(i);
+                if (copy.type != SourceStatement.STATEMENT_CPUOP || changes.containsKey(copy)) continue;
+                if (copy.comment != null && copy.comment.contains(config.PRAGMA_NO_OPTIMIZATION)) continue;
+                String regs[] = registerCopy(copy.op);
+                if (regs == null) continue;
+                int mask1 = CPUOpDependency.registerMask(regs[0]);
+                int mask2 = CPUOpDependency.registerMask(regs[1]);
+
+                // Try replacing the uses of regs[0] by regs[1] (keeping the original ops
+                // in the statements to be able to check whether the copy is still needed):
+                HashMap<SourceStatement, CPUOp> newOps = new HashMap<>();
+                SourceStatement last = copy;
+                for(int j = i+1;j<b.statements.size();j++) {
+                    SourceStatement s = b.statements.get(j);
+                    if (s.type != SourceStatement.STATEMENT_CPUOP) continue;
+                    if (changes.containsKey(s)) break;
+                    if (s.comment != null && s.comment.contains(config.PRAGMA_NO_OPTIMIZATION)) break;
+                    CPUOp op = s.op;
+                    if ((op.getInputRegsAndFlags() & mask1) != 0) {
+                        op = replaceRegister(s, regs[0], regs[1], code);
+                        if (op == null || (op.getInputRegsAndFlags() & mask1) != 0 ||
+                            (op.getOutputRegsAndFlags() & mask1) != 0) break;
+                        newOps.put(s, op);
+                        last = s;
+                    }
+                    if ((s.op.getOutputRegsAndFlags() & (mask1 | mask2)) != 0) break;
+                }
+                if (newOps.isEmpty()) continue;
+
+                // The copy can be removed if regs[0] is not used after the last replaced use:
+                HashMap<SourceStatement, CPUOp> oldOps = new HashMap<>();
+                for(SourceStatement s:newOps.keySet()) {
+                    oldOps.put(s, s.op);
+                    s.op = newOps.get(s);
+                }
+                boolean notUsed = notUsedAfter(copy, mask1, cfg);
+                for(SourceStatement s:oldOps.keySet()) s.op = oldOps.get(s);
+                if (!notUsed) continue;
+
+                changes.put(copy, null);
+                for(SourceStatement s:newOps.keySet()) {
+                    CPUOp op = newOps.get(s);
+                    // "ld r,r" does nothing:
+                    String regs2[] = registerCopy(op);
+                    changes.put(s, (regs2 != null && regs2[0].equalsIgnoreCase(regs2[1]) ? null : op));
+                }
+                i = b.statements.indexOf(last);
+            }
+        }
+    }
+
+
+    boolean notUsedAfter(SourceStatement s, int mask, ControlFlowGraph cfg)
+    {
+        Boolean notUsed = cfg.depNotUsedAfter(s, new CPUOpDependency(mask, null, null, null));
+        if (notUsed != null) return notUsed;
+        // The generic analysis cannot tell what happens after a "ret" or a call to an unknown
+        // subroutine, but for SDCC code, we know which registers are used for arguments
+        // and return values:
+        if (!config.dialect.equals("sdcc")) return false;
+        return sdccNotUsedAfter(s, mask, cfg);
+    }
+
+
+    boolean sdccNotUsedAfter(SourceStatement start, int a_mask, ControlFlowGraph cfg)
+    {
+        // registers that might still be needed at the beginning of each block:
+        HashMap<BasicBlock, Integer> visited = new HashMap<>();
+        List<BasicBlock> open = new ArrayList<>();
+        List<Integer> openMasks = new ArrayList<>();
+        BasicBlock first = cfg.getBasicBlock(start);
+        if (first == null) return false;
+        int firstIdx = first.statements.indexOf(start) + 1;
+        open.add(first);
+        openMasks.add(a_mask);
+        while(!open.isEmpty()) {
+            BasicBlock b = open.remove(0);
+            int mask = openMasks.remove(0);
+            int startIdx = 0;
+            if (b == first && firstIdx > 0) {
+                startIdx = firstIdx;
+                firstIdx = 0;
+            } else {
+                Integer previous = visited.get(b);
+                if (previous != null && (previous & mask) == mask) continue;
+                visited.put(b, (previous == null ? 0 : previous) | mask);
+            }
+            boolean pathEnds = false;
+            for(int i = startIdx;i<b.statements.size() && !pathEnds;i++) {
+                SourceStatement s = b.statements.get(i);
+                if (s.type != SourceStatement.STATEMENT_CPUOP) continue;
+                CPUOp op = s.op;
+                if ((op.getInputRegsAndFlags() & mask) != 0) return false;
+                if (op.isCall()) {
+                    SourceStatement target = cfg.getTargetStatement(s);
+                    SubroutineSummary summary = (target == null ? null:cfg.getSubroutineSummary(target));
+                    if (summary != null) {
+                        if ((summary.readBeforeWritten & mask) != 0) return false;
+                    } else if ((SDCC_ARGUMENT_REGS & mask) != 0) {
+                        return false;
+                    }
+                } else if (op.isRet()) {
+                    if ((SDCC_RETURN_REGS & mask) != 0) return false;
+                    if (!op.isConditional()) pathEnds = true;
+                } else {
+                    mask &= ~op.getOutputRegsAndFlags();
+                    if (mask == 0) pathEnds = true;
+                }
+            }
+            if (pathEnds) continue;
+            if (b.hasUnknownSuccessors) return false;
+            for(BasicBlock next:b.successors) {
+                open.add(next);
+                openMasks.add(mask);
+            }
+        }
+        return true;
+    }
+
+
+    /*
+    If "op" is "ld r1,r2" (8 bit registers), returns {r1, r2}:
+    */
+    static String[] registerCopy(CPUOp op)
+    {
+        if (!op.spec.opName.equalsIgnoreCase("ld") || op.args.size() != 2) return null;
+        String regs[] = new String[2];
+        for(int i = 0;i<2;i++) {
+            for(String reg:COPY_REGISTERS) {
+                if (isRegister(op.args.get(i), reg)) regs[i] = reg;
+            }
+            if (regs[i] == null) return null;
+        }
+        return regs;
+    }
+
+
+    CPUOp replaceRegister(SourceStatement s, String reg1, String reg2, CodeBase code)
+    {
+        List<Expression> args = new ArrayList<>();
+        boolean found = false;
+        for(int i = 0;i<s.op.args.size();i++) {
+            Expression arg = s.op.args.get(i);
+            // the destination of an "ld" is not a use:
+            if (isRegister(arg, reg1) && !(i == 0 && s.op.spec.opName.equalsIgnoreCase("ld"))) {
+                args.add(Expression.symbolExpression(reg2, s, code, config));
+                found = true;
+            } else {
+                args.add(arg);
+            }
+        }
+        if (!found) return null;
+        return newOp(s.op.spec.opName, args, s, code);
+    }
+
+
+    void applyChanges(CodeBase code, HashMap<SourceStatement, CPUOp> changes, String name, OptimizationResult r)
+    {
+        if (changes.isEmpty()) return;
+        HashMap<SourceFile, PatternMatch> edits = new LinkedHashMap<>();
+        for(SourceStatement s:changes.keySet()) {
+            CPUOp op = changes.get(s);
+            List<SourceStatement> l = s.source.getStatements();
+            int idx = l.indexOf(s);
+            if (idx < 0) continue;
+            PatternMatch edit = edits.get(s.source);
+            if (edit == null) {
+                edit = new PatternMatch(null, s.source);
+                edits.put(s.source, edit);
+            }
+            edit.removed.add(s);
+            SourceStatement s2 = null;
+            if (op != null || s.label != null) {
+                s2 = new SourceStatement(op == null ? SourceStatement.STATEMENT_NONE : SourceStatement.STATEMENT_CPUOP,
+                                         s.sl, s.source, config);
+                s2.op = op;
+                s2.comment = s.comment;
+                if (s.label != null) {
+                    s2.label = s.label;
+                    s2.label.definingStatement = s2;
+                }
+                l.set(idx, s2);
+                edit.added.add(s2);
+            } else {
+                l.remove(idx);
+            }
+
+            int bytesSaved = s.op.sizeInBytes() - (op == null ? 0 : op.sizeInBytes());
+            int timeSaved[] = {s.op.timing()[0] - (op == null ? 0 : op.timing()[0]),
+                               s.op.timing()[s.op.timing().length-1] - (op == null ? 0 : op.timing()[op.timing().length-1])};
+            String timeString = (timeSaved[0] == timeSaved[1] ? "" + timeSaved[0] : timeSaved[0] + "/" + timeSaved[1]);
+            config.info(name, s.fileNameLineString(),
+                    "Replace " + s.op + " with " + (op == null ? "nothing" : op.toString()) +
+                    " (" + bytesSaved + " bytes, " + timeString + " " + config.timeUnit + "s saved)");
+            r.patternApplications++;
+            r.bytesSaved += bytesSaved;
+            r.timeSaved[0] += timeSaved[0];
+            r.timeSaved[1] += timeSaved[1];
+        }
+        for(PatternMatch edit:edits.values()) {
+            code.updateControlFlowGraph(edit.f, edit.removed, edit.added);
+            if (pbo != null) pbo.appliedOptimizations.add(edit);
+        }
+        code.resetAddresses();
+    }
+
+
+    CPUOp newOp(String opName, List<Expression> args, SourceStatement s, CodeBase code)
+    {
+        List<CPUOp> op_l = config.opParser.parseOp(opName, args, s, null, code);
+        if (op_l == null || op_l.size() != 1) return null;
+        return op_l.get(0);
+    }
+}
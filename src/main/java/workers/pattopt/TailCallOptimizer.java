@@ -0,0 +1,474 @@
+/*
+ * Author: Santiago Ontañón Villar (Brain Games)
+ */
+package workers.pattopt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import cl.MDLConfig;
+import code.CPUOp;
+import code.CodeBase;
+import code.ControlFlowGraph;
+import code.Expression;
+import code.SourceConstant;
+import code.SourceFile;
+import code.SourceStatement;
+import workers.MDLWorker;
+import workers.pattopt.PatternBasedOptimizer.OptimizationResult;
+
+/**
+ * Optimizations that involve the boundaries between subroutines, which the
+ * pattern-based optimizer cannot see, as its patterns do not match across labels:
+ * - Tail calls: a "call X" after which execution reaches a "ret" (possibly through
+ *   labels and jumps) is replaced by "jp X". Only done when the subroutine at X
+ *   uses the stack in a standard way (so it does not depend on its return address).
+ * - Fall through: a "jp X" (or "jr X") right before X is removed.
+ * - Cross jumping (optional): when several routines end with the same sequence of
+ *   instructions, all but one copy are replaced by a jump to the remaining one.
+ *   Sequences are found using an index from instruction sequence suffixes to the
+ *   places where they appear.
+ *
+ * @author santi
+ */
+public class TailCallOptimizer implements MDLWorker {
+    // Maximum number of jumps to follow when looking for the "ret" after a call:
+    public static final int MAX_JUMPS_TO_FOLLOW = 16;
+    // Maximum length of the sequences considered for cross jumping:
+    public static final int MAX_TAIL_LENGTH = 16;
+    public static final String TAIL_LABEL_PREFIX = "__mdl_tail_";
+    public static final int JP_SIZE = 3;
+
+    // A sequence of instructions ending in an unconditional jump or "ret":
+    static class Tail {
+        SourceFile f;
+        List<SourceStatement> statements;   // in execution order
+
+        Tail(SourceFile a_f, List<SourceStatement> a_statements)
+        {
+            f = a_f;
+            statements = a_statements;
+        }
+    }
+
+    MDLConfig config;
+    PatternBasedOptimizer pbo = null;   // to record the changes for "-poapply" (if any)
+    boolean activate = false;
+    boolean crossJumping = false;
+    int nextTailLabel = 0;
+
+
+    public TailCallOptimizer(MDLConfig a_config, PatternBasedOptimizer a_pbo)
+    {
+        config = a_config;
+        pbo = a_pbo;
+    }
+
+
+    @Override
+    public String docString()
+    {
+        return "  -tco: replaces calls followed by a ret (even if they are in different routines) by jumps, and removes jumps to the instruction right after them.\n" +
+               "  -tco-crossjump: same as -tco, but additionally, when several routines end with the same sequence of instructions, all but one copy are replaced by a jump to the remaining one (saves space, but adds a jump).\n";
+    }
+
+
+    @Override
+    public boolean parseFlag(List<String> flags)
+    {
+        if (flags.get(0).equals("-tco")) {
+            flags.remove(0);
+            activate = true;
+            return true;
+        }
+        if (flags.get(0).equals("-tco-crossjump")) {
+            flags.remove(0);
+            activate = true;
+            crossJumping = true;
+            return true;
+        }
+        return false;
+    }
+
+
+    @Override
+    public boolean work(CodeBase code)
+    {
+        if (!activate) return true;
+        config.debug("Executing "+this.getClass().getSimpleName()+" worker...");
+        optimize(code);
+        return true;
+    }
+
+
+    public OptimizationResult optimize(CodeBase code)
+    {
+        OptimizationResult r = new OptimizationResult();
+        tailCalls(code, r);
+        if (crossJumping) crossJump(code, r);
+        fallThrough(code, r);
+        config.info("TailCallOptimizer: "+r.patternApplications+" optimizations applied, " +
+                    r.bytesSaved+" bytes, " +
+                    r.timeString() + " " +config.timeUnit+"s saved.");
+        return r;
+    }
+
+
+    void tailCalls(CodeBase code, OptimizationResult r)
+    {
+        // All the decisions are made first, as they do not interfere with each other, and
+        // then the control flow graph is recomputed once:
+        ControlFlowGraph cfg = code.getControlFlowGraph();
+        List<PatternMatch> edits = new ArrayList<>();
+        for (SourceFile f : code.getSourceFiles()) {
+            List<SourceStatement> l = f.getStatements();
+            for (int i = 0; i < l.size(); i++) {
+                SourceStatement s = l.get(i);
+                if (s.type != SourceStatement.STATEMENT_CPUOP || !s.op.isCall()) continue;
+                if (s.comment != null && s.comment.contains(config.PRAGMA_NO_OPTIMIZATION)) continue;
+                if (!standardStackUse(s, code, cfg)) continue;
+                SourceStatement ret = retAfter(s, cfg);
+                if (ret == null) continue;
+                CPUOp jp = newOp("jp", s.op.args, s, code);
+                if (jp == null) continue;
+
+                PatternMatch edit = new PatternMatch(null, f);
+                edit.removed.add(s);
+                edit.added.add(replacementStatement(s, jp));
+                // if the "ret" comes right after the call, it can never be reached anymore:
+                if (!s.op.isConditional() && i+1 < l.size() && l.get(i+1) == ret && ret.label == null &&
+                    (ret.comment == null || !ret.comment.contains(config.PRAGMA_NO_OPTIMIZATION))) {
+                    edit.removed.add(ret);
+                }
+                edits.add(edit);
+            }
+        }
+
+        for(PatternMatch edit:edits) {
+            List<SourceStatement> l = edit.f.getStatements();
+            int idx = l.indexOf(edit.removed.get(0));
+            for(SourceStatement s:edit.removed) l.remove(s);
+            l.addAll(idx, edit.added);
+            record(edit, "Tail call", false, r);
+        }
+        if (!edits.isEmpty()) {
+            code.resetControlFlowGraph();
+            code.resetAddresses();
+        }
+    }
+
+
+    /*
+    Whether the subroutine called by "s" does not depend on its return address
+    (i.e., it uses the stack in a standard way). Calls to symbols that are not labels
+    (e.g., BIOS routines defined with "equ") are assumed to be standard.
+    */
+    boolean standardStackUse(SourceStatement s, CodeBase code, ControlFlowGraph cfg)
+    {
+        Expression target = s.op.getTargetJumpExpression();
+        if (target == null || target.type != Expression.EXPRESSION_SYMBOL) return false;
+        SourceConstant c = code.getSymbol(target.symbolName);
+        if (c == null) return false;
+        if (!c.isLabel()) return true;
+        if (c.definingStatement == null) return false;
+        return cfg.getSubroutineSummary(c.definingStatement) != null;
+    }
+
+
+    /*
+    Returns the unconditional "ret" that is executed right after "s" (following labels
+    and unconditional jumps), or null if there is none:
+    */
+    SourceStatement retAfter(SourceStatement s, ControlFlowGraph cfg)
+    {
+        SourceStatement next = cfg.getNextStatement(s);
+        int jumps = 0;
+        while(next != null) {
+            if (next.type == SourceStatement.STATEMENT_NONE ||
+                next.type == SourceStatement.STATEMENT_INCLUDE) {
+                next = cfg.getNextStatement(next);
+                continue;
+            }
+            if (next.type != SourceStatement.STATEMENT_CPUOP) return null;
+            CPUOp op = next.op;
+            if (op.isRet()) {
+                if (op.isConditional() || !op.spec.opName.equalsIgnoreCase("ret")) return null;
+                return next;
+            }
+            if (isUnconditionalJump(op) && jumps < MAX_JUMPS_TO_FOLLOW) {
+                next = cfg.getTargetStatement(next);
+                jumps++;
+                continue;
+            }
+            return null;
+        }
+        return null;
+    }
+
+
+    void crossJump(CodeBase code, OptimizationResult r)
+    {
+        // Index of all the suffixes (of all lengths) of the tails in the code:
+        LinkedHashMap<String, List<Tail>> index = new LinkedHashMap<>();
+        for (SourceFile f : code.getSourceFiles()) {
+            List<SourceStatement> l = f.getStatements();
+            for (int i = 0; i < l.size(); i++) {
+                SourceStatement s = l.get(i);
+                if (s.type != SourceStatement.STATEMENT_CPUOP || !isTerminator(s.op)) continue;
+                List<SourceStatement> tail = tailEndingAt(l, i);
+                String key = "";
+                for(int k = 1;k<=tail.size();k++) {
+                    SourceStatement s2 = tail.get(tail.size()-k);
+                    key = s2.op.toString() + "\n" + key;
+                    List<Tail> tails = index.get(key);
+                    if (tails == null) {
+                        tails = new ArrayList<>();
+                        index.put(key, tails);
+                    }
+                    tails.add(new Tail(f, tail.subList(tail.size()-k, tail.size())));
+                }
+            }
+        }
+
+        // groups of identical suffixes, sorted by the number of bytes that would be saved:
+        List<List<Tail>> groups = new ArrayList<>();
+        HashMap<List<Tail>, Integer> savings = new HashMap<>();
+        for(List<Tail> tails:index.values()) {
+            if (tails.size() < 2) continue;
+            int saving = (tails.size() - 1) * (tailSize(tails.get(0)) - JP_SIZE);
+            if (saving <= 0) continue;
+            groups.add(tails);
+            savings.put(tails, saving);
+        }
+        Collections.sort(groups, (g1, g2) -> Integer.compare(savings.get(g2), savings.get(g1)));
+
+        // Each tail (identified by its last statement) is only modified once:
+        HashSet<SourceStatement> used = new HashSet<>();
+        boolean changes = false;
+        for(List<Tail> group:groups) {
+            List<Tail> tails = new ArrayList<>();
+            for(Tail tail:group) {
+                if (!used.contains(tail.statements.get(tail.statements.size()-1))) tails.add(tail);
+            }
+            if (tails.size() < 2) continue;
+            // keep the copy that already has a label (if any):
+            Tail kept = tails.get(0);
+            for(Tail tail:tails) {
+                if (tail.statements.get(0).label != null) {
+                    kept = tail;
+                    break;
+                }
+            }
+            SourceConstant label = labelAtTail(kept, code);
+            if (label == null) continue;
+            for(Tail tail:tails) {
+                used.add(tail.statements.get(tail.statements.size()-1));
+                if (tail == kept) continue;
+                List<Expression> args = new ArrayList<>();
+                args.add(Expression.symbolExpression(label.name, tail.statements.get(0), code, config));
+                CPUOp jp = newOp("jp", args, tail.statements.get(0), code);
+                if (jp == null) continue;
+                PatternMatch edit = new PatternMatch(null, tail.f);
+                edit.removed.addAll(tail.statements);
+                edit.added.add(replacementStatement(tail.statements.get(0), jp));
+                List<SourceStatement> l = tail.f.getStatements();
+                int idx = l.indexOf(tail.statements.get(0));
+                for(SourceStatement s:tail.statements) l.remove(s);
+                l.add(idx, edit.added.get(0));
+                record(edit, "Cross jump", true, r);
+                changes = true;
+            }
+        }
+        if (changes) {
+            code.resetControlFlowGraph();
+            code.resetAddresses();
+        }
+    }
+
+
+    /*
+    The longest sequence of instructions ending in l[last] that can only be entered
+    from its beginning (labels can only be on its first instruction):
+    */
+    List<SourceStatement> tailEndingAt(List<SourceStatement> l, int last)
+    {
+        List<SourceStatement> tail = new ArrayList<>();
+        for(int i = last;i>=0 && tail.size() < MAX_TAIL_LENGTH;i--) {
+            SourceStatement s = l.get(i);
+            if (s.type == SourceStatement.STATEMENT_NONE && s.label == null) continue;
+            if (s.type != SourceStatement.STATEMENT_CPUOP) break;
+            if (s.comment != null && s.comment.contains(config.PRAGMA_NO_OPTIMIZATION)) break;
+            if (i != last && isTerminator(s.op)) break;
+            boolean positionDependent = false;
+            for(Expression arg:s.op.args) {
+                if (arg.containsCurrentAddress()) positionDependent = true;
+            }
+            if (positionDependent) break;
+            tail.add(0, s);
+            if (s.label != null) break;
+        }
+        return tail;
+    }
+
+
+    /*
+    Returns a label pointing to the first instruction of "tail", creating one if needed:
+    */
+    SourceConstant labelAtTail(Tail tail, CodeBase code)
+    {
+        SourceStatement first = tail.statements.get(0);
+        if (first.label != null) return first.label;
+        List<SourceStatement> l = tail.f.getStatements();
+        int idx = l.indexOf(first);
+        // a label right before it:
+        for(int i = idx-1;i>=0;i--) {
+            SourceStatement s = l.get(i);
+            if (s.type != SourceStatement.STATEMENT_NONE) break;
+            if (s.label != null && s.label.isLabel()) return s.label;
+        }
+        String name = TAIL_LABEL_PREFIX + nextTailLabel++;
+        while(code.getSymbol(name) != null) name = TAIL_LABEL_PREFIX + nextTailLabel++;
+        SourceStatement s = new SourceStatement(SourceStatement.STATEMENT_NONE, first.sl, first.source, config);
+        SourceConstant c = new SourceConstant(name, name, Expression.symbolExpression(CodeBase.CURRENT_ADDRESS, s, code, config), s, config);
+        s.label = c;
+        if (code.addSymbol(name, c) != 1) return null;
+        l.add(idx, s);
+        // record it as replacing "first" by the label and "first", so it shows up in the right place with -poapply:
+        PatternMatch edit = new PatternMatch(null, tail.f);
+        edit.removed.add(first);
+        edit.added.add(s);
+        edit.added.add(first);
+        if (pbo != null) pbo.appliedOptimizations.add(edit);
+        return c;
+    }
+
+
+    void fallThrough(CodeBase code, OptimizationResult r)
+    {
+        boolean changes = false;
+        for (SourceFile f : code.getSourceFiles()) {
+            List<SourceStatement> l = f.getStatements();
+            for (int i = 0; i < l.size(); i++) {
+                SourceStatement s = l.get(i);
+                if (s.type != SourceStatement.STATEMENT_CPUOP || !isUnconditionalJump(s.op)) continue;
+                if (s.comment != null && s.comment.contains(config.PRAGMA_NO_OPTIMIZATION)) continue;
+                SourceConstant target = s.op.getTargetJumpLabel(code);
+                if (target == null || !target.isLabel()) continue;
+                boolean fallsThrough = false;
+                for(int j = i+1;j<l.size();j++) {
+                    SourceStatement s2 = l.get(j);
+                    if (s2.label == target) {
+                        fallsThrough = true;
+                        break;
+                    }
+                    if (s2.type != SourceStatement.STATEMENT_NONE) break;
+                }
+                if (!fallsThrough) continue;
+                PatternMatch edit = new PatternMatch(null, f);
+                edit.removed.add(s);
+                if (s.label != null) {
+                    edit.added.add(replacementStatement(s, null));
+                    l.set(i, edit.added.get(0));
+                } else {
+                    l.remove(i);
+                    i--;
+                }
+                record(edit, "Fall through", false, r);
+                changes = true;
+            }
+        }
+        if (changes) {
+            code.resetControlFlowGraph();
+            code.resetAddresses();
+        }
+    }
+
+
+    /*
+    A statement to replace "s" with "op" (or with no op if "op" is null), keeping its label:
+    */
+    SourceStatement replacementStatement(SourceStatement s, CPUOp op)
+    {
+        SourceStatement s2 = new SourceStatement(op == null ? SourceStatement.STATEMENT_NONE : SourceStatement.STATEMENT_CPUOP,
+                                                 s.sl, s.source, config);
+        s2.op = op;
+        s2.comment = s.comment;
+        if (s.label != null) {
+            s2.label = s.label;
+            s2.label.definingStatement = s2;
+        }
+        return s2;
+    }
+
+
+    /*
+    When "jumpToCopy" is true, the removed instructions are still executed (in the
+    copy that was kept), so only the time of the added jump counts:
+    */
+    void record(PatternMatch edit, String name, boolean jumpToCopy, OptimizationResult r)
+    {
+        int bytesSaved = 0, timeSaved[] = {0, 0};
+        String before = "", after = "";
+        for(SourceStatement s:edit.removed) {
+            if (s.op == null) continue;
+            bytesSaved += s.op.sizeInBytes();
+            if (!jumpToCopy) {
+                timeSaved[0] += s.op.timing()[0];
+                timeSaved[1] += s.op.timing()[s.op.timing().length-1];
+            }
+            before += (before.isEmpty() ? "":"; ") + s.op;
+        }
+        for(SourceStatement s:edit.added) {
+            if (s.op == null) continue;
+            bytesSaved -= s.op.sizeInBytes();
+            timeSaved[0] -= s.op.timing()[0];
+            timeSaved[1] -= s.op.timing()[s.op.timing().length-1];
+            after += (after.isEmpty() ? "":"; ") + s.op;
+        }
+        String timeString = (timeSaved[0] == timeSaved[1] ? "" + timeSaved[0] : timeSaved[0] + "/" + timeSaved[1]);
+        config.info(name, edit.removed.get(0).fileNameLineString(),
+                "Replace " + before + " with " + (after.isEmpty() ? "nothing" : after) +
+                " (" + bytesSaved + " bytes, " + timeString + " " + config.timeUnit + "s saved)");
+        r.patternApplications++;
+        r.bytesSaved += bytesSaved;
+        r.timeSaved[0] += timeSaved[0];
+        r.timeSaved[1] += timeSaved[1];
+        if (pbo != null) pbo.appliedOptimizations.add(edit);
+    }
+
+
+    static boolean isUnconditionalJump(CPUOp op)
+    {
+        String name = op.spec.opName.toLowerCase();
+        return (name.equals("jp") || name.equals("jr")) && op.args.size() == 1 &&
+               op.getTargetJumpExpression() != null;
+    }
+
+
+    // Instructions after which execution never continues to the next one:
+    static boolean isTerminator(CPUOp op)
+    {
+        if (op.isRet()) return !op.isConditional();
+        return isUnconditionalJump(op);
+    }
+
+
+    int tailSize(Tail tail)
+    {
+        int size = 0;
+        for(SourceStatement s:tail.statements) size += s.op.sizeInBytes();
+        return size;
+    }
+
+
+    CPUOp newOp(String opName, List<Expression> args, SourceStatement s, CodeBase code)
+    {
+        List<CPUOp> op_l = config.opParser.parseOp(opName, new ArrayList<>(args), s, null, code);
+        if (op_l == null || op_l.size() != 1) return null;
+        return op_l.get(0);
+    }
+}
@@ -0,0 +1,382 @@
+/*
+ * Author: Santiago Ontañón Villar (Brain Games)
+ */
+package workers.superopt;
+
+import code.CPUOp;
+import code.CPUOpDependency;
+import code.Expression;
+
+/**
+ * An instruction of the subset of the Z80 instruction set supported by the
+ * superoptimizer: 8 bit operations that only involve registers A, B, C, D, E, H, L
+ * and the flags. It can be simulated over a state represented as an array of
+ * integers: the 7 registers (in the order above), the F register, and the values of
+ * the constant variables ("?const1", "?const2", etc.), which are used to represent
+ * instructions with an unknown constant argument (e.g., when mining patterns).
+ *
+ * @author santi
+ */
+public class Instruction {
+    public static final String REGISTER_NAMES[] = {"a", "b", "c", "d", "e", "h", "l"};
+    public static final int F = 7;
+    public static final int FIRST_CONSTANT_VARIABLE = 8;
+    public static final int MAX_CONSTANT_VARIABLES = 4;
+    public static final int STATE_SIZE = FIRST_CONSTANT_VARIABLE + MAX_CONSTANT_VARIABLES;
+
+    // bits in the F register:
+    public static final int S_FLAG = 0x80;
+    public static final int Z_FLAG = 0x40;
+    public static final int H_FLAG = 0x10;
+    public static final int PV_FLAG = 0x04;
+    public static final int N_FLAG = 0x02;
+    public static final int C_FLAG = 0x01;
+    public static final int ALL_FLAGS = S_FLAG | Z_FLAG | H_FLAG | PV_FLAG | N_FLAG | C_FLAG;
+
+    // Flag bits in the same order as "FLAG_DEPENDENCY_MASKS":
+    public static final int FLAG_BITS[] = {S_FLAG, Z_FLAG, H_FLAG, PV_FLAG, N_FLAG, C_FLAG};
+    public static final int FLAG_DEPENDENCY_MASKS[] = {
+        CPUOpDependency.FLAG_S, CPUOpDependency.FLAG_Z, CPUOpDependency.FLAG_H,
+        CPUOpDependency.FLAG_PV, CPUOpDependency.FLAG_N, CPUOpDependency.FLAG_C};
+    public static final int REGISTER_DEPENDENCY_MASKS[] = {
+        CPUOpDependency.REG_A, CPUOpDependency.REG_B, CPUOpDependency.REG_C, CPUOpDependency.REG_D,
+        CPUOpDependency.REG_E, CPUOpDependency.REG_H, CPUOpDependency.REG_L};
+    // Bits used to represent reading constant variables (above all the bits used in CPUOpDependency):
+    public static final int CONSTANT_VARIABLE_MASKS[] = {1 << 24, 1 << 25, 1 << 26, 1 << 27};
+    public static final int ALL_FLAGS_MASK = CPUOpDependency.FLAG_S | CPUOpDependency.FLAG_Z |
+                                             CPUOpDependency.FLAG_H | CPUOpDependency.FLAG_PV |
+                                             CPUOpDependency.FLAG_N | CPUOpDependency.FLAG_C;
+    // All the registers and flags that can be modified by these instructions:
+    public static final int ALL_REGISTERS_MASK = ALL_FLAGS_MASK |
+                                                 CPUOpDependency.REG_A | CPUOpDependency.REG_B |
+                                                 CPUOpDependency.REG_C | CPUOpDependency.REG_D |
+                                                 CPUOpDependency.REG_E | CPUOpDependency.REG_H |
+                                                 CPUOpDependency.REG_L;
+
+    public static final String ALU_OPS[] = {"add", "adc", "sub", "sbc", "and", "xor", "or", "cp"};
+    public static final String NO_ARG_OPS[] = {"cpl", "neg", "rlca", "rrca", "rla", "rra", "scf", "ccf"};
+    public static final String CB_OPS[] = {"rlc", "rrc", "rl", "rr", "sla", "sra", "srl"};
+
+    public String name;
+    public int register = -1;      // target register (for "ld", "inc", "dec" and CB ops)
+    public int source = -1;        // source register or constant variable (-1 if the source is a constant)
+    public int value = 0;          // source constant
+    // registers/flags read and written (using the bitmasks in CPUOpDependency):
+    public int reads = 0;
+    public int writes = 0;
+    public String args[];
+    public String text;
+
+
+    /*
+    Creates an instruction from its name and arguments (register names in lower case, or
+    decimal constants). Returns null if the instruction is not supported.
+    */
+    public static Instruction create(String name, String args[])
+    {
+        Instruction i = new Instruction();
+        i.name = name;
+        if (name.equals("ld")) {
+            if (args.length != 2) return null;
+            i.register = registerIndex(args[0]);
+            if (i.register < 0) return null;
+            if (!i.parseSource(args[1])) return null;
+            i.reads = sourceMask(i.source);
+            i.writes = REGISTER_DEPENDENCY_MASKS[i.register];
+        } else if (indexOf(ALU_OPS, name) >= 0) {
+            // accept both "sub b" and "sub a,b":
+            String arg;
+            if (args.length == 2) {
+                if (!args[0].equals("a")) return null;
+                arg = args[1];
+            } else if (args.length == 1 && !name.equals("add") && !name.equals("adc") && !name.equals("sbc")) {
+                arg = args[0];
+            } else {
+                return null;
+            }
+            if (!i.parseSource(arg)) return null;
+            i.reads = CPUOpDependency.REG_A | sourceMask(i.source);
+            if (i.source == 0 && (name.equals("sub") || name.equals("xor") || name.equals("cp"))) {
+                // the result does not depend on the value of A:
+                i.reads = 0;
+            }
+            if (name.equals("adc") || name.equals("sbc")) {
+                i.reads |= CPUOpDependency.FLAG_C;
+                if (i.source == 0 && name.equals("sbc")) i.reads = CPUOpDependency.FLAG_C;
+            }
+            i.writes = ALL_FLAGS_MASK | (name.equals("cp") ? 0 : CPUOpDependency.REG_A);
+        } else if (name.equals("inc") || name.equals("dec")) {
+            if (args.length != 1) return null;
+            i.register = registerIndex(args[0]);
+            if (i.register < 0) return null;
+            i.reads = REGISTER_DEPENDENCY_MASKS[i.register];
+            i.writes = REGISTER_DEPENDENCY_MASKS[i.register] | (ALL_FLAGS_MASK & ~CPUOpDependency.FLAG_C);
+        } else if (indexOf(NO_ARG_OPS, name) >= 0) {
+            if (args.length != 0) return null;
+            switch(name) {
+                case "cpl":
+                    i.reads = CPUOpDependency.REG_A;
+                    i.writes = CPUOpDependency.REG_A | CPUOpDependency.FLAG_H | CPUOpDependency.FLAG_N;
+                    break;
+                case "neg":
+                    i.reads = CPUOpDependency.REG_A;
+                    i.writes = CPUOpDependency.REG_A | ALL_FLAGS_MASK;
+                    break;
+                case "rlca":
+                case "rrca":
+                    i.reads = CPUOpDependency.REG_A;
+                    i.writes = CPUOpDependency.REG_A | CPUOpDependency.FLAG_H | CPUOpDependency.FLAG_N | CPUOpDependency.FLAG_C;
+                    break;
+                case "rla":
+                case "rra":
+                    i.reads = CPUOpDependency.REG_A | CPUOpDependency.FLAG_C;
+                    i.writes = CPUOpDependency.REG_A | CPUOpDependency.FLAG_H | CPUOpDependency.FLAG_N | CPUOpDependency.FLAG_C;
+                    break;
+                case "scf":
+                    i.writes = CPUOpDependency.FLAG_H | CPUOpDependency.FLAG_N | CPUOpDependency.FLAG_C;
+                    break;
+                case "ccf":
+                    i.reads = CPUOpDependency.FLAG_C;
+                    i.writes = CPUOpDependency.FLAG_H | CPUOpDependency.FLAG_N | CPUOpDependency.FLAG_C;
+                    break;
+            }
+        } else if (indexOf(CB_OPS, name) >= 0) {
+            if (args.length != 1) return null;
+            i.register = registerIndex(args[0]);
+            if (i.register < 0) return null;
+            i.reads = REGISTER_DEPENDENCY_MASKS[i.register];
+            if (name.equals("rl") || name.equals("rr")) i.reads |= CPUOpDependency.FLAG_C;
+            i.writes = REGISTER_DEPENDENCY_MASKS[i.register] | ALL_FLAGS_MASK;
+        } else {
+            return null;
+        }
+        i.args = args;
+        i.text = name;
+        for(int j = 0;j<args.length;j++) {
+            i.text += (j == 0 ? " ":",") + args[j];
+        }
+        return i;
+    }
+
+
+    /*
+    Returns null if the op is not supported by the superoptimizer:
+    */
+    public static Instruction fromCPUOp(CPUOp op)
+    {
+        String args[] = new String[op.args.size()];
+        for(int j = 0;j<args.length;j++) {
+            Expression arg = op.args.get(j);
+            if (arg.type == Expression.EXPRESSION_REGISTER_OR_FLAG) {
+                args[j] = arg.registerOrFlagName.toLowerCase();
+                if (registerIndex(args[j]) < 0) return null;
+            } else if (arg.type == Expression.EXPRESSION_INTEGER_CONSTANT) {
+                // only literal constants, since the value of symbols might change as code is optimized:
+                args[j] = "" + (arg.integerConstant & 0xff);
+            } else {
+                return null;
+            }
+        }
+        return create(op.spec.opName.toLowerCase(), args);
+    }
+
+
+    boolean parseSource(String arg)
+    {
+        source = registerIndex(arg);
+        if (source >= 0) return true;
+        if (arg.startsWith("?const")) {
+            try {
+                int n = Integer.parseInt(arg.substring(6));
+                if (n < 1 || n > MAX_CONSTANT_VARIABLES) return false;
+                source = FIRST_CONSTANT_VARIABLE + n - 1;
+                return true;
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+        try {
+            value = Integer.parseInt(arg) & 0xff;
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+
+    static int sourceMask(int source)
+    {
+        if (source < 0) return 0;
+        if (source >= FIRST_CONSTANT_VARIABLE) return CONSTANT_VARIABLE_MASKS[source - FIRST_CONSTANT_VARIABLE];
+        return REGISTER_DEPENDENCY_MASKS[source];
+    }
+
+
+    /*
+    Parses an instruction in the format generated in "text" (e.g., "ld b,?const1").
+    */
+    public static Instruction parse(String text)
+    {
+        text = text.trim();
+        int idx = text.indexOf(' ');
+        if (idx < 0) return create(text, new String[0]);
+        String args[] = text.substring(idx+1).split(",");
+        for(int i = 0;i<args.length;i++) args[i] = args[i].trim();
+        return create(text.substring(0, idx), args);
+    }
+
+
+    public static int registerIndex(String name)
+    {
+        return indexOf(REGISTER_NAMES, name);
+    }
+
+
+    static int indexOf(String l[], String name)
+    {
+        for(int i = 0;i<l.length;i++) {
+            if (l[i].equals(name)) return i;
+        }
+        return -1;
+    }
+
+
+    static int szFlags(int v)
+    {
+        v &= 0xff;
+        return (v & S_FLAG) | (v == 0 ? Z_FLAG : 0);
+    }
+
+
+    static int parityFlag(int v)
+    {
+        return (Integer.bitCount(v & 0xff) % 2 == 0 ? PV_FLAG : 0);
+    }
+
+
+    public void execute(int state[])
+    {
+        int f = state[F];
+        int a = state[0];
+        int v = (source >= 0 ? state[source] : value);
+        switch(name) {
+            case "ld":
+                state[register] = v;
+                break;
+            case "add":
+            case "adc":
+            {
+                int c = (name.equals("adc") ? (f & C_FLAG) : 0);
+                int r = a + v + c;
+                state[F] = szFlags(r) |
+                           (((a & 0xf) + (v & 0xf) + c) > 0xf ? H_FLAG : 0) |
+                           (((a ^ ~v) & (a ^ r) & 0x80) != 0 ? PV_FLAG : 0) |
+                           (r > 0xff ? C_FLAG : 0);
+                state[0] = r & 0xff;
+                break;
+            }
+            case "sub":
+            case "sbc":
+            case "cp":
+            {
+                int c = (name.equals("sbc") ? (f & C_FLAG) : 0);
+                int r = a - v - c;
+                state[F] = szFlags(r) |
+                           (((a & 0xf) - (v & 0xf) - c) < 0 ? H_FLAG : 0) |
+                           (((a ^ v) & (a ^ r) & 0x80) != 0 ? PV_FLAG : 0) |
+                           N_FLAG |
+                           (r < 0 ? C_FLAG : 0);
+                if (!name.equals("cp")) state[0] = r & 0xff;
+                break;
+            }
+            case "and":
+                state[0] = a & v;
+                state[F] = szFlags(state[0]) | H_FLAG | parityFlag(state[0]);
+                break;
+            case "xor":
+                state[0] = a ^ v;
+                state[F] = szFlags(state[0]) | parityFlag(state[0]);
+                break;
+            case "or":
+                state[0] = a | v;
+                state[F] = szFlags(state[0]) | parityFlag(state[0]);
+                break;
+            case "inc":
+            {
+                int r = (state[register] + 1) & 0xff;
+                state[register] = r;
+                state[F] = (f & C_FLAG) | szFlags(r) | ((r & 0xf) == 0 ? H_FLAG : 0) | (r == 0x80 ? PV_FLAG : 0);
+                break;
+            }
+            case "dec":
+            {
+                int r = (state[register] - 1) & 0xff;
+                state[register] = r;
+                state[F] = (f & C_FLAG) | szFlags(r) | ((r & 0xf) == 0xf ? H_FLAG : 0) | (r == 0x7f ? PV_FLAG : 0) | N_FLAG;
+                break;
+            }
+            case "cpl":
+                state[0] = (~a) & 0xff;
+                state[F] = (f & (S_FLAG | Z_FLAG | PV_FLAG | C_FLAG)) | H_FLAG | N_FLAG;
+                break;
+            case "neg":
+            {
+                int r = -a;
+                state[F] = szFlags(r) |
+                           ((a & 0xf) != 0 ? H_FLAG : 0) |
+                           (a == 0x80 ? PV_FLAG : 0) |
+                           N_FLAG |
+                           (a != 0 ? C_FLAG : 0);
+                state[0] = r & 0xff;
+                break;
+            }
+            case "rlca":
+                state[0] = ((a << 1) | (a >> 7)) & 0xff;
+                state[F] = (f & (S_FLAG | Z_FLAG | PV_FLAG)) | (a >> 7);
+                break;
+            case "rrca":
+                state[0] = (a >> 1) | ((a & 1) << 7);
+                state[F] = (f & (S_FLAG | Z_FLAG | PV_FLAG)) | (a & 1);
+                break;
+            case "rla":
+                state[0] = ((a << 1) | (f & C_FLAG)) & 0xff;
+                state[F] = (f & (S_FLAG | Z_FLAG | PV_FLAG)) | (a >> 7);
+                break;
+            case "rra":
+                state[0] = (a >> 1) | ((f & C_FLAG) << 7);
+                state[F] = (f & (S_FLAG | Z_FLAG | PV_FLAG)) | (a & 1);
+                break;
+            case "scf":
+                state[F] = (f & (S_FLAG | Z_FLAG | PV_FLAG)) | C_FLAG;
+                break;
+            case "ccf":
+                state[F] = (f & (S_FLAG | Z_FLAG | PV_FLAG)) | ((f & C_FLAG) != 0 ? H_FLAG : C_FLAG);
+                break;
+            default:
+            {
+                // CB rotations/shifts:
+                int r, c;
+                v = state[register];
+                switch(name) {
+                    case "rlc": c = v >> 7; r = (v << 1) | c; break;
+                    case "rrc": c = v & 1; r = (v >> 1) | (c << 7); break;
+                    case "rl": c = v >> 7; r = (v << 1) | (f & C_FLAG); break;
+                    case "rr": c = v & 1; r = (v >> 1) | ((f & C_FLAG) << 7); break;
+                    case "sla": c = v >> 7; r = v << 1; break;
+                    case "sra": c = v & 1; r = (v >> 1) | (v & 0x80); break;
+                    default: c = v & 1; r = v >> 1; break;  // srl
+                }
+                r &= 0xff;
+                state[register] = r;
+                state[F] = szFlags(r) | parityFlag(r) | c;
+            }
+        }
+    }
+
+
+    @Override
+    public String toString()
+    {
+        return text;
+    }
+}
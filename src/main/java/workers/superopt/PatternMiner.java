@@ -0,0 +1,400 @@
+/*
+ * Author: Santiago Ontañón Villar (Brain Games)
+ */
+package workers.superopt;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.apache.commons.io.FilenameUtils;
+
+import cl.MDLConfig;
+import code.CPUOpDependency;
+import code.CodeBase;
+import code.SourceFile;
+import code.SourceStatement;
+import parser.Tokenizer;
+import workers.MDLWorker;
+
+/**
+ * Generates new patterns for the pattern-based optimizer from the results of the
+ * superoptimizer. Sequences of instructions (supported by the superoptimizer) are
+ * collected from the input code (and optionally from a corpus of additional files),
+ * abstracted in the same way as pattern variables (registers other than A become
+ * ?reg1, ?reg2, etc. and constants become ?const1, ?const2, etc.), and counted. The
+ * most frequent ones are sent to the superoptimizer, and those for which a cheaper
+ * equivalent is found are written out as patterns (ranked by the total number of
+ * bytes they would have saved), which can be loaded with "-popatterns".
+ *
+ * @author santi
+ */
+public class PatternMiner implements MDLWorker {
+    public static final int DEFAULT_MIN_OCCURRENCES = 2;
+    public static final int DEFAULT_MAX_LENGTH = 3;
+
+    public static final String FLAG_NAMES[] = {"S", "Z", "H", "P/V", "N", "C"};
+
+    public static class MinedSequence {
+        public String key;
+        public List<Instruction> sequence;
+        public int dead;    // registers/flags (renamed) not used after the sequence
+        public boolean abstractConstants;
+        public String abstractKey = null;   // for sequences with concrete constants
+        public int occurrences = 0;
+
+        public List<Instruction> replacement = null;
+        public int requiredDead = 0;
+        public int bytesSaved = 0;
+        public int timeSaved = 0;
+    }
+
+    MDLConfig config;
+    String outputFileName = null;
+    String corpusFileName = null;
+    int minOccurrences = DEFAULT_MIN_OCCURRENCES;
+    int maxLength = DEFAULT_MAX_LENGTH;
+
+
+    public PatternMiner(MDLConfig a_config)
+    {
+        config = a_config;
+    }
+
+
+    @Override
+    public String docString()
+    {
+        return "  -mine <output file>: uses the superoptimizer to find cheaper equivalents of the most frequent instruction sequences in the code, and writes them as patterns that can be used with -popatterns.\n" +
+               "  -mine-corpus <file>: a file with a list of additional assembler files (one per line) from which to collect instruction sequences for -mine.\n" +
+               "  -mine-min <n>: minimum number of times a sequence needs to appear to be considered by -mine (default " + DEFAULT_MIN_OCCURRENCES + ").\n" +
+               "  -mine-max <n>: maximum length of the sequences considered by -mine (default " + DEFAULT_MAX_LENGTH + ").\n";
+    }
+
+
+    @Override
+    public boolean parseFlag(List<String> flags)
+    {
+        if (flags.get(0).equals("-mine") && flags.size()>=2) {
+            flags.remove(0);
+            outputFileName = flags.remove(0);
+            return true;
+        }
+        if (flags.get(0).equals("-mine-corpus") && flags.size()>=2) {
+            flags.remove(0);
+            corpusFileName = flags.remove(0);
+            return true;
+        }
+        if (flags.get(0).equals("-mine-min") && flags.size()>=2) {
+            flags.remove(0);
+            try {
+                minOccurrences = Integer.parseInt(flags.remove(0));
+            } catch (NumberFormatException e) {
+                config.error("Invalid number after -mine-min");
+                return false;
+            }
+            return true;
+        }
+        if (flags.get(0).equals("-mine-max") && flags.size()>=2) {
+            flags.remove(0);
+            try {
+                maxLength = Integer.parseInt(flags.remove(0));
+            } catch (NumberFormatException e) {
+                config.error("Invalid number after -mine-max");
+                return false;
+            }
+            return true;
+        }
+        return false;
+    }
+
+
+    @Override
+    public boolean work(CodeBase code)
+    {
+        if (outputFileName == null) return true;
+        config.debug("Executing "+this.getClass().getSimpleName()+" worker...");
+
+        SuperOptimizer so = new SuperOptimizer(config, null);
+        LinkedHashMap<String, MinedSequence> sequences = new LinkedHashMap<>();
+        collectSequences(code, so, sequences);
+        if (corpusFileName != null) {
+            try (BufferedReader br = config.sourceProvider.asReader(corpusFileName)) {
+                while(true) {
+                    String line = br.readLine();
+                    if (line == null) break;
+                    line = line.trim();
+                    if (line.isEmpty() || Tokenizer.isSingleLineComment(line)) continue;
+                    // relative paths are relative to the corpus file:
+                    String path = line;
+                    if (!new File(path).isAbsolute()) {
+                        path = config.lineParser.pathConcat(FilenameUtils.getFullPath(corpusFileName), line);
+                    }
+                    CodeBase corpusCode = new CodeBase(config);
+                    if (!config.codeBaseParser.parseMainSourceFile(path, corpusCode)) {
+                        config.warn("PatternMiner: could not parse " + path + ", ignoring it.");
+                        continue;
+                    }
+                    collectSequences(corpusCode, so, sequences);
+                }
+            } catch (Exception e) {
+                config.error("Cannot read corpus file " + corpusFileName + ": " + e);
+                return false;
+            }
+        }
+
+        List<MinedSequence> patterns = mine(sequences, so);
+        try (Writer fw = config.sourceProvider.asWriter(outputFileName)) {
+            fw.write(patternsString(patterns));
+            fw.flush();
+        } catch (Exception e) {
+            config.error("Cannot write to file " + outputFileName + ": " + e);
+            return false;
+        }
+        config.info("PatternMiner: " + patterns.size() + " patterns written to " + outputFileName);
+        return true;
+    }
+
+
+    /*
+    Counts all the (abstracted) sequences of supported instructions that appear in "code":
+    */
+    public void collectSequences(CodeBase code, SuperOptimizer so, LinkedHashMap<String, MinedSequence> sequences)
+    {
+        for (SourceFile f : code.getSourceFiles()) {
+            List<SourceStatement> l = f.getStatements();
+            for (int index = 0; index < l.size(); index++) {
+                List<Instruction> window = new ArrayList<>();
+                for(int i = index;i<l.size() && window.size()<maxLength;i++) {
+                    SourceStatement s = l.get(i);
+                    if (s.type != SourceStatement.STATEMENT_CPUOP) break;
+                    if (i != index && s.label != null) break;
+                    if (s.comment != null && s.comment.contains(config.PRAGMA_NO_OPTIMIZATION)) break;
+                    Instruction instruction = Instruction.fromCPUOp(s.op);
+                    if (instruction == null) break;
+                    window.add(instruction);
+
+                    int dead = Instruction.ALL_REGISTERS_MASK & ~so.liveAfter(s, code);
+                    addSequence(window, dead, true, sequences);
+                    addSequence(window, dead, false, sequences);
+                }
+            }
+        }
+    }
+
+
+    void addSequence(List<Instruction> window, int dead, boolean abstractConstants, LinkedHashMap<String, MinedSequence> sequences)
+    {
+        // without constants, both versions of the sequence are the same:
+        if (!abstractConstants && sequenceHasNoConstants(window)) return;
+        MinedSequence ms = abstractSequence(window, dead, abstractConstants);
+        if (ms == null) return;
+        if (sequences.containsKey(ms.key)) {
+            ms = sequences.get(ms.key);
+        } else {
+            if (!abstractConstants) {
+                // remember the abstract version, to only report the concrete one if needed:
+                MinedSequence abstractMs = abstractSequence(window, dead, true);
+                if (abstractMs != null) ms.abstractKey = abstractMs.key;
+            }
+            sequences.put(ms.key, ms);
+        }
+        ms.occurrences++;
+    }
+
+
+    /*
+    Renames the registers of "window" canonically (see SuperOptimizer.canonicalRenaming),
+    and if "abstractConstants" is true, replaces constants by constant variables.
+    Returns null if there are too many different constants.
+    */
+    MinedSequence abstractSequence(List<Instruction> window, int dead, boolean abstractConstants)
+    {
+        int renaming[] = SuperOptimizer.canonicalRenaming(window);
+        List<String> constants = new ArrayList<>();
+        List<Instruction> sequence = new ArrayList<>();
+        int used = CPUOpDependency.REG_A | Instruction.ALL_FLAGS_MASK;
+        for(Instruction instruction:window) {
+            String args[] = new String[instruction.args.length];
+            for(int i = 0;i<args.length;i++) {
+                String arg = instruction.args[i];
+                int idx = Instruction.registerIndex(arg);
+                if (idx >= 0) {
+                    args[i] = Instruction.REGISTER_NAMES[renaming[idx]];
+                    used |= Instruction.REGISTER_DEPENDENCY_MASKS[renaming[idx]];
+                } else if (abstractConstants) {
+                    if (!constants.contains(arg)) constants.add(arg);
+                    args[i] = "?const" + (constants.indexOf(arg) + 1);
+                } else {
+                    args[i] = arg;
+                }
+            }
+            sequence.add(Instruction.create(instruction.name, args));
+        }
+        if (constants.size() > Instruction.MAX_CONSTANT_VARIABLES) return null;
+
+        MinedSequence ms = new MinedSequence();
+        ms.sequence = sequence;
+        // only the registers that the superoptimizer could use matter:
+        ms.dead = SuperOptimizer.renameMask(dead, renaming) & used;
+        ms.abstractConstants = abstractConstants;
+        ms.key = SuperOptimizer.sequenceString(sequence) + " | dead: " + Integer.toHexString(ms.dead);
+        return ms;
+    }
+
+
+    static boolean sequenceHasNoConstants(List<Instruction> window)
+    {
+        for(Instruction instruction:window) {
+            for(String arg:instruction.args) {
+                if (Instruction.registerIndex(arg) < 0) return false;
+            }
+        }
+        return true;
+    }
+
+
+    /*
+    Runs the superoptimizer over the frequent sequences, and returns those for which
+    a replacement was found, ranked by the total number of bytes (and then time) saved:
+    */
+    public List<MinedSequence> mine(LinkedHashMap<String, MinedSequence> sequences, SuperOptimizer so)
+    {
+        List<MinedSequence> found = new ArrayList<>();
+        // sequences with abstracted constants go first, as they are more general:
+        for(int pass = 0;pass<2;pass++) {
+            for(MinedSequence ms:sequences.values()) {
+                if (ms.abstractConstants != (pass == 0)) continue;
+                if (ms.occurrences < minOccurrences) continue;
+                if (ms.abstractKey != null) {
+                    MinedSequence abstractSequence = sequences.get(ms.abstractKey);
+                    if (abstractSequence != null && abstractSequence.replacement != null) continue;
+                }
+                int live = Instruction.ALL_REGISTERS_MASK & ~ms.dead;
+                ms.replacement = so.search(ms.sequence, live);
+                if (ms.replacement == null) continue;
+                ms.requiredDead = so.requiredDead(ms.sequence, ms.replacement, ms.dead);
+                ms.bytesSaved = so.originalBytes - so.bestBytes;
+                ms.timeSaved = so.originalTime - so.bestTime;
+                found.add(ms);
+            }
+        }
+        Collections.sort(found, (ms1, ms2) -> {
+            int saved1 = ms1.occurrences * ms1.bytesSaved;
+            int saved2 = ms2.occurrences * ms2.bytesSaved;
+            if (saved1 != saved2) return Integer.compare(saved2, saved1);
+            return Integer.compare(ms2.occurrences * ms2.timeSaved, ms1.occurrences * ms1.timeSaved);
+        });
+
+        // Different "dead" sets can lead to the same pattern, only keep the first:
+        List<MinedSequence> patterns = new ArrayList<>();
+        List<String> patternStrings = new ArrayList<>();
+        for(MinedSequence ms:found) {
+            String str = patternString(ms);
+            if (patternStrings.contains(str)) continue;
+            patternStrings.add(str);
+            patterns.add(ms);
+        }
+        return patterns;
+    }
+
+
+    public String patternsString(List<MinedSequence> patterns)
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("; Patterns generated by the pattern miner (ranked by total bytes saved).\n");
+        for(MinedSequence ms:patterns) {
+            sb.append("\n");
+            sb.append("; " + ms.occurrences + " occurrences, " + ms.bytesSaved + " bytes, " +
+                      ms.timeSaved + " " + config.timeUnit + "s saved each\n");
+            sb.append(patternString(ms));
+        }
+        return sb.toString();
+    }
+
+
+    public String patternString(MinedSequence ms)
+    {
+        String sequence = "";
+        String replacement = "";
+        String lines = "";
+        String replacementLines = "";
+        for(int i = 0;i<ms.sequence.size();i++) {
+            String text = patternInstruction(ms.sequence.get(i));
+            sequence += (sequence.isEmpty() ? "":"; ") + text;
+            lines += i + ": " + text + "\n";
+        }
+        for(int i = 0;i<ms.replacement.size();i++) {
+            String text = patternInstruction(ms.replacement.get(i));
+            replacement += (replacement.isEmpty() ? "":"; ") + text;
+            replacementLines += i + ": " + text + "\n";
+        }
+
+        String str = "pattern: " + (replacement.isEmpty() ?
+                                     "Remove unused " + sequence :
+                                     "Replace " + sequence + " with " + replacement) + "\n";
+        str += lines;
+        str += "replacement:\n";
+        str += replacementLines;
+
+        List<String> constraints = new ArrayList<>();
+        int nRegisters = 0;
+        for(int i = 1;i<Instruction.REGISTER_NAMES.length;i++) {
+            if (sequence.contains("?reg" + i)) nRegisters = i;
+        }
+        for(int i = 1;i<=nRegisters;i++) {
+            constraints.add("in(?reg" + i + ",B,C,D,E,H,L)");
+        }
+        for(int i = 1;i<=nRegisters;i++) {
+            for(int j = i+1;j<=nRegisters;j++) {
+                constraints.add("notEqual(?reg" + i + ",?reg" + j + ")");
+            }
+        }
+        int last = ms.sequence.size() - 1;
+        String regs = "";
+        for(int i = 0;i<Instruction.REGISTER_DEPENDENCY_MASKS.length;i++) {
+            if ((ms.requiredDead & Instruction.REGISTER_DEPENDENCY_MASKS[i]) != 0) {
+                String register = patternRegister(Instruction.REGISTER_NAMES[i]);
+                regs += "," + (register.startsWith("?") ? register : register.toUpperCase());
+            }
+        }
+        if (!regs.isEmpty()) constraints.add("regsNotUsedAfter(" + last + regs + ")");
+        String flags = "";
+        for(int i = 0;i<Instruction.FLAG_DEPENDENCY_MASKS.length;i++) {
+            if ((ms.requiredDead & Instruction.FLAG_DEPENDENCY_MASKS[i]) != 0) {
+                flags += "," + FLAG_NAMES[i];
+            }
+        }
+        if (!flags.isEmpty()) constraints.add("flagsNotUsedAfter(" + last + flags + ")");
+        if (!constraints.isEmpty()) {
+            str += "constraints:\n";
+            for(String constraint:constraints) str += constraint + "\n";
+        }
+        return str;
+    }
+
+
+    /*
+    Canonical registers "b", "c", etc. correspond to pattern variables "?reg1", "?reg2", etc.:
+    */
+    static String patternRegister(String register)
+    {
+        int idx = Instruction.registerIndex(register);
+        if (idx <= 0) return register;
+        return "?reg" + idx;
+    }
+
+
+    static String patternInstruction(Instruction instruction)
+    {
+        String text = instruction.name;
+        for(int i = 0;i<instruction.args.length;i++) {
+            text += (i == 0 ? " ":",") + patternRegister(instruction.args[i]);
+        }
+        return text;
+    }
+}
@@ -0,0 +1,654 @@
+/*
+ * Author: Santiago Ontañón Villar (Brain Games)
+ */
+package workers.superopt;
+
+import java.io.BufferedReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.io.FilenameUtils;
+
+import cl.MDLConfig;
+import code.CPUOp;
+import code.CPUOpDependency;
+import code.CodeBase;
+import code.ControlFlowGraph;
+import code.Expression;
+import code.SourceFile;
+import code.SourceStatement;
+import parser.SourceLine;
+import parser.Tokenizer;
+import workers.MDLWorker;
+import workers.pattopt.PatternBasedOptimizer;
+import workers.pattopt.PatternBasedOptimizer.OptimizationResult;
+
+/**
+ * Replaces short sequences of consecutive instructions (within a basic block) by
+ * shorter/faster equivalent ones. Candidate sequences are enumerated (shortest/cheapest
+ * first) from the instructions supported by the "Instruction" class, and equivalence is
+ * verified by simulating both sequences exhaustively over all the possible values of
+ * the registers/flags they read, comparing only the registers/flags that are used
+ * afterwards. Results are cached (optionally in a file, to reuse them across runs),
+ * indexed by the sequence with registers renamed in a canonical way.
+ *
+ * @author santi
+ */
+public class SuperOptimizer implements MDLWorker {
+    public static final int DEFAULT_MAX_LENGTH = 3;
+    // Candidates are only verified when the number of input bits is at most this:
+    public static final int MAX_VERIFICATION_BITS = 24;
+    public static final int NUM_TEST_STATES = 32;
+    public static final String NO_REPLACEMENT = "-";
+
+    MDLConfig config;
+    PatternBasedOptimizer pbo = null;   // to record the changes for "-poapply" (if any)
+    boolean activate = false;
+    int maxLength = DEFAULT_MAX_LENGTH;
+    String cacheFileName = null;
+
+    // canonical sequence -> canonical replacement (NO_REPLACEMENT if there is no better sequence):
+    LinkedHashMap<String, String> cache = new LinkedHashMap<>();
+    HashMap<String, CPUOp> parsedOps = new HashMap<>();
+    int testStates[][] = null;
+    CodeBase scratchCode = null;
+
+    // search state:
+    List<Instruction> alphabet = new ArrayList<>();
+    List<CPUOp> alphabetOps = new ArrayList<>();
+    int originalReads, originalWrites, originalBytes, originalTime, liveOut;
+    int originalOutputs[][];
+    List<Instruction> best = null;
+    int bestBytes, bestTime;
+
+
+    public SuperOptimizer(MDLConfig a_config, PatternBasedOptimizer a_pbo)
+    {
+        config = a_config;
+        pbo = a_pbo;
+    }
+
+
+    @Override
+    public String docString()
+    {
+        return "  -so: Runs the superoptimizer, which replaces short sequences of instructions that only involve 8 bit registers and flags by shorter/faster equivalent sequences (this is slow, so it is recommended to use it together with -so-cache).\n" +
+               "  -so-max <n>: maximum length of the instruction sequences considered by the superoptimizer (default " + DEFAULT_MAX_LENGTH + ").\n" +
+               "  -so-cache <file>: file where to store the superoptimizer results, to reuse them across executions (it is created if it does not exist).\n";
+    }
+
+
+    @Override
+    public boolean parseFlag(List<String> flags)
+    {
+        if (flags.get(0).equals("-so")) {
+            flags.remove(0);
+            activate = true;
+            return true;
+        }
+        if (flags.get(0).equals("-so-max") && flags.size()>=2) {
+            flags.remove(0);
+            try {
+                maxLength = Integer.parseInt(flags.remove(0));
+            } catch (NumberFormatException e) {
+                config.error("Invalid number after -so-max");
+                return false;
+            }
+            activate = true;
+            return true;
+        }
+        if (flags.get(0).equals("-so-cache") && flags.size()>=2) {
+            flags.remove(0);
+            cacheFileName = flags.remove(0);
+            activate = true;
+            return true;
+        }
+        return false;
+    }
+
+
+    @Override
+    public boolean work(CodeBase code)
+    {
+        if (!activate) return true;
+        config.debug("Executing "+this.getClass().getSimpleName()+" worker...");
+        if (cacheFileName != null && !loadCache(cacheFileName)) return false;
+        optimize(code);
+        if (cacheFileName != null && !saveCache(cacheFileName)) return false;
+        return true;
+    }
+
+
+    public OptimizationResult optimize(CodeBase code)
+    {
+        OptimizationResult r = new OptimizationResult();
+        for (SourceFile f : code.getSourceFiles()) {
+            for (int i = 0; i < f.getStatements().size(); i++) {
+                while(optimizeAt(f, i, code, r));
+            }
+        }
+        config.info("SuperOptimizer: "+r.patternApplications+" sequences replaced, " +
+                    r.bytesSaved+" bytes, " +
+                    r.timeString() + " " +config.timeUnit+"s saved.");
+        return r;
+    }
+
+
+    /*
+    Tries to replace the longest possible sequence starting at statement "index".
+    Returns whether any replacement was done.
+    */
+    boolean optimizeAt(SourceFile f, int index, CodeBase code, OptimizationResult r)
+    {
+        List<SourceStatement> l = f.getStatements();
+        List<SourceStatement> window = new ArrayList<>();
+        List<Instruction> sequence = new ArrayList<>();
+        for(int i = index;i<l.size() && window.size()<maxLength;i++) {
+            SourceStatement s = l.get(i);
+            if (s.type != SourceStatement.STATEMENT_CPUOP) break;
+            if (i != index && s.label != null) break;
+            if (s.comment != null && s.comment.contains(config.PRAGMA_NO_OPTIMIZATION)) break;
+            Instruction instruction = Instruction.fromCPUOp(s.op);
+            if (instruction == null) break;
+            window.add(s);
+            sequence.add(instruction);
+        }
+
+        for(int length = window.size();length>0;length--) {
+            List<SourceStatement> statements = window.subList(0, length);
+            int live = liveAfter(statements.get(length-1), code);
+
+            // canonicalize the sequence:
+            int renaming[] = canonicalRenaming(sequence.subList(0, length));
+            List<Instruction> canonical = new ArrayList<>();
+            for(int i = 0;i<length;i++) {
+                canonical.add(rename(sequence.get(i), renaming));
+            }
+            int canonicalLive = renameMask(live, renaming);
+            String key = FilenameUtils.getBaseName(config.cpuInstructionSet) + ": " +
+                         sequenceString(canonical) + " | live: " + Integer.toHexString(canonicalLive);
+
+            String replacement = cache.get(key);
+            if (replacement == null) {
+                List<Instruction> found = search(canonical, canonicalLive);
+                replacement = (found == null ? NO_REPLACEMENT : sequenceString(found));
+                cache.put(key, replacement);
+            }
+            if (replacement.equals(NO_REPLACEMENT)) continue;
+
+            // undo the renaming:
+            int inverse[] = new int[renaming.length];
+            Arrays.fill(inverse, -1);
+            for(int i = 0;i<renaming.length;i++) {
+                if (renaming[i] >= 0) inverse[renaming[i]] = i;
+            }
+            List<CPUOp> ops = new ArrayList<>();
+            boolean error = false;
+            for(String text:splitSequence(replacement)) {
+                Instruction instruction = Instruction.parse(text);
+                CPUOp op = (instruction == null ? null : parseOp(rename(instruction, inverse).text));
+                if (op == null) {
+                    config.error("SuperOptimizer: cannot parse cached instruction '" + text + "'");
+                    error = true;
+                    break;
+                }
+                ops.add(op);
+            }
+            if (error) continue;
+
+            if (apply(f, index, statements, ops, code, r)) return true;
+        }
+        return false;
+    }
+
+
+    boolean apply(SourceFile f, int index, List<SourceStatement> statements, List<CPUOp> ops, CodeBase code, OptimizationResult r)
+    {
+        List<SourceStatement> l = f.getStatements();
+        SourceStatement first = statements.get(0);
+        int bytesBefore = 0, timeBefore[] = {0, 0};
+        String before = "";
+        for(SourceStatement s:statements) {
+            bytesBefore += s.op.sizeInBytes();
+            timeBefore[0] += s.op.timing()[0];
+            timeBefore[1] += s.op.timing()[s.op.timing().length-1];
+            before += (before.isEmpty() ? "":"; ") + s.op;
+        }
+
+        List<SourceStatement> removed = new ArrayList<>(statements);
+        List<SourceStatement> added = new ArrayList<>();
+        int bytesAfter = 0, timeAfter[] = {0, 0};
+        String after = "";
+        for(CPUOp op:ops) {
+            SourceStatement s = new SourceStatement(SourceStatement.STATEMENT_CPUOP, first.sl, first.source, config);
+            s.op = new CPUOp(op);
+            added.add(s);
+            bytesAfter += op.sizeInBytes();
+            timeAfter[0] += op.timing()[0];
+            timeAfter[1] += op.timing()[op.timing().length-1];
+            after += (after.isEmpty() ? "":"; ") + op;
+        }
+        if (first.label != null) {
+            // keep the label:
+            if (added.isEmpty()) {
+                added.add(new SourceStatement(SourceStatement.STATEMENT_NONE, first.sl, first.source, config));
+            }
+            added.get(0).label = first.label;
+            first.label.definingStatement = added.get(0);
+        }
+        for(int i = 0;i<removed.size();i++) l.remove(index);
+        l.addAll(index, added);
+        code.resetAddresses();
+        code.updateControlFlowGraph(f, removed, added);
+
+        int timeSaved[] = {timeBefore[0] - timeAfter[0], timeBefore[1] - timeAfter[1]};
+        String timeString = (timeSaved[0] == timeSaved[1] ? "" + timeSaved[0] : timeSaved[0] + "/" + timeSaved[1]);
+        config.info("SuperOptimizer", first.fileNameLineString(),
+                "Replace " + before + " with " + (after.isEmpty() ? "nothing" : after) +
+                " (" + (bytesBefore - bytesAfter) + " bytes, " + timeString + " " + config.timeUnit + "s saved)");
+        r.patternApplications++;
+        r.bytesSaved += bytesBefore - bytesAfter;
+        r.timeSaved[0] += timeSaved[0];
+        r.timeSaved[1] += timeSaved[1];
+        if (pbo != null) pbo.recordAppliedOptimization(f, removed, added);
+        return true;
+    }
+
+
+    /*
+    Registers/flags (that can be modified by the instructions supported by the superoptimizer)
+    that might be used after statement "s":
+    */
+    int liveAfter(SourceStatement s, CodeBase code)
+    {
+        ControlFlowGraph cfg = code.getControlFlowGraph();
+        int live = 0;
+        List<Integer> masks = new ArrayList<>();
+        for(int mask:Instruction.REGISTER_DEPENDENCY_MASKS) masks.add(mask);
+        for(int mask:Instruction.FLAG_DEPENDENCY_MASKS) masks.add(mask);
+        for(int mask:masks) {
+            Boolean notUsed = cfg.depNotUsedAfter(s, new CPUOpDependency(mask, null, null, null));
+            if (notUsed == null || !notUsed) live |= mask;
+        }
+        return live;
+    }
+
+
+    /*
+    Returns the best sequence found (shortest, and then fastest), or null if no sequence
+    better than "sequence" was found. Only the registers/flags in "a_liveOut" need to
+    have the same value after both sequences.
+    */
+    List<Instruction> search(List<Instruction> sequence, int a_liveOut)
+    {
+        liveOut = a_liveOut;
+        originalReads = readsBeforeWritten(sequence);
+        originalWrites = writes(sequence);
+        originalBytes = 0;
+        originalTime = 0;
+        for(Instruction instruction:sequence) {
+            CPUOp op = costOp(instruction);
+            if (op == null) return null;
+            originalBytes += op.sizeInBytes();
+            originalTime += maxTime(op);
+        }
+        if (testStates == null) {
+            Random random = new Random(0);
+            testStates = new int[NUM_TEST_STATES][Instruction.STATE_SIZE];
+            for(int i = 0;i<NUM_TEST_STATES;i++) {
+                for(int j = 0;j<Instruction.STATE_SIZE;j++) {
+                    testStates[i][j] = random.nextInt(256);
+                }
+            }
+        }
+        originalOutputs = new int[NUM_TEST_STATES][];
+        for(int i = 0;i<NUM_TEST_STATES;i++) {
+            originalOutputs[i] = simulate(sequence, testStates[i]);
+        }
+
+        // the instructions to consider (only with the registers and constants in the original sequence):
+        List<String> registers = new ArrayList<>();
+        List<String> arguments = new ArrayList<>();
+        for(Instruction instruction:sequence) {
+            for(String arg:instruction.args) {
+                if (Instruction.registerIndex(arg) >= 0) {
+                    if (!registers.contains(arg)) registers.add(arg);
+                } else if (!arguments.contains(arg)) {
+                    arguments.add(arg);
+                }
+            }
+        }
+        if (!registers.contains("a")) registers.add(0, "a");
+        if (!arguments.contains("0")) arguments.add("0");
+        // registers that always end up with the same value:
+        for(String register:registers) {
+            int idx = Instruction.registerIndex(register);
+            boolean constant = true;
+            for(int i = 1;i<NUM_TEST_STATES;i++) {
+                if (originalOutputs[i][idx] != originalOutputs[0][idx]) constant = false;
+            }
+            if (constant && !arguments.contains("" + originalOutputs[0][idx])) {
+                arguments.add("" + originalOutputs[0][idx]);
+            }
+        }
+        arguments.addAll(0, registers);
+        List<String> texts = new ArrayList<>();
+        for(String r1:registers) {
+            for(String arg:arguments) {
+                if (!arg.equals(r1)) texts.add("ld " + r1 + "," + arg);
+            }
+            texts.add("inc " + r1);
+            texts.add("dec " + r1);
+            for(String op:Instruction.CB_OPS) texts.add(op + " " + r1);
+        }
+        for(String op:Instruction.ALU_OPS) {
+            for(String arg:arguments) {
+                if (op.equals("add") || op.equals("adc") || op.equals("sbc")) {
+                    texts.add(op + " a," + arg);
+                } else {
+                    texts.add(op + " " + arg);
+                }
+            }
+        }
+        texts.addAll(Arrays.asList(Instruction.NO_ARG_OPS));
+        alphabet.clear();
+        alphabetOps.clear();
+        for(String text:texts) {
+            Instruction instruction = Instruction.parse(text);
+            CPUOp op = (instruction == null ? null : costOp(instruction));
+            if (op == null) continue;
+            alphabet.add(instruction);
+            alphabetOps.add(op);
+        }
+
+        best = null;
+        searchInternal(new ArrayList<>(), sequence, sequence.size(), 0, 0, 0);
+        return best;
+    }
+
+
+    /*
+    Given a replacement found by "search", returns the minimal subset of the
+    registers/flags in "dead" that need to be unused after the sequence for the
+    replacement to be correct.
+    */
+    int requiredDead(List<Instruction> sequence, List<Instruction> replacement, int dead)
+    {
+        int required = dead & (originalWrites | writes(replacement));
+        for(int mask = 1;mask != 0;mask <<= 1) {
+            if ((required & mask) == 0) continue;
+            liveOut = Instruction.ALL_REGISTERS_MASK & ~(required & ~mask);
+            if (equivalent(sequence, replacement)) required &= ~mask;
+        }
+        return required;
+    }
+
+
+    void searchInternal(List<Instruction> current, List<Instruction> sequence, int maxDepth, int bytes, int time, int written)
+    {
+        boolean better = (bytes < originalBytes && time <= originalTime) ||
+                         (bytes <= originalBytes && time < originalTime);
+        if (better && (best == null || bytes < bestBytes || (bytes == bestBytes && time < bestTime))) {
+            if (equivalent(sequence, current)) {
+                best = new ArrayList<>(current);
+                bestBytes = bytes;
+                bestTime = time;
+            }
+        }
+        if (current.size() >= maxDepth) return;
+        for(int i = 0;i<alphabet.size();i++) {
+            Instruction instruction = alphabet.get(i);
+            int newBytes = bytes + alphabetOps.get(i).sizeInBytes();
+            int newTime = time + maxTime(alphabetOps.get(i));
+            if (newBytes > originalBytes || newTime > originalTime) continue;
+            if (best != null && (newBytes > bestBytes || (newBytes == bestBytes && newTime >= bestTime))) continue;
+            // only read values that the original sequence also reads:
+            if ((instruction.reads & ~written & ~originalReads) != 0) continue;
+            current.add(instruction);
+            searchInternal(current, sequence, maxDepth, newBytes, newTime, written | instruction.writes);
+            current.remove(current.size()-1);
+        }
+    }
+
+
+    boolean equivalent(List<Instruction> sequence, List<Instruction> candidate)
+    {
+        int candidateWrites = writes(candidate);
+        int compare = liveOut & (originalWrites | candidateWrites);
+
+        // quick test with some random states:
+        for(int i = 0;i<NUM_TEST_STATES;i++) {
+            if (!sameOutput(originalOutputs[i], simulate(candidate, testStates[i]), compare)) return false;
+        }
+
+        // exhaustive verification over all the inputs that can affect the compared registers/flags:
+        int inputs = originalReads | readsBeforeWritten(candidate) | (compare & ~(originalWrites & candidateWrites));
+        List<Integer> inputRegisters = new ArrayList<>();
+        List<Integer> inputFlags = new ArrayList<>();
+        for(int i = 0;i<Instruction.REGISTER_DEPENDENCY_MASKS.length;i++) {
+            if ((inputs & Instruction.REGISTER_DEPENDENCY_MASKS[i]) != 0) inputRegisters.add(i);
+        }
+        for(int i = 0;i<Instruction.CONSTANT_VARIABLE_MASKS.length;i++) {
+            if ((inputs & Instruction.CONSTANT_VARIABLE_MASKS[i]) != 0) inputRegisters.add(Instruction.FIRST_CONSTANT_VARIABLE + i);
+        }
+        for(int i = 0;i<Instruction.FLAG_DEPENDENCY_MASKS.length;i++) {
+            if ((inputs & Instruction.FLAG_DEPENDENCY_MASKS[i]) != 0) inputFlags.add(Instruction.FLAG_BITS[i]);
+        }
+        int bits = inputRegisters.size()*8 + inputFlags.size();
+        if (bits > MAX_VERIFICATION_BITS) return false;
+        int state[] = new int[Instruction.STATE_SIZE];
+        for(long assignment = 0;assignment < (1L << bits);assignment++) {
+            long v = assignment;
+            for(int register:inputRegisters) {
+                state[register] = (int)(v & 0xff);
+                v >>= 8;
+            }
+            state[Instruction.F] = 0;
+            for(int flag:inputFlags) {
+                if ((v & 1) != 0) state[Instruction.F] |= flag;
+                v >>= 1;
+            }
+            if (!sameOutput(simulate(sequence, state), simulate(candidate, state), compare)) return false;
+        }
+        return true;
+    }
+
+
+    boolean sameOutput(int state1[], int state2[], int compare)
+    {
+        for(int i = 0;i<Instruction.REGISTER_DEPENDENCY_MASKS.length;i++) {
+            if ((compare & Instruction.REGISTER_DEPENDENCY_MASKS[i]) != 0 && state1[i] != state2[i]) return false;
+        }
+        for(int i = 0;i<Instruction.FLAG_DEPENDENCY_MASKS.length;i++) {
+            if ((compare & Instruction.FLAG_DEPENDENCY_MASKS[i]) != 0 &&
+                (state1[Instruction.F] & Instruction.FLAG_BITS[i]) != (state2[Instruction.F] & Instruction.FLAG_BITS[i])) return false;
+        }
+        return true;
+    }
+
+
+    int[] simulate(List<Instruction> sequence, int state[])
+    {
+        int result[] = Arrays.copyOf(state, state.length);
+        for(Instruction instruction:sequence) instruction.execute(result);
+        return result;
+    }
+
+
+    static int readsBeforeWritten(List<Instruction> sequence)
+    {
+        int reads = 0, written = 0;
+        for(Instruction instruction:sequence) {
+            reads |= instruction.reads & ~written;
+            written |= instruction.writes;
+        }
+        return reads;
+    }
+
+
+    static int writes(List<Instruction> sequence)
+    {
+        int written = 0;
+        for(Instruction instruction:sequence) written |= instruction.writes;
+        return written;
+    }
+
+
+    static int maxTime(CPUOp op)
+    {
+        int max = 0;
+        for(int t:op.timing()) max = Math.max(max, t);
+        return max;
+    }
+
+
+    /*
+    Register "a" is kept, and the rest of registers are renamed to "b", "c", etc. in
+    order of appearance:
+    */
+    static int[] canonicalRenaming(List<Instruction> sequence)
+    {
+        int renaming[] = new int[Instruction.REGISTER_NAMES.length];
+        Arrays.fill(renaming, -1);
+        renaming[0] = 0;
+        int nextRegister = 1;
+        for(Instruction instruction:sequence) {
+            for(String arg:instruction.args) {
+                int idx = Instruction.registerIndex(arg);
+                if (idx >= 0 && renaming[idx] == -1) renaming[idx] = nextRegister++;
+            }
+        }
+        return renaming;
+    }
+
+
+    static Instruction rename(Instruction instruction, int renaming[])
+    {
+        String args[] = new String[instruction.args.length];
+        for(int i = 0;i<args.length;i++) {
+            int idx = Instruction.registerIndex(instruction.args[i]);
+            args[i] = (idx >= 0 ? Instruction.REGISTER_NAMES[renaming[idx]] : instruction.args[i]);
+        }
+        return Instruction.create(instruction.name, args);
+    }
+
+
+    static int renameMask(int mask, int renaming[])
+    {
+        int renamed = mask;
+        for(int mask2:Instruction.REGISTER_DEPENDENCY_MASKS) renamed &= ~mask2;
+        for(int i = 0;i<renaming.length;i++) {
+            if (renaming[i] >= 0 && (mask & Instruction.REGISTER_DEPENDENCY_MASKS[i]) != 0) {
+                renamed |= Instruction.REGISTER_DEPENDENCY_MASKS[renaming[i]];
+            }
+        }
+        return renamed;
+    }
+
+
+    static String sequenceString(List<Instruction> sequence)
+    {
+        String str = "";
+        for(Instruction instruction:sequence) {
+            str += (str.isEmpty() ? "":"; ") + instruction.text;
+        }
+        return str;
+    }
+
+
+    static List<String> splitSequence(String str)
+    {
+        List<String> l = new ArrayList<>();
+        for(String text:str.split(";")) {
+            if (!text.trim().isEmpty()) l.add(text.trim());
+        }
+        return l;
+    }
+
+
+    /*
+    The op used to determine the size/time of an instruction (constant variables are
+    replaced by an arbitrary constant, as it does not affect the cost):
+    */
+    CPUOp costOp(Instruction instruction)
+    {
+        String text = instruction.name;
+        for(int i = 0;i<instruction.args.length;i++) {
+            String arg = instruction.args[i];
+            text += (i == 0 ? " ":",") + (arg.startsWith("?const") ? "1" : arg);
+        }
+        return parseOp(text);
+    }
+
+
+    CPUOp parseOp(String text)
+    {
+        if (parsedOps.containsKey(text)) return parsedOps.get(text);
+        if (scratchCode == null) scratchCode = new CodeBase(config);
+        SourceFile f = new SourceFile("", null, null, scratchCode, config);
+        SourceStatement s = new SourceStatement(SourceStatement.STATEMENT_CPUOP, new SourceLine("", f, 0), f, config);
+        List<String> tokens = Tokenizer.tokenize(text);
+        String opName = tokens.remove(0);
+        List<Expression> args = new ArrayList<>();
+        CPUOp op = null;
+        while(!tokens.isEmpty()) {
+            List<String> argTokens = new ArrayList<>();
+            while(!tokens.isEmpty() && !tokens.get(0).equals(",")) argTokens.add(tokens.remove(0));
+            if (!tokens.isEmpty()) tokens.remove(0);
+            Expression exp = config.expressionParser.parse(argTokens, null, null, scratchCode);
+            if (exp == null) {
+                args = null;
+                break;
+            }
+            args.add(exp);
+        }
+        if (args != null) {
+            List<CPUOp> op_l = config.opParser.parseOp(opName, args, s, null, scratchCode);
+            if (op_l != null && op_l.size() == 1) op = op_l.get(0);
+        }
+        parsedOps.put(text, op);
+        return op;
+    }
+
+
+    boolean loadCache(String fileName)
+    {
+        if (!config.sourceProvider.exists(fileName)) return true;
+        try (BufferedReader br = config.sourceProvider.asReader(fileName)) {
+            while(true) {
+                String line = br.readLine();
+                if (line == null) break;
+                String parts[] = line.split("\t", -1);
+                if (parts.length != 2) {
+                    config.warn("SuperOptimizer: ignoring malformed cache line: " + line);
+                    continue;
+                }
+                cache.put(parts[0], parts[1]);
+            }
+        } catch (Exception e) {
+            config.error("Cannot read superoptimizer cache file " + fileName + ": " + e);
+            return false;
+        }
+        return true;
+    }
+
+
+    boolean saveCache(String fileName)
+    {
+        try (Writer fw = config.sourceProvider.asWriter(fileName)) {
+            for(String key:cache.keySet()) {
+                fw.write(key + "\t" + cache.get(key) + "\n");
+            }
+            fw.flush();
+        } catch (Exception e) {
+            config.error("Cannot write superoptimizer cache file " + fileName + ": " + e);
+            return false;
+        }
+        return true;
+    }
+}
@@ -10,10 +10,12 @@ import code.CodeBase;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.StringTokenizer;
 import org.junit.Assert;
 import org.junit.Test;
+import parser.dialects.DialectKeywords;
 import util.Resources;
 import workers.SourceCodeGenerator;
 
@@ -43,6 +45,18 @@ public class ASMSXTest {
                                                                           "data/generationtests/asmsx-crash-expected.asm")); }
     @Test public void test6() throws IOException { Assert.assertTrue(test("data/generationtests/asmsx-macros.asm", false,
                                                                           "data/generationtests/asmsx-macros-expected.asm")); }
+    @Test public void test7() throws IOException { Assert.assertTrue(test("data/generationtests/asmsx-bios.asm", false,
+                                                                          "data/generationtests/asmsx-bios-expected.asm")); }
+
+    @Test public void testKeywords() throws IOException
+    {
+        Assert.assertTrue(mdlConfig.parseArgs("data/generationtests/asmsx-bios.asm","-dialect","asmsx"));
+        DialectKeywords keywords = mdlConfig.dialectParser.getKeywords();
+        Assert.assertNotNull(keywords);
+        Assert.assertTrue(keywords.recognizes(Arrays.asList(".BIOS")));
+        Assert.assertTrue(keywords.recognizes(Arrays.asList("page", "1")));
+        Assert.assertFalse(keywords.recognizes(Arrays.asList("page")));
+    }
     
 
     private boolean test(String inputFile, boolean zilogMode, String expectedOutputFile) throws IOException
@@ -0,0 +1,96 @@
+/*
+ * Author: Santiago Ontañón Villar (Brain Games)
+ */
+package test;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import cl.BatchRunner;
+import cl.MDLLogger;
+import util.FileSystemSourceProvider;
+import util.InMemorySourceProvider;
+
+/**
+ *
+ * @author santi
+ */
+public class BatchRunnerTest {
+
+    @Test public void test1() throws Exception
+    {
+        BatchRunner batch = new BatchRunner(new MDLLogger(MDLLogger.INFO));
+        Assert.assertTrue(batch.parseArgs("-batch", "data/batchtests/manifest.txt"));
+        Assert.assertEquals(4, batch.getEntries().size());
+
+        // the last entry refers to a file that does not exist:
+        Assert.assertEquals(2, batch.run());
+        Assert.assertEquals(0, batch.getEntries().get(0).exitCode);
+        Assert.assertEquals(0, batch.getEntries().get(1).exitCode);
+        Assert.assertEquals(0, batch.getEntries().get(2).exitCode);
+        Assert.assertEquals(2, batch.getEntries().get(3).exitCode);
+        Assert.assertTrue(batch.getEntries().get(3).log.contains("ERROR"));
+
+        // the instruction sets are only parsed once per cpu (z80msx and z80), and
+        // running the entries again does not read any file again:
+        Assert.assertEquals(2, batch.getCache().instructionSetParses);
+        int reads = batch.getCache().sources.reads;
+        Assert.assertEquals(2, batch.run());
+        Assert.assertEquals(reads, batch.getCache().sources.reads);
+        Assert.assertEquals(2, batch.getCache().instructionSetParses);
+    }
+
+
+    @Test public void test2Concurrent() throws Exception
+    {
+        // Entries with dialects that change the tokenizer settings produce the same
+        // results when run concurrently as when run one after the other:
+        BatchRunner sequential = new BatchRunner(new MDLLogger(MDLLogger.INFO));
+        Assert.assertTrue(sequential.parseArgs("-batch", "data/batchtests/manifest-concurrent.txt"));
+        Assert.assertEquals(0, sequential.run());
+        BatchRunner concurrent = new BatchRunner(new MDLLogger(MDLLogger.INFO));
+        Assert.assertTrue(concurrent.parseArgs("-batch", "data/batchtests/manifest-concurrent.txt", "-j", "4"));
+        Assert.assertEquals(0, concurrent.run());
+        for(int i = 0;i<sequential.getEntries().size();i++) {
+            Assert.assertEquals(sequential.getEntries().get(i).log, concurrent.getEntries().get(i).log);
+        }
+    }
+
+
+    @Test public void test3SourceProvider() throws Exception
+    {
+        // The manifest and the summary also go through the source provider:
+        InMemorySourceProvider sources = new InMemorySourceProvider(new FileSystemSourceProvider());
+        sources.addFile("manifest.txt", "# in memory\nmain.asm -quiet\n");
+        sources.addFile("main.asm", "    ld a, 1\n    ret\n");
+        BatchRunner batch = new BatchRunner(new MDLLogger(MDLLogger.INFO), sources);
+        Assert.assertTrue(batch.parseArgs("-batch", "manifest.txt", "-summary", "summary.tsv"));
+        Assert.assertEquals(1, batch.getEntries().size());
+        Assert.assertEquals(0, batch.run());
+        String summary = sources.getOutput("summary.tsv");
+        Assert.assertNotNull(summary);
+        Assert.assertTrue(summary.startsWith("entry\texit code"));
+        Assert.assertTrue(summary.contains("main.asm\t0\t"));
+    }
+
+
+    @Test public void test4Error() throws Exception
+    {
+        // An error in one entry (e.g., a stack overflow parsing a deeply nested
+        // expression) only fails that entry:
+        StringBuilder nested = new StringBuilder();
+        for(int i = 0;i<100000;i++) nested.append("(");
+        nested.append("1");
+        for(int i = 0;i<100000;i++) nested.append(")");
+        InMemorySourceProvider sources = new InMemorySourceProvider(new FileSystemSourceProvider());
+        sources.addFile("manifest.txt", "nested.asm\nmain.asm\n");
+        sources.addFile("nested.asm", "    ld a, " + nested + "\n");
+        sources.addFile("main.asm", "    ld a, 1\n    ret\n");
+        BatchRunner batch = new BatchRunner(new MDLLogger(MDLLogger.INFO), sources);
+        Assert.assertTrue(batch.parseArgs("-batch", "manifest.txt", "-j", "2"));
+        Assert.assertEquals(4, batch.run());
+        Assert.assertEquals(4, batch.getEntries().get(0).exitCode);
+        Assert.assertTrue(batch.getEntries().get(0).log.contains("StackOverflowError"));
+        Assert.assertEquals(0, batch.getEntries().get(1).exitCode);
+    }
+}
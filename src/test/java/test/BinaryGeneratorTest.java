@@ -0,0 +1,56 @@
+/*
+ * Author: Santiago Ontañón Villar (Brain Games)
+ */
+package test;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import cl.MDLConfig;
+import cl.Main;
+import util.FileSystemSourceProvider;
+import util.InMemorySourceProvider;
+
+/**
+ *
+ * @author santi
+ */
+public class BinaryGeneratorTest {
+
+    @Test public void test1() throws Exception
+    {
+        test("data/bintests/test1.asm",
+             "3e05dd7003fd36fe07ddcb015ecbfbdd61fd2c212a403a2a40d39818e31000c2" +
+             "0040cd0040ffed5608c9014142ff3412ffffff");
+    }
+
+
+    @Test public void testIncbin() throws Exception
+    {
+        test("data/bintests/test2.asm", "0203" + "010a00" + "18fe");
+    }
+
+
+    @Test public void testOutOfRange() throws Exception
+    {
+        InMemorySourceProvider sources = new InMemorySourceProvider(new FileSystemSourceProvider());
+        MDLConfig config = new MDLConfig();
+        config.sourceProvider = sources;
+        Assert.assertEquals(3, Main.run(config, new String[]{"data/jrtests/test1.asm", "-bin", "out.bin"}));
+        Assert.assertNull(sources.getBinaryOutput("out.bin"));
+    }
+
+
+    void test(String inputFile, String expectedHex) throws Exception
+    {
+        InMemorySourceProvider sources = new InMemorySourceProvider(new FileSystemSourceProvider());
+        MDLConfig config = new MDLConfig();
+        config.sourceProvider = sources;
+        Assert.assertEquals(0, Main.run(config, new String[]{inputFile, "-bin", "out.bin"}));
+        byte data[] = sources.getBinaryOutput("out.bin");
+        Assert.assertNotNull(data);
+        StringBuilder sb = new StringBuilder();
+        for(byte b:data) sb.append(String.format("%02x", b & 0xff));
+        Assert.assertEquals(expectedHex, sb.toString());
+    }
+}
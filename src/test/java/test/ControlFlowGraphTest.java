@@ -0,0 +1,76 @@
+/*
+ * Author: Santiago Ontañón Villar (Brain Games)
+ */
+package test;
+
+import java.io.IOException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import cl.MDLConfig;
+import code.BasicBlock;
+import code.CPUOpDependency;
+import code.CodeBase;
+import code.ControlFlowGraph;
+import code.SourceStatement;
+import code.SubroutineSummary;
+
+/**
+ *
+ * @author santi
+ */
+public class ControlFlowGraphTest {
+
+    private final MDLConfig config;
+    private final CodeBase code;
+
+    public ControlFlowGraphTest() {
+        config = new MDLConfig();
+        code = new CodeBase(config);
+    }
+
+    @Test public void test1() throws IOException
+    {
+        Assert.assertTrue(config.parseArgs("data/cfgtests/test1.asm"));
+        Assert.assertTrue(config.codeBaseParser.parseMainSourceFile(config.inputFile, code));
+        ControlFlowGraph cfg = code.getControlFlowGraph();
+
+        // the call to "function1" (in an included file):
+        SourceStatement function1 = code.getSymbol("function1").definingStatement;
+        BasicBlock function1Block = cfg.getBasicBlock(function1);
+        Assert.assertTrue(function1Block.isSubroutineEntry());
+        Assert.assertTrue(function1Block.endsInRet);
+        BasicBlock caller = function1Block.callers.get(0);
+        Assert.assertTrue(caller.endsInCall);
+        Assert.assertEquals("call z, function1", caller.getLast().op.toString());
+
+        // the "jp loop" loop:
+        BasicBlock loopBlock = cfg.getBasicBlock(code.getSymbol("loop").definingStatement);
+        Assert.assertEquals(1, loopBlock.successors.size());
+        Assert.assertSame(loopBlock, loopBlock.successors.get(0));
+        Assert.assertTrue(loopBlock.predecessors.contains(caller.successors.get(0)));
+
+        // include stitching: the included file goes right after the "include" statement,
+        // and the main file continues after the end of the included file:
+        SourceStatement ret = function1Block.getLast();
+        Assert.assertEquals(SourceStatement.STATEMENT_INCLUDE, function1Block.predecessors.get(0).getLast().type);
+        Assert.assertSame(code.getMain(), cfg.getNextStatement(ret).source);
+        Assert.assertNull(cfg.nextExecutionStatements(ret, null));
+    }
+
+
+    @Test public void testFrameSummary() throws IOException
+    {
+        Assert.assertTrue(config.parseArgs("data/cfgtests/test2.asm"));
+        Assert.assertTrue(config.codeBaseParser.parseMainSourceFile(config.inputFile, code));
+        ControlFlowGraph cfg = code.getControlFlowGraph();
+
+        SubroutineSummary framed = cfg.getSubroutineSummary(code.getSymbol("framed").definingStatement);
+        Assert.assertNotNull(framed);
+        Assert.assertTrue(framed.returns);
+        Assert.assertEquals("[IX, A, SP]", CPUOpDependency.maskToNames(framed.readBeforeWritten).toString());
+        Assert.assertNull(cfg.getSubroutineSummary(code.getSymbol("moved").definingStatement));
+        Assert.assertNull(cfg.getSubroutineSummary(code.getSymbol("dropped").definingStatement));
+    }
+}
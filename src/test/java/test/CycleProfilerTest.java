@@ -0,0 +1,108 @@
+/*
+ * Author: Santiago Ontañón Villar (Brain Games)
+ */
+package test;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import cl.MDLConfig;
+import cl.Main;
+import code.CodeBase;
+import util.FileSystemSourceProvider;
+import util.InMemorySourceProvider;
+import workers.CycleProfiler;
+
+/**
+ *
+ * @author santi
+ */
+public class CycleProfilerTest {
+
+    private final MDLConfig config;
+    private final CodeBase code;
+    private final CycleProfiler profiler;
+
+    public CycleProfilerTest() {
+        config = new MDLConfig();
+        code = new CodeBase(config);
+        profiler = new CycleProfiler(config);
+    }
+
+    @Test public void test1() throws IOException
+    {
+        Assert.assertTrue(config.parseArgs("data/proftests/test1.asm"));
+        Assert.assertTrue(config.codeBaseParser.parseMainSourceFile(config.inputFile, code));
+        List<CycleProfiler.RoutineInfo> routines = profiler.profile(code);
+        Assert.assertEquals(3, routines.size());
+
+        // sorted by time, and the main program has an infinite loop at the end:
+        Assert.assertEquals("<program start>", routines.get(0).name);
+        Assert.assertFalse(routines.get(0).complete);
+
+        // ld b,10 (8) + 10 * (nop (5) + djnz (14)) - 5 + ret (11)
+        CycleProfiler.RoutineInfo wait = routines.get(2);
+        Assert.assertEquals("wait", wait.name);
+        Assert.assertTrue(wait.complete);
+        Assert.assertEquals(204, wait.time);
+        Assert.assertEquals(1, wait.loops.size());
+        Assert.assertEquals(Integer.valueOf(10), wait.loops.get(0).tripCount);
+
+        // ld c,4 (8) + 4 * (call (18) + 204 + dec c (5) + jr nz (13)) - 5 + ret (11)
+        CycleProfiler.RoutineInfo wait2 = routines.get(1);
+        Assert.assertEquals("wait2", wait2.name);
+        Assert.assertTrue(wait2.complete);
+        Assert.assertEquals(974, wait2.time);
+        Assert.assertEquals(Integer.valueOf(4), wait2.loops.get(0).tripCount);
+    }
+
+
+    @Test public void test1Outputs() throws Exception
+    {
+        InMemorySourceProvider sources = new InMemorySourceProvider(new FileSystemSourceProvider());
+        MDLConfig config2 = new MDLConfig();
+        config2.sourceProvider = sources;
+        Assert.assertEquals(0, Main.run(config2, new String[]{"data/proftests/test1.asm",
+                                                              "-prof", "prof.tsv", "-prof-json", "prof.json"}));
+        // tsv: one row per routine (sorted by time), followed by its loops:
+        String tsv = sources.getOutput("prof.tsv");
+        Assert.assertNotNull(tsv);
+        String[] rows = tsv.split("\n");
+        Assert.assertEquals(7, rows.length);
+        Assert.assertEquals("type\tname\tsource\titerations\ttime per iteration\ttime (t-states)\tcomplete", rows[0]);
+        // call wait (18) + 204 + call wait2 (18) + 974 + jp end (11):
+        Assert.assertEquals("routine\t<program start>\tdata/proftests/test1.asm#1\t\t\t1225\tfalse", rows[1]);
+        Assert.assertEquals("loop\tend\tdata/proftests/test1.asm#4\t?\t11\t11\tfalse", rows[2]);
+        Assert.assertEquals("routine\twait2\tdata/proftests/test1.asm#14\t\t\t974\ttrue", rows[3]);
+        Assert.assertEquals("loop\twait2_outer\tdata/proftests/test1.asm#16\t4\t240\t955\ttrue", rows[4]);
+        Assert.assertEquals("routine\twait\tdata/proftests/test1.asm#7\t\t\t204\ttrue", rows[5]);
+        Assert.assertEquals("loop\twait_loop\tdata/proftests/test1.asm#9\t10\t19\t185\ttrue", rows[6]);
+
+        // json: same information, with the loops nested inside of each routine:
+        String json = sources.getOutput("prof.json");
+        Assert.assertNotNull(json);
+        int depth = 0;
+        for(char c:json.toCharArray()) {
+            if (c == '{' || c == '[') depth++;
+            if (c == '}' || c == ']') depth--;
+            Assert.assertTrue(depth >= 0);
+        }
+        Assert.assertEquals(0, depth);
+        String[] jsonLines = json.split("\n");
+        Assert.assertEquals(8, jsonLines.length);
+        Assert.assertEquals("{", jsonLines[0]);
+        Assert.assertEquals("  \"timeUnit\": \"t-state\",", jsonLines[1]);
+        Assert.assertEquals("  \"routines\": [", jsonLines[2]);
+        Assert.assertEquals("    {\"name\": \"<program start>\", \"source\": \"data/proftests/test1.asm#1\", \"time\": 1225, \"complete\": false, \"recursive\": false, " +
+                            "\"loops\": [{\"name\": \"end\", \"source\": \"data/proftests/test1.asm#4\", \"depth\": 1, \"iterations\": null, \"timePerIteration\": 11, \"time\": 11, \"loops\": []}]},", jsonLines[3]);
+        Assert.assertEquals("    {\"name\": \"wait2\", \"source\": \"data/proftests/test1.asm#14\", \"time\": 974, \"complete\": true, \"recursive\": false, " +
+                            "\"loops\": [{\"name\": \"wait2_outer\", \"source\": \"data/proftests/test1.asm#16\", \"depth\": 1, \"iterations\": 4, \"timePerIteration\": 240, \"time\": 955, \"loops\": []}]},", jsonLines[4]);
+        Assert.assertEquals("    {\"name\": \"wait\", \"source\": \"data/proftests/test1.asm#7\", \"time\": 204, \"complete\": true, \"recursive\": false, " +
+                            "\"loops\": [{\"name\": \"wait_loop\", \"source\": \"data/proftests/test1.asm#9\", \"depth\": 1, \"iterations\": 10, \"timePerIteration\": 19, \"time\": 185, \"loops\": []}]}", jsonLines[5]);
+        Assert.assertEquals("  ]", jsonLines[6]);
+        Assert.assertEquals("}", jsonLines[7]);
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Author: Santiago Ontañón Villar (Brain Games)
+ */
+package test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringTokenizer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import cl.MDLConfig;
+import code.CodeBase;
+import util.Resources;
+import workers.SourceCodeGenerator;
+import workers.pattopt.DeadCodeEliminator;
+import workers.pattopt.PatternBasedOptimizer;
+
+/**
+ *
+ * @author santi
+ */
+public class DeadCodeEliminatorTest {
+
+    private final MDLConfig config;
+    private final CodeBase code;
+    private final DeadCodeEliminator dce;
+
+    public DeadCodeEliminatorTest() {
+        config = new MDLConfig();
+        dce = new DeadCodeEliminator(config, null);
+        config.registerWorker(dce);
+        code = new CodeBase(config);
+    }
+
+    @Test public void test1() throws IOException
+    {
+        PatternBasedOptimizer.OptimizationResult r = test("data/dcetests/test1.asm", "data/dcetests/test1-expected.asm",
+                "-dce-remove", "-dce-root", "exported");
+        Assert.assertEquals(2, r.patternApplications);
+        Assert.assertEquals(10, r.bytesSaved);
+        Assert.assertNotNull(code.getSymbol("table_routine"));
+        Assert.assertNotNull(code.getSymbol("exported"));
+        Assert.assertNull(code.getSymbol("unreachable1"));
+        Assert.assertNull(code.getSymbol("unused"));
+    }
+
+    // without "-dce-root", the "exported" routine is removed:
+    @Test public void test1NoRoot() throws IOException
+    {
+        PatternBasedOptimizer.OptimizationResult r = test("data/dcetests/test1.asm", "data/dcetests/test1-noroot-expected.asm",
+                "-dce-remove");
+        Assert.assertEquals(3, r.patternApplications);
+        Assert.assertNull(code.getSymbol("exported"));
+    }
+
+    // labels exported by the dialect are entry points:
+    @Test public void testExported() throws IOException
+    {
+        PatternBasedOptimizer.OptimizationResult r = test("data/dcetests/test2.asm", "data/dcetests/test2-expected.asm",
+                "-dialect", "sdcc", "-dce-remove");
+        Assert.assertEquals(1, r.patternApplications);
+        Assert.assertEquals(2, r.bytesSaved);
+        Assert.assertNotNull(code.getSymbol("_f"));
+        Assert.assertNotNull(code.getSymbol("_g"));
+        Assert.assertNull(code.getSymbol("_h"));
+    }
+
+    // code reached through the labels stored in data tables is kept:
+    @Test public void testDataTables() throws IOException
+    {
+        PatternBasedOptimizer.OptimizationResult r = test("data/dcetests/test3.asm", "data/dcetests/test3-expected.asm",
+                "-dce-remove");
+        Assert.assertEquals(1, r.patternApplications);
+        Assert.assertEquals(1, r.bytesSaved);
+        Assert.assertNotNull(code.getSymbol("option1"));
+        Assert.assertNotNull(code.getSymbol("option2"));
+        Assert.assertNull(code.getSymbol("unused_table"));
+    }
+
+    private PatternBasedOptimizer.OptimizationResult test(String inputFile, String expectedOutputFile, String ... flags) throws IOException
+    {
+        List<String> args = new ArrayList<>();
+        args.add(inputFile);
+        for(String flag:flags) args.add(flag);
+        Assert.assertTrue(config.parseArgs(args.toArray(new String[0])));
+        Assert.assertTrue(
+                "Could not parse file " + inputFile,
+                config.codeBaseParser.parseMainSourceFile(config.inputFile, code));
+        PatternBasedOptimizer.OptimizationResult r = dce.eliminate(code);
+
+        SourceCodeGenerator scg = new SourceCodeGenerator(config);
+        String result = scg.sourceFileString(code.getMain(), code);
+        System.out.println("\n--------------------------------------");
+        System.out.println(result);
+        System.out.println("--------------------------------------\n");
+
+        List<String> lines = new ArrayList<>();
+        StringTokenizer st = new StringTokenizer(result, "\n");
+        while(st.hasMoreTokens()) {
+            lines.add(st.nextToken().trim());
+        }
+        List<String> expectedLines = new ArrayList<>();
+        BufferedReader br = Resources.asReader(expectedOutputFile);
+        while(true) {
+            String line = br.readLine();
+            if (line == null) break;
+            if (!line.trim().isEmpty()) expectedLines.add(line.trim());
+        }
+        for(int i = 0;i<Math.max(lines.size(), expectedLines.size());i++) {
+            String line = lines.size() > i ? lines.get(i):"";
+            String expectedLine = expectedLines.size() > i ? expectedLines.get(i):"";
+            Assert.assertEquals("Line " + i, expectedLine, line);
+        }
+        return r;
+    }
+}
@@ -22,11 +22,12 @@ import parser.Tokenizer;
  */
 public class ExpressionTest {
 
+    private final MDLConfig config;
     private final CodeBase code;
     private final ExpressionParser expressionParser;
 
     public ExpressionTest() {
-        MDLConfig config = new MDLConfig();
+        config = new MDLConfig();
         code = new CodeBase(config);
         config.codeBaseParser = new CodeBaseParser(config);
         config.lineParser = new LineParser(config, config.codeBaseParser);      
@@ -56,16 +57,15 @@ public class ExpressionTest {
     @Test public void test20() { Assert.assertEquals(Integer.valueOf(0x99), evaluate("0x99")); }
     @Test public void test21() { Assert.assertEquals(Integer.valueOf(0x99), evaluate("0X99")); }
     @Test public void test22() { 
-        Tokenizer.allowAndpersandHex = true;
+        config.lexer.allowAndpersandHex = true;
         Assert.assertEquals(Integer.valueOf(0xc0de), evaluate("&C0DE")); 
-        Tokenizer.allowAndpersandHex = false;
     }
     @Test public void test23() { Assert.assertEquals(Integer.valueOf(1), evaluate("+(1)")); }
     @Test public void test24() { Assert.assertEquals(Integer.valueOf(1), evaluate("+1")); }
 
     private Object evaluate(String line)
     {
-        List<String> tokens = Tokenizer.tokenize(line);
+        List<String> tokens = Tokenizer.tokenize(line, config.lexer);
         Expression exp = expressionParser.parse(tokens, null, null, code);
         System.out.println(exp);
 
@@ -0,0 +1,111 @@
+/*
+ * Author: Santiago Ontañón Villar (Brain Games)
+ */
+package test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringTokenizer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import cl.MDLConfig;
+import cl.Main;
+import code.CodeBase;
+import util.FileSystemSourceProvider;
+import util.InMemorySourceProvider;
+import util.Resources;
+import workers.SourceCodeGenerator;
+import workers.pattopt.JumpRelaxer;
+import workers.pattopt.PatternBasedOptimizer;
+
+/**
+ *
+ * @author santi
+ */
+public class JumpRelaxerTest {
+
+    private final MDLConfig config;
+    private final CodeBase code;
+    private final JumpRelaxer jr;
+
+    public JumpRelaxerTest() {
+        config = new MDLConfig();
+        jr = new JumpRelaxer(config, null);
+        config.registerWorker(jr);
+        code = new CodeBase(config);
+    }
+
+    @Test public void test1() throws IOException
+    {
+        PatternBasedOptimizer.OptimizationResult r = test("data/jrtests/test1.asm", "data/jrtests/test1-expected.asm");
+        // two jumps shortened, and one expanded:
+        Assert.assertEquals(3, r.patternApplications);
+        Assert.assertEquals(1, r.bytesSaved);
+    }
+
+    // a jump that is shortened, and then expanded again, does not count as a change:
+    @Test public void testOrg() throws IOException
+    {
+        PatternBasedOptimizer.OptimizationResult r = test("data/jrtests/test2.asm", "data/jrtests/test2-expected.asm");
+        Assert.assertEquals(1, r.patternApplications);
+        Assert.assertEquals(1, r.bytesSaved);
+    }
+
+    // the changes made by the jump relaxer and the superoptimizer (which run after the
+    // pattern-based optimizer) also show up in the files generated with -poapply:
+    @Test public void testPoApply() throws Exception
+    {
+        InMemorySourceProvider sources = new InMemorySourceProvider(new FileSystemSourceProvider());
+        sources.addFile("main.asm", "start:\n    ld b,10\n    ld a,b\n    add a,a\n    ld b,a\n    ld (#c000),bc\n    jp start\n");
+        MDLConfig config2 = new MDLConfig();
+        config2.sourceProvider = sources;
+        Assert.assertEquals(0, Main.run(config2, new String[]{"main.asm", "-po", "-so", "-jr", "-poapply", "-asm", "main.out.asm"}));
+
+        String applied = sources.getOutput("main.asm.mdl.asm");
+        Assert.assertNotNull(applied);
+        Assert.assertTrue(applied, applied.contains("jp start  ; -mdl"));
+        Assert.assertTrue(applied, applied.contains("jr start  ; +mdl"));
+        Assert.assertTrue(applied, applied.contains("ld b, 20  ; +mdl"));
+        String asm = sources.getOutput("main.out.asm");
+        Assert.assertTrue(asm, asm.contains("jr start"));
+        Assert.assertTrue(asm, asm.contains("ld b, 20"));
+    }
+
+    private PatternBasedOptimizer.OptimizationResult test(String inputFile, String expectedOutputFile) throws IOException
+    {
+        Assert.assertTrue(config.parseArgs(inputFile, "-jr"));
+        Assert.assertTrue(
+                "Could not parse file " + inputFile,
+                config.codeBaseParser.parseMainSourceFile(config.inputFile, code));
+        PatternBasedOptimizer.OptimizationResult r = jr.relax(code);
+
+        SourceCodeGenerator scg = new SourceCodeGenerator(config);
+        String result = scg.sourceFileString(code.getMain(), code);
+        System.out.println("\n--------------------------------------");
+        System.out.println(result);
+        System.out.println("--------------------------------------\n");
+
+        List<String> lines = new ArrayList<>();
+        StringTokenizer st = new StringTokenizer(result, "\n");
+        while(st.hasMoreTokens()) {
+            lines.add(st.nextToken().trim());
+        }
+        List<String> expectedLines = new ArrayList<>();
+        BufferedReader br = Resources.asReader(expectedOutputFile);
+        while(true) {
+            String line = br.readLine();
+            if (line == null) break;
+            if (!line.trim().isEmpty()) expectedLines.add(line.trim());
+        }
+        for(int i = 0;i<Math.max(lines.size(), expectedLines.size());i++) {
+            String line = lines.size() > i ? lines.get(i):"";
+            String expectedLine = expectedLines.size() > i ? expectedLines.get(i):"";
+            Assert.assertEquals("Line " + i, expectedLine, line);
+        }
+        return r;
+    }
+}
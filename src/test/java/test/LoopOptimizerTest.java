@@ -0,0 +1,97 @@
+/*
+ * Author: Santiago Ontañón Villar (Brain Games)
+ */
+package test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringTokenizer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import cl.MDLConfig;
+import code.CodeBase;
+import util.Resources;
+import workers.SourceCodeGenerator;
+import workers.pattopt.LoopOptimizer;
+import workers.pattopt.PatternBasedOptimizer;
+
+/**
+ *
+ * @author santi
+ */
+public class LoopOptimizerTest {
+
+    private final MDLConfig config;
+    private final CodeBase code;
+    private final LoopOptimizer lo;
+
+    public LoopOptimizerTest() {
+        config = new MDLConfig();
+        lo = new LoopOptimizer(config, null);
+        config.registerWorker(lo);
+        code = new CodeBase(config);
+    }
+
+    @Test public void test1() throws IOException
+    {
+        PatternBasedOptimizer.OptimizationResult r = test("data/lotests/test1.asm", "data/lotests/test1-expected.asm", "-lo-unroll", "8");
+        Assert.assertEquals(3, r.patternApplications);
+        Assert.assertEquals(-3, r.bytesSaved);
+    }
+
+    // loops are not changed when the flags set by "dec b" are needed after them:
+    @Test public void testFlagsUsedAfterLoop() throws IOException
+    {
+        PatternBasedOptimizer.OptimizationResult r = test("data/lotests/test2.asm", "data/lotests/test2-expected.asm", "-lo");
+        Assert.assertEquals(1, r.patternApplications);
+        Assert.assertEquals(1, r.bytesSaved);
+    }
+
+    // loops whose body reads flags before setting them are not unrolled:
+    @Test public void testFlagsReadInBody() throws IOException
+    {
+        PatternBasedOptimizer.OptimizationResult r = test("data/lotests/test3.asm", "data/lotests/test3-expected.asm", "-lo-unroll", "64");
+        Assert.assertEquals(2, r.patternApplications);
+    }
+
+    private PatternBasedOptimizer.OptimizationResult test(String inputFile, String expectedOutputFile, String ... flags) throws IOException
+    {
+        List<String> args = new ArrayList<>();
+        args.add(inputFile);
+        for(String flag:flags) args.add(flag);
+        Assert.assertTrue(config.parseArgs(args.toArray(new String[0])));
+        Assert.assertTrue(
+                "Could not parse file " + inputFile,
+                config.codeBaseParser.parseMainSourceFile(config.inputFile, code));
+        PatternBasedOptimizer.OptimizationResult r = lo.optimize(code);
+
+        SourceCodeGenerator scg = new SourceCodeGenerator(config);
+        String result = scg.sourceFileString(code.getMain(), code);
+        System.out.println("\n--------------------------------------");
+        System.out.println(result);
+        System.out.println("--------------------------------------\n");
+
+        List<String> lines = new ArrayList<>();
+        StringTokenizer st = new StringTokenizer(result, "\n");
+        while(st.hasMoreTokens()) {
+            lines.add(st.nextToken().trim());
+        }
+        List<String> expectedLines = new ArrayList<>();
+        BufferedReader br = Resources.asReader(expectedOutputFile);
+        while(true) {
+            String line = br.readLine();
+            if (line == null) break;
+            if (!line.trim().isEmpty()) expectedLines.add(line.trim());
+        }
+        for(int i = 0;i<Math.max(lines.size(), expectedLines.size());i++) {
+            String line = lines.size() > i ? lines.get(i):"";
+            String expectedLine = expectedLines.size() > i ? expectedLines.get(i):"";
+            Assert.assertEquals("Line " + i, expectedLine, line);
+        }
+        return r;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Author: Santiago Ontañón Villar (Brain Games)
+ */
+package test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringTokenizer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import cl.MDLConfig;
+import code.CodeBase;
+import util.Resources;
+import workers.MegaROMLayoutOptimizer;
+
+/**
+ *
+ * @author santi
+ */
+public class MegaROMLayoutOptimizerTest {
+
+    private final MDLConfig config;
+    private final CodeBase code;
+    private final MegaROMLayoutOptimizer optimizer;
+
+    public MegaROMLayoutOptimizerTest() {
+        config = new MDLConfig();
+        optimizer = new MegaROMLayoutOptimizer(config);
+        config.registerWorker(optimizer);
+        code = new CodeBase(config);
+    }
+
+    @Test public void test1() throws IOException
+    {
+        Assert.assertTrue(config.parseArgs("data/romlayouttests/test1.asm", "-dialect", "asmsx"));
+        Assert.assertTrue(config.codeBaseParser.parseMainSourceFile(config.inputFile, code));
+        Assert.assertTrue(optimizer.optimize(code));
+        compareWithExpected(optimizer.layoutString(), "data/romlayouttests/test1-expected.txt");
+
+        // call physics inside of the loop (10), plus call draw (1):
+        Assert.assertEquals(11, optimizer.getInitialCost());
+        Assert.assertEquals(0, optimizer.getFinalCost());
+        for(MegaROMLayoutOptimizer.Chunk c:optimizer.getChunks()) {
+            if (c.name.equals("update")) {
+                Assert.assertEquals(1, c.originalSubpage);
+                Assert.assertEquals(2, c.subpage);
+            } else {
+                Assert.assertEquals(c.originalSubpage, c.subpage);
+            }
+        }
+    }
+
+    @Test public void test1Profile() throws IOException
+    {
+        Assert.assertTrue(config.parseArgs("data/romlayouttests/test1.asm", "-dialect", "asmsx",
+                                           "-rom-layout-profile", "data/romlayouttests/test1-profile.txt"));
+        Assert.assertTrue(config.codeBaseParser.parseMainSourceFile(config.inputFile, code));
+        Assert.assertTrue(optimizer.optimize(code));
+        Assert.assertEquals(55, optimizer.getInitialCost());
+        Assert.assertEquals(0, optimizer.getFinalCost());
+    }
+
+    private void compareWithExpected(String result, String expectedOutputFile) throws IOException
+    {
+        System.out.println("\n--------------------------------------");
+        System.out.println(result);
+        System.out.println("--------------------------------------\n");
+
+        List<String> lines = new ArrayList<>();
+        StringTokenizer st = new StringTokenizer(result, "\n");
+        while(st.hasMoreTokens()) {
+            lines.add(st.nextToken().trim());
+        }
+        List<String> expectedLines = new ArrayList<>();
+        BufferedReader br = Resources.asReader(expectedOutputFile);
+        while(true) {
+            String line = br.readLine();
+            if (line == null) break;
+            if (!line.trim().isEmpty()) expectedLines.add(line.trim());
+        }
+        for(int i = 0;i<Math.max(lines.size(), expectedLines.size());i++) {
+            String line = lines.size() > i ? lines.get(i):"";
+            String expectedLine = expectedLines.size() > i ? expectedLines.get(i):"";
+            Assert.assertEquals("Line " + i, expectedLine, line);
+        }
+    }
+}
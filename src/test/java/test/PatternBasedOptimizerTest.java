@@ -14,9 +14,11 @@ import code.SourceConstant;
 import code.SourceFile;
 import code.SourceStatement;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import workers.AnnotatedSourceCodeGenerator;
 import workers.pattopt.PatternBasedOptimizer;
+import workers.pattopt.PatternStats;
 
 /**
  *
@@ -81,9 +83,60 @@ public class PatternBasedOptimizerTest {
     @Test public void test45() throws IOException { Assert.assertEquals(4, test("data/tests/test45.asm")); }
     @Test public void test46() throws IOException { Assert.assertEquals(1, test("data/tests/test46.asm")); }
 
-    private int test(String inputFile) throws IOException
+    @Test public void test47() throws IOException { Assert.assertEquals(1, test("data/tests/test47.asm")); }
+
+    // cost models (-pocost):
+    @Test public void test47Speed() throws IOException { Assert.assertEquals(0, test("data/tests/test47.asm", "-pocost", "speed")); }
+    @Test public void test47LoopSpeed() throws IOException { Assert.assertEquals(0, test("data/tests/test47.asm", "-pocost", "loop-speed")); }
+    @Test public void test47Blend1() throws IOException { Assert.assertEquals(0, test("data/tests/test47.asm", "-pocost", "blend:1,1")); }
+    @Test public void test47Blend2() throws IOException { Assert.assertEquals(1, test("data/tests/test47.asm", "-pocost", "blend:4,1")); }
+
+    // global selection of non-overlapping matches (-poglobal):
+    @Test public void test8Global() throws IOException { Assert.assertEquals(5, test("data/tests/test8.asm", "-poglobal")); }
+    @Test public void test16Global() throws IOException { Assert.assertEquals(8, test("data/tests/test16.asm", "-poglobal")); }
+    @Test public void test36Global() throws IOException { Assert.assertEquals(7, test("data/tests/test36.asm", "-poglobal")); }
+
+    // per-pattern statistics (-postats):
+    @Test public void test8Stats() throws IOException
+    {
+        Assert.assertEquals(3, test("data/tests/test8.asm", "-postats", "target/postats.tsv"));
+        List<PatternStats> stats = pbo.sortedStats();
+        Assert.assertFalse(stats.isEmpty());
+        int applications = 0, bytesSaved = 0;
+        for(int i = 0;i<stats.size();i++) {
+            PatternStats ps = stats.get(i);
+            if (i > 0) Assert.assertTrue(stats.get(i-1).nanos >= ps.nanos);
+            Assert.assertTrue(ps.attempts >= ps.instructionRejections + ps.totalConstraintRejections() + ps.applications);
+            applications += ps.applications;
+            bytesSaved += ps.bytesSaved;
+        }
+        Assert.assertEquals(3, bytesSaved);
+        Assert.assertTrue(applications > 0);
+        Assert.assertTrue(pbo.statsJsonString(stats).contains("\"constraintRejections\": {\""));
+    }
+
+    @Test public void test8GlobalStats() throws IOException
+    {
+        // every pattern is tried once per statement in each round of the global selection
+        // (matching again the selected candidates before applying them is not counted):
+        Assert.assertEquals(5, test("data/tests/test8.asm", "-poglobal", "-postats", "target/postats.tsv"));
+        List<PatternStats> stats = pbo.sortedStats();
+        int applications = 0;
+        for(PatternStats ps:stats) {
+            Assert.assertEquals(ps.pattern.getName(), stats.get(0).attempts, ps.attempts);
+            applications += ps.applications;
+        }
+        Assert.assertTrue(applications > 0);
+    }
+
+    private int test(String inputFile, String... extraArgs) throws IOException
     {
-        Assert.assertTrue(config.parseArgs(inputFile,"-popatterns","data/pbo-patterns-size.txt"));
+        List<String> args = new ArrayList<>();
+        args.add(inputFile);
+        args.add("-popatterns");
+        args.add("data/pbo-patterns-size.txt");
+        args.addAll(Arrays.asList(extraArgs));
+        Assert.assertTrue(config.parseArgs(args.toArray(new String[0])));
         Assert.assertTrue(
                 "Could not parse file " + inputFile,
                 config.codeBaseParser.parseMainSourceFile(config.inputFile, code));
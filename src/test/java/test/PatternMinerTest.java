@@ -0,0 +1,63 @@
+/*
+ * Author: Santiago Ontañón Villar (Brain Games)
+ */
+package test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import cl.MDLConfig;
+import code.CodeBase;
+import workers.pattopt.PatternBasedOptimizer;
+import workers.superopt.PatternMiner;
+import workers.superopt.SuperOptimizer;
+
+/**
+ *
+ * @author santi
+ */
+public class PatternMinerTest {
+
+    @Test public void test1() throws IOException
+    {
+        MDLConfig config = new MDLConfig();
+        PatternMiner miner = new PatternMiner(config);
+        config.registerWorker(miner);
+        CodeBase code = new CodeBase(config);
+        File patternsFile = File.createTempFile("mdl-mined-patterns", ".txt");
+        patternsFile.deleteOnExit();
+
+        Assert.assertTrue(config.parseArgs("data/sotests/mine1.asm", "-mine", patternsFile.getAbsolutePath()));
+        Assert.assertTrue(config.codeBaseParser.parseMainSourceFile(config.inputFile, code));
+        LinkedHashMap<String, PatternMiner.MinedSequence> sequences = new LinkedHashMap<>();
+        SuperOptimizer so = new SuperOptimizer(config, null);
+        miner.collectSequences(code, so, sequences);
+        List<PatternMiner.MinedSequence> patterns = miner.mine(sequences, so);
+        String patternsString = miner.patternsString(patterns);
+        System.out.println(patternsString);
+
+        // ranked by total bytes saved:
+        Assert.assertEquals(2, patterns.size());
+        Assert.assertEquals(2, patterns.get(0).occurrences);
+        Assert.assertEquals(2, patterns.get(0).bytesSaved);
+        Assert.assertEquals(3, patterns.get(1).occurrences);
+        Assert.assertEquals(1, patterns.get(1).bytesSaved);
+
+        // The mined patterns should be usable by the pattern-based optimizer:
+        FileUtils.writeStringToFile(patternsFile, patternsString, "UTF-8");
+        MDLConfig config2 = new MDLConfig();
+        PatternBasedOptimizer pbo = new PatternBasedOptimizer(config2);
+        config2.registerWorker(pbo);
+        CodeBase code2 = new CodeBase(config2);
+        Assert.assertTrue(config2.parseArgs("data/sotests/mine1.asm", "-popatterns", patternsFile.getAbsolutePath()));
+        Assert.assertTrue(config2.codeBaseParser.parseMainSourceFile(config2.inputFile, code2));
+        PatternBasedOptimizer.OptimizationResult r = pbo.optimize(code2);
+        Assert.assertEquals(5, r.patternApplications);
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Author: Santiago Ontañón Villar (Brain Games)
+ */
+package test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringTokenizer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import cl.MDLConfig;
+import code.CodeBase;
+import util.Resources;
+import workers.SourceCodeGenerator;
+import workers.pattopt.PatternBasedOptimizer;
+import workers.pattopt.RegisterAllocator;
+
+/**
+ *
+ * @author santi
+ */
+public class RegisterAllocatorTest {
+
+    private final MDLConfig config;
+    private final CodeBase code;
+    private final RegisterAllocator ra;
+
+    public RegisterAllocatorTest() {
+        config = new MDLConfig();
+        ra = new RegisterAllocator(config, null);
+        config.registerWorker(ra);
+        code = new CodeBase(config);
+    }
+
+    @Test public void test1() throws IOException
+    {
+        PatternBasedOptimizer.OptimizationResult r = test("data/ratests/test1.asm", "data/ratests/test1-expected.asm");
+        Assert.assertEquals(8, r.patternApplications);
+        Assert.assertEquals(14, r.bytesSaved);
+    }
+
+    // the local variables of recursive routines cannot be moved to registers:
+    @Test public void testRecursive() throws IOException
+    {
+        PatternBasedOptimizer.OptimizationResult r = test("data/ratests/test2.asm", "data/ratests/test2-expected.asm");
+        Assert.assertEquals(0, r.patternApplications);
+    }
+
+    // local variables written/read with push/pop cannot be moved to registers:
+    @Test public void testPushedSlot() throws IOException
+    {
+        PatternBasedOptimizer.OptimizationResult r = test("data/ratests/test3.asm", "data/ratests/test3-expected.asm");
+        Assert.assertEquals(0, r.patternApplications);
+    }
+
+    private PatternBasedOptimizer.OptimizationResult test(String inputFile, String expectedOutputFile) throws IOException
+    {
+        Assert.assertTrue(config.parseArgs(inputFile, "-dialect", "sdcc", "-ra"));
+        Assert.assertTrue(
+                "Could not parse file " + inputFile,
+                config.codeBaseParser.parseMainSourceFile(config.inputFile, code));
+        PatternBasedOptimizer.OptimizationResult r = ra.optimize(code);
+
+        SourceCodeGenerator scg = new SourceCodeGenerator(config);
+        String result = scg.sourceFileString(code.getMain(), code);
+        System.out.println("\n--------------------------------------");
+        System.out.println(result);
+        System.out.println("--------------------------------------\n");
+
+        List<String> lines = new ArrayList<>();
+        StringTokenizer st = new StringTokenizer(result, "\n");
+        while(st.hasMoreTokens()) {
+            lines.add(st.nextToken().trim());
+        }
+        List<String> expectedLines = new ArrayList<>();
+        BufferedReader br = Resources.asReader(expectedOutputFile);
+        while(true) {
+            String line = br.readLine();
+            if (line == null) break;
+            if (!line.trim().isEmpty()) expectedLines.add(line.trim());
+        }
+        for(int i = 0;i<Math.max(lines.size(), expectedLines.size());i++) {
+            String line = lines.size() > i ? lines.get(i):"";
+            String expectedLine = expectedLines.size() > i ? expectedLines.get(i):"";
+            Assert.assertEquals("Line " + i, expectedLine, line);
+        }
+        return r;
+    }
+}
@@ -10,10 +10,12 @@ import code.CodeBase;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.StringTokenizer;
 import org.junit.Assert;
 import org.junit.Test;
+import parser.dialects.DialectKeywords;
 import util.Resources;
 import workers.SourceCodeGenerator;
 
@@ -61,6 +63,20 @@ public class SjasmTest {
                                                                            "data/generationtests/sjasm-define-expected.asm")); }
     @Test public void test15() throws IOException { Assert.assertTrue(test("data/generationtests/sjasm-macro4.asm",
                                                                            "data/generationtests/sjasm-macro4-expected.asm")); }
+    @Test public void test16() throws IOException { Assert.assertTrue(test("data/generationtests/sjasm-pages.asm",
+                                                                           "data/generationtests/sjasm-pages-expected.asm")); }
+    @Test public void test17() throws IOException { Assert.assertTrue(test("data/generationtests/sjasm-pages-align.asm",
+                                                                           "data/generationtests/sjasm-pages-align-expected.asm")); }
+
+    @Test public void testKeywords() throws IOException
+    {
+        Assert.assertTrue(mdlConfig.parseArgs("data/generationtests/sjasm-pages.asm","-dialect","sjasm"));
+        DialectKeywords keywords = mdlConfig.dialectParser.getKeywords();
+        Assert.assertNotNull(keywords);
+        Assert.assertTrue(keywords.recognizes(Arrays.asList("ALIGN", "4")));
+        Assert.assertFalse(keywords.recognizes(Arrays.asList("align")));
+        Assert.assertFalse(keywords.recognizes(Arrays.asList("ld", "a", ",", "1")));
+    }
 
     private boolean test(String inputFile, String expectedOutputFile) throws IOException
     {
@@ -0,0 +1,112 @@
+/*
+ * Author: Santiago Ontañón Villar (Brain Games)
+ */
+package test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import cl.MDLConfig;
+import cl.Main;
+import util.CachingSourceProvider;
+import util.FileSystemSourceProvider;
+import util.InMemorySourceProvider;
+import util.ZipSourceProvider;
+
+/**
+ *
+ * @author santi
+ */
+public class SourceProviderTest {
+
+    static final String MAIN_FILE =
+              "    org #4000\n"
+            + "    include \"inc/data.asm\"\n"
+            + "loop:\n"
+            + "    ld a,(value)\n"
+            + "    jp loop\n";
+    static final String INCLUDED_FILE =
+              "value:\n"
+            + "    incbin \"data.bin\"\n";
+
+    @Test public void testInMemory() throws Exception
+    {
+        InMemorySourceProvider sources = new InMemorySourceProvider(new FileSystemSourceProvider());
+        sources.addFile("src/main.asm", MAIN_FILE);
+        sources.addFile("src/inc/data.asm", INCLUDED_FILE);
+        sources.addFile("src/inc/data.bin", new byte[]{1, 2, 3});
+
+        MDLConfig config = new MDLConfig();
+        config.sourceProvider = sources;
+        Assert.assertEquals(0, Main.run(config, new String[]{"src/main.asm", "-asm-expand-inbcin", "-asm", "out.asm"}));
+        String output = sources.getOutput("out.asm");
+        Assert.assertNotNull(output);
+        Assert.assertTrue(output.contains("db 1, 2, 3"));
+        Assert.assertTrue(output.contains("jp loop"));
+        Assert.assertFalse(new File("out.asm").exists());
+    }
+
+
+    @Test public void testZipAndCaching() throws Exception
+    {
+        File zipFile = File.createTempFile("mdl-sources", ".zip");
+        zipFile.deleteOnExit();
+        try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(zipFile))) {
+            zos.putNextEntry(new ZipEntry("src/main.asm"));
+            zos.write(MAIN_FILE.getBytes());
+            zos.putNextEntry(new ZipEntry("src/inc/data.asm"));
+            zos.write(INCLUDED_FILE.getBytes());
+            zos.putNextEntry(new ZipEntry("src/inc/data.bin"));
+            zos.write(new byte[]{1, 2, 3});
+        }
+
+        try (ZipFile zip = new ZipFile(zipFile)) {
+            InMemorySourceProvider outputs = new InMemorySourceProvider(new FileSystemSourceProvider());
+            CachingSourceProvider sources = new CachingSourceProvider(new ZipSourceProvider(zip, outputs));
+            int reads = 0;
+            for(int i = 0;i<2;i++) {
+                MDLConfig config = new MDLConfig();
+                config.sourceProvider = sources;
+                Assert.assertEquals(0, Main.run(config, new String[]{"src/main.asm", "-po", "-asm", "out.asm"}));
+                Assert.assertTrue(outputs.getOutput("out.asm").contains("incbin \"inc/data.bin\""));
+                if (i == 0) reads = sources.reads;
+            }
+            // main file, included file, binary file, instruction set and patterns are
+            // only read the first time:
+            Assert.assertEquals(reads, sources.reads);
+        }
+    }
+
+
+    @Test public void testLargeIncbinExpansion() throws Exception
+    {
+        // the binary file is larger than the buffer used to expand incbins:
+        byte data[] = new byte[20000];
+        for(int i = 0;i<data.length;i++) data[i] = (byte)(i % 251);
+        InMemorySourceProvider sources = new InMemorySourceProvider(new FileSystemSourceProvider());
+        sources.addFile("main.asm", "    org #4000\n    incbin \"data.bin\", 10000, 9000\n");
+        sources.addFile("data.bin", data);
+
+        MDLConfig config = new MDLConfig();
+        config.sourceProvider = sources;
+        Assert.assertEquals(0, Main.run(config, new String[]{"main.asm", "-asm-expand-inbcin", "-asm", "out.asm"}));
+        String output = sources.getOutput("out.asm");
+        int expected = 10000;
+        int count = 0;
+        for(String line:output.split("\n")) {
+            if (!line.trim().startsWith("db ")) continue;
+            for(String value:line.trim().substring(3).split(", ")) {
+                Assert.assertEquals(expected % 251, Integer.parseInt(value));
+                expected++;
+                count++;
+            }
+        }
+        Assert.assertEquals(9000, count);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Author: Santiago Ontañón Villar (Brain Games)
+ */
+package test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import cl.MDLConfig;
+import code.CodeBase;
+import parser.SymbolPack;
+import util.FileSystemSourceProvider;
+import util.InMemorySourceProvider;
+
+/**
+ *
+ * @author santi
+ */
+public class SymbolPackTest {
+
+    @Test public void test1() throws IOException
+    {
+        MDLConfig config = new MDLConfig();
+        CodeBase code = new CodeBase(config);
+        Assert.assertTrue(config.parseArgs("data/symbolpacktests/test1.asm",
+                                           "-symbol-pack", "msx-bios",
+                                           "-symbol-pack", "data/symbolpacktests/test1-pack.asm"));
+        Assert.assertTrue(config.codeBaseParser.parseMainSourceFile(config.inputFile, code));
+        Assert.assertEquals(0x009f, code.getSymbol("CHGET").getValue(code, false));
+        Assert.assertEquals(0xf000, code.getSymbol("MYCALL").getValue(code, false));
+        Assert.assertEquals(12, code.getSymbol("OTHER").getValue(code, false));
+    }
+
+
+    @Test public void testShared() throws IOException
+    {
+        // Packs are only loaded once, and shared across configurations:
+        SymbolPack pack1 = SymbolPack.get("msx-bios", new MDLConfig());
+        SymbolPack pack2 = SymbolPack.get("data/msx-bios-calls.asm", new MDLConfig());
+        Assert.assertNotNull(pack1);
+        Assert.assertSame(pack1, pack2);
+        
+        MDLConfig config1 = new MDLConfig();
+        MDLConfig config2 = new MDLConfig();
+        CodeBase code1 = new CodeBase(config1);
+        CodeBase code2 = new CodeBase(config2);
+        Assert.assertTrue(config1.parseArgs("data/symbolpacktests/test1.asm", "-symbol-pack", "msx-bios",
+                                            "-symbol-pack", "data/symbolpacktests/test1-pack.asm"));
+        Assert.assertTrue(config2.parseArgs("data/symbolpacktests/test1.asm", "-symbol-pack", "msx-bios",
+                                            "-symbol-pack", "data/symbolpacktests/test1-pack.asm"));
+        Assert.assertTrue(config1.codeBaseParser.parseMainSourceFile(config1.inputFile, code1));
+        Assert.assertTrue(config2.codeBaseParser.parseMainSourceFile(config2.inputFile, code2));
+        Assert.assertNotSame(code1.getSymbol("CHGET"), code2.getSymbol("CHGET"));
+        Assert.assertEquals(code1.getSymbol("CHGET").getValue(code1, false),
+                            code2.getSymbol("CHGET").getValue(code2, false));
+    }
+
+
+    @Test public void testProviders() throws IOException
+    {
+        // Packs read through different source providers are not mixed up:
+        InMemorySourceProvider sources = new InMemorySourceProvider(new FileSystemSourceProvider());
+        sources.addFile("data/symbolpacktests/test1-pack.asm", "MYCALL: equ #f100\n");
+        MDLConfig config1 = new MDLConfig();
+        MDLConfig config2 = new MDLConfig();
+        config2.sourceProvider = sources;
+        SymbolPack pack1 = SymbolPack.get("data/symbolpacktests/test1-pack.asm", config1);
+        SymbolPack pack2 = SymbolPack.get("data/symbolpacktests/test1-pack.asm", config2);
+        Assert.assertNotNull(pack1);
+        Assert.assertNotNull(pack2);
+        Assert.assertEquals(0xf000, (int)pack1.values.get(pack1.names.indexOf("MYCALL")));
+        Assert.assertEquals(Arrays.asList("MYCALL"), pack2.names);
+        Assert.assertEquals(0xf100, (int)pack2.values.get(0));
+        Assert.assertSame(pack2, SymbolPack.get("data/symbolpacktests/test1-pack.asm", config2));
+    }
+
+
+    @Test public void testInvalidValue() throws IOException
+    {
+        InMemorySourceProvider sources = new InMemorySourceProvider(new FileSystemSourceProvider());
+        sources.addFile("invalid-pack.asm", "; comment\nBIG: equ 99999999999\n");
+        MDLConfig config = new MDLConfig();
+        config.sourceProvider = sources;
+        Assert.assertNull(SymbolPack.get("invalid-pack.asm", config));
+    }
+}
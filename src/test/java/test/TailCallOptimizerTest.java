@@ -0,0 +1,88 @@
+/*
+ * Author: Santiago Ontañón Villar (Brain Games)
+ */
+package test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringTokenizer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import cl.MDLConfig;
+import code.CodeBase;
+import util.Resources;
+import workers.SourceCodeGenerator;
+import workers.pattopt.PatternBasedOptimizer;
+import workers.pattopt.TailCallOptimizer;
+
+/**
+ *
+ * @author santi
+ */
+public class TailCallOptimizerTest {
+
+    private final MDLConfig config;
+    private final CodeBase code;
+    private final TailCallOptimizer tco;
+
+    public TailCallOptimizerTest() {
+        config = new MDLConfig();
+        tco = new TailCallOptimizer(config, null);
+        config.registerWorker(tco);
+        code = new CodeBase(config);
+    }
+
+    @Test public void test1() throws IOException
+    {
+        PatternBasedOptimizer.OptimizationResult r = test("data/tcotests/test1.asm", "data/tcotests/test1-expected.asm");
+        Assert.assertEquals(4, r.patternApplications);
+        Assert.assertEquals(9, r.bytesSaved);
+        Assert.assertNotNull(code.getSymbol(TailCallOptimizer.TAIL_LABEL_PREFIX + "0"));
+    }
+
+    // calls to routines that use the stack in non-standard ways are not changed:
+    @Test public void testNonStandardStack() throws IOException
+    {
+        PatternBasedOptimizer.OptimizationResult r = test("data/tcotests/test2.asm", "data/tcotests/test2-expected.asm");
+        Assert.assertEquals(1, r.patternApplications);
+        Assert.assertEquals(1, r.bytesSaved);
+    }
+
+    private PatternBasedOptimizer.OptimizationResult test(String inputFile, String expectedOutputFile) throws IOException
+    {
+        Assert.assertTrue(config.parseArgs(inputFile, "-tco-crossjump"));
+        Assert.assertTrue(
+                "Could not parse file " + inputFile,
+                config.codeBaseParser.parseMainSourceFile(config.inputFile, code));
+        PatternBasedOptimizer.OptimizationResult r = tco.optimize(code);
+
+        SourceCodeGenerator scg = new SourceCodeGenerator(config);
+        String result = scg.sourceFileString(code.getMain(), code);
+        System.out.println("\n--------------------------------------");
+        System.out.println(result);
+        System.out.println("--------------------------------------\n");
+
+        List<String> lines = new ArrayList<>();
+        StringTokenizer st = new StringTokenizer(result, "\n");
+        while(st.hasMoreTokens()) {
+            lines.add(st.nextToken().trim());
+        }
+        List<String> expectedLines = new ArrayList<>();
+        BufferedReader br = Resources.asReader(expectedOutputFile);
+        while(true) {
+            String line = br.readLine();
+            if (line == null) break;
+            if (!line.trim().isEmpty()) expectedLines.add(line.trim());
+        }
+        for(int i = 0;i<Math.max(lines.size(), expectedLines.size());i++) {
+            String line = lines.size() > i ? lines.get(i):"";
+            String expectedLine = expectedLines.size() > i ? expectedLines.get(i):"";
+            Assert.assertEquals("Line " + i, expectedLine, line);
+        }
+        return r;
+    }
+}
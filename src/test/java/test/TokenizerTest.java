@@ -8,6 +8,7 @@ import java.util.List;
 import org.junit.Assert;
 import org.junit.Test;
 
+import parser.LexerConfig;
 import parser.Tokenizer;
 
 /**
@@ -15,6 +16,8 @@ import parser.Tokenizer;
  * @author santi
  */
 public class TokenizerTest {
+    
+    private final LexerConfig lexer = new LexerConfig();
 
     @Test public void test1() {
         Assert.assertArrayEquals(new String[]{"ld","a",",","2"}, tokenize("ld a,2"));
@@ -64,11 +67,10 @@ public class TokenizerTest {
         Assert.assertArrayEquals(new String[]{"\"string\\t\\r\\n\""}, tokenize("\"string\\t\\r\\n\""));
     }
     @Test public void test15a() {
-        Tokenizer.stringEscapeSequences.put("t", "\t");
-        Tokenizer.stringEscapeSequences.put("r", "\r");
-        Tokenizer.stringEscapeSequences.put("n", "\n");
+        lexer.stringEscapeSequences.put("t", "\t");
+        lexer.stringEscapeSequences.put("r", "\r");
+        lexer.stringEscapeSequences.put("n", "\n");
         Assert.assertArrayEquals(new String[]{"\"string\t\r\n\""}, tokenize("\"string\\t\\r\\n\""));
-        Tokenizer.stringEscapeSequences.clear();
     }
     @Test public void test16() {
         Assert.assertArrayEquals(new String[]{";\"J\" \"I\" \"H\" \"G\" \"F\" \"E\" \"D\" \"C\""}, tokenize(";\"J\" \"I\" \"H\" \"G\" \"F\" \"E\" \"D\" \"C\""));
@@ -89,9 +91,8 @@ public class TokenizerTest {
         Assert.assertArrayEquals(new String[]{"db","(","%","+","1",")","*","(","%%","+","1",")","/","(","%","%","8",")"}, tokenize("db (%+1)*(%%+1)/(% % 8)"));
     }
     @Test public void test22() {
-        Tokenizer.allowAndpersandHex = true;
+        lexer.allowAndpersandHex = true;
         Assert.assertArrayEquals(new String[]{"&C0DE"}, tokenize("&C0DE"));
-        Tokenizer.allowAndpersandHex = false;
     }
     @Test public void test23() {
         Assert.assertArrayEquals(new String[]{"_main","::"}, tokenize("_main::"));
@@ -100,26 +101,23 @@ public class TokenizerTest {
         Assert.assertArrayEquals(new String[]{"ld","hl",",","#0x0000"}, tokenize("ld	hl, #0x0000"));
     }
     @Test public void test25() {
-        Tokenizer.sdccStyleHashMarksForConstants = true;
+        lexer.sdccStyleHashMarksForConstants = true;
         Assert.assertArrayEquals(new String[]{"ld","hl",",","#","0x0000"}, tokenize("ld	hl, #0x0000"));
-        Tokenizer.sdccStyleHashMarksForConstants = false;
     }
     @Test public void test26() {
-        Tokenizer.sdccStyleDollarInLabels = true;
+        lexer.sdccStyleDollarInLabels = true;
         Assert.assertArrayEquals(new String[]{"00102$",":"}, tokenize("00102$:"));
-        Tokenizer.sdccStyleDollarInLabels = true;
     }
     @Test public void test27() {
-        Tokenizer.stringEscapeSequences.put("\\", "\\");
-        Tokenizer.stringEscapeSequences.put("\"", "\"");
+        lexer.stringEscapeSequences.put("\\", "\\");
+        lexer.stringEscapeSequences.put("\"", "\"");
         Assert.assertArrayEquals(new String[]{"db", "\"\"\"", ",", "\"~\""}, tokenize("db \"\\\"\", \"~\""));
-        Tokenizer.stringEscapeSequences.clear();
     }
 
     
-    private static String[] tokenize(String line)
+    private String[] tokenize(String line)
     {
-        List<String> tokens = Tokenizer.tokenize(line);
+        List<String> tokens = Tokenizer.tokenize(line, lexer);
         return tokens != null
                 ? tokens.toArray(new String[0])
                 : null;
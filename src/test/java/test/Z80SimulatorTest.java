@@ -0,0 +1,173 @@
+/*
+ * Author: Santiago Ontañón Villar (Brain Games)
+ */
+package test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import cl.MDLConfig;
+import code.CodeBase;
+import code.SourceStatement;
+import simulator.DifferentialTester;
+import simulator.Z80Simulator;
+import util.FileSystemSourceProvider;
+import util.InMemorySourceProvider;
+import workers.BinaryGenerator;
+import workers.pattopt.PatternBasedOptimizer;
+import workers.superopt.Instruction;
+
+/**
+ *
+ * @author santi
+ */
+public class Z80SimulatorTest {
+
+    @Test public void test1() throws IOException
+    {
+        MDLConfig config = new MDLConfig();
+        CodeBase code = parse(config, "data/simulatortests/test1.asm");
+        DifferentialTester tester = new DifferentialTester(config);
+        Z80Simulator sim = tester.newSimulator();
+        Assert.assertTrue(new BinaryGenerator(config).assemble(code, sim.memory, null));
+
+        sim.setRegister("h", 12);
+        sim.setRegister("e", 13);
+        Assert.assertEquals(Z80Simulator.STATUS_RETURNED, sim.call(tester.labelAddress(code, "multiply"), 1000));
+        Assert.assertEquals(156, sim.getRegister("hl"));
+
+        Assert.assertEquals(Z80Simulator.STATUS_RETURNED, sim.call(tester.labelAddress(code, "copy"), 1000));
+        int destination = tester.labelAddress(code, "destination");
+        Assert.assertEquals(1, sim.read8(destination));
+        Assert.assertEquals(10, sim.read8(destination + 1));
+        Assert.assertEquals(3, sim.read8(destination + 2));
+        Assert.assertEquals(4, sim.read8(destination + 3));
+        // bit 0 of 10 is 0:
+        Assert.assertEquals(Z80Simulator.Z_FLAG, sim.regs[Z80Simulator.F] & Z80Simulator.Z_FLAG);
+
+        Assert.assertEquals(Z80Simulator.STATUS_RETURNED, sim.call(tester.labelAddress(code, "output"), 1000));
+        Assert.assertEquals(4, sim.portOutputs[0x98]);
+        Assert.assertEquals(0, sim.getRegister("b"));
+
+        // timing, using the MSX timings of the instruction set:
+        sim.setRegister("bc", 50000);
+        sim.instructions = 0;
+        sim.cycles = 0;
+        long start = System.nanoTime();
+        Assert.assertEquals(Z80Simulator.STATUS_RETURNED, sim.call(tester.labelAddress(code, "count"), 1000000));
+        long nanos = System.nanoTime() - start;
+        Assert.assertEquals(50000, sim.getRegister("hl"));
+        Assert.assertEquals(2 + 50000*5, sim.instructions);
+        Assert.assertEquals(11 + 50000*(7+7+5+5) + 49999*13 + 8 + 11, sim.cycles);
+        System.out.println("Z80SimulatorTest: " + sim.instructions + " instructions in " + nanos/1000 + " us");
+    }
+
+
+    /*
+    The 8 bit register/flag semantics must match those of the superoptimizer:
+    */
+    @Test public void testAgainstSuperoptimizer() throws IOException
+    {
+        String registers[] = Instruction.REGISTER_NAMES;
+        List<String> texts = new ArrayList<>();
+        for(String r1:registers) {
+            texts.add("inc " + r1);
+            texts.add("dec " + r1);
+            for(String op:Instruction.CB_OPS) texts.add(op + " " + r1);
+            for(String r2:registers) texts.add("ld " + r1 + "," + r2);
+            texts.add("ld " + r1 + ",200");
+        }
+        for(String op:Instruction.ALU_OPS) {
+            String prefix = (op.equals("add") || op.equals("adc") || op.equals("sbc") ? op + " a," : op + " ");
+            for(String r:registers) texts.add(prefix + r);
+            texts.add(prefix + "1");
+            texts.add(prefix + "128");
+        }
+        for(String op:Instruction.NO_ARG_OPS) texts.add(op);
+        StringBuilder source = new StringBuilder();
+        for(String text:texts) source.append("    ").append(text).append("\n");
+
+        InMemorySourceProvider sources = new InMemorySourceProvider(new FileSystemSourceProvider());
+        sources.addFile("ops.asm", source.toString());
+        MDLConfig config = new MDLConfig();
+        config.sourceProvider = sources;
+        CodeBase code = parse(config, "ops.asm");
+        DifferentialTester tester = new DifferentialTester(config);
+        Z80Simulator sim = tester.newSimulator();
+        Assert.assertTrue(new BinaryGenerator(config).assemble(code, sim.memory, null));
+
+        Random r = new Random(1);
+        int nOps = 0;
+        for(SourceStatement s:code.getMain().getStatements()) {
+            if (s.op == null) continue;
+            Instruction instruction = Instruction.fromCPUOp(s.op);
+            Assert.assertNotNull(s.op.toString(), instruction);
+            for(int i = 0;i<64;i++) {
+                int state[] = new int[Instruction.STATE_SIZE];
+                for(int j = 0;j<registers.length;j++) {
+                    state[j] = r.nextInt(256);
+                    sim.setRegister(registers[j], state[j]);
+                }
+                state[Instruction.F] = r.nextInt(256) & Instruction.ALL_FLAGS;
+                sim.regs[Z80Simulator.F] = state[Instruction.F];
+                sim.pc = s.getAddress(code);
+                Assert.assertEquals(Z80Simulator.STATUS_OK, sim.step());
+                instruction.execute(state);
+                for(int j = 0;j<registers.length;j++) {
+                    Assert.assertEquals(s.op + " (" + registers[j] + ")", state[j], sim.getRegister(registers[j]));
+                }
+                Assert.assertEquals(s.op + " (f)", state[Instruction.F], sim.regs[Z80Simulator.F] & Z80Simulator.ALL_FLAGS);
+            }
+            nOps++;
+        }
+        Assert.assertEquals(texts.size(), nOps);
+    }
+
+
+    @Test public void testDifferential() throws IOException
+    {
+        MDLConfig config = new MDLConfig();
+        PatternBasedOptimizer pbo = new PatternBasedOptimizer(config);
+        config.registerWorker(pbo);
+        Assert.assertTrue(config.parseArgs("data/simulatortests/test2.asm", "-popatterns", "data/pbo-patterns-size.txt"));
+        CodeBase original = new CodeBase(config);
+        CodeBase optimized = new CodeBase(config);
+        CodeBase wrong = new CodeBase(config);
+        Assert.assertTrue(config.codeBaseParser.parseMainSourceFile("data/simulatortests/test2.asm", original));
+        Assert.assertTrue(config.codeBaseParser.parseMainSourceFile("data/simulatortests/test2.asm", optimized));
+        Assert.assertTrue(config.codeBaseParser.parseMainSourceFile("data/simulatortests/test2-wrong.asm", wrong));
+        Assert.assertTrue(pbo.optimize(optimized).bytesSaved > 0);
+
+        DifferentialTester tester = new DifferentialTester(config);
+        Assert.assertNull(tester.compare(original, optimized, "routine", 100, 1));
+
+        // the wrong version only differs when "value" is 0:
+        Z80Simulator sim1 = tester.newSimulator();
+        Z80Simulator sim2 = tester.newSimulator();
+        Assert.assertTrue(new BinaryGenerator(config).assemble(original, sim1.memory, null));
+        Assert.assertTrue(new BinaryGenerator(config).assemble(wrong, sim2.memory, null));
+        sim1.sp = sim2.sp = tester.stackPointer;
+        int routine1 = tester.labelAddress(original, "routine");
+        int routine2 = tester.labelAddress(wrong, "routine");
+        sim1.write8(0xc000, 5);
+        sim2.write8(0xc000, 5);
+        Assert.assertNull(tester.compare(sim1, routine1, sim2, routine2));
+        sim1.write8(0xc000, 0);
+        sim2.write8(0xc000, 0);
+        Assert.assertNotNull(tester.compare(sim1, routine1, sim2, routine2));
+    }
+
+
+    CodeBase parse(MDLConfig config, String fileName) throws IOException
+    {
+        CodeBase code = new CodeBase(config);
+        Assert.assertTrue(config.parseArgs(fileName));
+        Assert.assertTrue(config.codeBaseParser.parseMainSourceFile(config.inputFile, code));
+        return code;
+    }
+}
@@ -0,0 +1,25 @@
+    org #4000
+start:
+    ld a,5
+    ld (ix+3),b
+    ld (iy-2),7
+    bit 3,(ix+1)
+    set 7,e
+    ld ixh,c
+    inc iyl
+    ld hl,data
+    ld a,(data)
+    out (#98),a
+    jr start
+    djnz loop
+loop:
+    jp nz,start
+    call start
+    rst 38h
+    im 1
+    ex af,af'
+    ret
+data:
+    db 1,"AB",-1
+    dw #1234
+    ds 3,#ff
@@ -0,0 +1,4 @@
+    org #4000
+    incbin "test2.bin", 1, 2
+    ld bc,%1010
+    jr $
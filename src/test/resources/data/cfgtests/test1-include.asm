@@ -0,0 +1,3 @@
+function1:
+	ld b,a
+	ret
@@ -0,0 +1,13 @@
+; Test case: control flow graph with calls, loops and includes
+	ld a,(value)
+	cp 1
+	call z,function1
+	ld a,2
+	ld (value),a
+loop:
+	jp loop
+
+	include "test1-include.asm"
+
+value:
+	db 1
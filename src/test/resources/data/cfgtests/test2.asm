@@ -0,0 +1,36 @@
+; Subroutine summaries of routines that manipulate sp directly:
+; - "framed" sets up a standard stack frame, so it can be summarized
+; - "moved" restores sp from ix after modifying ix, so it cannot be summarized
+; - "dropped" removes its return address from the stack, so it cannot be summarized
+    org #4000
+start:
+    call framed
+    call moved
+    call dropped
+    ret
+
+framed:
+    push ix
+    ld ix,0
+    add ix,sp
+    dec sp
+    dec sp
+    ld (ix-1),a
+    ld sp,ix
+    pop ix
+    ret
+
+moved:
+    push ix
+    ld ix,0
+    add ix,sp
+    dec sp
+    ld ix,4
+    ld sp,ix
+    pop ix
+    ret
+
+dropped:
+    inc sp
+    inc sp
+    ret
@@ -0,0 +1,37 @@
+; Test case for dead code elimination:
+; - "unreachable1" (3 instructions) is only called from unreachable code
+; - the code after "jp loop" (2 instructions) can never be executed
+; - "table_routine" is reachable, as its address is stored in "table"
+; - "unused" is never referenced
+; - "exported" is declared as a root in the test
+    org #4000
+start:
+    ld hl,table
+    call routine
+loop:
+    jp loop
+    ld a,1
+    call unreachable1
+
+routine:
+    ld a,(hl)
+unused:
+    inc a
+    ret
+
+unreachable1:
+    xor a
+    ld (var),a
+    ret
+
+table_routine:
+    ret
+
+exported:
+    ld a,2
+    ret
+
+table:
+    dw table_routine
+var:
+    db 0
@@ -0,0 +1,19 @@
+; Test case for dead code elimination (SDCC style code):
+; - "_f" and "_g" are reachable, as they are exported with ".globl"
+; - "_h" is not exported and never called
+; - "_ext" is declared with ".globl", but defined in another module
+	.module test2
+	.optsdcc -mz80
+	.globl _f
+	.globl _g
+	.globl _ext
+	.area _CODE
+_f::
+	ld	a, #1
+	ret
+_g::
+	call	_ext
+	ret
+_h:
+	xor	a, a
+	ret
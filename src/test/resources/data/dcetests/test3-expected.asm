@@ -0,0 +1,22 @@
+; Test case for dead code elimination with data tables:
+; - "option1" and "option2" are only reached through "jump_table"
+; - "unused_table" is data, so it is kept, but its label is never used
+; - "dead" can never be executed
+    org #4000
+    ld hl, jump_table
+    ld a, (hl)
+    inc hl
+    ld h, (hl)
+    ld l, a
+    jp (hl)
+
+jump_table:
+    dw option1, option2
+
+option1:
+    ret
+option2:
+    ld a, 1
+    ret
+
+    db 1, 2, 3
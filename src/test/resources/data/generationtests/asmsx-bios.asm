@@ -0,0 +1,10 @@
+; test of the built-in bios symbols
+    .bios
+    .bios
+    .page 2
+    .rom
+    .start loop
+loop:
+    call CHGET
+    call CHPUT
+    jp loop
@@ -0,0 +1,17 @@
+; Test case for packing sjasm code blocks whose size depends on their address: the
+; "aligned" block takes 4 bytes where it is defined, but 5 once it is moved right
+; after the fixed block, so the blocks need to be placed again.
+    org #4000
+fixed:
+    ld a, 1
+    ret
+aligned:
+    ds (($ - 1) / 2 + 1) * 2 - $, 0
+    db 1, 2, 3, 4
+block1:
+    ld a, 2
+    ret
+block2:
+    ld a, 3
+    ret
+    ds 16400 - $, 0
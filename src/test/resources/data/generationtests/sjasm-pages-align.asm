@@ -0,0 +1,24 @@
+; Test case for packing sjasm code blocks whose size depends on their address: the
+; "aligned" block takes 4 bytes where it is defined, but 5 once it is moved right
+; after the fixed block, so the blocks need to be placed again.
+    defpage 0, #4000, 16
+
+    code page 0
+block1:
+    ld a, 2
+    ret
+
+    code @ #4000, page 0
+fixed:
+    ld a, 1
+    ret
+
+    code page 0
+aligned:
+    align 2
+    db 1, 2, 3, 4
+
+    code page 0
+block2:
+    ld a, 3
+    ret
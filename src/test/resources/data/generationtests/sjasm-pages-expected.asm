@@ -0,0 +1,24 @@
+; Test case for packing sjasm code blocks into pages: the fixed block splits the page
+; in two spaces of 10 bytes, and the remaining blocks (4, 4, 3, 3, 3 and 3 bytes) only
+; fit if each space gets a 4 byte block and two 3 byte blocks.
+    org #4000
+block1:
+    ld bc, 1
+    ret
+block3:
+    ld a, 3
+    ret
+block4:
+    ld a, 4
+    ret
+fixed:
+    jr fixed
+block2:
+    ld de, 2
+    ret
+block5:
+    ld a, 5
+    ret
+block6:
+    ld a, 6
+    ret
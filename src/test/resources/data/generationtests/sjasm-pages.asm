@@ -0,0 +1,38 @@
+; Test case for packing sjasm code blocks into pages: the fixed block splits the page
+; in two spaces of 10 bytes, and the remaining blocks (4, 4, 3, 3, 3 and 3 bytes) only
+; fit if each space gets a 4 byte block and two 3 byte blocks.
+    defpage 0, #4000, 22
+
+    code @ #400a, page 0
+fixed:
+    jr fixed
+
+    code page 0
+block1:
+    ld bc,1
+    ret
+
+    code page 0
+block2:
+    ld de,2
+    ret
+
+    code page 0
+block3:
+    ld a,3
+    ret
+
+    code page 0
+block4:
+    ld a,4
+    ret
+
+    code page 0
+block5:
+    ld a,5
+    ret
+
+    code page 0
+block6:
+    ld a,6
+    ret
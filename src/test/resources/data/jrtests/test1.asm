@@ -0,0 +1,25 @@
+; Test case for jump relaxation:
+; - "jp nz,loop" is only in range of jr after "jp z,skip" is shortened
+; - "jr finish" is out of range, and has to be expanded
+; - "jp $+5" is not modified, as its target depends on its own size
+; - "jp start" is not modified, as it is in a different "org" block, out of range
+    org #4000
+start:
+    ld a,10
+loop:
+    jp z,skip
+    ds 123
+skip:
+    dec a
+    jp nz,loop
+    jp $+5
+    nop
+    nop
+    jr finish
+    ds 200
+finish:
+    jp next
+
+    org #8000
+next:
+    jp start
@@ -0,0 +1,15 @@
+; Test case for jump relaxation across "org" blocks:
+; - "jp z,skip" is shortened
+; - "jp nz,far" is in range of jr at first, but "far" is in a different "org"
+;   block, so shortening "jp z,skip" moves it out of range again, and it has
+;   to be left as it was
+    org #4000
+start:
+    jp z,skip
+skip:
+    ld a,1
+    jp nz,far
+
+    org #4086
+far:
+    ret
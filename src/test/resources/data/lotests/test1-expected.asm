@@ -0,0 +1,39 @@
+; Test case for the loop optimizer:
+; - "loop1": "dec b; inc de; jr nz,loop1" becomes "inc de; djnz loop1", and
+;   "ld hl,table" is moved out of the loop
+; - "loop2": unrolled (4 iterations of 2 bytes)
+; - "loop3": not changed, as the flags set by "dec b" are used after the loop
+    org #4000
+start:
+    ld b, 8
+    ld de, buffer
+    ld hl, table
+loop1:
+    ld a, (hl)
+    ld (de), a
+    inc de
+    djnz loop1
+    ld b, 4
+loop2:
+    ld (de), a
+    inc de
+    ld (de), a
+    inc de
+    ld (de), a
+    inc de
+    ld (de), a
+    inc de
+    ld b, 10
+loop3:
+    ld (de), a
+    inc de
+    dec b
+    jp nz, loop3
+    ret z
+    xor a
+    ret
+
+table:
+    db 1
+buffer:
+    ds 32, 0
@@ -0,0 +1,54 @@
+; Test case for the loop optimizer, with the flags set by "dec b" used after the loop:
+; - "loop1": not changed, as the flags set by "dec b" are used in "check", reached
+;   through a jump after the loop
+; - "loop2": converted to djnz, as "jr c,carry" only uses the
+;   carry flag, which "dec b" does not modify
+; - "loop3": not changed, as "push af" saves the flags set by "dec b"
+    org #4000
+start:
+    ld de, buffer
+    call routine1
+    call routine2
+    jp routine3
+
+routine1:
+    ld b, 4
+loop1:
+    ld (de), a
+    inc de
+    dec b
+    jr nz, loop1
+    jp check
+
+routine2:
+    ld b, 4
+loop2:
+    ld (de), a
+    inc de
+    djnz loop2
+    jr c, carry
+    xor a
+    ret
+carry:
+    or a
+    ret
+
+routine3:
+    ld b, 4
+loop3:
+    ld (de), a
+    inc de
+    dec b
+    jr nz, loop3
+    push af
+    pop hl
+    xor a
+    ret
+
+check:
+    ret z
+    xor a
+    ret
+
+buffer:
+    ds 32, 0
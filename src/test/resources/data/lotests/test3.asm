@@ -0,0 +1,38 @@
+; Test case for the loop optimizer:
+; - "loop1"-"loop4": not unrolled, as their bodies read flags set by the previous
+;   iteration (or before the loop) before setting them
+; - "loop4": "dec b; jr nz,loop4" still becomes "djnz loop4", as "dec b" does not modify
+;   the carry flag read by "sbc"
+; - "loop5": unrolled, as "daa" reads the flags set by "add" in the same iteration
+    org #4000
+start:
+    ld hl,data
+    ld b,4
+loop1:
+    adc a,(hl)
+    djnz loop1
+    ld b,4
+loop2:
+    daa
+    dec b
+    jr nz,loop2
+    ld b,4
+loop3:
+    push af
+    djnz loop3
+    ld b,4
+loop4:
+    sbc a,(hl)
+    dec b
+    jr nz,loop4
+    ld b,4
+loop5:
+    add a,(hl)
+    daa
+    djnz loop5
+    ld b,a
+    ld (hl),b
+    ret
+
+data:
+    db 1
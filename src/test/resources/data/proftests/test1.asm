@@ -0,0 +1,20 @@
+; Test case for the cycle profiler:
+    call wait
+    call wait2
+end:
+    jp end
+
+wait:
+    ld b,10
+wait_loop:
+    nop
+    djnz wait_loop
+    ret
+
+wait2:
+    ld c,4
+wait2_outer:
+    call wait
+    dec c
+    jr nz,wait2_outer
+    ret
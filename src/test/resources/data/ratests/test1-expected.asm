@@ -0,0 +1,39 @@
+; Test case for the register allocator (SDCC style code):
+; - the local variable at -1(ix) in "_count" is replaced by a register
+; - "ld c, a" is only used by "ld a, c", so both can be removed
+; - the local variable in "_caller" is replaced by "d", the first register not used by
+;   "_caller" or "_count" (whose stack frame is summarized like any other push/pop)
+
+
+
+
+s__CODE:
+_count:
+    push ix
+    ld ix, #0
+    add ix, sp
+    dec sp
+    ld b, #0
+_count00102:
+    ld a, b
+    add a, #5
+    ld b, a
+    sub #100
+    jr c, _count00102
+    ld l, b
+    inc sp
+    pop ix
+    ret
+_caller:
+    push ix
+    ld ix, #0
+    add ix, sp
+    dec sp
+    ld d, #3
+    call _count
+    ld a, d
+    add a, l
+    ld l, a
+    inc sp
+    pop ix
+    ret
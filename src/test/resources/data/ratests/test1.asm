@@ -0,0 +1,41 @@
+; Test case for the register allocator (SDCC style code):
+; - the local variable at -1(ix) in "_count" is replaced by a register
+; - "ld c, a" is only used by "ld a, c", so both can be removed
+; - the local variable in "_caller" is replaced by "d", the first register not used by
+;   "_caller" or "_count" (whose stack frame is summarized like any other push/pop)
+	.module test1
+	.optsdcc -mz80
+	.globl _count
+	.globl _caller
+	.area _CODE
+_count::
+	push	ix
+	ld	ix,#0
+	add	ix,sp
+	dec	sp
+	ld	-1 (ix), #0
+00102$:
+	ld	a, -1 (ix)
+	add	a, #5
+	ld	-1 (ix), a
+	ld	c, a
+	ld	a, c
+	sub	a, #100
+	jr	C,00102$
+	ld	l, -1 (ix)
+	inc	sp
+	pop	ix
+	ret
+_caller::
+	push	ix
+	ld	ix,#0
+	add	ix,sp
+	dec	sp
+	ld	-1 (ix), #3
+	call	_count
+	ld	a, -1 (ix)
+	add	a, l
+	ld	l, a
+	inc	sp
+	pop	ix
+	ret
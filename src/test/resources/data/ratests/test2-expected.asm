@@ -0,0 +1,19 @@
+; Test case for the register allocator (SDCC style code):
+; - the local variable at -1(ix) in "_f" is not replaced, as "_f" is recursive, and
+;   the recursive call would overwrite the register
+s__CODE:
+_f:
+    push ix
+    ld ix, #0
+    add ix, sp
+    push af
+    ld (ix + -1), a
+    or a
+    jr z, _f00102
+    dec a
+    call _f
+_f00102:
+    ld a, (ix + -1)
+    pop de
+    pop ix
+    ret
@@ -0,0 +1,22 @@
+; Test case for the register allocator (SDCC style code):
+; - the local variable at -1(ix) in "_f" is not replaced, as "_f" is recursive, and
+;   the recursive call would overwrite the register
+	.module test2
+	.optsdcc -mz80
+	.globl _f
+	.area _CODE
+_f::
+	push	ix
+	ld	ix,#0
+	add	ix,sp
+	push	af
+	ld	-1 (ix), a
+	or	a, a
+	jr	Z,00102$
+	dec	a
+	call	_f
+00102$:
+	ld	a, -1 (ix)
+	pop	de
+	pop	ix
+	ret
@@ -0,0 +1,16 @@
+; Test case for the register allocator (SDCC style code):
+; - the local variable at -1(ix) in "_f" is not replaced, as it is written by
+;   "push hl" right after setting up the frame
+	.module test3
+	.optsdcc -mz80
+	.globl _f
+	.area _CODE
+_f::
+	push	ix
+	ld	ix,#0
+	add	ix,sp
+	push	hl
+	ld	a, -1 (ix)
+	pop	de
+	pop	ix
+	ret
@@ -0,0 +1,38 @@
+; Test case for the MegaROM layout optimizer:
+; - "update" (subpage 1) calls "physics" (subpage 2) inside of a loop, and "draw"
+;   (subpage 2) once. Both subpages are mapped at #6000, so each call needs a bank
+;   switch. Moving "update" to subpage 2 removes all of them.
+; - "music" (subpage 3) is mapped at #8000, so calls to it do not count.
+    org #4000
+    .megarom konami
+    .start main
+
+main:
+    call update
+    call music
+    jr main
+
+    .subpage 1 at #6000
+update:
+    ld b,8
+update_loop:
+    push bc
+    call physics
+    pop bc
+    djnz update_loop
+    call draw
+    ret
+
+    .subpage 2 at #6000
+physics:
+    ld a,[hl]
+    ret
+
+draw:
+    ld [hl],a
+    ret
+
+    .subpage 3 at #8000
+music:
+    call physics
+    ret
@@ -0,0 +1,55 @@
+    org #4000
+
+; hl = h * e
+multiply:
+    ld d,0
+    ld l,d
+    ld b,8
+multiply_loop:
+    add hl,hl
+    jr nc,multiply_skip
+    add hl,de
+multiply_skip:
+    djnz multiply_loop
+    ret
+
+; copies "source" to "destination", and stores the sum of its bytes in (destination+1)
+copy:
+    ld hl,source
+    ld de,destination
+    ld bc,4
+    ldir
+    ld hl,destination
+    xor a
+    ld b,4
+copy_loop:
+    add a,(hl)
+    inc hl
+    djnz copy_loop
+    ld ix,destination
+    ld (ix+1),a
+    bit 0,(ix+1)
+    ret
+
+; writes the bytes of "source" to port #98
+output:
+    ld hl,source
+    ld bc,#0498
+    otir
+    ret
+
+; hl = bc (counting up, one by one)
+count:
+    ld hl,0
+count_loop:
+    inc hl
+    dec bc
+    ld a,b
+    or c
+    jr nz,count_loop
+    ret
+
+source:
+    db 1, 2, 3, 4
+destination:
+    ds 4
@@ -0,0 +1,20 @@
+    org #4000
+
+; wrong version of test2.asm (stores 2, rather than 1, if "value" is 0):
+routine:
+    ld a,(value)
+    cp 0
+    jp z,routine_zero
+    ld c,a
+    ld a,0
+    add a,b
+    add a,c
+    ld (result),a
+    ret
+routine_zero:
+    ld a,2
+    ld (result),a
+    ret
+
+value: equ #c000
+result: equ #c001
@@ -0,0 +1,26 @@
+; Test case for the pattern miner:
+; - "ld ?reg1,?const1; ld a,?reg1" appears 3 times (with different registers and
+;   constants), with ?reg1 not used afterwards, so it can be replaced by "ld a,?const1"
+; - "ld ?reg1,a; ld a,?reg1" appears twice, with ?reg1 not used afterwards, so it can be removed
+    ld b,10
+    ld a,b
+    ld (var1),a
+    ld c,20
+    ld a,c
+    ld (var1),a
+    ld d,30
+    ld a,d
+    ld (var1),a
+    ld e,a
+    ld a,e
+    ld (var1),a
+    ld l,a
+    ld a,l
+    ld (var1),a
+end:
+    jr end
+
+var1:
+    db 0
+var2:
+    dw 0
@@ -0,0 +1,21 @@
+; Test case for the superoptimizer:
+; - "ld b,10; ld a,b; add a,a; ld b,a" can be replaced by "ld b,20", as A is not used afterwards
+; - "ld c,a; ld a,c" can be replaced by "ld c,a"
+; - "ld a,c; ld d,a; ld a,0; cp d" can be replaced by "sub a; cp c", as D is not used afterwards
+    ld b, 20
+    ld (var1), bc
+    ld a, (var1)
+    ld c, a
+    ld (var2), a
+    sub a
+    cp c
+    ld (var1), a
+    jr z, __mdlrenamed__end
+    ld (var2), a
+__mdlrenamed__end:
+    jr __mdlrenamed__end
+
+var1:
+    db 0
+var2:
+    db 0
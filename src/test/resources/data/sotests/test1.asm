@@ -0,0 +1,27 @@
+; Test case for the superoptimizer:
+; - "ld b,10; ld a,b; add a,a; ld b,a" can be replaced by "ld b,20", as A is not used afterwards
+; - "ld c,a; ld a,c" can be replaced by "ld c,a"
+; - "ld a,c; ld d,a; ld a,0; cp d" can be replaced by "sub a; cp c", as D is not used afterwards
+    ld b,10
+    ld a,b
+    add a,a
+    ld b,a
+    ld (var1),bc
+    ld a,(var1)
+    ld c,a
+    ld a,c
+    ld (var2),a
+    ld a,c
+    ld d,a
+    ld a,0
+    cp d
+    ld (var1),a
+    jr z,end
+    ld (var2),a
+end:
+    jr end
+
+var1:
+    db 0
+var2:
+    db 0
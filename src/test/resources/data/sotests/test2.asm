@@ -0,0 +1,30 @@
+; Test case for the superoptimizer, with registers/flags that are used afterwards
+; (the same sequences as in test1.asm, which can be replaced there):
+; - "ld b,10; ld a,b; add a,a; ld b,a" becomes "ld a,20; ld b,a" rather than
+;   "ld b,20", as A is used afterwards
+; - "ld a,c; ld d,a; ld a,0; cp d" becomes "ld d,c" (A and the flags are overwritten
+;   afterwards) rather than "sub a; cp c", as D is used afterwards
+; - "ld a,0" is not replaced by "xor a", as the flags set by "cp 5" are used by "jr z,done"
+    ld b,10
+    ld a,b
+    add a,a
+    ld b,a
+    ld (var1),a
+    ld (var2),bc
+    ld a,c
+    ld d,a
+    ld a,0
+    cp d
+    ld (var1),de
+    ld a,(var1)
+    cp 5
+    ld a,0
+    jr z,done
+    ld (var2),a
+done:
+    jr done
+
+var1:
+    dw 0
+var2:
+    dw 0
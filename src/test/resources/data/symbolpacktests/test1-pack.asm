@@ -0,0 +1,2 @@
+MYCALL: equ #f000 ; custom
+OTHER equ 12
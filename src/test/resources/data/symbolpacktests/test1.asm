@@ -0,0 +1,5 @@
+    org #4000
+loop:
+    call CHGET
+    call MYCALL
+    jp loop
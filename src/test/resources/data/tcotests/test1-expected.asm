@@ -0,0 +1,46 @@
+; Test case for the tail call optimizer:
+; - "call init; ret" in "start" becomes "jp init" (and the "ret" is removed)
+; - "call update" in "routine1" reaches a "ret" through "jp done", so it becomes "jp update"
+; - "call unbalanced" is not changed, as "unbalanced" does not return to its caller
+; - "routine3" and "update" end with the same 4 instructions, so one copy is replaced by a jump
+; - "jp routine3" right before "routine3" is removed
+    org #4000
+start:
+    call routine1
+    call routine2
+    jp init
+
+routine1:
+    jp update
+    jp done
+
+routine2:
+    call unbalanced
+    ret
+
+init:
+    xor a
+    ld (var), a
+routine3:
+    ld a, 1
+__mdl_tail_0:
+    ld hl, var
+    add a, (hl)
+    ld (var2), a
+    ret
+
+update:
+    ld a, 2
+    jp __mdl_tail_0
+
+unbalanced:
+    pop hl
+    jp (hl)
+
+done:
+    ret
+
+var:
+    db 0
+var2:
+    db 0
@@ -0,0 +1,42 @@
+; Test case for the tail call optimizer, with callees that use the stack in
+; non-standard ways:
+; - "call CHPUT" becomes "jp CHPUT", as calls to routines outside of the program
+;   (defined with "equ") are assumed to be standard
+; - "call skip_arg" is not changed, as "skip_arg" modifies its return address
+;   with "ex (sp),hl"
+; - "call drop_caller" is not changed, as "drop_caller" modifies "sp" directly
+; - "call restart" is not changed, as "restart" uses "rst"
+CHPUT: equ #00a2
+    org #4000
+start:
+    call case1
+    call case2
+    call case3
+    jp CHPUT
+
+case1:
+    call skip_arg
+    ret
+
+case2:
+    call drop_caller
+    ret
+
+case3:
+    call restart
+    ret
+
+skip_arg:
+    ex (sp), hl
+    inc hl
+    ex (sp), hl
+    ret
+
+drop_caller:
+    inc sp
+    inc sp
+    ret
+
+restart:
+    rst #38
+    ret
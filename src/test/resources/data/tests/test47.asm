@@ -0,0 +1,13 @@
+; Test case: 
+; - "jp loop" should only be replaced by "jr loop" when optimizing for size,
+;   since "jr" is slower
+
+    ld hl,data
+loop:
+    ld a,(hl)
+    out (#98),a
+    inc hl
+    jp loop
+
+data:
+    db 1, 2, 3, 4